@@ -22,18 +22,19 @@ import com.attribyte.essem.query.HistogramQuery;
 import com.attribyte.essem.query.NameQuery;
 import com.attribyte.essem.query.StatsQuery;
 import com.attribyte.essem.util.Util;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricSet;
+import com.fasterxml.jackson.core.JsonParser;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import org.attribyte.api.http.AsyncClient;
-import org.attribyte.api.http.Request;
-import org.attribyte.api.http.RequestOptions;
-import org.attribyte.api.http.Response;
 import org.attribyte.essem.metrics.Timer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -41,6 +42,8 @@ import java.io.IOException;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.attribyte.essem.util.Util.splitPath;
 
@@ -59,18 +62,30 @@ public class APIServlet extends HttpServlet implements MetricSet {
     */
    public static final String RATE_UNIT_PARAM = "rateUnit";
 
+   /**
+    * The default maximum number of concurrent queries ('64').
+    */
+   public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 64;
+
    /**
     * Creates the servlet.
+    * @param searchClient The client for ES searches.
     * @param indexAuthorization Authorizes index access based on name.
+    * @param responseGenerator Generates the client response from the ES response.
+    * @param maxConcurrentQueries The maximum number of queries in progress. Queries over the limit are
+    * rejected with {@code 503}.
+    * @param graphCache The cache for graph buckets. May be {@code null}.
     */
-   public APIServlet(final ESEndpoint esEndpoint,
-                     final AsyncClient httpClient,
-                     final RequestOptions requestOptions,
+   public APIServlet(final ESSearchClient searchClient,
                      final IndexAuthorization indexAuthorization,
-                     final ResponseGenerator responseGenerator) {
-      this.esEndpoint = esEndpoint;
-      this.httpClient = httpClient;
-      this.requestOptions = requestOptions;
+                     final ResponseGenerator responseGenerator,
+                     final int maxConcurrentQueries,
+                     final GraphCache graphCache) {
+      this.searchClient = searchClient;
+      this.graphCache = graphCache;
+      this.maxConcurrentQueries = maxConcurrentQueries;
+      this.querySlots = new Semaphore(maxConcurrentQueries);
+      this.rejectedQueries = new Meter();
       this.indexAuthorization = indexAuthorization;
       this.responseGenerator = responseGenerator;
       this.graphTimer = new Timer();
@@ -86,6 +101,13 @@ public class APIServlet extends HttpServlet implements MetricSet {
               .put("name-request-errors", nameErrors)
               .put("stats-requests", statsTimer)
               .put("stats-request-errors", statsErrors)
+              .put("queries-in-flight", new Gauge<Integer>() {
+                 @Override
+                 public Integer getValue() {
+                    return APIServlet.this.maxConcurrentQueries - querySlots.availablePermits();
+                 }
+              })
+              .put("rejected-queries", rejectedQueries)
               .build();
    }
 
@@ -126,123 +148,317 @@ public class APIServlet extends HttpServlet implements MetricSet {
          return;
       }
 
+      final AsyncQuery query;
       try {
-         final boolean responseGenerated;
          switch(op) {
             case GRAPH: {
-               final Timer.Context ctx = graphTimer.time();
-               try {
-                  GraphQuery graphQuery = new GraphQuery(request, DEFAULT_RANGE);
-                  SearchRequest query = graphQuery.searchRequest;
-                  if(graphQuery.error != null) {
-                     response.sendError(HttpServletResponse.SC_BAD_REQUEST, graphQuery.error);
-                     markError(op);
-                     return;
-                  }
-
-                  String esQuery = query.toJSON();
-                  Request esRequest = esEndpoint.postRequestBuilder(esEndpoint.buildIndexURI(index),
-                          esQuery.getBytes(Charsets.UTF_8)).create();
-                  Response esResponse = httpClient.send(esRequest, requestOptions);
-
-                  if(esResponse.getStatusCode() == HttpServletResponse.SC_OK) {
-                     RateUnit rateUnit = RateUnit.fromString(request.getParameter(RATE_UNIT_PARAM));
-                     responseGenerated = responseGenerator.generateGraph(graphQuery, esResponse, responseOptions(request), rateUnit, response);
-                  } else {
-                     reportBackendError(esResponse, response);
-                     responseGenerated = false;
+               final GraphQuery graphQuery = new GraphQuery(request, DEFAULT_RANGE);
+               if(graphQuery.error != null) {
+                  response.sendError(HttpServletResponse.SC_BAD_REQUEST, graphQuery.error);
+                  markError(op);
+                  return;
+               }
+               final EnumSet<ResponseGenerator.Option> options = responseOptions(request);
+               final RateUnit rateUnit = RateUnit.fromString(request.getParameter(RATE_UNIT_PARAM));
+               final GraphCache.Lookup lookup = graphCache != null && responseGenerator instanceof ESResponseGenerator ?
+                       graphCache.lookup(index, graphQuery) : null;
+               if(lookup == null) {
+                  query = new AsyncQuery(op, graphTimer, graphQuery.searchRequest) {
+                     @Override
+                     boolean generate(final ESResponse esResponse, final HttpServletResponse response) throws IOException {
+                        return responseGenerator.generateGraph(graphQuery, esResponse, options, rateUnit, response);
+                     }
+                  };
+               } else if(lookup.searchRequest == null) { //All buckets are cached
+                  final Timer.Context ctx = graphTimer.time();
+                  try {
+                     if(!generateCachedGraph(graphQuery, lookup, null, options, rateUnit, response)) {
+                        markError(op);
+                     }
+                  } finally {
+                     ctx.stop();
                   }
-               } finally {
-                  ctx.stop();
+                  return;
+               } else {
+                  query = new AsyncQuery(op, graphTimer, lookup.searchRequest) {
+                     @Override
+                     boolean generate(final ESResponse esResponse, final HttpServletResponse response) throws IOException {
+                        try(JsonParser parser = esResponse.parser()) {
+                           return generateCachedGraph(graphQuery, lookup, parser, options, rateUnit, response);
+                        }
+                     }
+                  };
                }
             }
             break;
             case METRIC: {
-               final Timer.Context ctx = nameTimer.time();
-               try {
-                  NameQuery nameQuery = new NameQuery(request, DEFAULT_RANGE);
-                  if(nameQuery.error != null) {
-                     response.sendError(HttpServletResponse.SC_BAD_REQUEST, nameQuery.error);
-                     markError(op);
-                     return;
-                  }
-                  String esQuery = nameQuery.searchRequest.toJSON();
-                  Request esRequest = esEndpoint.postRequestBuilder(esEndpoint.buildIndexURI(index),
-                          esQuery.getBytes(Charsets.UTF_8)).create();
-                  Response esResponse = httpClient.send(esRequest, requestOptions);
-                  if(esResponse.getStatusCode() == HttpServletResponse.SC_OK) {
-                     responseGenerated = responseGenerator.generateNames(nameQuery, esResponse, responseOptions(request), response);
-                  } else {
-                     reportBackendError(esResponse, response);
-                     responseGenerated = false;
-                  }
-               } finally {
-                  ctx.stop();
+               final NameQuery nameQuery = new NameQuery(request, DEFAULT_RANGE);
+               if(nameQuery.error != null) {
+                  response.sendError(HttpServletResponse.SC_BAD_REQUEST, nameQuery.error);
+                  markError(op);
+                  return;
                }
+               final EnumSet<ResponseGenerator.Option> options = responseOptions(request);
+               query = new AsyncQuery(op, nameTimer, nameQuery.searchRequest) {
+                  @Override
+                  boolean generate(final ESResponse esResponse, final HttpServletResponse response) throws IOException {
+                     return responseGenerator.generateNames(nameQuery, esResponse, options, response);
+                  }
+               };
             }
             break;
             case STATS: {
-               final Timer.Context ctx = statsTimer.time();
-               try {
-                  String range = Strings.nullToEmpty(request.getParameter("range")).trim();
-                  if(range.length() == 0) range = "day";
-                  long startTimestamp = Util.getLongParameter(request, "startTimestamp", 0L);
-                  long endTimestamp = Util.getLongParameter(request, "endTimestamp", 0L);
-                  StatsQuery statsQuery = new StatsQuery(MetricKey.parseKey(request), range, startTimestamp, endTimestamp);
-                  String esQuery = statsQuery.searchRequest.toJSON();
-                  Request esRequest = esEndpoint.postRequestBuilder(esEndpoint.buildIndexURI(index),
-                          esQuery.getBytes(Charsets.UTF_8)).create();
-                  Response esResponse = httpClient.send(esRequest, requestOptions);
-                  if(esResponse.getStatusCode() == HttpServletResponse.SC_OK) {
-                     responseGenerated = responseGenerator.generateStats(statsQuery, esResponse, responseOptions(request), response);
-                  } else {
-                     reportBackendError(esResponse, response);
-                     responseGenerated = false;
+               String range = Strings.nullToEmpty(request.getParameter("range")).trim();
+               if(range.length() == 0) range = "day";
+               long startTimestamp = Util.getLongParameter(request, "startTimestamp", 0L);
+               long endTimestamp = Util.getLongParameter(request, "endTimestamp", 0L);
+               final StatsQuery statsQuery = new StatsQuery(MetricKey.parseKey(request), range, startTimestamp, endTimestamp);
+               final EnumSet<ResponseGenerator.Option> options = responseOptions(request);
+               query = new AsyncQuery(op, statsTimer, statsQuery.searchRequest) {
+                  @Override
+                  boolean generate(final ESResponse esResponse, final HttpServletResponse response) throws IOException {
+                     return responseGenerator.generateStats(statsQuery, esResponse, options, response);
                   }
-               } finally {
-                  ctx.stop();
-               }
-               break;
+               };
             }
+            break;
             case HISTOGRAM: {
-               HistogramQuery query = new HistogramQuery(request, DEFAULT_RANGE);
-               if(query.error != null) {
-                  response.sendError(HttpServletResponse.SC_BAD_REQUEST, query.error);
+               final HistogramQuery histogramQuery = new HistogramQuery(request, DEFAULT_RANGE);
+               if(histogramQuery.error != null) {
+                  response.sendError(HttpServletResponse.SC_BAD_REQUEST, histogramQuery.error);
                   markError(op);
                   return;
                }
-
-               String esQuery = query.searchRequest.toJSON();
-               Request esRequest = esEndpoint.postRequestBuilder(esEndpoint.buildIndexURI(index),
-                       esQuery.getBytes(Charsets.UTF_8)).create();
-               Response esResponse = httpClient.send(esRequest, requestOptions);
-               if(esResponse.getStatusCode() == HttpServletResponse.SC_OK) {
-                  responseGenerated = responseGenerator.generateHistogram(query, esResponse, responseOptions(request), response);
-               } else {
-                  reportBackendError(esResponse, response);
-                  responseGenerated = false;
-               }
-               break;
+               final EnumSet<ResponseGenerator.Option> options = responseOptions(request);
+               query = new AsyncQuery(op, null, histogramQuery.searchRequest) {
+                  @Override
+                  boolean generate(final ESResponse esResponse, final HttpServletResponse response) throws IOException {
+                     return responseGenerator.generateHistogram(histogramQuery, esResponse, options, response);
+                  }
+               };
             }
-
+            break;
             default: {
                response.sendError(HttpServletResponse.SC_NOT_FOUND);
-               responseGenerated = true;
+               return;
             }
          }
+      } catch(Throwable t) {
+         markError(op);
+         t.printStackTrace();
+         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+         return;
+      }
+
+      if(!querySlots.tryAcquire()) {
+         rejectedQueries.mark();
+         response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent queries");
+         return;
+      }
+
+      query.start(request, response, index);
+   }
 
-         if(!responseGenerated) {
+   /**
+    * A query that waits for the ES response without holding a thread, then generates
+    * the client response on a container thread.
+    * <p>
+    *    The query holds a slot from the time it is started until the response is complete,
+    *    or the container reports an error (for example, the client is gone).
+    * </p>
+    */
+   private abstract class AsyncQuery implements ESSearchClient.ResponseCallback, AsyncListener {
+
+      /**
+       * Creates the query.
+       * @param op The operation.
+       * @param timer The timer for the operation, or {@code null} if not timed.
+       * @param searchRequest The search request.
+       */
+      AsyncQuery(final Op op, final Timer timer, final SearchRequest searchRequest) {
+         this.op = op;
+         this.timer = timer;
+         this.searchRequest = searchRequest;
+      }
+
+      /**
+       * Generates the client response from a successful ES response.
+       * @param esResponse The ES response.
+       * @param response The client response.
+       * @return Was the response generated without error?
+       * @throws IOException on parse or write error.
+       */
+      abstract boolean generate(ESResponse esResponse, HttpServletResponse response) throws IOException;
+
+      /**
+       * Starts async processing for the request and sends the search.
+       * @param request The request.
+       * @param response The response.
+       * @param index The index to search.
+       */
+      final void start(final HttpServletRequest request, final HttpServletResponse response, final String index) {
+         this.response = response;
+         this.ctx = timer != null ? timer.time() : null;
+         try {
+            this.asyncContext = request.startAsync();
+            this.asyncContext.setTimeout(0L); //The search has a timeout...
+            this.asyncContext.addListener(this);
+            searchClient.search(index, searchRequest.toJSON(), this);
+         } catch(Throwable t) {
+            failed(t);
+         }
+      }
+
+      @Override
+      public final void completed(final ESResponse esResponse) {
+         if(done.get()) { //Client error
+            close(esResponse);
+            return;
+         }
+         try {
+            startGenerate(esResponse);
+         } catch(Throwable t) {
+            close(esResponse);
             markError(op);
+            log("Query failed", t);
+            complete();
          }
+      }
+
+      /**
+       * Generates the response on a container thread.
+       * @param esResponse The ES response. Closed when the response is generated.
+       */
+      private void startGenerate(final ESResponse esResponse) {
+         asyncContext.start(new Runnable() {
+            @Override
+            public void run() {
+               try(ESResponse closedResponse = esResponse) {
+                  final boolean responseGenerated;
+                  if(closedResponse.statusCode == HttpServletResponse.SC_OK) {
+                     responseGenerated = generate(closedResponse, response);
+                  } else {
+                     reportBackendError(closedResponse, response);
+                     responseGenerated = false;
+                  }
+                  if(!responseGenerated) {
+                     markError(op);
+                  }
+               } catch(Throwable t) {
+                  markError(op);
+                  log("Query failed", t);
+                  sendError();
+               } finally {
+                  complete();
+               }
+            }
+         });
+      }
 
-      } catch(IOException ioe) {
+      @Override
+      public final void failed(final Throwable failure) {
          markError(op);
-         ioe.printStackTrace();
-         throw ioe;
-      } catch(Throwable t) {
+         log("Search failed", failure);
+         sendError();
+         complete();
+      }
+
+      @Override
+      public void onError(final AsyncEvent event) {
          markError(op);
-         t.printStackTrace();
-         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+         log("Query response failed", event.getThrowable());
+         complete();
+      }
+
+      @Override
+      public void onTimeout(final AsyncEvent event) {
+         complete();
+      }
+
+      @Override
+      public void onComplete(final AsyncEvent event) {
+      }
+
+      @Override
+      public void onStartAsync(final AsyncEvent event) {
+      }
+
+      /**
+       * Closes an ES response that won't be read.
+       * @param esResponse The response.
+       */
+      private void close(final ESResponse esResponse) {
+         try {
+            esResponse.close();
+         } catch(IOException ioe) {
+            //Ignore
+         }
+      }
+
+      /**
+       * Sends an internal error, if the response is not committed.
+       */
+      private void sendError() {
+         if(!response.isCommitted()) {
+            try {
+               response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } catch(IOException ioe) {
+               //Client is gone...
+            }
+         }
+      }
+
+      /**
+       * Completes async processing and releases the query slot, if not already complete.
+       */
+      private void complete() {
+         if(!done.compareAndSet(false, true)) {
+            return;
+         }
+         try {
+            if(asyncContext != null) {
+               asyncContext.complete();
+            }
+         } finally {
+            if(ctx != null) {
+               ctx.stop();
+            }
+            querySlots.release();
+         }
+      }
+
+      private final Op op;
+      private final Timer timer;
+      private final SearchRequest searchRequest;
+      private HttpServletResponse response;
+      private Timer.Context ctx;
+      private volatile AsyncContext asyncContext;
+      private final AtomicBoolean done = new AtomicBoolean();
+   }
+
+   /**
+    * Generates a graph from cached buckets merged with buckets from ES.
+    * @param graphQuery The graph query.
+    * @param lookup The cache lookup for the query.
+    * @param esParser A parser for the ES response, or {@code null} if all buckets are cached.
+    * @param options The response options.
+    * @param rateUnit The rate unit.
+    * @param response The HTTP response.
+    * @return Was the response generated without error?
+    * @throws IOException on generation error.
+    */
+   private boolean generateCachedGraph(final GraphQuery graphQuery,
+                                       final GraphCache.Lookup lookup,
+                                       final JsonParser esParser,
+                                       final EnumSet<ResponseGenerator.Option> options,
+                                       final RateUnit rateUnit,
+                                       final HttpServletResponse response) throws IOException {
+      byte[] merged = lookup.merge(esParser);
+      if(options.contains(ResponseGenerator.Option.EXPLAIN)) {
+         response.setHeader(GraphCache.EXPLAIN_HEADER, lookup.explain());
+      }
+      try(JsonParser parser = Util.parserFactory.createParser(merged)) {
+         return ((ESResponseGenerator)responseGenerator).generateGraph(graphQuery, parser, options, rateUnit, response);
       }
    }
 
@@ -272,11 +488,12 @@ public class APIServlet extends HttpServlet implements MetricSet {
     * Logs an error response from ES.
     * @param esResponse The response.
     */
-   private void reportBackendError(final Response esResponse, final HttpServletResponse response) throws IOException {
-      log("Search error: " + esResponse.getBody().toStringUtf8());
+   private void reportBackendError(final ESResponse esResponse, final HttpServletResponse response) throws IOException {
+      String error = esResponse.bodyAsString();
+      log("Search error: " + error);
       response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       response.setContentType(Util.JSON_CONTENT_TYPE_HEADER);
-      response.getOutputStream().write(esResponse.getBody().toByteArray()); //TODO: maybe don't return the raw response...
+      response.getOutputStream().write(error.getBytes(Charsets.UTF_8)); //TODO: maybe don't return the raw response...
       response.getOutputStream().flush();
    }
 
@@ -299,19 +516,29 @@ public class APIServlet extends HttpServlet implements MetricSet {
 
 
    /**
-    * The elasticsearch endpoint for search.
+    * The client for ES searches.
+    */
+   private final ESSearchClient searchClient;
+
+   /**
+    * The cache for graph buckets. May be {@code null}.
+    */
+   private final GraphCache graphCache;
+
+   /**
+    * The maximum number of queries in progress.
     */
-   private final ESEndpoint esEndpoint;
+   private final int maxConcurrentQueries;
 
    /**
-    * The HTTP client.
+    * A permit for each query that may be in progress.
     */
-   private final AsyncClient httpClient;
+   private final Semaphore querySlots;
 
    /**
-    * The request options for ES HTTP requests.
+    * Meters queries rejected because too many are in progress.
     */
-   private final RequestOptions requestOptions;
+   private final Meter rejectedQueries;
 
    /**
     * Generates a client response from an ES query response.
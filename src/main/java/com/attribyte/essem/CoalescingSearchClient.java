@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.util.Callback;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a single ES search for identical asynchronous searches that are in progress at the same time.
+ * <p>
+ *    Searches are identical if the index and query JSON are the same. The first search is sent,
+ *    and identical searches may join it until the first response content arrives (usually, while ES
+ *    runs the query). Each search streams its own copy of the response. Nothing is buffered:
+ *    content is released to the HTTP client only when every search has read it, so
+ *    searches sharing a response proceed at the pace of the slowest reader.
+ *    A search that closes its response early no longer holds up the others.
+ * </p>
+ * <p>
+ *    A search that arrives after content has started starts a new search. Blocking searches are never coalesced.
+ * </p>
+ */
+public class CoalescingSearchClient extends ESSearchClient implements MetricSet {
+
+   /**
+    * Creates the client.
+    * @param esEndpoint The ES endpoint.
+    * @param httpClient The (started) HTTP client.
+    * @param timeoutSeconds The maximum time to complete a search, including reading the response.
+    */
+   public CoalescingSearchClient(final ESEndpoint esEndpoint,
+                                 final HttpClient httpClient,
+                                 final int timeoutSeconds) {
+      super(esEndpoint, httpClient, timeoutSeconds);
+      this.metrics = ImmutableMap.<String, Metric>of(
+              "searches", searches,
+              "coalesced-searches", coalescedSearches,
+              "flights", new Gauge<Integer>() {
+                 @Override
+                 public Integer getValue() {
+                    return flights.size();
+                 }
+              });
+   }
+
+   @Override
+   public void search(final String index, final String query, final ResponseCallback callback) {
+
+      final String key = index + "|" + query;
+      while(true) {
+         Flight flight = flights.get(key);
+         if(flight == null) {
+            flight = new Flight(key, callback);
+            if(flights.putIfAbsent(key, flight) == null) {
+               searches.mark();
+               newRequest(index, query).send(flight);
+               return;
+            }
+         } else if(flight.join(callback)) {
+            coalescedSearches.mark();
+            return;
+         } else {
+            flights.remove(key, flight);
+         }
+      }
+   }
+
+   /**
+    * A search that shares a response.
+    */
+   private static final class Reader {
+
+      Reader(final ResponseCallback callback) {
+         this.callback = callback;
+      }
+
+      /**
+       * Notifies the callback that headers were received, if not already notified.
+       * @param response The response.
+       */
+      void completed(final Response response) {
+         if(!notified) {
+            notified = true;
+            callback.completed(new ESResponse(response.getStatus(), listener.getInputStream()));
+         }
+      }
+
+      /**
+       * Notifies the callback of a failure, if not already notified.
+       * @param failure The failure.
+       */
+      void failed(final Throwable failure) {
+         if(!notified) {
+            notified = true;
+            callback.failed(failure);
+         }
+      }
+
+      /**
+       * The callback.
+       */
+      final ResponseCallback callback;
+
+      /**
+       * Receives the shared response events, and streams the content to the reader.
+       */
+      final InputStreamResponseListener listener = new InputStreamResponseListener();
+
+      /**
+       * Has the callback been notified? Guarded by the flight.
+       */
+      boolean notified;
+
+      /**
+       * Has the reader closed its response?
+       */
+      volatile boolean closed;
+   }
+
+   /**
+    * A search in progress, and the searches that share its response.
+    */
+   private final class Flight extends Response.Listener.Adapter {
+
+      Flight(final String key, final ResponseCallback callback) {
+         this.key = key;
+         this.readers.add(new Reader(callback));
+      }
+
+      /**
+       * Joins the flight.
+       * @param callback The callback for the response.
+       * @return Was the flight joined? If not, content has started, and a new search is required.
+       */
+      boolean join(final ResponseCallback callback) {
+         final Reader reader = new Reader(callback);
+         synchronized(this) {
+            if(!joinable) {
+               return false;
+            }
+            readers.add(reader);
+            if(headers != null) {
+               reader.listener.onHeaders(headers);
+               reader.completed(headers);
+            }
+         }
+         return true;
+      }
+
+      @Override
+      public void onHeaders(final Response response) {
+         synchronized(this) {
+            headers = response;
+            for(Reader reader : readers) {
+               reader.listener.onHeaders(response);
+               reader.completed(response);
+            }
+         }
+      }
+
+      @Override
+      public void onContent(final Response response, final ByteBuffer content, final Callback callback) {
+
+         final List<Reader> openReaders;
+         synchronized(this) {
+            joinable = false;
+            openReaders = Lists.newArrayListWithCapacity(readers.size());
+            for(Reader reader : readers) {
+               if(!reader.closed) {
+                  openReaders.add(reader);
+               }
+            }
+         }
+         flights.remove(key, this);
+
+         if(openReaders.isEmpty()) {
+            callback.failed(new IllegalStateException("All readers closed the response"));
+            return;
+         }
+
+         final AtomicInteger remaining = new AtomicInteger(openReaders.size());
+         for(final Reader reader : openReaders) {
+            reader.listener.onContent(response, content.duplicate(), new Callback() {
+               @Override
+               public void succeeded() {
+                  consumed(null);
+               }
+
+               @Override
+               public void failed(final Throwable failure) {
+                  reader.closed = true; //Others continue
+                  consumed(failure);
+               }
+
+               private void consumed(final Throwable failure) {
+                  if(remaining.decrementAndGet() == 0) {
+                     if(allClosed()) {
+                        callback.failed(failure != null ? failure : new IllegalStateException("All readers closed the response"));
+                     } else {
+                        callback.succeeded();
+                     }
+                  }
+               }
+            });
+         }
+      }
+
+      /**
+       * Have all readers closed the response?
+       * @return Are all readers closed?
+       */
+      private synchronized boolean allClosed() {
+         for(Reader reader : readers) {
+            if(!reader.closed) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      @Override
+      public void onSuccess(final Response response) {
+         for(Reader reader : closeToJoin()) {
+            reader.listener.onSuccess(response);
+         }
+      }
+
+      @Override
+      public void onFailure(final Response response, final Throwable failure) {
+         for(Reader reader : closeToJoin()) {
+            reader.listener.onFailure(response, failure);
+         }
+      }
+
+      @Override
+      public void onComplete(final Result result) {
+         final List<Reader> completeReaders = closeToJoin();
+         flights.remove(key, this);
+         for(Reader reader : completeReaders) {
+            reader.listener.onComplete(result);
+         }
+         if(result.isFailed()) {
+            synchronized(this) {
+               for(Reader reader : completeReaders) {
+                  reader.failed(result.getFailure());
+               }
+            }
+         }
+      }
+
+      /**
+       * Stops searches from joining.
+       * @return The readers.
+       */
+      private synchronized List<Reader> closeToJoin() {
+         joinable = false;
+         return ImmutableList.copyOf(readers);
+      }
+
+      /**
+       * The key for the search.
+       */
+      private final String key;
+
+      /**
+       * The searches that share the response.
+       */
+      private final List<Reader> readers = Lists.newArrayListWithExpectedSize(4);
+
+      /**
+       * The response, once headers are received.
+       */
+      private Response headers;
+
+      /**
+       * May searches join?
+       */
+      private boolean joinable = true;
+   }
+
+   @Override
+   public Map<String, Metric> getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Searches in progress, by index and query.
+    */
+   private final ConcurrentMap<String, Flight> flights = Maps.newConcurrentMap();
+
+   /**
+    * Meters searches sent to ES.
+    */
+   private final Meter searches = new Meter();
+
+   /**
+    * Meters searches that shared the response to another search.
+    */
+   private final Meter coalescedSearches = new Meter();
+
+   /**
+    * The metrics.
+    */
+   private final ImmutableMap<String, Metric> metrics;
+}
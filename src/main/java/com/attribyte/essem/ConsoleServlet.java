@@ -88,6 +88,7 @@ public class ConsoleServlet extends HttpServlet {
                          final List<DisplayTZ> zones,
                          final AsyncClient client,
                          final RequestOptions requestOptions,
+                         final ESSearchClient searchClient,
                          final Logger logger,
                          final boolean debug) {
 
@@ -115,6 +116,7 @@ public class ConsoleServlet extends HttpServlet {
 
       this.client = client;
       this.requestOptions = requestOptions;
+      this.searchClient = searchClient;
       this.logger = logger;
       this.templateGroup = debug ? null : loadTemplates();
       this.dashboardTemplateGroup = debug ? null : loadDashboardTemplates();
@@ -1090,17 +1092,14 @@ public class ConsoleServlet extends HttpServlet {
             rateUnit = null;
          }
 
-         String esQuery = query.searchRequest.toJSON();
-         Request esRequest = esEndpoint.postRequestBuilder(esEndpoint.buildIndexURI(index),
-                 esQuery.getBytes(Charsets.UTF_8)).create();
-         Response esResponse = client.send(esRequest, requestOptions);
-
-         if(esResponse.getStatusCode() == 200) {
-            ObjectNode statsObject = Util.mapper.readTree(Util.parserFactory.createParser(esResponse.getBody().toByteArray()));
-            Stats stats = StatsParser.parseStats(statsObject, rateUnit);
-            template.add("stats", stats);
-         } else {
-            logger.error("Field stats response error for '" + index + "' (" + esResponse.getStatusCode() + ")");
+         try(ESResponse esResponse = searchClient.search(index, query.searchRequest.toJSON())) {
+            if(esResponse.statusCode == 200) {
+               ObjectNode statsObject = Util.mapper.readTree(esResponse.parser());
+               Stats stats = StatsParser.parseStats(statsObject, rateUnit);
+               template.add("stats", stats);
+            } else {
+               logger.error("Field stats response error for '" + index + "' (" + esResponse.statusCode + ")");
+            }
          }
       } catch(Exception e) {
          sendError(request, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
@@ -1603,6 +1602,7 @@ public class ConsoleServlet extends HttpServlet {
    private final Logger logger;
    private final AsyncClient client;
    private final RequestOptions requestOptions;
+   private final ESSearchClient searchClient;
    private final IndexAuthorization indexAuthorization;
    private final ESEndpoint esEndpoint;
    private final ESUserStore userStore;
@@ -18,16 +18,19 @@ package com.attribyte.essem;
 import com.attribyte.essem.model.graph.MetricKey;
 import com.attribyte.essem.query.GraphQuery;
 import com.attribyte.essem.query.HistogramQuery;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import org.attribyte.api.http.Response;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
@@ -35,7 +38,6 @@ import org.joda.time.format.ISODateTimeFormat;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -47,17 +49,14 @@ import static com.attribyte.essem.query.Fields.rateFields;
 public class DefaultResponseGenerator extends ESResponseGenerator {
 
    @Override
-   public boolean generateGraph(GraphQuery graphQuery,
-                                Response esResponse,
-                                EnumSet<Option> options,
-                                RateUnit rateUnit,
-                                HttpServletResponse response) throws IOException {
-      ObjectNode jsonObject = mapper.readTree(parserFactory.createParser(esResponse.getBody().toByteArray()));
-
-      ObjectNode responseObject = JsonNodeFactory.instance.objectNode();
+   protected boolean generateGraph(GraphQuery graphQuery,
+                                   JsonParser parser,
+                                   EnumSet<Option> options,
+                                   RateUnit rateUnit,
+                                   HttpServletResponse response) throws IOException {
+
       List<String> fields = ImmutableList.copyOf(graphQuery.searchRequest.fields);
       ObjectNode targetMeta = JsonNodeFactory.instance.objectNode();
-      ArrayNode targetGraphs = responseObject.putArray("graphs");
 
       if(graphQuery.range.expression != null) {
          targetMeta.put("range", graphQuery.range.expression);
@@ -71,8 +70,11 @@ public class DefaultResponseGenerator extends ESResponseGenerator {
          targetMeta.put("rangeEndTimestamp", graphQuery.range.endTimestamp);
       }
 
-      JsonNode aggregations = jsonObject.get("aggregations");
-      if(aggregations != null && aggregations.isObject()) {
+      JsonGenerator generator = startResponse(response);
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("graphs");
+
+      if(graphQuery.isAggregation) {
          ArrayNode metaFields = targetMeta.putArray("fields");
          metaFields.add("timestamp");
          metaFields.add("samples");
@@ -88,13 +90,12 @@ public class DefaultResponseGenerator extends ESResponseGenerator {
             targetMeta.put("downsampledWith", graphQuery.downsampleFunction);
          }
 
-         String error = parseGraphAggregation(aggregations, fields, rateUnit, targetMeta, targetGraphs);
-         if(error == null) {
-            generateGraph(responseObject, response);
-            return true;
-         } else {
-            response.sendError(500, error);
-            return false;
+         if(seekField(parser, "aggregations", JsonToken.START_OBJECT)) {
+            String error = parseGraphAggregation(parser, fields, rateUnit, targetMeta, generator);
+            if(error != null) {
+               sendGraphError(response, error);
+               return false;
+            }
          }
       } else {
          ArrayNode metaFields = targetMeta.putArray("fields");
@@ -105,177 +106,255 @@ public class DefaultResponseGenerator extends ESResponseGenerator {
                metaFields.add(field);
             }
          }
-         parseGraph(jsonObject, fields, rateUnit, targetMeta, targetGraphs);
-         generateGraph(responseObject, response);
-         return true;
+
+         if(seekField(parser, "hits", JsonToken.START_OBJECT) && seekField(parser, "hits", JsonToken.START_ARRAY)) {
+            parseGraph(parser, fields, rateUnit, targetMeta, generator);
+         }
       }
-   }
 
-   private void generateGraph(JsonNode responseObject,
-                              HttpServletResponse response) throws IOException {
-      response.setContentType(JSON_CONTENT_TYPE_HEADER);
-      response.setStatus(HttpServletResponse.SC_OK);
-      response.getOutputStream().write(responseObject.toString().getBytes("UTF-8"));
-      response.getOutputStream().flush();
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.close();
+      return true;
    }
 
-
-   protected void parseGraph(JsonNode sourceParent, List<String> fields,
+   /**
+    * Writes a graph for each key from ES hits.
+    * <p>
+    *    Samples for the first key are written directly. Samples for other keys are buffered
+    *    until all hits are read.
+    * </p>
+    * @param parser The parser, positioned at the start of the hits array.
+    * @param fields The fields.
+    * @param rateUnit The rate unit.
+    * @param targetMeta The target (input) meta.
+    * @param generator The generator.
+    * @throws IOException on parse or write error.
+    */
+   protected void parseGraph(JsonParser parser, List<String> fields,
                              RateUnit rateUnit,
-                             ObjectNode targetMeta, ArrayNode targetGraph) {
-
-      DateTimeFormatter parser = ISODateTimeFormat.basicDateTime();
-
-      Map<MetricKey, ArrayNode> outputGraphs = Maps.newHashMapWithExpectedSize(4);
-
-      JsonNode hitsObj = sourceParent.get("hits");
-      if(hitsObj != null) {
-         JsonNode hitsArr = hitsObj.get("hits");
-         if(hitsArr != null) {
-
-            for(JsonNode hitObj : hitsArr) {
-               JsonNode fieldsObj = hitObj.get("fields");
-               if(fieldsObj != null) {
-                  MetricKey key = new MetricKey(
-                          getStringField(fieldsObj, "name"),
-                          getStringField(fieldsObj, "application"),
-                          getStringField(fieldsObj, "host"),
-                          getStringField(fieldsObj, "instance")
-                  );
-
-                  ArrayNode samplesArr = outputGraphs.get(key);
-                  if(samplesArr == null) {
-                     ObjectNode graphObj = targetGraph.addObject();
-                     addMeta(key, graphObj, targetMeta);
-                     samplesArr = graphObj.putArray("samples");
-                     outputGraphs.put(key, samplesArr);
-                  }
+                             ObjectNode targetMeta, JsonGenerator generator) throws IOException {
+
+      DateTimeFormatter dateParser = ISODateTimeFormat.basicDateTime();
+
+      MetricKey firstKey = null;
+      Map<MetricKey, TokenBuffer> outputGraphs = Maps.newLinkedHashMap();
 
-                  ArrayNode sampleArr = samplesArr.addArray();
-
-                  DateTime timestamp = parser.parseDateTime(getStringField(fieldsObj, "ts"));
-                  sampleArr.add(timestamp.getMillis());
-                  sampleArr.add(1); //Samples..
-
-                  for(String field : fields) {
-                     if(!graphIgnoreProperties.contains(field)) {
-                        JsonNode fieldNode = getFieldNode(fieldsObj, field);
-                        if(rateUnit == RAW_RATE_UNIT || fieldNode == null || !rateFields.contains(field)) {
-                           if(fieldNode != null) {
-                              sampleArr.add(fieldNode);
-                           } else {
-                              sampleArr.addNull();
-                           }
-                        } else {
-                           sampleArr.add(fieldNode.doubleValue() * rateUnit.mult);
-                        }
-                     }
+      while(parser.nextToken() != JsonToken.END_ARRAY) {
+         if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            continue;
+         }
+
+         if(!seekField(parser, "fields", JsonToken.START_OBJECT)) {
+            continue;
+         }
+         JsonNode fieldsObj = mapper.readTree(parser);
+         skipToEndObject(parser);
+
+         MetricKey key = new MetricKey(
+                 getStringField(fieldsObj, "name"),
+                 getStringField(fieldsObj, "application"),
+                 getStringField(fieldsObj, "host"),
+                 getStringField(fieldsObj, "instance")
+         );
+
+         final JsonGenerator graphGenerator;
+         if(firstKey == null) {
+            firstKey = key;
+            startGraph(meta(key, targetMeta), generator);
+            graphGenerator = generator;
+         } else if(key.equals(firstKey)) {
+            graphGenerator = generator;
+         } else {
+            TokenBuffer buffer = outputGraphs.get(key);
+            if(buffer == null) {
+               buffer = new TokenBuffer(mapper, false);
+               startGraph(meta(key, targetMeta), buffer);
+               outputGraphs.put(key, buffer);
+            }
+            graphGenerator = buffer;
+         }
+
+         graphGenerator.writeStartArray();
+         DateTime timestamp = dateParser.parseDateTime(getStringField(fieldsObj, "ts"));
+         graphGenerator.writeNumber(timestamp.getMillis());
+         graphGenerator.writeNumber(1); //Samples..
+
+         for(String field : fields) {
+            if(!graphIgnoreProperties.contains(field)) {
+               JsonNode fieldNode = getFieldNode(fieldsObj, field);
+               if(rateUnit == RAW_RATE_UNIT || fieldNode == null || !rateFields.contains(field)) {
+                  if(fieldNode != null) {
+                     graphGenerator.writeTree(fieldNode);
+                  } else {
+                     graphGenerator.writeNull();
                   }
+               } else {
+                  graphGenerator.writeNumber(fieldNode.doubleValue() * rateUnit.mult);
                }
             }
          }
+         graphGenerator.writeEndArray();
+      }
+
+      if(firstKey != null) {
+         endGraph(generator);
+         for(TokenBuffer buffer : outputGraphs.values()) {
+            endGraph(buffer);
+            buffer.serialize(generator);
+         }
       }
    }
 
-   protected String parseGraphAggregation(JsonNode sourceParent, List<String> fields,
+   /**
+    * Writes a graph for each (nested) aggregation.
+    * @param parser The parser, positioned at the start of the object that contains the aggregation.
+    * On success, positioned at the end of this object.
+    * @param fields The fields.
+    * @param rateUnit The rate unit.
+    * @param targetMeta The target (input) meta.
+    * @param generator The generator.
+    * @return The error, or {@code null} if none.
+    * @throws IOException on parse or write error.
+    */
+   protected String parseGraphAggregation(JsonParser parser, List<String> fields,
                                           RateUnit rateUnit,
-                                          ObjectNode targetMeta, ArrayNode targetGraph) {
-
-      Iterator<Map.Entry<String, JsonNode>> iter = sourceParent.fields();
-      Map.Entry<String, JsonNode> aggregation = null;
-
-      while(iter.hasNext()) {
-         aggregation = iter.next();
-         if(aggregation.getValue().isObject()) {
-            break;
-         } else {
-            aggregation = null;
-         }
+                                          ObjectNode targetMeta, JsonGenerator generator) throws IOException {
+      String bucketName = seekObjectField(parser);
+      if(bucketName == null) {
+         return INVALID_AGGREGATION;
       }
 
-      if(aggregation == null) {
-         return "Aggregation is invalid";
+      String error = parseAggregation(parser, bucketName, fields, rateUnit, targetMeta, generator);
+      if(error == null) {
+         skipToEndObject(parser);
       }
+      return error;
+   }
 
-      String bucketName = aggregation.getKey();
+   /**
+    * Writes graphs for an aggregation.
+    * <p>
+    *    Buckets for key components are expected to have their key before any nested aggregation,
+    *    as ES writes them.
+    * </p>
+    * @param parser The parser, positioned at the start of the aggregation. On success, positioned at the end.
+    * @param bucketName The aggregation (bucket) name.
+    * @param fields The fields.
+    * @param rateUnit The rate unit.
+    * @param targetMeta The target (input) meta.
+    * @param generator The generator.
+    * @return The error, or {@code null} if none.
+    * @throws IOException on parse or write error.
+    */
+   private String parseAggregation(JsonParser parser, String bucketName, List<String> fields,
+                                   RateUnit rateUnit,
+                                   ObjectNode targetMeta, JsonGenerator generator) throws IOException {
 
-      JsonNode obj = aggregation.getValue();
-      JsonNode bucketsObj = obj.get("buckets");
-      if(bucketsObj == null || !bucketsObj.isArray()) {
-         return "Aggregation is invalid";
+      if(!seekField(parser, "buckets", JsonToken.START_ARRAY)) {
+         return INVALID_AGGREGATION;
       }
 
       if(keyComponents.contains(bucketName)) {
-         for(final JsonNode bucketObj : bucketsObj) {
-            if(!bucketObj.isObject()) {
-               return "Aggregation is invalid";
+         while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+               return INVALID_AGGREGATION;
             }
 
-            JsonNode keyNode = bucketObj.get(KEY_NODE_KEY);
-            if(keyNode == null) {
-               return "Aggregation is invalid";
+            String key = null;
+            boolean hasAggregation = false;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+               String fieldName = parser.getCurrentName();
+               JsonToken token = parser.nextToken();
+               if(!hasAggregation && token == JsonToken.START_OBJECT) {
+                  if(key == null) {
+                     return INVALID_AGGREGATION;
+                  }
+                  hasAggregation = true;
+                  targetMeta.put(translateBucketName(bucketName), key);
+                  String error = parseAggregation(parser, fieldName, fields, rateUnit, targetMeta.deepCopy(), generator);
+                  if(error != null) {
+                     return error;
+                  }
+               } else if(fieldName.equals(KEY_NODE_KEY) && token.isScalarValue()) {
+                  key = parser.getText();
+               } else {
+                  parser.skipChildren();
+               }
             }
 
-            targetMeta.put(translateBucketName(bucketName), keyNode.asText());
-            String error = parseGraphAggregation(bucketObj, fields, rateUnit, targetMeta.deepCopy(), targetGraph);
-            if(error != null) {
-               return error;
+            if(!hasAggregation) {
+               return INVALID_AGGREGATION;
             }
          }
-         return null;
       } else {
-         ObjectNode graphObj = targetGraph.addObject();
-         addAggregationMeta(graphObj, targetMeta);
-
-         ArrayNode samplesArr = graphObj.putArray("samples");
+         startGraph(aggregationMeta(targetMeta), generator);
 
-         for(final JsonNode bucketObj : bucketsObj) {
-            if(!bucketObj.isObject()) {
-               return "Aggregation is invalid";
-            }
+         final boolean[] convertRate = new boolean[fields.size()];
+         for(int i = 0; i < convertRate.length; i++) {
+            convertRate[i] = rateUnit != RAW_RATE_UNIT && rateFields.contains(fields.get(i));
+         }
 
-            JsonNode keyNode = bucketObj.get(KEY_NODE_KEY);
-            if(keyNode == null) {
-               return "Aggregation is invalid";
+         Bucket bucket = new Bucket(fields);
+         while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(!bucket.read(parser)) {
+               return INVALID_AGGREGATION;
             }
 
-            ArrayNode sampleArr = samplesArr.addArray();
-            sampleArr.add(keyNode.asLong());
-            JsonNode docCountNode = bucketObj.get(SAMPLES_KEY);
-            long samples = docCountNode != null ? docCountNode.asLong() : 0L;
-            sampleArr.add(samples);
-
-            for(String field : fields) {
-               JsonNode fieldObj = bucketObj.get(field);
-               if(fieldObj != null) {
-                  JsonNode valueNode = fieldObj.get("value");
-                  if(rateUnit == RAW_RATE_UNIT || valueNode == null || !rateFields.contains(field)) {
-                     if(valueNode != null) {
-                        sampleArr.add(valueNode);
-                     } else {
-                        sampleArr.add(0L);
-                     }
-                  } else {
-                     sampleArr.add(valueNode.doubleValue() * rateUnit.mult);
-                  }
+            generator.writeStartArray();
+            generator.writeNumber(bucket.key);
+            generator.writeNumber(bucket.samples);
+            for(int i = 0; i < convertRate.length; i++) {
+               if(!bucket.hasValue(i)) {
+                  generator.writeNumber(0L);
+               } else if(convertRate[i]) {
+                  generator.writeNumber(bucket.doubleValue(i) * rateUnit.mult);
                } else {
-                  sampleArr.add(0L);
+                  bucket.writeValue(i, generator);
                }
             }
+            generator.writeEndArray();
          }
 
-         return null;
+         endGraph(generator);
       }
+
+      skipToEndObject(parser);
+      return null;
+   }
+
+   /**
+    * Starts a graph.
+    * @param meta The graph metadata.
+    * @param generator The generator.
+    * @throws IOException on write error.
+    */
+   private static void startGraph(final ObjectNode meta, final JsonGenerator generator) throws IOException {
+      generator.writeStartObject();
+      generator.writeFieldName("meta");
+      generator.writeTree(meta);
+      generator.writeArrayFieldStart("samples");
+   }
+
+   /**
+    * Ends a graph.
+    * @param generator The generator.
+    * @throws IOException on write error.
+    */
+   private static void endGraph(final JsonGenerator generator) throws IOException {
+      generator.writeEndArray();
+      generator.writeEndObject();
    }
 
    private static final Joiner keyJoiner = Joiner.on('.').skipNulls();
 
    /**
-    * Adds the metadata to a graph built from an ES aggregation.
-    * @param graphObj The graph object.
+    * Creates the metadata for a graph built from an ES aggregation.
     * @param targetMeta The target (input) meta.
+    * @return The metadata.
     */
-   private void addAggregationMeta(final ObjectNode graphObj, final ObjectNode targetMeta) {
+   private ObjectNode aggregationMeta(final ObjectNode targetMeta) {
       ObjectNode meta = targetMeta.deepCopy();
 
       List<String> metaList = Lists.newArrayListWithExpectedSize(4);
@@ -295,18 +374,16 @@ public class DefaultResponseGenerator extends ESResponseGenerator {
       }
 
       meta.put("key", keyJoiner.join(metaList));
-
-      graphObj.set("meta", meta);
+      return meta;
    }
 
    /**
-    * Adds the metadata to a graph built from an ES aggregation.
+    * Creates the metadata for a graph built from ES hits.
     * @param key The graph key.
-    * @param graphObj The node to which the meta will be added.
     * @param targetMeta The target (input) meta.
+    * @return The metadata.
     */
-   private void addMeta(final MetricKey key, final ObjectNode graphObj,
-                        final ObjectNode targetMeta) {
+   private ObjectNode meta(final MetricKey key, final ObjectNode targetMeta) {
       ObjectNode meta = targetMeta.deepCopy();
 
       List<String> metaList = Lists.newArrayListWithExpectedSize(4);
@@ -328,18 +405,17 @@ public class DefaultResponseGenerator extends ESResponseGenerator {
       }
 
       meta.put("key", keyJoiner.join(metaList));
-
-      graphObj.set("meta", meta);
+      return meta;
    }
 
    @Override
    public boolean generateHistogram(HistogramQuery histogramQuery,
-                                    Response esResponse,
+                                    ESResponse esResponse,
                                     EnumSet<Option> options,
                                     HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      response.getOutputStream().write(esResponse.getBody().toByteArray());
+      response.setStatus(esResponse.statusCode);
+      esResponse.copyTo(response.getOutputStream());
       return true;
    }
 
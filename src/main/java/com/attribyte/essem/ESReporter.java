@@ -16,15 +16,23 @@
 package com.attribyte.essem;
 
 import com.attribyte.essem.query.Fields;
+import com.attribyte.essem.util.Util;
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -39,17 +47,41 @@ import org.attribyte.essem.metrics.Timer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 @SuppressWarnings("NullableProblems")
 class ESReporter implements Reporter {
 
    /**
-    * Creates a reporter.
+    * The config key for the maximum size of a single bulk request in bytes ('bulkMaxBytes').
+    */
+   public static final String BULK_MAX_BYTES_KEY = "bulkMaxBytes";
+
+   /**
+    * The default maximum size of a single bulk request in bytes (5MB).
+    */
+   public static final int DEFAULT_BULK_MAX_BYTES = 5 * 1024 * 1024;
+
+   /**
+    * The config key for the maximum number of documents in a single bulk request ('bulkMaxDocs').
+    */
+   public static final String BULK_MAX_DOCS_KEY = "bulkMaxDocs";
+
+   /**
+    * The default maximum number of documents in a single bulk request (10000).
+    */
+   public static final int DEFAULT_BULK_MAX_DOCS = 10000;
+
+   /**
+    * Creates a reporter with default bulk request limits.
     * @param esEndpoint The elasticsearch endpoint.
     * @param schema The index schema.
     * @param httpClient The (Async) HTTP client.
@@ -59,10 +91,52 @@ class ESReporter implements Reporter {
                      final ByteString schema,
                      final AsyncClient httpClient,
                      final Logger logger) {
+      this(esEndpoint, schema, httpClient, logger, DEFAULT_BULK_MAX_BYTES, DEFAULT_BULK_MAX_DOCS);
+   }
+
+   /**
+    * Creates a reporter with bulk request limits configured from properties.
+    * @param esEndpoint The elasticsearch endpoint.
+    * @param schema The index schema.
+    * @param httpClient The (Async) HTTP client.
+    * @param logger The logger.
+    * @param props The properties.
+    */
+   public ESReporter(final ESEndpoint esEndpoint,
+                     final ByteString schema,
+                     final AsyncClient httpClient,
+                     final Logger logger,
+                     final Properties props) {
+      this(esEndpoint, schema, httpClient, logger,
+              Integer.parseInt(props.getProperty(BULK_MAX_BYTES_KEY, Integer.toString(DEFAULT_BULK_MAX_BYTES))),
+              Integer.parseInt(props.getProperty(BULK_MAX_DOCS_KEY, Integer.toString(DEFAULT_BULK_MAX_DOCS))));
+   }
+
+   /**
+    * Creates a reporter.
+    * <p>
+    *    Reports drained from the queue are coalesced into a single bulk request
+    *    per index, limited by the maximum bytes and documents.
+    * </p>
+    * @param esEndpoint The elasticsearch endpoint.
+    * @param schema The index schema.
+    * @param httpClient The (Async) HTTP client.
+    * @param logger The logger.
+    * @param maxBulkBytes The maximum size of a single bulk request in bytes.
+    * @param maxBulkDocs The maximum number of documents in a single bulk request.
+    */
+   public ESReporter(final ESEndpoint esEndpoint,
+                     final ByteString schema,
+                     final AsyncClient httpClient,
+                     final Logger logger,
+                     final int maxBulkBytes,
+                     final int maxBulkDocs) {
       this.esEndpoint = esEndpoint;
       this.schema = schema;
       this.httpClient = httpClient;
       this.logger = logger;
+      this.maxBulkBytes = maxBulkBytes;
+      this.maxBulkDocs = maxBulkDocs;
    }
 
    /**
@@ -107,138 +181,607 @@ class ESReporter implements Reporter {
    public void report(final Collection<QueuedReport> reports,
                       final Function<QueuedReport, Boolean> failed) {
 
-      for(final QueuedReport report : reports) {
+      final Map<String, List<QueuedReport>> indexReports = Maps.newLinkedHashMap();
+      for(QueuedReport report : reports) {
+         List<QueuedReport> currReports = indexReports.get(report.index);
+         if(currReports == null) {
+            currReports = Lists.newArrayListWithExpectedSize(reports.size());
+            indexReports.put(report.index, currReports);
+         }
+         currReports.add(report);
+      }
+
+      for(Map.Entry<String, List<QueuedReport>> entry : indexReports.entrySet()) {
+         report(entry.getKey(), entry.getValue(), failed);
+      }
+   }
+
+   @Override
+   public void retry(final QueuedReport failedReport,
+                     final Function<QueuedReport, Boolean> failed) {
+      report(failedReport.index, ImmutableList.of(failedReport), failed);
+   }
+
+   /**
+    * Sends reports for a single index as one, or more, bulk requests.
+    * <p>
+    *    Reports are added to the current bulk request until either the
+    *    maximum number of bytes or documents is reached. A single report is never split
+    *    across requests.
+    * </p>
+    * @param index The index.
+    * @param reports The reports.
+    * @param failed A function called for each report that fails.
+    */
+   private void report(final String index,
+                       final List<QueuedReport> reports,
+                       final Function<QueuedReport, Boolean> failed) {
+
+      BulkRequest bulkRequest = new BulkRequest(index);
+      for(QueuedReport report : reports) {
+         if(bulkRequest.isFull(maxBulkBytes, maxBulkDocs)) {
+            send(bulkRequest, failed);
+            bulkRequest = new BulkRequest(index);
+         }
+
          final Timer.Context requestGenerateTime = requestGenerateTimer.time();
          try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
-            generateReport(baos, report.report);
-            byte[] esRequestBody = baos.toByteArray();
-            requestSize.update(esRequestBody.length);
-            Request esRequest = esEndpoint.postRequestBuilder(buildIndexURI(report.index), esRequestBody).create();
-            final Timer.Context requestSendTime = requestSendTimer.time();
-            Futures.addCallback(httpClient.asyncSend(esRequest), new FutureCallback<Response>() {
-               public void onSuccess(final Response response) {
-                  requestSendTime.stop();
-                  if(response.getStatusCode() > 299) {
-                     requestErrorMeter.mark();
-                     failed.apply(new QueuedReport(report, new IOException("HTTP " + response.getStatusCode())));
-                     try {
-                        logger.error("Failed ES write: " + new String(response.getBody().toByteArray(), Charsets.UTF_8));
-                     } catch(IOException ioe) {
-                        logger.error("Failed ES write + response read failed", ioe);
-                     }
-                  }
-               }
-
-               public void onFailure(final Throwable throwable) {
-                  logger.error("Failed ES write", throwable);
-                  requestErrorMeter.mark();
-                  requestSendTime.stop();
-                  failed.apply(new QueuedReport(report, throwable));
-               }
-            });
+            bulkRequest.add(report);
          } catch(IOException ioe) {
             logger.error("Failed ES write", ioe);
-            failed.apply(new QueuedReport(report, ioe));
+            failed.apply(report.incrementCount(ioe));
          } finally {
             requestGenerateTime.stop();
          }
       }
+      send(bulkRequest, failed);
    }
 
-   @Override
-   public void retry(final QueuedReport failedReport,
+   /**
+    * Sends a bulk request.
+    * <p>
+    *    If the request fails, all reports are failed. Otherwise, items
+    *    in the bulk response are examined and reports are re-queued with only the
+    *    documents that failed with a retryable error. A request with more than one
+    *    report that is rejected as too large (413) is split in half, and each half is sent.
+    * </p>
+    * @param bulkRequest The bulk request.
+    * @param failed A function called for each report that fails.
+    */
+   private void send(final BulkRequest bulkRequest,
                      final Function<QueuedReport, Boolean> failed) {
 
-      final Timer.Context requestGenerateTime = requestGenerateTimer.time();
-      try {
-         ByteArrayOutputStream baos = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
-         generateReport(baos, failedReport.report);
-         byte[] esRequestBody = baos.toByteArray();
-         Request esRequest = esEndpoint.postRequestBuilder(buildIndexURI(failedReport.index), esRequestBody).create();
-         final Timer.Context requestSendTime = requestSendTimer.time();
-         Futures.addCallback(httpClient.asyncSend(esRequest), new FutureCallback<Response>() {
-            public void onSuccess(final Response response) {
-               requestSendTime.stop();
-               if(response.getStatusCode() > 299) {
-                  requestErrorMeter.mark();
-                  failed.apply(failedReport.incrementCount(new IOException("HTTP " + response.getStatusCode())));
-                  try {
-                     logger.error("Failed ES write: " + new String(response.getBody().toByteArray(), Charsets.UTF_8));
-                  } catch(IOException ioe) {
-                     logger.error("Failed ES write + response read failed", ioe);
+      if(bulkRequest.docReports.isEmpty()) {
+         return;
+      }
+
+      final byte[] esRequestBody = bulkRequest.body.toByteArray(); //The only copy - the buffer is reused.
+      requestSize.update(esRequestBody.length);
+      requestDocuments.update(bulkRequest.docReports.size());
+      Request esRequest = esEndpoint.postRequestBuilder(buildIndexURI(bulkRequest.index), esRequestBody).create();
+      final Timer.Context requestSendTime = requestSendTimer.time();
+      Futures.addCallback(httpClient.asyncSend(esRequest), new FutureCallback<Response>() {
+         public void onSuccess(final Response response) {
+            requestSendTime.stop();
+            final int status = response.getStatusCode();
+            if(status > 299) {
+               requestErrorMeter.mark();
+               if(isRetryable(status)) {
+                  bulkRequest.failAll(new IOException("HTTP " + status), failed);
+               } else if(status == 413 && bulkRequest.reports().size() > 1) { //Request entity too large
+                  split(bulkRequest, failed);
+               } else {
+                  rejectedPermanent.inc(bulkRequest.docReports.size());
+               }
+               try {
+                  logger.error("Failed ES write: " + new String(response.getBody().toByteArray(), Charsets.UTF_8));
+               } catch(IOException ioe) {
+                  logger.error("Failed ES write + response read failed", ioe);
+               }
+            } else {
+               try {
+                  bulkRequest.handleResponse(response.getBody().newInput(), failed);
+               } catch(IOException ioe) { //Body unavailable - nothing is known about the items
+                  logger.error("Failed ES write + response read failed", ioe);
+                  bulkRequest.failAll(ioe, failed);
+               }
+            }
+         }
+
+         public void onFailure(final Throwable throwable) {
+            logger.error("Failed ES write", throwable);
+            requestErrorMeter.mark();
+            requestSendTime.stop();
+            bulkRequest.failAll(throwable, failed);
+         }
+      });
+   }
+
+   /**
+    * Splits a bulk request in half, by report, and sends each half.
+    * <p>
+    *    The halves are sent again as-is. The failure count for the
+    *    reports is not incremented.
+    * </p>
+    * @param bulkRequest The bulk request.
+    * @param failed A function called for each report that fails.
+    */
+   private void split(final BulkRequest bulkRequest,
+                      final Function<QueuedReport, Boolean> failed) {
+      final List<QueuedReport> reports = bulkRequest.reports();
+      final int mid = reports.size() / 2;
+      logger.warn("Splitting bulk request for '" + bulkRequest.index + "' (" + reports.size() + " reports) - too large");
+      report(bulkRequest.index, reports.subList(0, mid), failed);
+      report(bulkRequest.index, reports.subList(mid, reports.size()), failed);
+   }
+
+   /**
+    * Determines if a failed request, or bulk item, should be retried.
+    * <p>
+    *    Rejections because of load (429), and server errors are retryable.
+    *    Other errors, like 400 for a mapping error, are permanent.
+    * </p>
+    * @param status The HTTP status.
+    * @return Is the status retryable?
+    */
+   static boolean isRetryable(final int status) {
+      return status == 429 || status / 100 == 5;
+   }
+
+   /**
+    * A reusable buffer, with a bound JSON generator, used to build bulk requests.
+    * <p>
+    *    Buffers are not thread-safe. Each thread that builds bulk requests
+    *    uses its own buffer.
+    * </p>
+    */
+   static final class BulkBuffer extends ByteArrayOutputStream {
+
+      /**
+       * Creates a buffer.
+       * @param initialSize The initial size.
+       */
+      BulkBuffer(final int initialSize) {
+         super(initialSize);
+         this.generator = newGenerator();
+      }
+
+      /**
+       * Creates a generator that writes to this buffer.
+       * @return The generator.
+       */
+      private JsonGenerator newGenerator() {
+         try {
+            return jsonFactory.createGenerator(this);
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      /**
+       * Discards everything written after a previous size, and replaces the generator.
+       * <p>
+       *    Called when a write fails. The generator may hold unflushed
+       *    output or be in an invalid context, so it is never reused.
+       * </p>
+       * @param size The size to restore.
+       */
+      void discard(final int size) {
+         generator = newGenerator();
+         count = size;
+      }
+
+      /**
+       * Clears the buffer for reuse.
+       * <p>
+       *    If the buffer has grown beyond the maximum retained size, the
+       *    backing array is released.
+       * </p>
+       * @param maxRetainedSize The maximum size of the backing array retained for reuse.
+       */
+      void recycle(final int maxRetainedSize) {
+         reset();
+         if(buf.length > maxRetainedSize) {
+            buf = new byte[INITIAL_BUFFER_SIZE];
+         }
+      }
+
+      /**
+       * The generator that writes to this buffer.
+       */
+      JsonGenerator generator;
+   }
+
+   /**
+    * A bulk request for a single index, built from one, or more, reports.
+    */
+   final class BulkRequest {
+
+      /**
+       * Creates an empty request that uses the current thread's buffer.
+       * <p>
+       *    Any previous request created by the current thread must be sent before
+       *    the new request is created.
+       * </p>
+       * @param index The index.
+       */
+      BulkRequest(final String index) {
+         this(index, bulkBuffers.get());
+      }
+
+      /**
+       * Creates an empty request.
+       * @param index The index.
+       * @param body The buffer for the request body.
+       */
+      BulkRequest(final String index, final BulkBuffer body) {
+         this.index = index;
+         this.body = body;
+         this.body.recycle(maxBulkBytes * 2);
+      }
+
+      /**
+       * Adds all metrics from a report to this request.
+       * <p>
+       *    If generation fails, anything written for the report is discarded,
+       *    leaving the request as it was before the call.
+       * </p>
+       * @param report The report.
+       * @throws IOException on generate error.
+       */
+      void add(final QueuedReport report) throws IOException {
+         final int startSize = body.size();
+         final int docCount;
+         try {
+            docCount = generateReport(body.generator, report.report);
+         } catch(IOException | RuntimeException e) {
+            body.discard(startSize);
+            throw e;
+         }
+         for(int i = 0; i < docCount; i++) {
+            docReports.add(report);
+         }
+      }
+
+      /**
+       * Determines if either the maximum bytes or documents has been reached.
+       * @param maxBytes The maximum number of bytes.
+       * @param maxDocs The maximum number of documents.
+       * @return Is the request full?
+       */
+      boolean isFull(final int maxBytes, final int maxDocs) {
+         return docReports.size() > 0 && (body.size() >= maxBytes || docReports.size() >= maxDocs);
+      }
+
+      /**
+       * Gets the distinct reports in this request, in request order.
+       * @return The list of reports.
+       */
+      List<QueuedReport> reports() {
+         final List<QueuedReport> reports = Lists.newArrayList();
+         QueuedReport lastReport = null;
+         for(QueuedReport report : docReports) {
+            if(report != lastReport) {
+               reports.add(report);
+               lastReport = report;
+            }
+         }
+         return reports;
+      }
+
+      /**
+       * Fails all reports in this request.
+       * @param cause The cause.
+       * @param failed The failed function.
+       */
+      void failAll(final Throwable cause, final Function<QueuedReport, Boolean> failed) {
+         for(QueuedReport report : reports()) {
+            failed.apply(report.incrementCount(cause));
+         }
+      }
+
+      /**
+       * Parses a bulk response (as a stream) and fails any reports with retryable item errors.
+       * <p>
+       *    When the response reports no errors, the items are not examined.
+       *    Reports with retryable failures are retried with only the failed documents.
+       *    Documents with no corresponding item in the response are considered failed and retryable.
+       *    If the response can't be parsed, documents after the last item parsed are retried.
+       * </p>
+       * @param is The response input stream.
+       * @param failed The failed function.
+       */
+      void handleResponse(final InputStream is, final Function<QueuedReport, Boolean> failed) {
+
+         final BitSet retryDocs = new BitSet(docReports.size());
+         String retryError = null;
+         String permanentError = null;
+         int itemCount = 0;
+
+         try(JsonParser parser = Util.parserFactory.createParser(is)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+               throw new IOException("Expecting a bulk response object");
+            }
+
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+               final String fieldName = parser.getCurrentName();
+               final JsonToken token = parser.nextToken();
+               if(fieldName.equals("errors") && token == JsonToken.VALUE_FALSE && itemCount == 0) {
+                  accepted.inc(docReports.size());
+                  return;
+               } else if(fieldName.equals("items") && token == JsonToken.START_ARRAY) {
+                  while(parser.nextToken() == JsonToken.START_OBJECT) {
+                     int status = 0;
+                     String error = null;
+                     while(parser.nextToken() == JsonToken.FIELD_NAME) { //The action, e.g. 'index'
+                        if(parser.nextToken() != JsonToken.START_OBJECT) {
+                           parser.skipChildren();
+                           continue;
+                        }
+                        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                           final String itemFieldName = parser.getCurrentName();
+                           final JsonToken itemToken = parser.nextToken();
+                           if(itemFieldName.equals("status")) {
+                              status = parser.getIntValue();
+                           } else if(itemFieldName.equals("error")) {
+                              error = itemToken == JsonToken.START_OBJECT ? parseError(parser) : parser.getText();
+                           } else {
+                              parser.skipChildren();
+                           }
+                        }
+                     }
+
+                     final int pos = itemCount++;
+                     if(pos >= docReports.size()) {
+                        continue;
+                     }
+
+                     if(status / 100 == 2) {
+                        accepted.inc();
+                     } else if(isRetryable(status)) {
+                        rejectedRetryable.inc();
+                        retryDocs.set(pos);
+                        if(retryError == null) retryError = "HTTP " + status + ": " + error;
+                     } else {
+                        rejectedPermanent.inc();
+                        if(permanentError == null) permanentError = "HTTP " + status + ": " + error;
+                     }
                   }
+               } else {
+                  parser.skipChildren();
                }
             }
+         } catch(IOException ioe) {
+            logger.error("Failed ES write + response read failed", ioe);
+            if(retryError == null) retryError = "Bulk response read failed: " + ioe.getMessage();
+         }
 
-            public void onFailure(final Throwable throwable) {
-               logger.error("Failed ES write", throwable);
-               requestErrorMeter.mark();
-               requestSendTime.stop();
-               failed.apply(failedReport.incrementCount(throwable));
+         if(itemCount < docReports.size()) {
+            rejectedRetryable.inc(docReports.size() - itemCount);
+            retryDocs.set(itemCount, docReports.size());
+            if(retryError == null) retryError = "Missing bulk response items";
+         }
+
+         if(permanentError != null) {
+            logger.error("Failed ES write for document(s) in '" + index + "' (" + permanentError + ")");
+         }
+
+         if(retryError != null) {
+            final IOException cause = new IOException(retryError);
+            int reportStart = 0;
+            for(int pos = 0; pos < docReports.size(); pos++) {
+               final QueuedReport report = docReports.get(pos);
+               if(pos + 1 == docReports.size() || docReports.get(pos + 1) != report) {
+                  final BitSet reportRetryDocs = retryDocs.get(reportStart, pos + 1);
+                  if(!reportRetryDocs.isEmpty()) {
+                     failed.apply(report.incrementCount(selectDocuments(report.report, reportRetryDocs), cause));
+                  }
+                  reportStart = pos + 1;
+               }
             }
-         });
-      } catch(IOException ioe) {
-         logger.error("Failed ES write", ioe);
-         failed.apply(failedReport.incrementCount(ioe));
-      } finally {
-         requestGenerateTime.stop();
+         }
+      }
+
+      /**
+       * The index.
+       */
+      final String index;
+
+      /**
+       * The request body.
+       */
+      final BulkBuffer body;
+
+      /**
+       * The originating report for each document, in request order.
+       */
+      final List<QueuedReport> docReports = Lists.newArrayList();
+   }
+
+   /**
+    * Parses an error object from a bulk item as "type: reason".
+    * @param parser The parser, positioned at the start of the error object.
+    * @return The error string.
+    * @throws IOException on parse error.
+    */
+   private static String parseError(final JsonParser parser) throws IOException {
+      String type = null;
+      String reason = null;
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+         final String fieldName = parser.getCurrentName();
+         parser.nextToken();
+         if(fieldName.equals("type")) {
+            type = parser.getText();
+         } else if(fieldName.equals("reason")) {
+            reason = parser.getText();
+         } else {
+            parser.skipChildren();
+         }
+      }
+      return type + ": " + reason;
+   }
+
+   /**
+    * Creates a report that contains only selected documents.
+    * <p>
+    *    Documents are numbered in the order they are generated, skipping
+    *    any invalid metrics.
+    * </p>
+    * @param report The report.
+    * @param docs The set of selected documents.
+    * @return The report containing only the selected documents.
+    */
+   static ReportProtos.EssemReport selectDocuments(final ReportProtos.EssemReport report, final BitSet docs) {
+
+      ReportProtos.EssemReport.Builder builder = report.toBuilder()
+              .clearGauge().clearCounter().clearMeter().clearHistogram().clearTimer();
+      if(!report.hasTimestamp()) {
+         builder.setTimestamp(System.currentTimeMillis());
+      }
+
+      int doc = 0;
+
+      for(ReportProtos.EssemReport.Gauge gauge : report.getGaugeList()) {
+         if(isValid(gauge) && docs.get(doc++)) {
+            builder.addGauge(gauge);
+         }
+      }
+
+      for(ReportProtos.EssemReport.Counter counter : report.getCounterList()) {
+         if(isValid(counter) && docs.get(doc++)) {
+            builder.addCounter(counter);
+         }
+      }
+
+      for(ReportProtos.EssemReport.Meter meter : report.getMeterList()) {
+         if(isValid(meter) && docs.get(doc++)) {
+            builder.addMeter(meter);
+         }
+      }
+
+      for(ReportProtos.EssemReport.Histogram histogram : report.getHistogramList()) {
+         if(isValid(histogram) && docs.get(doc++)) {
+            builder.addHistogram(histogram);
+         }
+      }
+
+      for(ReportProtos.EssemReport.Timer timer : report.getTimerList()) {
+         if(isValid(timer) && docs.get(doc++)) {
+            builder.addTimer(timer);
+         }
       }
+
+      return builder.build();
    }
 
-   private void generateReport(final OutputStream os,
-                               final ReportProtos.EssemReport report) throws IOException {
+   /**
+    * Generates bulk api actions and documents for all valid metrics in a report.
+    * @param generator The JSON generator.
+    * @param report The report.
+    * @return The number of documents generated.
+    * @throws IOException on generate error.
+    */
+   private static int generateReport(final JsonGenerator generator,
+                                     final ReportProtos.EssemReport report) throws IOException {
 
-      JsonGenerator generator = jsonFactory.createGenerator(os);
-      long timestamp = report.hasTimestamp() ? report.getTimestamp() : System.currentTimeMillis();
-      String application = Strings.emptyToNull(report.hasApplication() ? report.getApplication().trim() : null);
-      String host = Strings.emptyToNull(report.hasHost() ? report.getHost().trim() : null);
-      String instance = Strings.emptyToNull(report.hasInstance() ? report.getInstance().trim() : null);
+      final CommonFields commonFields = new CommonFields(report);
+      int docCount = 0;
 
       for(ReportProtos.EssemReport.Gauge gauge : report.getGaugeList()) {
          if(isValid(gauge)) {
-            generateAction(generator, Fields.GAUGE_TYPE);
-            os.write(NEWLINE);
-            generateGauge(generator, gauge, application, host, instance, timestamp);
-            os.write(NEWLINE);
+            generator.writeRaw(GAUGE_ACTION);
+            generateGauge(generator, gauge, commonFields);
+            generator.writeRaw(NEWLINE);
+            docCount++;
          }
       }
 
       for(ReportProtos.EssemReport.Counter counter : report.getCounterList()) {
          if(isValid(counter)) {
-            generateAction(generator, Fields.COUNTER_TYPE);
-            os.write(NEWLINE);
-            generateCounter(generator, counter, application, host, instance, timestamp);
-            os.write(NEWLINE);
+            generator.writeRaw(COUNTER_ACTION);
+            generateCounter(generator, counter, commonFields);
+            generator.writeRaw(NEWLINE);
+            docCount++;
          }
       }
 
       for(ReportProtos.EssemReport.Meter meter : report.getMeterList()) {
          if(isValid(meter)) {
-            generateAction(generator, Fields.METER_TYPE);
-            os.write(NEWLINE);
-            generateMeter(generator, meter, application, host, instance, timestamp);
-            os.write(NEWLINE);
+            generator.writeRaw(METER_ACTION);
+            generateMeter(generator, meter, commonFields);
+            generator.writeRaw(NEWLINE);
+            docCount++;
          }
       }
 
       for(ReportProtos.EssemReport.Histogram histogram : report.getHistogramList()) {
          if(isValid(histogram)) {
-            generateAction(generator, Fields.HISTOGRAM_TYPE);
-            os.write(NEWLINE);
-            generateHistogram(generator, histogram, application, host, instance, timestamp);
-            os.write(NEWLINE);
+            generator.writeRaw(HISTOGRAM_ACTION);
+            generateHistogram(generator, histogram, commonFields);
+            generator.writeRaw(NEWLINE);
+            docCount++;
          }
       }
 
       for(ReportProtos.EssemReport.Timer timer : report.getTimerList()) {
          if(isValid(timer)) {
-            generateAction(generator, Fields.TIMER_TYPE);
-            os.write(NEWLINE);
-            generateTimer(generator, timer, application, host, instance, timestamp);
-            os.write(NEWLINE);
+            generator.writeRaw(TIMER_ACTION);
+            generateTimer(generator, timer, commonFields);
+            generator.writeRaw(NEWLINE);
+            docCount++;
          }
       }
+
+      generator.flush();
+      return docCount;
+   }
+
+   /**
+    * Fields common to every document generated for a report, with string values serialized once.
+    */
+   static final class CommonFields {
+
+      /**
+       * Creates common fields from a report.
+       * @param report The report.
+       */
+      CommonFields(final ReportProtos.EssemReport report) {
+         this.timestamp = report.hasTimestamp() ? report.getTimestamp() : System.currentTimeMillis();
+         this.application = serialized(report.hasApplication() ? report.getApplication() : null);
+         this.host = serialized(report.hasHost() ? report.getHost() : null);
+         this.instance = serialized(report.hasInstance() ? report.getInstance() : null);
+      }
+
+      /**
+       * Writes the application, host and instance fields.
+       * @param generator The generator.
+       * @throws IOException on write error.
+       */
+      void write(final JsonGenerator generator) throws IOException {
+         writeStringField(generator, APPLICATION_FIELD, application);
+         writeStringField(generator, HOST_FIELD, host);
+         writeStringField(generator, INSTANCE_FIELD, instance);
+      }
+
+      /**
+       * Writes the timestamp field.
+       * @param generator The generator.
+       * @throws IOException on write error.
+       */
+      void writeTimestamp(final JsonGenerator generator) throws IOException {
+         generator.writeFieldName(TIMESTAMP_FIELD);
+         generator.writeNumber(timestamp);
+      }
+
+      private static SerializedString serialized(final String value) {
+         String trimmedValue = Strings.emptyToNull(value != null ? value.trim() : null);
+         return trimmedValue != null ? new SerializedString(trimmedValue) : null;
+      }
+
+      final long timestamp;
+      final SerializedString application;
+      final SerializedString host;
+      final SerializedString instance;
    }
 
    static final boolean isValid(final ReportProtos.EssemReport.Gauge gauge) {
@@ -247,28 +790,23 @@ class ESReporter implements Reporter {
 
    static final void generateGauge(final JsonGenerator generator,
                                    final ReportProtos.EssemReport.Gauge gauge,
-                                   final String application,
-                                   final String host,
-                                   final String instance,
-                                   final long timestamp) throws IOException {
+                                   final CommonFields commonFields) throws IOException {
 
       generator.writeStartObject();
-      writeStringField(generator, Fields.APPLICATION_FIELD, application);
-      writeStringField(generator, Fields.HOST_FIELD, host);
-      writeStringField(generator, Fields.INSTANCE_FIELD, instance);
-      writeStringField(generator, Fields.NAME_FIELD, gauge.getName().trim());
+      commonFields.write(generator);
+      writeStringField(generator, NAME_FIELD, gauge.getName().trim());
       if(gauge.hasValue()) {
-         generator.writeNumberField(Fields.VALUE_FIELD, gauge.getValue());
+         writeNumberField(generator, VALUE_FIELD, gauge.getValue());
       } else if(gauge.hasComment()) {
-         generator.writeNumberField(Fields.VALUE_FIELD, 0.0);
-         writeStringField(generator, Fields.COMMENT_FIELD, gauge.getComment());
+         writeNumberField(generator, VALUE_FIELD, 0.0);
+         writeStringField(generator, COMMENT_FIELD, gauge.getComment());
       } else {
-         generator.writeNullField(Fields.VALUE_FIELD);
+         generator.writeFieldName(VALUE_FIELD);
+         generator.writeNull();
       }
 
-      generator.writeNumberField(Fields.TIMESTAMP_FIELD, timestamp);
+      commonFields.writeTimestamp(generator);
       generator.writeEndObject();
-      generator.flush();
    }
 
    static final boolean isValid(final ReportProtos.EssemReport.Counter counter) {
@@ -277,19 +815,13 @@ class ESReporter implements Reporter {
 
    static final void generateCounter(final JsonGenerator generator,
                                      final ReportProtos.EssemReport.Counter counter,
-                                     final String application,
-                                     final String host,
-                                     final String instance,
-                                     final long timestamp) throws IOException {
+                                     final CommonFields commonFields) throws IOException {
       generator.writeStartObject();
-      writeStringField(generator, Fields.APPLICATION_FIELD, application);
-      writeStringField(generator, Fields.HOST_FIELD, host);
-      writeStringField(generator, Fields.INSTANCE_FIELD, instance);
-      writeStringField(generator, Fields.NAME_FIELD, counter.getName().trim());
-      generator.writeNumberField(Fields.COUNT_FIELD, counter.getCount());
-      generator.writeNumberField(Fields.TIMESTAMP_FIELD, timestamp);
+      commonFields.write(generator);
+      writeStringField(generator, NAME_FIELD, counter.getName().trim());
+      writeNumberField(generator, COUNT_FIELD, counter.getCount());
+      commonFields.writeTimestamp(generator);
       generator.writeEndObject();
-      generator.flush();
    }
 
    static final boolean isValid(final ReportProtos.EssemReport.Meter meter) {
@@ -298,24 +830,18 @@ class ESReporter implements Reporter {
 
    static final void generateMeter(final JsonGenerator generator,
                                    final ReportProtos.EssemReport.Meter meter,
-                                   final String application,
-                                   final String host,
-                                   final String instance,
-                                   final long timestamp) throws IOException {
+                                   final CommonFields commonFields) throws IOException {
 
       generator.writeStartObject();
-      writeStringField(generator, Fields.APPLICATION_FIELD, application);
-      writeStringField(generator, Fields.HOST_FIELD, host);
-      writeStringField(generator, Fields.INSTANCE_FIELD, instance);
-      writeStringField(generator, Fields.NAME_FIELD, meter.getName().trim());
-      generator.writeNumberField(Fields.ONE_MINUTE_RATE_FIELD, meter.getOneMinuteRate());
-      generator.writeNumberField(Fields.FIVE_MINUTE_RATE_FIELD, meter.getFiveMinuteRate());
-      generator.writeNumberField(Fields.FIFTEEN_MINUTE_RATE_FIELD, meter.getFifteenMinuteRate());
-      generator.writeNumberField(Fields.MEAN_RATE_FIELD, meter.getMeanRate());
-      generator.writeNumberField(Fields.COUNT_FIELD, meter.getCount());
-      generator.writeNumberField(Fields.TIMESTAMP_FIELD, timestamp);
+      commonFields.write(generator);
+      writeStringField(generator, NAME_FIELD, meter.getName().trim());
+      writeNumberField(generator, ONE_MINUTE_RATE_FIELD, meter.getOneMinuteRate());
+      writeNumberField(generator, FIVE_MINUTE_RATE_FIELD, meter.getFiveMinuteRate());
+      writeNumberField(generator, FIFTEEN_MINUTE_RATE_FIELD, meter.getFifteenMinuteRate());
+      writeNumberField(generator, MEAN_RATE_FIELD, meter.getMeanRate());
+      writeNumberField(generator, COUNT_FIELD, meter.getCount());
+      commonFields.writeTimestamp(generator);
       generator.writeEndObject();
-      generator.flush();
    }
 
    static final boolean isValid(final ReportProtos.EssemReport.Timer timer) {
@@ -324,39 +850,31 @@ class ESReporter implements Reporter {
 
    static final void generateTimer(final JsonGenerator generator,
                                    final ReportProtos.EssemReport.Timer timer,
-                                   final String application,
-                                   final String host,
-                                   final String instance,
-                                   final long timestamp) throws IOException {
+                                   final CommonFields commonFields) throws IOException {
 
       generator.writeStartObject();
-      writeStringField(generator, Fields.APPLICATION_FIELD, application);
-      writeStringField(generator, Fields.HOST_FIELD, host);
-      writeStringField(generator, Fields.INSTANCE_FIELD, instance);
-      writeStringField(generator, Fields.NAME_FIELD, timer.getName().trim());
-      generator.writeNumberField(Fields.ONE_MINUTE_RATE_FIELD, timer.getOneMinuteRate());
-      generator.writeNumberField(Fields.FIVE_MINUTE_RATE_FIELD, timer.getFiveMinuteRate());
-      generator.writeNumberField(Fields.FIFTEEN_MINUTE_RATE_FIELD, timer.getFifteenMinuteRate());
-      generator.writeNumberField(Fields.MEAN_RATE_FIELD, timer.getMeanRate());
-      generator.writeNumberField(Fields.COUNT_FIELD, timer.getCount());
-      generator.writeNumberField(Fields.MAX_FIELD, timer.getMax());
-      generator.writeNumberField(Fields.MIN_FIELD, timer.getMin());
-      generator.writeNumberField(Fields.MEAN_FIELD, timer.getMean());
-      generator.writeNumberField(Fields.P50_FIELD, timer.getMedian());
-      generator.writeNumberField(Fields.P75_FIELD, timer.getPercentile75());
-      generator.writeNumberField(Fields.P95_FIELD, timer.getPercentile95());
-      generator.writeNumberField(Fields.P98_FIELD, timer.getPercentile98());
-      generator.writeNumberField(Fields.P99_FIELD, timer.getPercentile99());
-      generator.writeNumberField(Fields.P999_FIELD, timer.getPercentile999());
-      generator.writeNumberField(Fields.STD_FIELD, timer.getStd());
-      generator.writeNumberField(Fields.TIMESTAMP_FIELD, timestamp);
+      commonFields.write(generator);
+      writeStringField(generator, NAME_FIELD, timer.getName().trim());
+      writeNumberField(generator, ONE_MINUTE_RATE_FIELD, timer.getOneMinuteRate());
+      writeNumberField(generator, FIVE_MINUTE_RATE_FIELD, timer.getFiveMinuteRate());
+      writeNumberField(generator, FIFTEEN_MINUTE_RATE_FIELD, timer.getFifteenMinuteRate());
+      writeNumberField(generator, MEAN_RATE_FIELD, timer.getMeanRate());
+      writeNumberField(generator, COUNT_FIELD, timer.getCount());
+      writeNumberField(generator, MAX_FIELD, timer.getMax());
+      writeNumberField(generator, MIN_FIELD, timer.getMin());
+      writeNumberField(generator, MEAN_FIELD, timer.getMean());
+      writeNumberField(generator, P50_FIELD, timer.getMedian());
+      writeNumberField(generator, P75_FIELD, timer.getPercentile75());
+      writeNumberField(generator, P95_FIELD, timer.getPercentile95());
+      writeNumberField(generator, P98_FIELD, timer.getPercentile98());
+      writeNumberField(generator, P99_FIELD, timer.getPercentile99());
+      writeNumberField(generator, P999_FIELD, timer.getPercentile999());
+      writeNumberField(generator, STD_FIELD, timer.getStd());
+      commonFields.writeTimestamp(generator);
       if(timer.hasHdrHistogram()) {
-         generator.writeStringField(Fields.HDR_HISTOGRAM_FIELD, BaseEncoding.base64().encode(timer.getHdrHistogram().toByteArray()));
+         writeStringField(generator, HDR_HISTOGRAM_FIELD, BaseEncoding.base64().encode(timer.getHdrHistogram().toByteArray()));
       }
       generator.writeEndObject();
-
-
-      generator.flush();
    }
 
    static final boolean isValid(final ReportProtos.EssemReport.Histogram histogram) {
@@ -365,79 +883,161 @@ class ESReporter implements Reporter {
 
    static final void generateHistogram(final JsonGenerator generator,
                                        final ReportProtos.EssemReport.Histogram histogram,
-                                       final String application,
-                                       final String host,
-                                       final String instance,
-                                       final long timestamp) throws IOException {
+                                       final CommonFields commonFields) throws IOException {
 
       generator.writeStartObject();
-      writeStringField(generator, Fields.APPLICATION_FIELD, application);
-      writeStringField(generator, Fields.HOST_FIELD, host);
-      writeStringField(generator, Fields.INSTANCE_FIELD, instance);
-      writeStringField(generator, Fields.NAME_FIELD, histogram.getName().trim());
-      generator.writeNumberField(Fields.COUNT_FIELD, histogram.getCount());
-      generator.writeNumberField(Fields.MAX_FIELD, histogram.getMax());
-      generator.writeNumberField(Fields.MIN_FIELD, histogram.getMin());
-      generator.writeNumberField(Fields.MEAN_FIELD, histogram.getMean());
-      generator.writeNumberField(Fields.P50_FIELD, histogram.getMedian());
-      generator.writeNumberField(Fields.P75_FIELD, histogram.getPercentile75());
-      generator.writeNumberField(Fields.P95_FIELD, histogram.getPercentile95());
-      generator.writeNumberField(Fields.P98_FIELD, histogram.getPercentile98());
-      generator.writeNumberField(Fields.P99_FIELD, histogram.getPercentile99());
-      generator.writeNumberField(Fields.P999_FIELD, histogram.getPercentile999());
-      generator.writeNumberField(Fields.STD_FIELD, histogram.getStd());
-      generator.writeNumberField(Fields.TIMESTAMP_FIELD, timestamp);
+      commonFields.write(generator);
+      writeStringField(generator, NAME_FIELD, histogram.getName().trim());
+      writeNumberField(generator, COUNT_FIELD, histogram.getCount());
+      writeNumberField(generator, MAX_FIELD, histogram.getMax());
+      writeNumberField(generator, MIN_FIELD, histogram.getMin());
+      writeNumberField(generator, MEAN_FIELD, histogram.getMean());
+      writeNumberField(generator, P50_FIELD, histogram.getMedian());
+      writeNumberField(generator, P75_FIELD, histogram.getPercentile75());
+      writeNumberField(generator, P95_FIELD, histogram.getPercentile95());
+      writeNumberField(generator, P98_FIELD, histogram.getPercentile98());
+      writeNumberField(generator, P99_FIELD, histogram.getPercentile99());
+      writeNumberField(generator, P999_FIELD, histogram.getPercentile999());
+      writeNumberField(generator, STD_FIELD, histogram.getStd());
+      commonFields.writeTimestamp(generator);
       if(histogram.hasHdrHistogram()) {
-         generator.writeStringField(Fields.HDR_HISTOGRAM_FIELD, BaseEncoding.base64().encode(histogram.getHdrHistogram().toByteArray()));
+         writeStringField(generator, HDR_HISTOGRAM_FIELD, BaseEncoding.base64().encode(histogram.getHdrHistogram().toByteArray()));
       }
       generator.writeEndObject();
-      generator.flush();
    }
 
-   static final void writeStringField(final JsonGenerator generator, final String name, final String value) throws IOException {
+   static final void writeStringField(final JsonGenerator generator,
+                                      final SerializedString name,
+                                      final String value) throws IOException {
+      generator.writeFieldName(name);
+      if(value != null) {
+         generator.writeString(value);
+      } else {
+         generator.writeNull();
+      }
+   }
+
+   static final void writeStringField(final JsonGenerator generator,
+                                      final SerializedString name,
+                                      final SerializedString value) throws IOException {
+      generator.writeFieldName(name);
       if(value != null) {
-         generator.writeStringField(name, value);
+         generator.writeString(value);
       } else {
-         generator.writeNullField(name);
+         generator.writeNull();
       }
    }
 
+   static final void writeNumberField(final JsonGenerator generator,
+                                      final SerializedString name,
+                                      final double value) throws IOException {
+      generator.writeFieldName(name);
+      generator.writeNumber(value);
+   }
+
+   static final void writeNumberField(final JsonGenerator generator,
+                                      final SerializedString name,
+                                      final long value) throws IOException {
+      generator.writeFieldName(name);
+      generator.writeNumber(value);
+   }
+
    /**
-    * Generates the ES bulk api "action" command.
-    * @param generator The JSON generator.
+    * Generates the ES bulk api "action" command, followed by a newline.
     * @param objType The object type.
-    * @throws IOException
+    * @return The serialized action.
     */
-   static final void generateAction(final JsonGenerator generator,
-                                    final String objType) throws IOException {
-      generator.writeStartObject();
-      generator.writeObjectFieldStart("index");
-      generator.writeStringField("_type", objType);
-      generator.writeEndObject();
-      generator.writeEndObject();
-      generator.flush();
+   private static SerializedString generateAction(final String objType) {
+      try {
+         StringWriter writer = new StringWriter();
+         JsonGenerator generator = jsonFactory.createGenerator(writer);
+         generator.writeStartObject();
+         generator.writeObjectFieldStart("index");
+         generator.writeStringField("_type", objType);
+         generator.writeEndObject();
+         generator.writeEndObject();
+         generator.close();
+         writer.write(NEWLINE);
+         return new SerializedString(writer.toString());
+      } catch(IOException ioe) {
+         throw new AssertionError("I/O exception on in-memory stream");
+      }
    }
 
-   private static final byte NEWLINE = '\n';
+   private static final char NEWLINE = '\n';
    private static final int INITIAL_BUFFER_SIZE = 16384;
 
-   private static final JsonFactory jsonFactory = new JsonFactory();
+   private static final JsonFactory jsonFactory = new JsonFactory().setRootValueSeparator(null);
+
+   /*
+      Bulk actions and field names are serialized once.
+    */
+
+   private static final SerializedString GAUGE_ACTION = generateAction(Fields.GAUGE_TYPE);
+   private static final SerializedString COUNTER_ACTION = generateAction(Fields.COUNTER_TYPE);
+   private static final SerializedString METER_ACTION = generateAction(Fields.METER_TYPE);
+   private static final SerializedString HISTOGRAM_ACTION = generateAction(Fields.HISTOGRAM_TYPE);
+   private static final SerializedString TIMER_ACTION = generateAction(Fields.TIMER_TYPE);
+
+   private static final SerializedString APPLICATION_FIELD = new SerializedString(Fields.APPLICATION_FIELD);
+   private static final SerializedString HOST_FIELD = new SerializedString(Fields.HOST_FIELD);
+   private static final SerializedString INSTANCE_FIELD = new SerializedString(Fields.INSTANCE_FIELD);
+   private static final SerializedString NAME_FIELD = new SerializedString(Fields.NAME_FIELD);
+   private static final SerializedString VALUE_FIELD = new SerializedString(Fields.VALUE_FIELD);
+   private static final SerializedString COMMENT_FIELD = new SerializedString(Fields.COMMENT_FIELD);
+   private static final SerializedString TIMESTAMP_FIELD = new SerializedString(Fields.TIMESTAMP_FIELD);
+   private static final SerializedString COUNT_FIELD = new SerializedString(Fields.COUNT_FIELD);
+   private static final SerializedString ONE_MINUTE_RATE_FIELD = new SerializedString(Fields.ONE_MINUTE_RATE_FIELD);
+   private static final SerializedString FIVE_MINUTE_RATE_FIELD = new SerializedString(Fields.FIVE_MINUTE_RATE_FIELD);
+   private static final SerializedString FIFTEEN_MINUTE_RATE_FIELD = new SerializedString(Fields.FIFTEEN_MINUTE_RATE_FIELD);
+   private static final SerializedString MEAN_RATE_FIELD = new SerializedString(Fields.MEAN_RATE_FIELD);
+   private static final SerializedString MAX_FIELD = new SerializedString(Fields.MAX_FIELD);
+   private static final SerializedString MIN_FIELD = new SerializedString(Fields.MIN_FIELD);
+   private static final SerializedString MEAN_FIELD = new SerializedString(Fields.MEAN_FIELD);
+   private static final SerializedString P50_FIELD = new SerializedString(Fields.P50_FIELD);
+   private static final SerializedString P75_FIELD = new SerializedString(Fields.P75_FIELD);
+   private static final SerializedString P95_FIELD = new SerializedString(Fields.P95_FIELD);
+   private static final SerializedString P98_FIELD = new SerializedString(Fields.P98_FIELD);
+   private static final SerializedString P99_FIELD = new SerializedString(Fields.P99_FIELD);
+   private static final SerializedString P999_FIELD = new SerializedString(Fields.P999_FIELD);
+   private static final SerializedString STD_FIELD = new SerializedString(Fields.STD_FIELD);
+   private static final SerializedString HDR_HISTOGRAM_FIELD = new SerializedString(Fields.HDR_HISTOGRAM_FIELD);
+
+   /**
+    * The bulk request buffer for each reporter (or retry) thread.
+    */
+   private final ThreadLocal<BulkBuffer> bulkBuffers = new ThreadLocal<BulkBuffer>() {
+      @Override
+      protected BulkBuffer initialValue() {
+         return new BulkBuffer(INITIAL_BUFFER_SIZE);
+      }
+   };
 
    private final Timer requestGenerateTimer = new Timer();
    private final Timer requestSendTimer = new Timer();
    private final Meter requestErrorMeter = new Meter();
    private final Histogram requestSize = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
+   private final Histogram requestDocuments = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
+   private final Counter accepted = new Counter();
+   private final Counter rejectedRetryable = new Counter();
+   private final Counter rejectedPermanent = new Counter();
 
    private final AsyncClient httpClient;
    private final ESEndpoint esEndpoint;
    private final ByteString schema;
    private final Logger logger;
+   private final int maxBulkBytes;
+   private final int maxBulkDocs;
 
    private final ImmutableMap<String, Metric> metrics = ImmutableMap.<String, Metric>builder()
            .put("requests-generated", requestGenerateTimer)
-           .put("request-size", requestSendTimer)
+           .put("request-size", requestSize)
+           .put("request-documents", requestDocuments)
            .put("requests-sent", requestSendTimer)
-           .put("request-errors", requestErrorMeter).build();
+           .put("request-errors", requestErrorMeter)
+           .put("documents-accepted", accepted)
+           .put("documents-rejected-retryable", rejectedRetryable)
+           .put("documents-rejected-permanent", rejectedPermanent).build();
 
    public Map<String, Metric> getMetrics() {
       return metrics;
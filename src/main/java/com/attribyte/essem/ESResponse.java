@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.attribyte.essem.util.Util;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A response from ES with a body that is read as it arrives.
+ * <p>
+ *    The body may be read once. The response must be closed, whether or not the body is read.
+ * </p>
+ */
+public class ESResponse implements Closeable {
+
+   /**
+    * Creates a response.
+    * @param statusCode The HTTP status code.
+    * @param body The body input stream.
+    */
+   public ESResponse(final int statusCode, final InputStream body) {
+      this.statusCode = statusCode;
+      this.body = body;
+   }
+
+   /**
+    * Creates a parser for the body.
+    * @return The parser.
+    * @throws IOException on parser create error.
+    */
+   public JsonParser parser() throws IOException {
+      return Util.parserFactory.createParser(body);
+   }
+
+   /**
+    * Copies the body to an output stream.
+    * @param out The output stream.
+    * @return The number of bytes copied.
+    * @throws IOException on read or write error.
+    */
+   public long copyTo(final OutputStream out) throws IOException {
+      return ByteStreams.copy(body, out);
+   }
+
+   /**
+    * Reads the body as a string.
+    * <p>
+    *    Intended for (short) error responses.
+    * </p>
+    * @return The body as a string.
+    * @throws IOException on read error.
+    */
+   public String bodyAsString() throws IOException {
+      return new String(ByteStreams.toByteArray(body), Charsets.UTF_8);
+   }
+
+   @Override
+   public void close() throws IOException {
+      body.close();
+   }
+
+   /**
+    * The HTTP status code.
+    */
+   public final int statusCode;
+
+   /**
+    * The body input stream.
+    */
+   public final InputStream body;
+}
@@ -1,9 +1,13 @@
 package com.attribyte.essem;
 
+import com.attribyte.essem.query.GraphQuery;
 import com.attribyte.essem.query.NameQuery;
 import com.attribyte.essem.query.StatsQuery;
 import com.attribyte.essem.util.Util;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -11,11 +15,12 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
-import org.attribyte.api.http.Response;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 
 
 /**
@@ -60,6 +65,297 @@ public abstract class ESResponseGenerator implements ResponseGenerator {
     */
    public static final String SAMPLES_KEY = "doc_count";
 
+   /**
+    * The value key for metric aggregations ('value').
+    */
+   public static final String VALUE_KEY = "value";
+
+   /**
+    * The error reported for aggregations that can't be parsed ('Aggregation is invalid').
+    */
+   protected static final String INVALID_AGGREGATION = "Aggregation is invalid";
+
+   @Override
+   public boolean generateGraph(final GraphQuery graphQuery,
+                                final ESResponse esResponse,
+                                final EnumSet<Option> options,
+                                final RateUnit rateUnit,
+                                final HttpServletResponse response) throws IOException {
+      try(JsonParser parser = esResponse.parser()) {
+         return generateGraph(graphQuery, parser, options, rateUnit, response);
+      }
+   }
+
+   /**
+    * Generates a graph response, translating the ES response from the parser
+    * directly to the output stream.
+    * <p>
+    *    If the ES response is found to be invalid after the response is committed,
+    *    the response is left incomplete.
+    * </p>
+    * @param graphQuery The query.
+    * @param parser The parser for the response from ES.
+    * @param options Response options.
+    * @param rateUnit The rate unit.
+    * @param response The target HTTP response.
+    * @return Was the response generated without error?
+    * @throws IOException on parse or write error.
+    */
+   protected abstract boolean generateGraph(GraphQuery graphQuery,
+                                            JsonParser parser,
+                                            EnumSet<Option> options,
+                                            RateUnit rateUnit,
+                                            HttpServletResponse response) throws IOException;
+
+   /**
+    * Starts a JSON response.
+    * @param response The HTTP response.
+    * @return The generator that writes to the response output stream.
+    * @throws IOException on write error.
+    */
+   protected static JsonGenerator startResponse(final HttpServletResponse response) throws IOException {
+      response.setContentType(JSON_CONTENT_TYPE_HEADER);
+      response.setStatus(HttpServletResponse.SC_OK);
+      JsonGenerator generator = mapper.getFactory().createGenerator(response.getOutputStream());
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      return generator;
+   }
+
+   /**
+    * Sends an error for a response that was started, unless it has been committed.
+    * <p>
+    *    The generator must not be closed after an error.
+    * </p>
+    * @param response The HTTP response.
+    * @param error The error message.
+    * @throws IOException on write error.
+    */
+   protected static void sendGraphError(final HttpServletResponse response, final String error) throws IOException {
+      if(!response.isCommitted()) {
+         response.resetBuffer();
+         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error);
+      }
+   }
+
+   /**
+    * Advances the parser to the value of a field in the current object, skipping other fields.
+    * @param parser The parser, positioned at the start of an object, or before the first token.
+    * @param name The field name.
+    * @param valueToken The expected first token of the value.
+    * @return Was the field found? If not, the parser is positioned at the end of the object.
+    * @throws IOException on parse error.
+    */
+   protected static boolean seekField(final JsonParser parser, final String name,
+                                      final JsonToken valueToken) throws IOException {
+      if(parser.getCurrentToken() == null) {
+         parser.nextToken();
+      }
+      if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+         return false;
+      }
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+         final String fieldName = parser.getCurrentName();
+         if(parser.nextToken() == valueToken && fieldName.equals(name)) {
+            return true;
+         }
+         parser.skipChildren();
+      }
+      return false;
+   }
+
+   /**
+    * Advances the parser to the first field in the current object with an object value.
+    * @param parser The parser, positioned at the start of an object.
+    * @return The field name, or {@code null} if none. If none, the parser is positioned at the end of the object.
+    * @throws IOException on parse error.
+    */
+   protected static String seekObjectField(final JsonParser parser) throws IOException {
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+         final String fieldName = parser.getCurrentName();
+         if(parser.nextToken() == JsonToken.START_OBJECT) {
+            return fieldName;
+         }
+         parser.skipChildren();
+      }
+      return null;
+   }
+
+   /**
+    * Skips the remaining fields of the current object.
+    * @param parser The parser, positioned in an object.
+    * @throws IOException on parse error.
+    */
+   protected static void skipToEndObject(final JsonParser parser) throws IOException {
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+         parser.nextToken();
+         parser.skipChildren();
+      }
+   }
+
+   /**
+    * A histogram bucket read from an ES aggregation, token by token, with the values of
+    * metric aggregations in the order of the requested fields.
+    * <p>
+    *    Reused for every bucket.
+    * </p>
+    */
+   protected static final class Bucket {
+
+      /**
+       * Creates a bucket.
+       * @param fields The requested fields.
+       */
+      Bucket(final List<String> fields) {
+         this.fields = fields;
+         this.tokens = new JsonToken[fields.size()];
+         this.longValues = new long[fields.size()];
+         this.doubleValues = new double[fields.size()];
+         this.nodeValues = new JsonNode[fields.size()];
+      }
+
+      /**
+       * Reads a bucket.
+       * @param parser The parser, positioned at the start of the bucket.
+       * @return Was the bucket an object with a key? The parser is positioned at the end of the bucket.
+       * @throws IOException on parse error.
+       */
+      boolean read(final JsonParser parser) throws IOException {
+         boolean hasKey = false;
+         key = 0L;
+         samples = 0L;
+         Arrays.fill(tokens, null);
+         Arrays.fill(nodeValues, null);
+
+         if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return false;
+         }
+
+         while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if(name.equals(KEY_NODE_KEY)) {
+               hasKey = true;
+               key = parser.getValueAsLong();
+            } else if(name.equals(SAMPLES_KEY)) {
+               samples = parser.getValueAsLong();
+            } else if(token == JsonToken.START_OBJECT) {
+               final int index = fields.indexOf(name);
+               if(index >= 0) {
+                  readValue(parser, index);
+                  continue;
+               }
+            }
+            parser.skipChildren();
+         }
+         return hasKey;
+      }
+
+      /**
+       * Reads the value of a metric aggregation.
+       * @param parser The parser, positioned at the start of the aggregation.
+       * @param index The index of the first matching field.
+       * @throws IOException on parse error.
+       */
+      private void readValue(final JsonParser parser, final int index) throws IOException {
+         while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            final boolean isValue = parser.getCurrentName().equals(VALUE_KEY);
+            final JsonToken token = parser.nextToken();
+            if(isValue) {
+               tokens[index] = token;
+               nodeValues[index] = null;
+               if(token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+                  longValues[index] = parser.getLongValue();
+               } else if(token == JsonToken.VALUE_NUMBER_FLOAT && parser.getNumberType() != JsonParser.NumberType.BIG_DECIMAL) {
+                  doubleValues[index] = parser.getDoubleValue();
+               } else if(token != JsonToken.VALUE_NULL) {
+                  nodeValues[index] = mapper.readTree(parser);
+               }
+            } else {
+               parser.skipChildren();
+            }
+         }
+
+         for(int i = index + 1; i < tokens.length; i++) { //Duplicate fields
+            if(fields.get(i).equals(fields.get(index))) {
+               tokens[i] = tokens[index];
+               longValues[i] = longValues[index];
+               doubleValues[i] = doubleValues[index];
+               nodeValues[i] = nodeValues[index];
+            }
+         }
+      }
+
+      /**
+       * Does the field have a value?
+       * @param index The field index.
+       * @return Does the value exist (it may be null)?
+       */
+      boolean hasValue(final int index) {
+         return tokens[index] != null;
+      }
+
+      /**
+       * Is the field value null?
+       * @param index The field index.
+       * @return Is the value null?
+       */
+      boolean isNullValue(final int index) {
+         return tokens[index] == JsonToken.VALUE_NULL;
+      }
+
+      /**
+       * Gets the field value as a double.
+       * @param index The field index.
+       * @return The value, or {@code 0.0} if null or not a number.
+       */
+      double doubleValue(final int index) {
+         if(nodeValues[index] != null) {
+            return nodeValues[index].doubleValue();
+         } else if(tokens[index] == JsonToken.VALUE_NUMBER_INT) {
+            return (double)longValues[index];
+         } else if(tokens[index] == JsonToken.VALUE_NUMBER_FLOAT) {
+            return doubleValues[index];
+         } else {
+            return 0.0;
+         }
+      }
+
+      /**
+       * Writes the field value.
+       * @param index The field index.
+       * @param generator The generator.
+       * @throws IOException on write error.
+       */
+      void writeValue(final int index, final JsonGenerator generator) throws IOException {
+         if(nodeValues[index] != null) {
+            generator.writeTree(nodeValues[index]);
+         } else if(tokens[index] == JsonToken.VALUE_NUMBER_INT) {
+            generator.writeNumber(longValues[index]);
+         } else if(tokens[index] == JsonToken.VALUE_NUMBER_FLOAT) {
+            generator.writeNumber(doubleValues[index]);
+         } else {
+            generator.writeNull();
+         }
+      }
+
+      /**
+       * The bucket key.
+       */
+      long key;
+
+      /**
+       * The number of samples in the bucket.
+       */
+      long samples;
+
+      private final List<String> fields;
+      private final JsonToken[] tokens;
+      private final long[] longValues;
+      private final double[] doubleValues;
+      private final JsonNode[] nodeValues;
+   }
+
    /**
     * Translates the bucket name.
     * @param bucketName The bucket name.
@@ -75,21 +371,21 @@ public abstract class ESResponseGenerator implements ResponseGenerator {
 
    @Override
    public boolean generateNames(NameQuery nameQuery,
-                                final Response esResponse,
+                                final ESResponse esResponse,
                                 final EnumSet<Option> options,
                                 final HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      response.getOutputStream().write(esResponse.getBody().toByteArray());  //TODO
-      return esResponse.getStatusCode() == 200;
+      response.setStatus(esResponse.statusCode);
+      esResponse.copyTo(response.getOutputStream());  //TODO
+      return esResponse.statusCode == 200;
    }
 
    @Override
    public boolean generateStats(StatsQuery statsQuery,
-                                Response esResponse,
+                                ESResponse esResponse,
                                 EnumSet<Option> options,
                                 HttpServletResponse response) throws IOException {
-      ObjectNode jsonObject = mapper.readTree(parserFactory.createParser(esResponse.getBody().toByteArray()));
+      ObjectNode jsonObject = mapper.readTree(esResponse.parser());
       ObjectNode responseObject = JsonNodeFactory.instance.objectNode();
       ObjectNode meta = responseObject.putObject("meta");
 
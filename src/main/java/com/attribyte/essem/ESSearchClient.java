@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends searches to ES, streaming the response body as it arrives.
+ * <p>
+ *    The body is never copied to a single array, so, unlike responses from the general
+ *    HTTP client, search responses are not limited by the maximum response size.
+ * </p>
+ */
+public class ESSearchClient {
+
+   /**
+    * Receives the response to an asynchronous search.
+    */
+   public interface ResponseCallback {
+
+      /**
+       * Called when response headers are received.
+       * <p>
+       *    Called by an HTTP client thread, so the body must not be read by this method.
+       *    The response must be closed.
+       * </p>
+       * @param response The response.
+       */
+      public void completed(ESResponse response);
+
+      /**
+       * Called if the search fails before response headers are received.
+       * @param failure The failure.
+       */
+      public void failed(Throwable failure);
+   }
+
+   /**
+    * Creates the client.
+    * @param esEndpoint The ES endpoint.
+    * @param httpClient The (started) HTTP client.
+    * @param timeoutSeconds The maximum time to complete a search, including reading the response.
+    */
+   public ESSearchClient(final ESEndpoint esEndpoint,
+                         final HttpClient httpClient,
+                         final int timeoutSeconds) {
+      this.esEndpoint = esEndpoint;
+      this.httpClient = httpClient;
+      this.timeoutSeconds = timeoutSeconds;
+   }
+
+   /**
+    * Searches an index.
+    * <p>
+    *    Returns when response headers are received. The response must be closed.
+    * </p>
+    * @param index The index name.
+    * @param query The query JSON.
+    * @return The response.
+    * @throws IOException on send error, timeout, or interrupt.
+    */
+   public ESResponse search(final String index, final String query) throws IOException {
+
+      Request request = newRequest(index, query);
+      InputStreamResponseListener listener = new InputStreamResponseListener();
+      request.send(listener);
+
+      try {
+         Response response = listener.get(timeoutSeconds, TimeUnit.SECONDS);
+         return new ESResponse(response.getStatus(), listener.getInputStream());
+      } catch(InterruptedException ie) {
+         request.abort(ie);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while waiting for ES response");
+      } catch(TimeoutException te) {
+         request.abort(te);
+         throw new IOException("Timeout waiting for ES response", te);
+      } catch(ExecutionException ee) {
+         throw new IOException("ES search failed", ee.getCause());
+      }
+   }
+
+   /**
+    * Searches an index without waiting for the response.
+    * <p>
+    *    No thread waits for the search. The callback is notified when response headers are received,
+    *    or if the search fails before then.
+    * </p>
+    * @param index The index name.
+    * @param query The query JSON.
+    * @param callback The callback.
+    */
+   public void search(final String index, final String query, final ResponseCallback callback) {
+
+      newRequest(index, query).send(new InputStreamResponseListener() {
+
+         @Override
+         public void onHeaders(final Response response) {
+            super.onHeaders(response);
+            if(notified.compareAndSet(false, true)) {
+               callback.completed(new ESResponse(response.getStatus(), getInputStream()));
+            }
+         }
+
+         @Override
+         public void onComplete(final Result result) {
+            super.onComplete(result);
+            if(result.isFailed() && notified.compareAndSet(false, true)) {
+               callback.failed(result.getFailure());
+            }
+         }
+
+         /**
+          * Has the callback been notified?
+          */
+         private final AtomicBoolean notified = new AtomicBoolean();
+      });
+   }
+
+   /**
+    * Creates a search request.
+    * @param index The index name.
+    * @param query The query JSON.
+    * @return The request.
+    */
+   protected Request newRequest(final String index, final String query) {
+      Request request = httpClient.POST(esEndpoint.buildIndexURI(index))
+              .content(new BytesContentProvider(query.getBytes(Charsets.UTF_8)), JSON_CONTENT_TYPE)
+              .timeout(timeoutSeconds, TimeUnit.SECONDS);
+      if(!Strings.isNullOrEmpty(esEndpoint.auth)) {
+         request.header(BasicAuth.AUTHORIZATION_HEADER, esEndpoint.auth);
+      }
+      return request;
+   }
+
+   /**
+    * The content type for queries ('application/json').
+    */
+   private static final String JSON_CONTENT_TYPE = "application/json";
+
+   /**
+    * The ES endpoint.
+    */
+   private final ESEndpoint esEndpoint;
+
+   /**
+    * The HTTP client.
+    */
+   private final HttpClient httpClient;
+
+   /**
+    * The maximum time to complete a search.
+    */
+   private final int timeoutSeconds;
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.attribyte.essem.es.BucketAggregation;
+import com.attribyte.essem.es.DateHistogramAggregation;
+import com.attribyte.essem.es.SearchRequest;
+import com.attribyte.essem.query.GraphQuery;
+import com.attribyte.essem.util.Util;
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.attribyte.essem.ESResponseGenerator.KEY_NODE_KEY;
+import static com.attribyte.essem.ESResponseGenerator.keyComponents;
+import static com.attribyte.essem.ESResponseGenerator.seekField;
+import static com.attribyte.essem.ESResponseGenerator.skipToEndObject;
+
+/**
+ * Caches downsampled graph buckets for time intervals that have closed.
+ * <p>
+ *    Entries are keyed by index and the query without its time range
+ *    (key filters, fields, downsample interval and function, and aggregation), so relative
+ *    and absolute ranges share entries. Buckets outside the requested range are never returned.
+ *    The range start is aligned to the downsample interval, so buckets are identical from one request to the next.
+ *    Only buckets after the cached buckets are requested from ES, and the two are merged
+ *    into a single ES response for the response generator.
+ * </p>
+ * <p>
+ *    A bucket is closed when it ends before the current time, less the settle time allowed for late reports.
+ *    Only aggregations with fixed-length intervals, ordered by key, are cached.
+ *    Reports that arrive later (e.g. replayed from a reporter's buffer, or the report spill log)
+ *    are missing from cached buckets until the entry reaches its maximum age, when all buckets are fetched again.
+ * </p>
+ * <p>
+ *    A cached result may differ from a direct query for the same range:
+ * </p>
+ * <ul>
+ *    <li>Terms aggregations select the top keys separately for the cached and fetched ranges,
+ *    so a key may appear in only part of the range when there are more keys than the aggregation size.</li>
+ *    <li>Empty buckets are returned by ES only between non-empty buckets in the same response, so
+ *    empty buckets between the last cached bucket and the first fetched bucket are missing.</li>
+ * </ul>
+ */
+public class GraphCache implements MetricSet {
+
+   /**
+    * The default maximum size ('64 MB').
+    */
+   public static final long DEFAULT_MAX_SIZE_BYTES = 64L * 1024L * 1024L;
+
+   /**
+    * The default settle time ('2 minutes').
+    */
+   public static final long DEFAULT_SETTLE_MILLIS = TimeUnit.MINUTES.toMillis(2L);
+
+   /**
+    * The default maximum age of cached buckets ('15 minutes').
+    */
+   public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(15L);
+
+   /**
+    * The response header that reports cache coverage when a query is explained ('X-Essem-Graph-Cache').
+    */
+   public static final String EXPLAIN_HEADER = "X-Essem-Graph-Cache";
+
+   /**
+    * Creates the cache.
+    * @param maxSizeBytes The approximate maximum size of cached buckets.
+    * @param settleMillis The time after a bucket ends before it is considered closed.
+    * @param maxAgeMillis The maximum time since cached buckets were fetched.
+    */
+   public GraphCache(final long maxSizeBytes, final long settleMillis, final long maxAgeMillis) {
+      this(maxSizeBytes, settleMillis, maxAgeMillis, Clock.defaultClock());
+   }
+
+   /**
+    * Creates the cache with a clock.
+    * @param maxSizeBytes The approximate maximum size of cached buckets.
+    * @param settleMillis The time after a bucket ends before it is considered closed.
+    * @param maxAgeMillis The maximum time since cached buckets were fetched.
+    * @param clock The clock.
+    */
+   public GraphCache(final long maxSizeBytes, final long settleMillis, final long maxAgeMillis, final Clock clock) {
+      this.settleMillis = settleMillis;
+      this.maxAgeMillis = maxAgeMillis;
+      this.clock = clock;
+      this.cache = CacheBuilder.newBuilder()
+              .maximumWeight(maxSizeBytes)
+              .weigher(new Weigher<String, Entry>() {
+                 @Override
+                 public int weigh(final String key, final Entry entry) {
+                    return key.length() + entry.sizeBytes;
+                 }
+              })
+              .recordStats()
+              .build();
+      this.metrics = ImmutableMap.<String, Metric>builder()
+              .put("hits", hits)
+              .put("partial-hits", partialHits)
+              .put("misses", misses)
+              .put("expired", expired)
+              .put("entries", new Gauge<Long>() {
+                 @Override
+                 public Long getValue() {
+                    return cache.size();
+                 }
+              })
+              .put("evictions", new Gauge<Long>() {
+                 @Override
+                 public Long getValue() {
+                    return cache.stats().evictionCount();
+                 }
+              }).build();
+   }
+
+   /**
+    * Looks up cached buckets for a graph query.
+    * @param index The index.
+    * @param graphQuery The query.
+    * @return The lookup, or {@code null} if the query can't be cached.
+    * @throws IOException if the query can't be serialized.
+    */
+   public Lookup lookup(final String index, final GraphQuery graphQuery) throws IOException {
+
+      if(!graphQuery.isAggregation || graphQuery.error != null ||
+              graphQuery.bucketOrder != BucketAggregation.Order.KEY_ASC ||
+              graphQuery.range.endTimestamp <= graphQuery.range.startTimestamp) {
+         return null;
+      }
+
+      DateHistogramAggregation.Interval interval = DateHistogramAggregation.Interval.intervalMap.get(graphQuery.downsampleInterval);
+      Long intervalMillis = interval != null ? fixedIntervalMillis.get(interval) : null;
+      if(intervalMillis == null) {
+         return null;
+      }
+
+      String key = index + "|" + graphQuery.searchRequest(0L, 0L).toJSON();
+      return new Lookup(key, cache.getIfPresent(key), graphQuery, intervalMillis, clock.getTime());
+   }
+
+   /**
+    * The cached buckets for a query, and the request for the remaining buckets.
+    */
+   public final class Lookup {
+
+      private Lookup(final String key, final Entry entry, final GraphQuery graphQuery,
+                     final long intervalMillis, final long currTimeMillis) {
+         this.key = key;
+         this.intervalMillis = intervalMillis;
+         this.alignedStart = graphQuery.range.startTimestamp - Math.floorMod(graphQuery.range.startTimestamp, intervalMillis);
+         this.rangeEnd = graphQuery.range.endTimestamp;
+         this.currTimeMillis = currTimeMillis;
+         long closedLimit = Math.min(currTimeMillis - settleMillis, rangeEnd + 1L);
+         this.closedLimit = closedLimit - Math.floorMod(closedLimit, intervalMillis);
+
+         final boolean isExpired = entry != null && currTimeMillis - entry.createdMillis > maxAgeMillis;
+         if(isExpired) {
+            expired.mark();
+         }
+
+         if(entry != null && !isExpired && entry.coveredStart <= alignedStart && entry.coveredEnd > alignedStart) {
+            this.entry = entry;
+            this.fetchStart = Math.min(entry.coveredEnd, rangeEnd + 1L);
+         } else {
+            this.entry = null;
+            this.fetchStart = alignedStart;
+         }
+
+         this.searchRequest = fetchStart <= rangeEnd ? graphQuery.searchRequest(fetchStart, rangeEnd) : null;
+         if(this.entry == null) {
+            misses.mark();
+         } else if(searchRequest == null) {
+            hits.mark();
+         } else {
+            partialHits.mark();
+         }
+      }
+
+      /**
+       * Merges cached buckets with buckets from ES into a single ES response, and caches new closed buckets.
+       * @param esResponse A parser for the ES response to the search request, or {@code null} if
+       * there is no search request.
+       * @return The merged ES response.
+       * @throws IOException on invalid ES response.
+       */
+      public byte[] merge(final JsonParser esResponse) throws IOException {
+
+         Parsed fetched = new Parsed();
+         if(esResponse != null) {
+            if(!seekField(esResponse, "aggregations", JsonToken.START_OBJECT)) {
+               throw new IOException(ESResponseGenerator.INVALID_AGGREGATION);
+            }
+            if(esResponse.nextToken() == JsonToken.FIELD_NAME) {
+               String name = esResponse.getCurrentName();
+               if(esResponse.nextToken() != JsonToken.START_OBJECT) {
+                  throw new IOException(ESResponseGenerator.INVALID_AGGREGATION);
+               }
+               parseAggregation(esResponse, name, ImmutableList.<String>of(), fetched);
+            }
+         }
+
+         List<String> names = entry != null && entry.aggregationNames.size() > fetched.names.size() ?
+                 entry.aggregationNames : fetched.names;
+
+         Map<List<String>, Series> cachedSeries = Maps.newLinkedHashMap();
+         if(entry != null) {
+            for(Series series : entry.series) {
+               cachedSeries.put(series.keys, series);
+            }
+         }
+
+         List<Series> mergedSeries = Lists.newArrayListWithCapacity(fetched.series.size() + cachedSeries.size());
+         List<Series> closedSeries = Lists.newArrayListWithCapacity(mergedSeries.size());
+         for(SeriesBuilder fetchedSeries : fetched.series.values()) {
+            Series cached = cachedSeries.remove(fetchedSeries.keys);
+            mergedSeries.add(merge(cached, fetchedSeries, Long.MAX_VALUE));
+            closedSeries.add(merge(cached, fetchedSeries, closedLimit));
+         }
+         for(Series cached : cachedSeries.values()) {
+            mergedSeries.add(merge(cached, null, Long.MAX_VALUE));
+            closedSeries.add(merge(cached, null, closedLimit));
+         }
+
+         long coveredEnd = Math.max(fetchStart, closedLimit);
+         if(esResponse != null && coveredEnd > alignedStart && names.size() > 0) {
+            cache.put(key, new Entry(ImmutableList.copyOf(names), ImmutableList.copyOf(closedSeries), alignedStart, coveredEnd,
+                    entry != null ? entry.createdMillis : currTimeMillis));
+         }
+
+         ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+         JsonGenerator generator = Util.mapper.getFactory().createGenerator(out);
+         generator.writeStartObject();
+         generator.writeObjectFieldStart("aggregations");
+         if(names.size() > 0) {
+            writeAggregation(generator, names, 0, mergedSeries);
+         }
+         generator.writeEndObject();
+         generator.writeEndObject();
+         generator.close();
+         return out.toByteArray();
+      }
+
+      /**
+       * Describes the cache coverage for this query.
+       * @return The description.
+       */
+      public String explain() {
+         return (entry == null ? "miss" : searchRequest == null ? "hit" : "partial") +
+                 "; interval=" + intervalMillis + "; start=" + alignedStart +
+                 "; cachedBuckets=" + cachedBuckets + "; fetchedBuckets=" + fetchedBuckets +
+                 (searchRequest != null ? "; fetchStart=" + fetchStart : "");
+      }
+
+      /**
+       * Merges cached buckets with fetched buckets.
+       * @param cached The cached series, or {@code null}.
+       * @param fetched The fetched series, or {@code null}.
+       * @param limit Only buckets that end on or before this time are included.
+       * Buckets that start after the range end are never included.
+       * @return The merged series.
+       */
+      private Series merge(final Series cached, final SeriesBuilder fetched, final long limit) {
+         final boolean isOutput = limit == Long.MAX_VALUE;
+         List<String> keys = cached != null ? cached.keys : fetched.keys;
+         List<Long> timestamps = Lists.newArrayList();
+         List<String> buckets = Lists.newArrayList();
+         if(cached != null) {
+            for(int i = 0; i < cached.timestamps.length; i++) {
+               long timestamp = cached.timestamps[i];
+               if(timestamp >= alignedStart && timestamp < fetchStart && timestamp <= rangeEnd &&
+                       timestamp + intervalMillis <= limit) {
+                  timestamps.add(timestamp);
+                  buckets.add(cached.buckets[i]);
+               }
+            }
+            if(isOutput) {
+               cachedBuckets += timestamps.size();
+            }
+         }
+         if(fetched != null) {
+            for(int i = 0; i < fetched.timestamps.size(); i++) {
+               long timestamp = fetched.timestamps.get(i);
+               if(timestamp >= fetchStart && timestamp <= rangeEnd && timestamp + intervalMillis <= limit) {
+                  timestamps.add(timestamp);
+                  buckets.add(fetched.buckets.get(i));
+                  if(isOutput) {
+                     fetchedBuckets++;
+                  }
+               }
+            }
+         }
+         return new Series(ImmutableList.copyOf(keys), Longs.toArray(timestamps), buckets.toArray(new String[buckets.size()]));
+      }
+
+      /**
+       * The cache key.
+       */
+      private final String key;
+
+      /**
+       * The cached entry, or {@code null} if none covers the start of the range.
+       */
+      private final Entry entry;
+
+      /**
+       * The downsample interval.
+       */
+      private final long intervalMillis;
+
+      /**
+       * The range start, aligned to the interval.
+       */
+      private final long alignedStart;
+
+      /**
+       * The range end.
+       */
+      private final long rangeEnd;
+
+      /**
+       * The time of the lookup.
+       */
+      private final long currTimeMillis;
+
+      /**
+       * Buckets that end on or before this time are closed.
+       */
+      private final long closedLimit;
+
+      /**
+       * The start of the range requested from ES.
+       */
+      private final long fetchStart;
+
+      /**
+       * The search request for buckets not in the cache, or {@code null} if all buckets are cached.
+       */
+      public final SearchRequest searchRequest;
+
+      /**
+       * The number of cached buckets returned.
+       */
+      private int cachedBuckets;
+
+      /**
+       * The number of fetched buckets returned.
+       */
+      private int fetchedBuckets;
+   }
+
+   /**
+    * Parses an aggregation from an ES response.
+    * @param parser The parser, positioned at the start of the aggregation. Positioned at the end on return.
+    * @param name The aggregation name.
+    * @param keys The keys of enclosing buckets.
+    * @param parsed The parsed response.
+    * @throws IOException on invalid response.
+    */
+   private static void parseAggregation(final JsonParser parser, final String name,
+                                        final List<String> keys, final Parsed parsed) throws IOException {
+
+      if(parsed.names.size() == keys.size()) {
+         parsed.names.add(name);
+      }
+
+      if(!seekField(parser, "buckets", JsonToken.START_ARRAY)) {
+         throw new IOException(ESResponseGenerator.INVALID_AGGREGATION);
+      }
+
+      if(keyComponents.contains(name)) {
+         while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+               throw new IOException(ESResponseGenerator.INVALID_AGGREGATION);
+            }
+            String key = null;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+               String fieldName = parser.getCurrentName();
+               JsonToken token = parser.nextToken();
+               if(token == JsonToken.START_OBJECT && key != null) {
+                  parseAggregation(parser, fieldName, ImmutableList.<String>builder().addAll(keys).add(key).build(), parsed);
+               } else {
+                  if(fieldName.equals(KEY_NODE_KEY) && token.isScalarValue()) {
+                     key = parser.getText();
+                  }
+                  parser.skipChildren();
+               }
+            }
+         }
+      } else {
+         SeriesBuilder series = new SeriesBuilder(keys);
+         parsed.series.put(keys, series);
+         while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+               throw new IOException(ESResponseGenerator.INVALID_AGGREGATION);
+            }
+            ObjectNode bucket = Util.mapper.readTree(parser);
+            bucket.remove("key_as_string"); //Unused
+            series.timestamps.add(bucket.path(KEY_NODE_KEY).asLong());
+            series.buckets.add(Util.mapper.writeValueAsString(bucket));
+         }
+      }
+
+      skipToEndObject(parser);
+   }
+
+   /**
+    * Writes an aggregation for a list of series.
+    * @param generator The generator.
+    * @param names The aggregation names.
+    * @param depth The depth of the aggregation.
+    * @param series The series with keys that match enclosing buckets.
+    * @throws IOException on write error.
+    */
+   private static void writeAggregation(final JsonGenerator generator, final List<String> names,
+                                        final int depth, final List<Series> series) throws IOException {
+      generator.writeObjectFieldStart(names.get(depth));
+      generator.writeArrayFieldStart("buckets");
+      if(depth == names.size() - 1) {
+         for(Series curr : series) {
+            for(String bucket : curr.buckets) {
+               generator.writeRawValue(bucket);
+            }
+         }
+      } else {
+         Map<String, List<Series>> keySeries = Maps.newLinkedHashMap();
+         for(Series curr : series) {
+            if(curr.keys.size() == names.size() - 1) {
+               String key = curr.keys.get(depth);
+               List<Series> seriesForKey = keySeries.get(key);
+               if(seriesForKey == null) {
+                  seriesForKey = Lists.newArrayListWithExpectedSize(4);
+                  keySeries.put(key, seriesForKey);
+               }
+               seriesForKey.add(curr);
+            }
+         }
+         for(Map.Entry<String, List<Series>> curr : keySeries.entrySet()) {
+            generator.writeStartObject();
+            generator.writeStringField(KEY_NODE_KEY, curr.getKey());
+            writeAggregation(generator, names, depth + 1, curr.getValue());
+            generator.writeEndObject();
+         }
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+   }
+
+   /**
+    * The series and aggregation names parsed from an ES response.
+    */
+   private static final class Parsed {
+
+      /**
+       * The aggregation names, outermost first.
+       */
+      final List<String> names = Lists.newArrayListWithExpectedSize(4);
+
+      /**
+       * The series, in response order.
+       */
+      final Map<List<String>, SeriesBuilder> series = Maps.newLinkedHashMap();
+   }
+
+   /**
+    * Buckets parsed for a series.
+    */
+   private static final class SeriesBuilder {
+
+      SeriesBuilder(final List<String> keys) {
+         this.keys = keys;
+      }
+
+      final List<String> keys;
+      final List<Long> timestamps = Lists.newArrayList();
+      final List<String> buckets = Lists.newArrayList();
+   }
+
+   /**
+    * The buckets for a combination of aggregation keys (e.g. a host).
+    */
+   private static final class Series {
+
+      Series(final ImmutableList<String> keys, final long[] timestamps, final String[] buckets) {
+         this.keys = keys;
+         this.timestamps = timestamps;
+         this.buckets = buckets;
+      }
+
+      /**
+       * Estimates the size of the series.
+       * @return The size in bytes.
+       */
+      int sizeBytes() {
+         int size = 64 + timestamps.length * 8;
+         for(String bucket : buckets) {
+            size += 48 + bucket.length();
+         }
+         return size;
+      }
+
+      /**
+       * The keys for the enclosing buckets.
+       */
+      final ImmutableList<String> keys;
+
+      /**
+       * The bucket timestamps, ascending.
+       */
+      final long[] timestamps;
+
+      /**
+       * The bucket JSON for each timestamp.
+       */
+      final String[] buckets;
+   }
+
+   /**
+    * The closed buckets cached for a query. Immutable.
+    */
+   private static final class Entry {
+
+      Entry(final ImmutableList<String> aggregationNames, final ImmutableList<Series> series,
+            final long coveredStart, final long coveredEnd, final long createdMillis) {
+         this.createdMillis = createdMillis;
+         this.aggregationNames = aggregationNames;
+         this.series = series;
+         this.coveredStart = coveredStart;
+         this.coveredEnd = coveredEnd;
+         int sizeBytes = 64;
+         for(Series curr : series) {
+            sizeBytes += curr.sizeBytes();
+         }
+         this.sizeBytes = sizeBytes;
+      }
+
+      /**
+       * The aggregation names, outermost first.
+       */
+      final ImmutableList<String> aggregationNames;
+
+      /**
+       * The series.
+       */
+      final ImmutableList<Series> series;
+
+      /**
+       * All closed buckets that start on or after this time are cached...
+       */
+      final long coveredStart;
+
+      /**
+       * ...up to (but not including) this time.
+       */
+      final long coveredEnd;
+
+      /**
+       * The time the oldest cached buckets were fetched. Kept when buckets are added.
+       */
+      final long createdMillis;
+
+      /**
+       * The estimated size.
+       */
+      final int sizeBytes;
+   }
+
+   @Override
+   public Map<String, Metric> getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * The length of intervals that are cached.
+    */
+   private static final ImmutableMap<DateHistogramAggregation.Interval, Long> fixedIntervalMillis =
+           ImmutableMap.<DateHistogramAggregation.Interval, Long>builder()
+                   .put(DateHistogramAggregation.Interval.SECOND, TimeUnit.SECONDS.toMillis(1L))
+                   .put(DateHistogramAggregation.Interval.FIVE_SECOND, TimeUnit.SECONDS.toMillis(5L))
+                   .put(DateHistogramAggregation.Interval.MINUTE, TimeUnit.MINUTES.toMillis(1L))
+                   .put(DateHistogramAggregation.Interval.FIVE_MINUTE, TimeUnit.MINUTES.toMillis(5L))
+                   .put(DateHistogramAggregation.Interval.HOUR, TimeUnit.HOURS.toMillis(1L))
+                   .put(DateHistogramAggregation.Interval.DAY, TimeUnit.DAYS.toMillis(1L))
+                   .build();
+
+   /**
+    * The time after a bucket ends before it is considered closed.
+    */
+   private final long settleMillis;
+
+   /**
+    * The maximum time since cached buckets were fetched.
+    */
+   private final long maxAgeMillis;
+
+   /**
+    * The clock.
+    */
+   private final Clock clock;
+
+   /**
+    * The cache of entries, by key.
+    */
+   private final Cache<String, Entry> cache;
+
+   /**
+    * Meters queries answered entirely from the cache.
+    */
+   private final Meter hits = new Meter();
+
+   /**
+    * Meters queries with cached buckets that require a search for recent buckets.
+    */
+   private final Meter partialHits = new Meter();
+
+   /**
+    * Meters queries with no usable cached buckets.
+    */
+   private final Meter misses = new Meter();
+
+   /**
+    * Meters lookups that found buckets older than the maximum age.
+    */
+   private final Meter expired = new Meter();
+
+   /**
+    * The metrics.
+    */
+   private final ImmutableMap<String, Metric> metrics;
+}
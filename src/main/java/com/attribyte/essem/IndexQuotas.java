@@ -0,0 +1,395 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-index queue quotas, scheduling weights and metrics.
+ * <p>
+ *    Defaults apply to every index and may be overridden for an index with
+ *    <code>index.[name].[key]</code>. For example:
+ *    <code>index.noisy.maxMetricsPerSecond=5000</code>.
+ * </p>
+ * <p>
+ *    Quotas for other indexes are created when the index is first seen. Once metrics are registered,
+ *    the metrics for these quotas are registered when they are created. Index names may come from
+ *    request paths, so the number of these quotas is limited. Once the limit is reached, indexes
+ *    seen for the first time share a single quota, named <code>_other</code>.
+ * </p>
+ */
+public class IndexQuotas implements MetricSet {
+
+   /**
+    * The config key for the maximum number of queued reports for an index ('maxQueueSize').
+    * If < 1, the depth is not limited.
+    */
+   public static final String MAX_QUEUE_SIZE_KEY = "maxQueueSize";
+
+   /**
+    * The config key for the maximum number of metrics per second accepted for an index ('maxMetricsPerSecond').
+    * If < 1, the rate is not limited.
+    */
+   public static final String MAX_METRICS_PER_SECOND_KEY = "maxMetricsPerSecond";
+
+   /**
+    * The config key for the scheduling weight of an index ('weight').
+    * When reports are drained, an index receives this many turns for every turn of an index with weight 1.
+    */
+   public static final String WEIGHT_KEY = "weight";
+
+   /**
+    * The default weight ('1').
+    */
+   public static final int DEFAULT_WEIGHT = 1;
+
+   /**
+    * The config key for the default maximum number of queued reports for an index ('indexMaxQueueSize').
+    */
+   public static final String DEFAULT_MAX_QUEUE_SIZE_KEY = "indexMaxQueueSize";
+
+   /**
+    * The config key for the default maximum number of metrics per second for an index ('indexMaxMetricsPerSecond').
+    */
+   public static final String DEFAULT_MAX_METRICS_PER_SECOND_KEY = "indexMaxMetricsPerSecond";
+
+   /**
+    * The config key for the default scheduling weight of an index ('indexWeight').
+    */
+   public static final String DEFAULT_WEIGHT_KEY = "indexWeight";
+
+   /**
+    * The config key for the maximum number of quotas created for indexes without overrides ('indexMaxQuotas').
+    * If < 1, the number is not limited.
+    */
+   public static final String MAX_QUOTAS_KEY = "indexMaxQuotas";
+
+   /**
+    * The default maximum number of quotas created for indexes without overrides ('256').
+    */
+   public static final int DEFAULT_MAX_QUOTAS = 256;
+
+   /**
+    * The name of the quota shared by indexes seen after the maximum number of quotas is reached ('_other').
+    */
+   public static final String OTHER_INDEX = "_other";
+
+   /**
+    * The prefix for per-index quota keys ('index.').
+    */
+   public static final String INDEX_PREFIX = "index.";
+
+   /**
+    * The number of seconds a client is asked to wait when an index queue is full.
+    */
+   public static final long QUEUE_FULL_RETRY_AFTER_SECONDS = 1L;
+
+   /**
+    * The quota and metrics for one index.
+    */
+   public static final class Quota implements MetricSet {
+
+      Quota(final String index, final int maxQueueSize, final int maxMetricsPerSecond, final int weight) {
+         this.index = index;
+         this.maxQueueSize = maxQueueSize;
+         this.maxMetricsPerSecond = maxMetricsPerSecond;
+         this.weight = weight < 1 ? DEFAULT_WEIGHT : weight;
+         this.rateLimiter = maxMetricsPerSecond > 0 ? RateLimiter.create(maxMetricsPerSecond) : null;
+         this.metrics = ImmutableMap.<String, Metric>builder()
+                 .put("index-" + index + "-queue-size", queueSize)
+                 .put("index-" + index + "-admitted", admitted)
+                 .put("index-" + index + "-rejected", rejected).build();
+      }
+
+      /**
+       * Checks the queue depth for this index.
+       * @return <code>0</code> if the queue has space, otherwise the number of seconds to wait before retry.
+       */
+      long checkQueueSize() {
+         if(maxQueueSize > 0 && queueSize.getCount() >= maxQueueSize) {
+            rejected.mark();
+            return QUEUE_FULL_RETRY_AFTER_SECONDS;
+         } else {
+            return 0L;
+         }
+      }
+
+      /**
+       * Admits a report if the queue depth and rate quotas allow.
+       * @param metricCount The number of metrics in the report.
+       * @return <code>0</code> if admitted, otherwise the number of seconds to wait before retry.
+       */
+      long admit(final int metricCount) {
+         long retryAfterSeconds = checkQueueSize();
+         if(retryAfterSeconds > 0L) {
+            return retryAfterSeconds;
+         }
+
+         if(rateLimiter != null && metricCount > 0 && !rateLimiter.tryAcquire(metricCount)) {
+            rejected.mark();
+            return Math.max(1L, (metricCount + maxMetricsPerSecond - 1) / maxMetricsPerSecond);
+         }
+
+         admitted.mark();
+         return 0L;
+      }
+
+      @Override
+      public Map<String, Metric> getMetrics() {
+         return metrics;
+      }
+
+      /**
+       * The index name.
+       */
+      public final String index;
+
+      /**
+       * The maximum number of queued reports. If < 1, not limited.
+       */
+      public final int maxQueueSize;
+
+      /**
+       * The maximum number of metrics accepted per second. If < 1, not limited.
+       */
+      public final int maxMetricsPerSecond;
+
+      /**
+       * The scheduling weight.
+       */
+      public final int weight;
+
+      /**
+       * The number of reports currently queued for the index.
+       */
+      final Counter queueSize = new Counter();
+
+      /**
+       * Reports admitted.
+       */
+      private final Meter admitted = new Meter();
+
+      /**
+       * Reports rejected because a quota was exceeded.
+       */
+      private final Meter rejected = new Meter();
+
+      /**
+       * Limits the rate of metrics. May be {@code null}.
+       */
+      private final RateLimiter rateLimiter;
+
+      /**
+       * The metrics.
+       */
+      private final ImmutableMap<String, Metric> metrics;
+   }
+
+   /**
+    * Creates quotas from properties.
+    * <p>
+    *    Quotas (and metrics) for indexes with overrides are created immediately.
+    * </p>
+    * @param props The properties.
+    * @return The quotas.
+    */
+   public static IndexQuotas fromProperties(final Properties props) {
+      final IndexQuotas quotas = new IndexQuotas(
+              getIntProperty(DEFAULT_MAX_QUEUE_SIZE_KEY, 0, props),
+              getIntProperty(DEFAULT_MAX_METRICS_PER_SECOND_KEY, 0, props),
+              getIntProperty(DEFAULT_WEIGHT_KEY, DEFAULT_WEIGHT, props),
+              getIntProperty(MAX_QUOTAS_KEY, DEFAULT_MAX_QUOTAS, props));
+
+      for(String key : props.stringPropertyNames()) {
+         if(key.startsWith(INDEX_PREFIX)) {
+            final int index = key.lastIndexOf('.');
+            if(index > INDEX_PREFIX.length()) {
+               final String name = key.substring(INDEX_PREFIX.length(), index);
+               final String prefix = INDEX_PREFIX + name + ".";
+               quotas.quotas.putIfAbsent(name, new Quota(name,
+                       getIntProperty(prefix + MAX_QUEUE_SIZE_KEY, quotas.defaultMaxQueueSize, props),
+                       getIntProperty(prefix + MAX_METRICS_PER_SECOND_KEY, quotas.defaultMaxMetricsPerSecond, props),
+                       getIntProperty(prefix + WEIGHT_KEY, quotas.defaultWeight, props)));
+            }
+         }
+      }
+      return quotas;
+   }
+
+   /**
+    * Creates quotas with defaults that apply to all indexes and the default maximum number of quotas.
+    * @param defaultMaxQueueSize The maximum number of queued reports for an index. If < 1, not limited.
+    * @param defaultMaxMetricsPerSecond The maximum number of metrics accepted per second for an index. If < 1, not limited.
+    * @param defaultWeight The scheduling weight.
+    */
+   public IndexQuotas(final int defaultMaxQueueSize, final int defaultMaxMetricsPerSecond, final int defaultWeight) {
+      this(defaultMaxQueueSize, defaultMaxMetricsPerSecond, defaultWeight, DEFAULT_MAX_QUOTAS);
+   }
+
+   /**
+    * Creates quotas with defaults that apply to all indexes.
+    * @param defaultMaxQueueSize The maximum number of queued reports for an index. If < 1, not limited.
+    * @param defaultMaxMetricsPerSecond The maximum number of metrics accepted per second for an index. If < 1, not limited.
+    * @param defaultWeight The scheduling weight.
+    * @param maxQuotas The maximum number of quotas created for indexes without overrides. If < 1, not limited.
+    */
+   public IndexQuotas(final int defaultMaxQueueSize, final int defaultMaxMetricsPerSecond, final int defaultWeight,
+                      final int maxQuotas) {
+      this.defaultMaxQueueSize = defaultMaxQueueSize;
+      this.defaultMaxMetricsPerSecond = defaultMaxMetricsPerSecond;
+      this.defaultWeight = defaultWeight;
+      this.maxQuotas = maxQuotas;
+      if(maxQuotas > 0) {
+         this.otherQuota = new Quota(OTHER_INDEX, defaultMaxQueueSize, defaultMaxMetricsPerSecond, defaultWeight);
+         this.quotas.put(OTHER_INDEX, otherQuota);
+      } else {
+         this.otherQuota = null;
+      }
+   }
+
+   /**
+    * Gets the quota for an index, creating it with defaults, if necessary.
+    * <p>
+    *    If the maximum number of quotas has been created, the shared quota is returned for
+    *    an index without a quota. Quotas are never removed, so an index always gets the same quota.
+    * </p>
+    * @param index The index.
+    * @return The quota.
+    */
+   public Quota get(final String index) {
+      Quota quota = quotas.get(index);
+      if(quota == null) {
+         if(otherQuota != null && createdQuotas.get() >= maxQuotas) {
+            return otherQuota;
+         }
+         quota = new Quota(index, defaultMaxQueueSize, defaultMaxMetricsPerSecond, defaultWeight);
+         Quota prev = quotas.putIfAbsent(index, quota);
+         if(prev != null) {
+            quota = prev;
+         } else {
+            createdQuotas.incrementAndGet();
+            register(quota);
+         }
+      }
+      return quota;
+   }
+
+   /**
+    * Registers the metrics for all current quotas, and any quota created later, with a registry.
+    * @param registry The registry.
+    * @param prefix The prefix added to metric names.
+    */
+   public synchronized void registerMetrics(final MetricRegistry registry, final String prefix) {
+      this.registry = registry;
+      this.registryPrefix = prefix;
+      for(Quota quota : quotas.values()) {
+         register(quota);
+      }
+   }
+
+   /**
+    * Registers the metrics for a quota, if metrics are registered and the quota is not already registered.
+    * @param quota The quota.
+    */
+   private synchronized void register(final Quota quota) {
+      if(registry != null && registeredIndexes.add(quota.index)) {
+         for(Map.Entry<String, Metric> metric : quota.getMetrics().entrySet()) {
+            registry.register(MetricRegistry.name(registryPrefix, metric.getKey()), metric.getValue());
+         }
+      }
+   }
+
+   /**
+    * Gets metrics for all indexes that have received reports or have configured quotas.
+    * @return The metrics.
+    */
+   @Override
+   public Map<String, Metric> getMetrics() {
+      ImmutableMap.Builder<String, Metric> builder = ImmutableMap.builder();
+      for(Quota quota : quotas.values()) {
+         builder.putAll(quota.getMetrics());
+      }
+      return builder.build();
+   }
+
+   private static int getIntProperty(final String key, final int defaultValue, final Properties props) {
+      return Integer.parseInt(props.getProperty(key, Integer.toString(defaultValue)).trim());
+   }
+
+   /**
+    * The default maximum queue size.
+    */
+   private final int defaultMaxQueueSize;
+
+   /**
+    * The default maximum metrics per second.
+    */
+   private final int defaultMaxMetricsPerSecond;
+
+   /**
+    * The default weight.
+    */
+   private final int defaultWeight;
+
+   /**
+    * The maximum number of quotas created for indexes without overrides.
+    */
+   private final int maxQuotas;
+
+   /**
+    * The number of quotas created for indexes without overrides.
+    */
+   private final AtomicInteger createdQuotas = new AtomicInteger();
+
+   /**
+    * The quota shared once the maximum number of quotas is reached. May be {@code null}.
+    */
+   private final Quota otherQuota;
+
+   /**
+    * Quotas by index name.
+    */
+   private final ConcurrentMap<String, Quota> quotas = Maps.newConcurrentMap();
+
+   /**
+    * The registry for per-index metrics, if registered.
+    */
+   private MetricRegistry registry;
+
+   /**
+    * The prefix added to registered metric names.
+    */
+   private String registryPrefix;
+
+   /**
+    * The indexes with registered metrics.
+    */
+   private final Set<String> registeredIndexes = Sets.newHashSet();
+}
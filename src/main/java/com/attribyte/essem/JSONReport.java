@@ -8,6 +8,7 @@ import org.attribyte.essem.ReportProtos;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
 
 import static com.attribyte.essem.util.Util.parserFactory;
@@ -41,12 +42,31 @@ public class JSONReport {
     * @throws IOException on parse error.
     */
    public static ReportProtos.EssemReport.Builder parseBuilderFrom(final byte[] reportBytes) throws IOException {
+      return parseBuilderFrom(parserFactory.createParser(reportBytes));
+   }
+
+   /**
+    * Parses a report from a stream.
+    * @param is The input stream.
+    * @return The report.
+    * @throws IOException on parse error.
+    */
+   public static ReportProtos.EssemReport parseFrom(final InputStream is) throws IOException {
+      return parseBuilderFrom(parserFactory.createParser(is)).build();
+   }
+
+   /**
+    * Parses a report builder.
+    * @param parser The parser.
+    * @return The report builder.
+    * @throws IOException on parse error.
+    */
+   private static ReportProtos.EssemReport.Builder parseBuilderFrom(final JsonParser parser) throws IOException {
 
       ReportProtos.EssemReport.Builder builder = ReportProtos.EssemReport.newBuilder();
       builder.setRateUnit(ReportProtos.EssemReport.TimeUnit.SECONDS);
       builder.setDurationUnit(ReportProtos.EssemReport.TimeUnit.MILLIS);
 
-      JsonParser parser = parserFactory.createParser(reportBytes);
       if(parser.nextToken() != JsonToken.START_OBJECT) {
          throw new IOException("Invalid report: Expecting an object");
       }
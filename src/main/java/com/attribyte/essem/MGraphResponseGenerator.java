@@ -19,18 +19,20 @@ import com.attribyte.essem.model.graph.MetricKey;
 import com.attribyte.essem.query.Fields;
 import com.attribyte.essem.query.GraphQuery;
 import com.attribyte.essem.query.HistogramQuery;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.BaseEncoding;
 import org.HdrHistogram.Histogram;
 import org.HdrHistogram.HistogramIterationValue;
-import org.attribyte.api.http.Response;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
@@ -60,26 +62,25 @@ public class MGraphResponseGenerator extends ESResponseGenerator {
 
 
    @Override
-   public boolean generateGraph(GraphQuery graphQuery,
-                                Response esResponse,
-                                EnumSet<Option> options,
-                                RateUnit rateUnit,
-                                HttpServletResponse response) throws IOException {
+   protected boolean generateGraph(GraphQuery graphQuery,
+                                   JsonParser parser,
+                                   EnumSet<Option> options,
+                                   RateUnit rateUnit,
+                                   HttpServletResponse response) throws IOException {
 
-      ObjectNode esResponseObject = mapper.readTree(parserFactory.createParser(esResponse.getBody().toByteArray()));
-
-      ArrayNode targetGraph = JsonNodeFactory.instance.arrayNode();
       List<String> fields = ImmutableList.copyOf(graphQuery.searchRequest.fields);
 
       if(graphQuery.isAggregation) {
-         JsonNode aggregations = esResponseObject.get("aggregations");
-         if(aggregations != null && aggregations.isObject()) {
-            String error = parseGraphAggregation(aggregations, fields, options, rateUnit, targetGraph);
+         if(seekField(parser, "aggregations", JsonToken.START_OBJECT)) {
+            JsonGenerator generator = startResponse(response);
+            generator.writeStartArray();
+            String error = parseGraphAggregation(parser, fields, options, rateUnit, generator);
             if(error != null) {
-               response.sendError(500, error);
+               sendGraphError(response, error);
                return false;
             } else {
-               generateGraph(targetGraph, response);
+               generator.writeEndArray();
+               generator.close();
                return true;
             }
          } else {
@@ -87,191 +88,238 @@ public class MGraphResponseGenerator extends ESResponseGenerator {
             return false;
          }
       } else {
-         parseGraph(esResponseObject, fields, options, rateUnit, targetGraph);
-         generateGraph(targetGraph, response);
+         JsonGenerator generator = startResponse(response);
+         if(seekField(parser, "hits", JsonToken.START_OBJECT) && seekField(parser, "hits", JsonToken.START_ARRAY)) {
+            parseGraph(parser, fields, options, rateUnit, generator);
+         } else {
+            generator.writeStartArray();
+            generator.writeEndArray();
+         }
+         generator.close();
          return true;
       }
    }
 
-   private void generateGraph(JsonNode responseObject,
-                              HttpServletResponse response) throws IOException {
-      response.setContentType(JSON_CONTENT_TYPE_HEADER);
-      response.setStatus(HttpServletResponse.SC_OK);
-      response.getOutputStream().write(responseObject.toString().getBytes("UTF-8"));
-      response.getOutputStream().flush();
-   }
-
-   protected void parseGraph(JsonNode sourceParent,
+   /**
+    * Writes the graph for ES hits.
+    * <p>
+    *    If all hits have the same key, the graph is an array of samples. Otherwise, it is an array
+    *    of graphs for each key. Samples are buffered until all hits are read.
+    * </p>
+    * @param parser The parser, positioned at the start of the hits array.
+    * @param fields The fields.
+    * @param options The options.
+    * @param rateUnit The rate unit.
+    * @param generator The generator.
+    * @throws IOException on parse or write error.
+    */
+   protected void parseGraph(JsonParser parser,
                              List<String> fields,
                              EnumSet<Option> options,
                              RateUnit rateUnit,
-                             ArrayNode targetGraph) {
+                             JsonGenerator generator) throws IOException {
 
-      DateTimeFormatter parser = ISODateTimeFormat.basicDateTime();
+      DateTimeFormatter dateParser = ISODateTimeFormat.basicDateTime();
       SimpleDateFormat formatter = new SimpleDateFormat(DT_FORMAT);
 
-      Map<MetricKey, List<ObjectNode>> outputGraphs = Maps.newHashMapWithExpectedSize(4);
-
-      JsonNode hitsObj = sourceParent.get("hits");
-      if(hitsObj != null) {
-         JsonNode hitsArr = hitsObj.get("hits");
-         if(hitsArr != null) {
-            for(JsonNode hitObj : hitsArr) {
-               JsonNode fieldsObj = hitObj.get("fields");
-               if(fieldsObj != null) {
-                  ObjectNode outObj = mapper.createObjectNode();
-                  DateTime timestamp = parser.parseDateTime(getStringField(fieldsObj, "ts"));
-                  outObj.put("timestamp", timestamp.getMillis());
-                  outObj.put("date", formatter.format(timestamp.getMillis()));
-                  MetricKey key = new MetricKey(
-                          getStringField(fieldsObj, "name"),
-                          getStringField(fieldsObj, "application"),
-                          getStringField(fieldsObj, "host"),
-                          getStringField(fieldsObj, "instance")
-                  );
-
-                  Iterator<Map.Entry<String, JsonNode>> fieldIter = fieldsObj.fields();
-                  while(fieldIter.hasNext()) {
-                     Map.Entry<String, JsonNode> currField = fieldIter.next();
-                     if(!graphIgnoreProperties.contains(currField.getKey())) {
-                        JsonNode currValueNode = currField.getValue();
-                        if(currValueNode.isArray() && currValueNode.size() > 0) {
-                           setFieldValue(rateUnit, outObj, currField.getKey(), currValueNode.get(0));
-                        } else if(!currValueNode.isArray()) {
-                           setFieldValue(rateUnit, outObj, currField.getKey(), currValueNode);
-                        }
-                     }
-                  }
+      Map<MetricKey, TokenBuffer> outputGraphs = Maps.newLinkedHashMap();
 
-                  List<ObjectNode> graph = outputGraphs.get(key);
-                  if(graph == null) {
-                     graph = Lists.newArrayListWithExpectedSize(1024);
-                     outputGraphs.put(key, graph);
-                  }
-                  graph.add(outObj);
+      while(parser.nextToken() != JsonToken.END_ARRAY) {
+         if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            continue;
+         }
+
+         if(!seekField(parser, "fields", JsonToken.START_OBJECT)) {
+            continue;
+         }
+         JsonNode fieldsObj = mapper.readTree(parser);
+         skipToEndObject(parser);
+
+         MetricKey key = new MetricKey(
+                 getStringField(fieldsObj, "name"),
+                 getStringField(fieldsObj, "application"),
+                 getStringField(fieldsObj, "host"),
+                 getStringField(fieldsObj, "instance")
+         );
+
+         TokenBuffer graph = outputGraphs.get(key);
+         if(graph == null) {
+            graph = new TokenBuffer(mapper, false);
+            outputGraphs.put(key, graph);
+         }
+
+         graph.writeStartObject();
+         DateTime timestamp = dateParser.parseDateTime(getStringField(fieldsObj, "ts"));
+         graph.writeNumberField("timestamp", timestamp.getMillis());
+         graph.writeStringField("date", formatter.format(timestamp.getMillis()));
+
+         Iterator<Map.Entry<String, JsonNode>> fieldIter = fieldsObj.fields();
+         while(fieldIter.hasNext()) {
+            Map.Entry<String, JsonNode> currField = fieldIter.next();
+            if(!graphIgnoreProperties.contains(currField.getKey())) {
+               JsonNode currValueNode = currField.getValue();
+               if(currValueNode.isArray() && currValueNode.size() > 0) {
+                  writeFieldValue(rateUnit, graph, currField.getKey(), currValueNode.get(0));
+               } else if(!currValueNode.isArray()) {
+                  writeFieldValue(rateUnit, graph, currField.getKey(), currValueNode);
                }
             }
          }
+         graph.writeEndObject();
       }
 
+      generator.writeStartArray();
       if(outputGraphs.size() == 1) {
-         List<ObjectNode> graphNodes = outputGraphs.values().iterator().next();
-         for(ObjectNode outObj : graphNodes) {
-            targetGraph.add(outObj);
-         }
+         outputGraphs.values().iterator().next().serialize(generator);
       } else {
-         for(Map.Entry<MetricKey, List<ObjectNode>> graphEntry : outputGraphs.entrySet()) {
+         for(Map.Entry<MetricKey, TokenBuffer> graphEntry : outputGraphs.entrySet()) {
             MetricKey key = graphEntry.getKey();
-            ObjectNode outputGraphNode = targetGraph.addObject();
-            outputGraphNode.put("name", key.name);
-            outputGraphNode.put("application", key.application);
-            outputGraphNode.put("host", key.host);
-            outputGraphNode.put("instance", key.instance);
-            ArrayNode currOutputGraph = outputGraphNode.putArray("graph");
-            for(ObjectNode outObj : graphEntry.getValue()) {
-               currOutputGraph.add(outObj);
-            }
+            generator.writeStartObject();
+            generator.writeStringField("name", key.name);
+            generator.writeStringField("application", key.application);
+            generator.writeStringField("host", key.host);
+            generator.writeStringField("instance", key.instance);
+            generator.writeArrayFieldStart("graph");
+            graphEntry.getValue().serialize(generator);
+            generator.writeEndArray();
+            generator.writeEndObject();
          }
       }
+      generator.writeEndArray();
    }
 
-   private String parseGraphAggregation(JsonNode sourceParent,
+   /**
+    * Writes samples for each (nested) aggregation.
+    * @param parser The parser, positioned at the start of the object that contains the aggregation.
+    * On success, positioned at the end of this object.
+    * @param fields The fields.
+    * @param options The options.
+    * @param rateUnit The rate unit.
+    * @param generator The generator.
+    * @return The error, or {@code null} if none.
+    * @throws IOException on parse or write error.
+    */
+   private String parseGraphAggregation(JsonParser parser,
                                         List<String> fields,
                                         EnumSet<Option> options,
                                         RateUnit rateUnit,
-                                        ArrayNode targetGraph) {
-
+                                        JsonGenerator generator) throws IOException {
 
-      Iterator<Map.Entry<String, JsonNode>> iter = sourceParent.fields();
-      Map.Entry<String, JsonNode> aggregation = null;
-
-      while(iter.hasNext()) {
-         aggregation = iter.next();
-         if(aggregation.getValue().isObject()) {
-            break;
-         } else {
-            aggregation = null;
-         }
+      String bucketName = seekObjectField(parser);
+      if(bucketName == null) {
+         return INVALID_AGGREGATION;
       }
 
-      if(aggregation == null) {
-         return "Aggregation is invalid";
+      String error = parseAggregation(parser, bucketName, fields, options, rateUnit, generator);
+      if(error == null) {
+         skipToEndObject(parser);
       }
+      return error;
+   }
 
-      String bucketName = aggregation.getKey();
-
-      JsonNode obj = aggregation.getValue();
-      JsonNode bucketsObj = obj.get("buckets");
-      if(bucketsObj == null || !bucketsObj.isArray()) {
-         return "Aggregation is invalid";
+   /**
+    * Writes samples for an aggregation.
+    * <p>
+    *    Buckets for key components are expected to have their key before any nested aggregation,
+    *    as ES writes them.
+    * </p>
+    * @param parser The parser, positioned at the start of the aggregation. On success, positioned at the end.
+    * @param bucketName The aggregation (bucket) name.
+    * @param fields The fields.
+    * @param options The options.
+    * @param rateUnit The rate unit.
+    * @param generator The generator.
+    * @return The error, or {@code null} if none.
+    * @throws IOException on parse or write error.
+    */
+   private String parseAggregation(JsonParser parser,
+                                   String bucketName,
+                                   List<String> fields,
+                                   EnumSet<Option> options,
+                                   RateUnit rateUnit,
+                                   JsonGenerator generator) throws IOException {
+
+      if(!seekField(parser, "buckets", JsonToken.START_ARRAY)) {
+         return INVALID_AGGREGATION;
       }
 
       if(keyComponents.contains(bucketName)) {
-         for(final JsonNode bucketObj : bucketsObj) {
-            if(!bucketObj.isObject()) {
-               return "Aggregation is invalid";
+         while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+               return INVALID_AGGREGATION;
             }
 
-            JsonNode keyNode = bucketObj.get(KEY_NODE_KEY);
-            if(keyNode == null) {
-               return "Aggregation is invalid";
+            boolean hasKey = false;
+            boolean hasAggregation = false;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+               String fieldName = parser.getCurrentName();
+               JsonToken token = parser.nextToken();
+               if(!hasAggregation && token == JsonToken.START_OBJECT) {
+                  if(!hasKey) {
+                     return INVALID_AGGREGATION;
+                  }
+                  hasAggregation = true;
+                  String error = parseAggregation(parser, fieldName, fields, options, rateUnit, generator);
+                  if(error != null) {
+                     return error;
+                  }
+               } else {
+                  if(fieldName.equals(KEY_NODE_KEY)) {
+                     hasKey = true;
+                  }
+                  parser.skipChildren();
+               }
             }
 
-            String error = parseGraphAggregation(bucketObj, fields, options, rateUnit, targetGraph);
-            if(error != null) {
-               return error;
+            if(!hasAggregation) {
+               return INVALID_AGGREGATION;
             }
          }
-         return null;
       } else {
          SimpleDateFormat formatter = new SimpleDateFormat(DT_FORMAT);
          boolean allowEmptyBins = options.contains(Option.EMPTY_BINS);
 
-         for(final JsonNode bucketObj : bucketsObj) {
-            if(!bucketObj.isObject()) {
-               return "Aggregation is invalid";
+         Bucket bucket = new Bucket(fields);
+         while(parser.nextToken() != JsonToken.END_ARRAY) {
+            if(!bucket.read(parser)) {
+               return INVALID_AGGREGATION;
             }
 
-            JsonNode keyNode = bucketObj.get(KEY_NODE_KEY);
-            if(keyNode == null) {
-               return "Aggregation is invalid";
-            }
-
-            JsonNode docCountNode = bucketObj.get(SAMPLES_KEY);
-            long samples = docCountNode != null ? docCountNode.asLong() : 0L;
-
-            if(allowEmptyBins || samples > 0L) {
-
-               ObjectNode sampleObj = targetGraph.addObject();
-               sampleObj.put("timestamp", keyNode.asLong());
-               sampleObj.put("date", formatter.format(keyNode.asLong()));
-               sampleObj.put("samples", samples);
-
-               for(String field : fields) {
-                  JsonNode fieldObj = bucketObj.get(field);
-                  if(fieldObj != null) {
-                     JsonNode valueNode = fieldObj.get("value");
-                     if(valueNode != null) {
-                        if(!valueNode.isNull()) {
-                           setFieldValue(rateUnit, sampleObj, field, valueNode);
-                        }
+            if(allowEmptyBins || bucket.samples > 0L) {
+               generator.writeStartObject();
+               generator.writeNumberField("timestamp", bucket.key);
+               generator.writeStringField("date", formatter.format(bucket.key));
+               generator.writeNumberField("samples", bucket.samples);
+
+               for(int i = 0; i < fields.size(); i++) {
+                  if(bucket.hasValue(i) && !bucket.isNullValue(i)) {
+                     String field = fields.get(i);
+                     if(rateUnit == ResponseGenerator.RAW_RATE_UNIT || !Fields.rateFields.contains(field)) {
+                        generator.writeFieldName(field);
+                        bucket.writeValue(i, generator);
+                     } else {
+                        generator.writeNumberField(field, bucket.doubleValue(i) * rateUnit.mult);
                      }
                   }
                }
+               generator.writeEndObject();
             }
          }
-         return null;
       }
+
+      skipToEndObject(parser);
+      return null;
    }
 
    @Override
    public boolean generateHistogram(HistogramQuery histogramQuery,
-                                    Response esResponse,
+                                    ESResponse esResponse,
                                     EnumSet<Option> options,
                                     HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      ObjectNode esResponseObject = mapper.readTree(parserFactory.createParser(esResponse.getBody().toByteArray()));
+      response.setStatus(esResponse.statusCode);
+      ObjectNode esResponseObject = mapper.readTree(esResponse.parser());
       Histogram totalHistogram = totalHistogram(esResponseObject);
       ObjectNode responseObject = JsonNodeFactory.instance.objectNode();
       TimeUnit convertUnit = null;
@@ -353,22 +401,25 @@ public class MGraphResponseGenerator extends ESResponseGenerator {
    }
 
    /**
-    * Sets a field value, converting rates, if requested.
+    * Writes a field value, converting rates, if requested.
     * @param rateUnit The rate unit.
-    * @param parentObj The parent to which the field is added.
+    * @param generator The generator.
     * @param field The field name.
     * @param valueNode The input value node.
+    * @throws IOException on write error.
     */
-   private static void setFieldValue(RateUnit rateUnit, ObjectNode parentObj, String field, JsonNode valueNode) {
+   private static void writeFieldValue(RateUnit rateUnit, JsonGenerator generator, String field, JsonNode valueNode) throws IOException {
 
       if(rateUnit == ResponseGenerator.RAW_RATE_UNIT) {
-         parentObj.set(field, valueNode);
+         generator.writeFieldName(field);
+         generator.writeTree(valueNode);
       } else {
          if(!Fields.rateFields.contains(field)) {
-            parentObj.set(field, valueNode);
+            generator.writeFieldName(field);
+            generator.writeTree(valueNode);
          } else {
-            parentObj.put(field, valueNode.doubleValue() * rateUnit.mult);
+            generator.writeNumberField(field, valueNode.doubleValue() * rateUnit.mult);
          }
       }
    }
-}
\ No newline at end of file
+}
@@ -19,7 +19,6 @@ import com.attribyte.essem.query.GraphQuery;
 import com.attribyte.essem.query.HistogramQuery;
 import com.attribyte.essem.query.NameQuery;
 import com.attribyte.essem.query.StatsQuery;
-import org.attribyte.api.http.Response;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -32,46 +31,46 @@ public class PassthroughResponseGenerator implements ResponseGenerator {
 
    @Override
    public boolean generateGraph(final GraphQuery graphQuery,
-                                final Response esResponse,
+                                final ESResponse esResponse,
                                 final EnumSet<Option> options,
                                 final RateUnit rateUnit,
                                 final HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      response.getOutputStream().write(esResponse.getBody().toByteArray());
+      response.setStatus(esResponse.statusCode);
+      esResponse.copyTo(response.getOutputStream());
       return true;
    }
 
    @Override
    public boolean generateNames(final NameQuery nameQuery,
-                                final Response esResponse,
+                                final ESResponse esResponse,
                                 final EnumSet<Option> options,
                                 final HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      response.getOutputStream().write(esResponse.getBody().toByteArray());
+      response.setStatus(esResponse.statusCode);
+      esResponse.copyTo(response.getOutputStream());
       return true;
    }
 
    @Override
    public boolean generateStats(final StatsQuery statsQuery,
-                                final Response esResponse,
+                                final ESResponse esResponse,
                                 final EnumSet<Option> options,
                                 final HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      response.getOutputStream().write(esResponse.getBody().toByteArray());
+      response.setStatus(esResponse.statusCode);
+      esResponse.copyTo(response.getOutputStream());
       return true;
    }
 
    @Override
    public boolean generateHistogram(HistogramQuery histogramQuery,
-                                    Response esResponse,
+                                    ESResponse esResponse,
                                     EnumSet<Option> options,
                                     HttpServletResponse response) throws IOException {
       response.setContentType("application/json");
-      response.setStatus(esResponse.getStatusCode());
-      response.getOutputStream().write(esResponse.getBody().toByteArray());
+      response.setStatus(esResponse.statusCode);
+      esResponse.copyTo(response.getOutputStream());
       return true;
    }
 }
\ No newline at end of file
@@ -41,8 +41,13 @@ public class QueuedReport {
     * @param failedCount The number of times this report has failed.
     */
    public QueuedReport(QueuedReport report, final Throwable cause, final int failedCount) {
-      this.index = report.index;
-      this.report = report.report;
+      this(report.index, report.report, cause, failedCount);
+   }
+
+   private QueuedReport(final String index, final ReportProtos.EssemReport report,
+                        final Throwable cause, final int failedCount) {
+      this.index = index;
+      this.report = report;
       this.cause = cause;
       this.failedCount = failedCount;
    }
@@ -65,6 +70,17 @@ public class QueuedReport {
       return new QueuedReport(this, cause, this.failedCount + 1);
    }
 
+   /**
+    * Creates a copy of this report that contains only some of the original metrics
+    * with the failure count incremented by one.
+    * @param report The report with the subset of metrics.
+    * @param cause The new cause.
+    * @return The new report.
+    */
+   public QueuedReport incrementCount(final ReportProtos.EssemReport report, final Throwable cause) {
+      return new QueuedReport(this.index, report, cause, this.failedCount + 1);
+   }
+
    final String index;
 
    /**
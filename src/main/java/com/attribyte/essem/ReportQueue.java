@@ -16,18 +16,24 @@
 package com.attribyte.essem;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.attribyte.api.Logger;
 import org.attribyte.essem.ReportProtos;
 import org.attribyte.essem.metrics.HDRReservoir;
 
 import javax.servlet.ServletException;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -100,25 +106,135 @@ public class ReportQueue implements MetricSet {
     */
    public static final String QUEUE_CAPACITY_KEY = "queueCapacity";
 
+   /**
+    * The config key for the queue implementation ('queueType').
+    */
+   public static final String QUEUE_TYPE_KEY = "queueType";
+
+   /**
+    * The queue type backed by a standard, lock-based blocking queue ('blocking').
+    * This is the default.
+    */
+   public static final String QUEUE_TYPE_BLOCKING = "blocking";
+
+   /**
+    * The queue type backed by a lock-free ring buffer ('ring').
+    * If the queue capacity is unlimited, the default capacity is used.
+    */
+   public static final String QUEUE_TYPE_RING = "ring";
+
+   /**
+    * The queue type with a sub-queue for each index, drained in weighted round-robin order ('fair').
+    * @see IndexQuotas#WEIGHT_KEY
+    */
+   public static final String QUEUE_TYPE_FAIR = "fair";
+
+   /**
+    * The default capacity of a ring buffer queue when capacity is unlimited ('4096').
+    */
+   public static final int DEFAULT_RING_QUEUE_CAPACITY = 4096;
+
+   /**
+    * The config key for the directory used to spill reports to disk ('spillDirectory').
+    * If unspecified, reports are never spilled.
+    */
+   public static final String SPILL_DIRECTORY_KEY = "spillDirectory";
+
+   /**
+    * The config key for the queue size above which reports are spilled ('spillHighWaterMark').
+    */
+   public static final String SPILL_HIGH_WATER_MARK_KEY = "spillHighWaterMark";
+
+   /**
+    * The default spill high-water mark when queue capacity is unlimited ('1024').
+    * Otherwise, the default is 3/4 of the capacity.
+    */
+   public static final int DEFAULT_SPILL_HIGH_WATER_MARK = 1024;
+
+   /**
+    * The config key for the size of spill segment files ('spillSegmentBytes').
+    */
+   public static final String SPILL_SEGMENT_BYTES_KEY = "spillSegmentBytes";
+
+   /**
+    * The default size of spill segment files (64MB).
+    */
+   public static final int DEFAULT_SPILL_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+   /**
+    * The config key for the maximum number of bytes held in the spill log ('spillMaxBytes').
+    */
+   public static final String SPILL_MAX_BYTES_KEY = "spillMaxBytes";
+
+   /**
+    * The default maximum number of bytes held in the spill log (4GB).
+    */
+   public static final long DEFAULT_SPILL_MAX_BYTES = 4L * 1024L * 1024L * 1024L;
+
+   /**
+    * The config key for the maximum rate (reports/second) at which spilled reports are replayed ('spillReplayRate').
+    */
+   public static final String SPILL_REPLAY_RATE_KEY = "spillReplayRate";
+
+   /**
+    * The default spill replay rate ('50').
+    */
+   public static final int DEFAULT_SPILL_REPLAY_RATE = 50;
+
    /**
     * Creates a report queue from servlet config.
     * @param reporter The reporter.
     * @param retryStrategy The retry strategy.
     * @param props The properties.
+    * @param logger The logger.
     * @return The report queue.
     * @throws ServletException on configuration error.
     */
    public static ReportQueue fromProperties(final Reporter reporter,
                                             final RetryStrategy retryStrategy,
-                                            final Properties props) throws ServletException {
+                                            final Properties props,
+                                            final Logger logger) throws ServletException {
 
       final int queueCapacity = getIntProperty(QUEUE_CAPACITY_KEY, DEFAULT_QUEUE_CAPACITY, props);
       final int queueTimeoutSeconds = getIntProperty(QUEUE_TIMEOUT_KEY, DEFAULT_QUEUE_TIMEOUT_SECONDS, props);
       final int numReporterThreads = getIntProperty(REPORTER_THREADS_KEY, DEFAULT_REPORTER_THREADS, props);
       final int numRetryThreads = getIntProperty(RETRY_THREADS_KEY, DEFAULT_RETRY_THREADS, props);
       final int reporterProcessingListSize = getIntProperty(REPORTER_DRAIN_SIZE_KEY, DEFAULT_DRAIN_SIZE, props);
-      return new ReportQueue(queueCapacity, queueTimeoutSeconds, numReporterThreads, numRetryThreads,
-              reporter, retryStrategy, reporterProcessingListSize);
+
+      final String queueType = props.getProperty(QUEUE_TYPE_KEY, QUEUE_TYPE_BLOCKING).trim().toLowerCase();
+      if(!queueType.equals(QUEUE_TYPE_BLOCKING) && !queueType.equals(QUEUE_TYPE_RING) && !queueType.equals(QUEUE_TYPE_FAIR)) {
+         throw new ServletException("The '" + QUEUE_TYPE_KEY + "' must be '" +
+                 QUEUE_TYPE_BLOCKING + "', '" + QUEUE_TYPE_RING + "' or '" + QUEUE_TYPE_FAIR + "'");
+      }
+
+      final IndexQuotas indexQuotas;
+      try {
+         indexQuotas = IndexQuotas.fromProperties(props);
+      } catch(NumberFormatException nfe) {
+         throw new ServletException("Invalid index quota", nfe);
+      }
+
+      final String spillDirectory = props.getProperty(SPILL_DIRECTORY_KEY, "").trim();
+      final ReportSpillLog spillLog;
+      if(spillDirectory.length() > 0) {
+         try {
+            spillLog = ReportSpillLog.open(new File(spillDirectory),
+                    getIntProperty(SPILL_SEGMENT_BYTES_KEY, DEFAULT_SPILL_SEGMENT_BYTES, props),
+                    Long.parseLong(props.getProperty(SPILL_MAX_BYTES_KEY, Long.toString(DEFAULT_SPILL_MAX_BYTES))));
+         } catch(IOException ioe) {
+            throw new ServletException("Unable to open the spill log", ioe);
+         }
+      } else {
+         spillLog = null;
+      }
+
+      final int spillHighWaterMark = getIntProperty(SPILL_HIGH_WATER_MARK_KEY,
+              queueCapacity > 0 ? Math.max(1, queueCapacity * 3 / 4) : DEFAULT_SPILL_HIGH_WATER_MARK, props);
+      final int spillReplayRate = getIntProperty(SPILL_REPLAY_RATE_KEY, DEFAULT_SPILL_REPLAY_RATE, props);
+
+      return new ReportQueue(queueType, queueCapacity, queueTimeoutSeconds, numReporterThreads, numRetryThreads,
+              reporter, retryStrategy, reporterProcessingListSize, spillLog, spillHighWaterMark, spillReplayRate,
+              indexQuotas, logger);
    }
 
    private static int getIntProperty(final String key, final int defaultValue,
@@ -143,10 +259,62 @@ public class ReportQueue implements MetricSet {
                       final Reporter reporter,
                       final RetryStrategy retryStrategy,
                       final int reporterProcessingListSize) {
+      this(QUEUE_TYPE_BLOCKING, queueCapacity, queueTimeoutSeconds, numReporterThreads, numRetryThreads,
+              reporter, retryStrategy, reporterProcessingListSize, null, 0, 0, new IndexQuotas(0, 0, 1), null);
+   }
+
+   /**
+    * Creates a report processing queue that spills to disk and enforces per-index quotas.
+    * <p>
+    *    When the queue size reaches the high-water mark, or the queue is full, reports are appended
+    *    to the spill log. Reports waiting for retry are parked in the log.
+    *    Spilled reports are replayed, at a limited rate, when the queue size is below half the high-water mark.
+    * </p>
+    * @param queueType The queue type: {@value #QUEUE_TYPE_BLOCKING}, {@value #QUEUE_TYPE_RING} or {@value #QUEUE_TYPE_FAIR}.
+    * @param queueCapacity The capacity of the report queue. If < 1, capacity is limited only by available memory,
+    * unless the queue type is {@value #QUEUE_TYPE_RING}.
+    * @param queueTimeoutSeconds The maximum amount of time to wait for space to be available in the report queue.
+    * @param numReporterThreads The number of reporter threads.
+    * @param numRetryThreads The number of retry threads.
+    * @param reporter The reporter instance (must be thread-safe).
+    * @param retryStrategy The retry strategy.
+    * @param reporterProcessingListSize The size of the reporter thread processing list.
+    * @param spillLog The spill log. If {@code null}, reports are never spilled.
+    * @param spillHighWaterMark The queue size at which reports are spilled.
+    * @param spillReplayRate The maximum number of spilled reports replayed per second.
+    * @param indexQuotas The per-index quotas and scheduling weights.
+    * @param logger The logger. May be {@code null} if reports are never spilled.
+    */
+   public ReportQueue(final String queueType,
+                      final int queueCapacity,
+                      final int queueTimeoutSeconds,
+                      final int numReporterThreads,
+                      final int numRetryThreads,
+                      final Reporter reporter,
+                      final RetryStrategy retryStrategy,
+                      final int reporterProcessingListSize,
+                      final ReportSpillLog spillLog,
+                      final int spillHighWaterMark,
+                      final int spillReplayRate,
+                      final IndexQuotas indexQuotas,
+                      final Logger logger) {
       this.queueTimeoutSeconds = queueTimeoutSeconds;
+      this.logger = logger;
+      this.indexQuotas = indexQuotas;
+      this.spillLog = spillLog;
+      this.spillHighWaterMark = spillHighWaterMark;
       this.retryStrategy = retryStrategy;
-      this.reportQueue = queueCapacity < 1 ? new LinkedBlockingDeque<>()
-              : new ArrayBlockingQueue<>(queueCapacity);
+      if(QUEUE_TYPE_RING.equals(queueType)) {
+         this.reportQueue = new RingBufferQueue<>(queueCapacity < 1 ? DEFAULT_RING_QUEUE_CAPACITY : queueCapacity);
+         this.queueSize = null;
+      } else if(QUEUE_TYPE_FAIR.equals(queueType)) {
+         this.reportQueue = new WeightedFairQueue(queueCapacity, index -> indexQuotas.get(index).weight);
+         this.queueSize = new Counter();
+      } else {
+         this.reportQueue = queueCapacity < 1 ? new LinkedBlockingDeque<>()
+                 : new ArrayBlockingQueue<>(queueCapacity);
+         this.queueSize = new Counter();
+      }
       this.reporter = reporter;
 
       this.failedReportService = Executors.newScheduledThreadPool(numRetryThreads,
@@ -164,8 +332,13 @@ public class ReportQueue implements MetricSet {
                      QueuedReport first = reportQueue.take();
                      processingList.clear();
                      processingList.add(first);
-                     queueSize.dec();
-                     queueSize.dec(reportQueue.drainTo(processingList, reporterProcessingListSize));
+                     final int drained = reportQueue.drainTo(processingList, reporterProcessingListSize);
+                     if(queueSize != null) {
+                        queueSize.dec(drained + 1);
+                     }
+                     for(QueuedReport report : processingList) {
+                        indexQuotas.get(report.index).queueSize.dec();
+                     }
                      reporter.report(ImmutableList.copyOf(processingList), enqueueRetryFn);
                   } catch(InterruptedException ie) {
                      return;
@@ -177,6 +350,46 @@ public class ReportQueue implements MetricSet {
          this.reporterThreads.add(currThread);
       }
 
+      if(spillLog != null) {
+         final int replayThreshold = Math.max(1, spillHighWaterMark / 2);
+         final RateLimiter replayRateLimiter = RateLimiter.create(spillReplayRate);
+         this.spillReplayThread = spillReplayThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+               while(true) {
+                  try {
+                     ReportSpillLog.Record record = queueSize() < replayThreshold ?
+                             spillLog.next(System.currentTimeMillis()) : null;
+                     if(record != null) {
+                        replayRateLimiter.acquire();
+                        if(reportQueue.offer(record.report)) {
+                           queued(record.report);
+                           spillLog.consume(record);
+                           continue;
+                        }
+                     }
+                     Thread.sleep(SPILL_REPLAY_IDLE_MILLIS);
+                  } catch(InterruptedException ie) {
+                     return;
+                  } catch(IOException ioe) {
+                     logger.error("Spill replay failed", ioe);
+                     try {
+                        Thread.sleep(SPILL_REPLAY_IDLE_MILLIS);
+                     } catch(InterruptedException ie) {
+                        return;
+                     }
+                  }
+               }
+            }
+         });
+         this.metrics = ImmutableMap.<String, Metric>builder()
+                 .putAll(baseMetrics())
+                 .putAll(spillLog.getMetrics()).build();
+      } else {
+         this.spillReplayThread = null;
+         this.metrics = baseMetrics();
+      }
+
       startReporters();
    }
 
@@ -188,6 +401,15 @@ public class ReportQueue implements MetricSet {
          reporterThread.interrupt();
       }
       failedReportService.shutdown();
+      if(spillReplayThread != null) {
+         spillReplayThread.interrupt();
+         try {
+            spillReplayThread.join(SPILL_REPLAY_IDLE_MILLIS * 10);
+         } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+         spillLog.close();
+      }
    }
 
    /**
@@ -197,6 +419,9 @@ public class ReportQueue implements MetricSet {
       for(Thread reporterThread : reporterThreads) {
          reporterThread.start();
       }
+      if(spillReplayThread != null) {
+         spillReplayThread.start();
+      }
    }
 
    /**
@@ -206,17 +431,99 @@ public class ReportQueue implements MetricSet {
     * @throws InterruptedException on interrupt during offer.
     */
    public boolean enqueueReport(final QueuedReport report) throws InterruptedException {
+      return enqueueReport(report, true) == Enqueued.YES;
+   }
+
+   /**
+    * Enqueue a report without waiting for space in the queue.
+    * @param report The report.
+    * @return Was the report queued (or spilled)? Reports with no metrics are discarded and return <code>true</code>.
+    */
+   public boolean offerReport(final QueuedReport report) {
+      try {
+         return enqueueReport(report, false) != Enqueued.NO;
+      } catch(InterruptedException ie) {
+         Thread.currentThread().interrupt(); //Not reached: the offer does not wait.
+         return false;
+      }
+   }
+
+   /**
+    * The result of an attempt to enqueue a report.
+    */
+   private enum Enqueued {
+
+      /**
+       * The report was queued or spilled.
+       */
+      YES,
+
+      /**
+       * The queue was full and the report could not be spilled.
+       */
+      NO,
+
+      /**
+       * The report had no metrics and was discarded.
+       */
+      EMPTY
+   }
+
+   /**
+    * Enqueue a report.
+    * @param report The report.
+    * @param wait If <code>true</code>, wait for space to be available up to the queue timeout when reports are not spilled.
+    * @return The result.
+    * @throws InterruptedException on interrupt during offer.
+    */
+   private Enqueued enqueueReport(final QueuedReport report, final boolean wait) throws InterruptedException {
       final int metricCount = countMetrics(report.report);
       reportMetricCount.update(metricCount);
       if(metricCount > 0) {
-         boolean offered = reportQueue.offer(report, queueTimeoutSeconds, TimeUnit.SECONDS);
+         if(spillLog != null && queueSize() >= spillHighWaterMark) {
+            return spillLog.append(report, 0L) ? Enqueued.YES : Enqueued.NO;
+         }
+         boolean offered = spillLog != null || !wait ? reportQueue.offer(report) :
+                 reportQueue.offer(report, queueTimeoutSeconds, TimeUnit.SECONDS);
          if(offered) {
-            queueSize.inc();
+            queued(report);
+         } else if(spillLog != null) {
+            offered = spillLog.append(report, 0L);
          }
-         return offered;
+         return offered ? Enqueued.YES : Enqueued.NO;
       } else {
-         return false;
+         return Enqueued.EMPTY;
+      }
+   }
+
+   /**
+    * Records a report added to the queue.
+    * @param report The report.
+    */
+   private void queued(final QueuedReport report) {
+      if(queueSize != null) {
+         queueSize.inc();
       }
+      indexQuotas.get(report.index).queueSize.inc();
+   }
+
+   /**
+    * Checks the queued report limit for an index before a report is read.
+    * @param index The index.
+    * @return <code>0</code> if reports for the index may be queued,
+    * otherwise the number of seconds the client should wait before retry.
+    */
+   public long checkQuota(final String index) {
+      return indexQuotas.get(index).checkQueueSize();
+   }
+
+   /**
+    * Checks the queued report and metric rate limits for a report.
+    * @param report The report.
+    * @return <code>0</code> if the report is admitted, otherwise the number of seconds the client should wait before retry.
+    */
+   public long admit(final QueuedReport report) {
+      return indexQuotas.get(report.index).admit(countMetrics(report.report));
    }
 
    private final Function<QueuedReport, Boolean> enqueueRetryFn = this::enqueueRetry;
@@ -225,7 +532,9 @@ public class ReportQueue implements MetricSet {
 
       long backoffMillis = retryStrategy.backoffMillis(failedReport.failedCount);
 
-      if(backoffMillis > 0L) {
+      if(backoffMillis > 0L && spillLog != null) {
+         return spillLog.append(failedReport, System.currentTimeMillis() + backoffMillis);
+      } else if(backoffMillis > 0L) {
          failedReportService.schedule((Runnable)() -> reporter.retry(failedReport, this::enqueueRetry), backoffMillis, TimeUnit.MILLISECONDS);
          return true;
       } else {
@@ -255,8 +564,20 @@ public class ReportQueue implements MetricSet {
 
    /**
     * The current number of reports in the queue.
+    * <p>
+    *    Maintained only for blocking queues, where <code>size()</code> requires the queue lock.
+    *    {@code null} for the ring buffer queue.
+    * </p>
     */
-   private final Counter queueSize = new Counter();
+   private final Counter queueSize;
+
+   /**
+    * Gets the current number of reports in the queue.
+    * @return The number of reports.
+    */
+   private long queueSize() {
+      return queueSize != null ? queueSize.getCount() : reportQueue.size();
+   }
 
    /**
     * The maximum number of seconds to wait for space to be available in the report queue.
@@ -283,6 +604,45 @@ public class ReportQueue implements MetricSet {
     */
    private final RetryStrategy retryStrategy;
 
+   /**
+    * Per-index quotas, weights and metrics.
+    */
+   private final IndexQuotas indexQuotas;
+
+   /**
+    * The log to which reports are spilled. May be {@code null}.
+    */
+   private final ReportSpillLog spillLog;
+
+   /**
+    * The logger. May be {@code null} if reports are never spilled.
+    */
+   private final Logger logger;
+
+   /**
+    * The queue size at which reports are spilled.
+    */
+   private final int spillHighWaterMark;
+
+   /**
+    * The thread that replays spilled reports. May be {@code null}.
+    */
+   private final Thread spillReplayThread;
+
+   /**
+    * The time the replay thread sleeps when no reports are available for replay.
+    */
+   private static final long SPILL_REPLAY_IDLE_MILLIS = 100L;
+
+   /**
+    * The thread factory for the spill replay thread.
+    */
+   private static final ThreadFactory spillReplayThreadFactory =
+           new ThreadFactoryBuilder()
+                   .setNameFormat("essem-spill-replay-%d")
+                   .setDaemon(true)
+                   .build();
+
    /**
     * The thread factory.
     */
@@ -293,14 +653,37 @@ public class ReportQueue implements MetricSet {
                    .build();
 
    /**
-    * An immutable map of all metrics.
+    * Creates the map of metrics that are always present.
+    * @return The map of metrics.
     */
-   private final ImmutableMap<String, Metric> metrics = ImmutableMap.<String, Metric>builder()
-           .put("report-metric-count", reportMetricCount)
-           .put("report-queue-size", queueSize).build();
+   private ImmutableMap<String, Metric> baseMetrics() {
+      return ImmutableMap.<String, Metric>builder()
+              .put("report-metric-count", reportMetricCount)
+              .put("report-queue-size", queueSize != null ? queueSize : (Gauge<Integer>)reportQueue::size).build();
+   }
 
+   /**
+    * An immutable map of all metrics, excluding per-index metrics.
+    */
+   private final ImmutableMap<String, Metric> metrics;
+
+   /**
+    * Gets all metrics, excluding per-index metrics.
+    * @return The metrics.
+    * @see #registerIndexMetrics(MetricRegistry, String)
+    */
    @Override
    public Map<String, Metric> getMetrics() {
       return metrics;
    }
+
+   /**
+    * Registers per-index metrics for indexes with a configured quota and,
+    * as they are first seen, any other index.
+    * @param registry The registry.
+    * @param prefix The prefix added to metric names.
+    */
+   public void registerIndexMetrics(final MetricRegistry registry, final String prefix) {
+      indexQuotas.registerMetrics(registry, prefix);
+   }
 }
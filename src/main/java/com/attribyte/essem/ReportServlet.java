@@ -15,25 +15,46 @@
 
 package com.attribyte.essem;
 
+import com.attribyte.essem.util.BoundedInputStream;
+import com.attribyte.essem.util.TimedInputStream;
 import com.attribyte.essem.util.Util;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricSet;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedInputStream;
 import org.attribyte.essem.ReportProtos;
 import org.attribyte.essem.metrics.HDRReservoir;
 import org.attribyte.essem.metrics.Timer;
-import org.attribyte.util.EncodingUtil;
+import org.attribyte.essem.reporter.BlockCodec;
+import org.attribyte.essem.reporter.DeltaReportCodec;
+import org.attribyte.essem.reporter.EssemReporter;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import static com.attribyte.essem.util.Util.parserFactory;
 import static com.attribyte.essem.util.Util.splitPath;
 
 /**
@@ -47,16 +68,128 @@ public class ReportServlet extends HttpServlet implements MetricSet {
     * @param indexAuthorization Authorizes index access based on name.
     */
    public ReportServlet(final ReportQueue reportQueue, final IndexAuthorization indexAuthorization) {
+      this(reportQueue, indexAuthorization, DEFAULT_MAX_REPORT_BYTES);
+   }
+
+   /**
+    * Creates the servlet with a maximum report size.
+    * @param reportQueue The report queue.
+    * @param indexAuthorization Authorizes index access based on name.
+    * @param maxReportBytes The maximum size of a report, before and after decompression.
+    */
+   public ReportServlet(final ReportQueue reportQueue, final IndexAuthorization indexAuthorization,
+                        final int maxReportBytes) {
+      this(reportQueue, indexAuthorization, maxReportBytes, DEFAULT_MAX_BATCH_BYTES, false);
+   }
+
+   /**
+    * Creates the servlet with a maximum report size and, optionally, async ingest.
+    * <p>
+    *    With async ingest, the request body is read with a <code>ReadListener</code>, so no thread
+    *    waits on a slow client. Reports are enqueued without waiting for space, and
+    *    are rejected with <code>503</code> when the queue is full. The servlet must be registered
+    *    with async support.
+    * </p>
+    * @param reportQueue The report queue.
+    * @param indexAuthorization Authorizes index access based on name.
+    * @param maxReportBytes The maximum size of a report, before and after decompression.
+    * @param maxBatchBytes The maximum size of a batch of reports, before and after decompression.
+    * @param asyncIngest Should reports be received asynchronously?
+    */
+   public ReportServlet(final ReportQueue reportQueue, final IndexAuthorization indexAuthorization,
+                        final int maxReportBytes, final int maxBatchBytes, final boolean asyncIngest) {
       this.reportQueue = reportQueue;
       this.indexAuthorization = indexAuthorization;
+      this.maxReportBytes = maxReportBytes;
+      this.maxBatchBytes = maxBatchBytes;
+      this.asyncIngest = asyncIngest;
       this.acceptTimer = new Timer();
       this.acceptSize = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
       this.acceptCompressionRatio = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
-      this.metrics = ImmutableMap.<String, Metric>builder()
-              .putAll(this.reportQueue.getMetrics())
+      this.batchSize = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
+      this.encodingMetrics = ImmutableMap.of(
+              EssemReporter.DEFLATE_ENCODING, new EncodingMetrics(),
+              EssemReporter.GZIP_ENCODING, new EncodingMetrics(),
+              BlockCodec.CONTENT_ENCODING, new EncodingMetrics());
+      ImmutableMap.Builder<String, Metric> metrics = ImmutableMap.builder();
+      for(Map.Entry<String, EncodingMetrics> nv : encodingMetrics.entrySet()) {
+         metrics.put("report-decode-time-" + nv.getKey(), nv.getValue().decodeTime);
+         metrics.put("report-compression-ratio-percent-" + nv.getKey(), nv.getValue().compressionRatio);
+      }
+      this.metrics = metrics
               .put("reports-accepted", acceptTimer)
               .put("report-size-bytes", acceptSize)
-              .put("report-compression-ratio-percent", acceptCompressionRatio).build();
+              .put("report-compression-ratio-percent", acceptCompressionRatio)
+              .put("reports-rejected-queue-full", rejectedQueueFull)
+              .put("report-batch-size", batchSize)
+              .put("delta-session-conflicts", deltaSessionConflicts)
+              .put("delta-sessions", new Gauge<Long>() {
+                 public Long getValue() {
+                    return deltaDecoder.sessionCount();
+                 }
+              }).build();
+   }
+
+   /**
+    * Metrics for a content encoding.
+    */
+   private static final class EncodingMetrics {
+
+      /**
+       * The time spent decoding each report, excluding time spent reading the request.
+       */
+      final Timer decodeTime = new Timer();
+
+      /**
+       * The compression ratio of each report, as a percent.
+       */
+      final Histogram compressionRatio = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
+   }
+
+   /**
+    * A request input, decoded as required by the content encoding.
+    */
+   private static final class DecodedInput {
+
+      DecodedInput(final BoundedInputStream input) {
+         this(input, null, null, null);
+      }
+
+      DecodedInput(final BoundedInputStream input, final EncodingMetrics metrics,
+                   final TimedInputStream compressedInput, final TimedInputStream decodedInput) {
+         this.input = input;
+         this.metrics = metrics;
+         this.compressedInput = compressedInput;
+         this.decodedInput = decodedInput;
+      }
+
+      /**
+       * Gets the time spent decoding, excluding time spent reading the compressed input.
+       * @return The time in nanoseconds.
+       */
+      long decodeNanos() {
+         return Math.max(0L, decodedInput.getNanos() - compressedInput.getNanos());
+      }
+
+      /**
+       * The decoded input.
+       */
+      final BoundedInputStream input;
+
+      /**
+       * The metrics for the content encoding, or {@code null} if not encoded.
+       */
+      final EncodingMetrics metrics;
+
+      /**
+       * Times reads of the compressed input.
+       */
+      final TimedInputStream compressedInput;
+
+      /**
+       * Times reads of the decoded input.
+       */
+      final TimedInputStream decodedInput;
    }
 
    /**
@@ -64,6 +197,45 @@ public class ReportServlet extends HttpServlet implements MetricSet {
     */
    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
 
+   /**
+    * The default maximum size of a report (32MB).
+    */
+   public static final int DEFAULT_MAX_REPORT_BYTES = 32 * 1024 * 1024;
+
+   /**
+    * The default maximum size of a batch of reports (128MB).
+    */
+   public static final int DEFAULT_MAX_BATCH_BYTES = 128 * 1024 * 1024;
+
+   /**
+    * The content type for a batch of reports ('application/x-essem-report-batch').
+    * <p>
+    *    The body is a sequence of reports, each preceded by its size as a varint,
+    *    as written by <code>writeDelimitedTo</code>. It may be compressed with <code>deflate</code>
+    *    or <code>gzip</code>. Each report is admitted and queued individually, without waiting for space,
+    *    and the response lists the status of each report, in order:
+    * </p>
+    * <pre>
+    * {"accepted":2,"rejected":1,"results":[{"status":200},{"status":429,"retryAfter":2},{"status":200}]}
+    * </pre>
+    */
+   public static final String BATCH_CONTENT_TYPE = "application/x-essem-report-batch";
+
+   /**
+    * The retry after header.
+    */
+   public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+   /**
+    * The status sent when an index quota is exceeded (429).
+    */
+   public static final int SC_TOO_MANY_REQUESTS = 429;
+
+   /**
+    * The maximum time allowed to receive an async report (30s).
+    */
+   public static final long ASYNC_TIMEOUT_MILLIS = 30000L;
+
    @Override
    protected void doPut(final HttpServletRequest request,
                         final HttpServletResponse response) throws IOException {
@@ -74,6 +246,7 @@ public class ReportServlet extends HttpServlet implements MetricSet {
    protected void doPost(final HttpServletRequest request,
                          final HttpServletResponse response) throws IOException {
       final Timer.Context acceptTime = acceptTimer.time();
+      boolean async = false;
       try {
 
          Iterator<String> path = splitPath(request).iterator();
@@ -88,34 +261,481 @@ public class ReportServlet extends HttpServlet implements MetricSet {
             return;
          }
 
-         byte[] reportBytes = ByteStreams.toByteArray(request.getInputStream());
-         String encoding = request.getHeader(CONTENT_ENCODING_HEADER);
-         if(encoding != null && encoding.equals("deflate")) {
-            double inputSize = (double)reportBytes.length;
-            reportBytes = EncodingUtil.inflate(reportBytes);
-            double originalSize = (double)reportBytes.length;
-            double compressionRatio = originalSize / inputSize * 100.0;
-            acceptCompressionRatio.update((int)compressionRatio);
+         long retryAfterSeconds = reportQueue.checkQuota(index);
+         if(retryAfterSeconds > 0L) {
+            sendTooManyRequests(retryAfterSeconds, response);
+            return;
+         }
+
+         final boolean batch = isBatch(request);
+         if(request.getContentLengthLong() > (batch ? maxBatchBytes : maxReportBytes)) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+         }
+
+         if(asyncIngest && request.isAsyncSupported()) {
+            final AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+            final ServletInputStream input = request.getInputStream();
+            final AsyncReportReader reader = new AsyncReportReader(index, batch, input, asyncContext, acceptTime);
+            asyncContext.addListener(reader);
+            input.setReadListener(reader);
+            async = true;
+            return;
+         }
+
+         if(batch) {
+            final List<ReportProtos.EssemReport> reports;
+            try {
+               reports = parseBatch(request.getInputStream(), request);
+            } catch(BoundedInputStream.LimitExceededException lee) {
+               response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+               return;
+            }
+            sendBatchResponse(acceptBatch(index, reports), response);
+            return;
          }
-         acceptSize.update(reportBytes.length);
 
          final ReportProtos.EssemReport report;
-         if(Strings.nullToEmpty(request.getHeader("Content-Type")).equals(Util.JSON_CONTENT_TYPE_HEADER)) {
-            report = JSONReport.parseFrom(reportBytes);
-         } else {
-            report = ReportProtos.EssemReport.parseFrom(reportBytes);
+         try {
+            report = parseReport(request.getInputStream(), request);
+         } catch(BoundedInputStream.LimitExceededException lee) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+         } catch(DeltaReportCodec.SessionException se) {
+            deltaSessionConflicts.mark();
+            response.sendError(HttpServletResponse.SC_CONFLICT);
+            return;
+         }
+
+         QueuedReport queuedReport = new QueuedReport(index, report);
+         retryAfterSeconds = reportQueue.admit(queuedReport);
+         if(retryAfterSeconds > 0L) {
+            sendTooManyRequests(retryAfterSeconds, response);
+            return;
          }
-         reportQueue.enqueueReport(new QueuedReport(index, report));
+         reportQueue.enqueueReport(queuedReport);
       } catch(InterruptedException ie) {
          Thread.currentThread().interrupt();
       } catch(Exception e) {
          e.printStackTrace();
          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       } finally {
-         acceptTime.stop();
+         if(!async) {
+            acceptTime.stop();
+         }
       }
    }
 
+   /**
+    * Parses a report from the request body.
+    * @param body The request body.
+    * @param request The request.
+    * @return The report.
+    * @throws BoundedInputStream.LimitExceededException if the report is too large.
+    * @throws IOException on read or parse error.
+    */
+   private ReportProtos.EssemReport parseReport(final InputStream body,
+                                                final HttpServletRequest request) throws IOException {
+
+      final BoundedInputStream requestInput = new BoundedInputStream(body, maxReportBytes);
+      final DecodedInput decodedInput = decode(requestInput, request, maxReportBytes);
+      final BoundedInputStream reportInput = decodedInput.input;
+
+      final ReportProtos.EssemReport report;
+      final String contentType = Strings.nullToEmpty(request.getHeader("Content-Type"));
+      if(contentType.equals(Util.JSON_CONTENT_TYPE_HEADER)) {
+         report = JSONReport.parseFrom(reportInput);
+      } else if(contentType.startsWith(DeltaReportCodec.CONTENT_TYPE)) {
+         CodedInputStream codedInput = CodedInputStream.newInstance(reportInput);
+         codedInput.setSizeLimit(Integer.MAX_VALUE); //Limit is enforced by the bounded stream
+         report = deltaDecoder.decode(codedInput);
+      } else {
+         CodedInputStream codedInput = CodedInputStream.newInstance(reportInput);
+         codedInput.setSizeLimit(Integer.MAX_VALUE); //Limit is enforced by the bounded stream
+         report = ReportProtos.EssemReport.parseFrom(codedInput);
+      }
+
+      recordSize(requestInput, decodedInput);
+      return report;
+   }
+
+   /**
+    * Parses a batch of length-delimited reports from the request body.
+    * @param body The request body.
+    * @param request The request.
+    * @return The reports.
+    * @throws BoundedInputStream.LimitExceededException if the batch, or any report, is too large.
+    * @throws IOException on read or parse error.
+    */
+   private List<ReportProtos.EssemReport> parseBatch(final InputStream body,
+                                                     final HttpServletRequest request) throws IOException {
+
+      final BoundedInputStream requestInput = new BoundedInputStream(body, maxBatchBytes);
+      final DecodedInput decodedInput = decode(requestInput, request, maxBatchBytes);
+      final BoundedInputStream reportInput = decodedInput.input;
+
+      final List<ReportProtos.EssemReport> reports = Lists.newArrayList();
+      final CodedInputStream codedInput = CodedInputStream.newInstance(reportInput);
+      codedInput.setSizeLimit(Integer.MAX_VALUE); //Limit is enforced by the bounded stream
+      while(!codedInput.isAtEnd()) {
+         final int size = codedInput.readRawVarint32();
+         if(size > maxReportBytes) {
+            throw new BoundedInputStream.LimitExceededException(maxReportBytes);
+         }
+         final int prevLimit = codedInput.pushLimit(size);
+         reports.add(ReportProtos.EssemReport.newBuilder().mergeFrom(codedInput).build());
+         codedInput.popLimit(prevLimit);
+      }
+
+      recordSize(requestInput, decodedInput);
+      batchSize.update(reports.size());
+      return reports;
+   }
+
+   /**
+    * Admits and queues each report in a batch, without waiting for space in the queue.
+    * @param index The index.
+    * @param reports The reports.
+    * @return The result for each report.
+    */
+   private List<BatchResult> acceptBatch(final String index, final List<ReportProtos.EssemReport> reports) {
+      final List<BatchResult> results = Lists.newArrayListWithCapacity(reports.size());
+      for(ReportProtos.EssemReport report : reports) {
+         final QueuedReport queuedReport = new QueuedReport(index, report);
+         final long retryAfterSeconds = reportQueue.admit(queuedReport);
+         if(retryAfterSeconds > 0L) {
+            results.add(new BatchResult(SC_TOO_MANY_REQUESTS, retryAfterSeconds));
+         } else if(!reportQueue.offerReport(queuedReport)) {
+            rejectedQueueFull.mark();
+            results.add(BatchResult.QUEUE_FULL);
+         } else {
+            results.add(BatchResult.ACCEPTED);
+         }
+      }
+      return results;
+   }
+
+   /**
+    * Writes the results for a batch.
+    * @param results The results.
+    * @param response The response.
+    * @throws IOException on write error.
+    */
+   private void sendBatchResponse(final List<BatchResult> results,
+                                  final HttpServletResponse response) throws IOException {
+      int accepted = 0;
+      for(BatchResult result : results) {
+         if(result.status == HttpServletResponse.SC_OK) {
+            accepted++;
+         }
+      }
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType(Util.JSON_CONTENT_TYPE_HEADER);
+      try(JsonGenerator generator = parserFactory.createGenerator(response.getOutputStream())) {
+         generator.writeStartObject();
+         generator.writeNumberField("accepted", accepted);
+         generator.writeNumberField("rejected", results.size() - accepted);
+         generator.writeArrayFieldStart("results");
+         for(BatchResult result : results) {
+            generator.writeStartObject();
+            generator.writeNumberField("status", result.status);
+            if(result.retryAfterSeconds > 0L) {
+               generator.writeNumberField("retryAfter", result.retryAfterSeconds);
+            }
+            generator.writeEndObject();
+         }
+         generator.writeEndArray();
+         generator.writeEndObject();
+      }
+   }
+
+   /**
+    * The result for one report in a batch.
+    */
+   private static final class BatchResult {
+
+      static final BatchResult ACCEPTED = new BatchResult(HttpServletResponse.SC_OK, 0L);
+      static final BatchResult QUEUE_FULL = new BatchResult(HttpServletResponse.SC_SERVICE_UNAVAILABLE, 0L);
+
+      BatchResult(final int status, final long retryAfterSeconds) {
+         this.status = status;
+         this.retryAfterSeconds = retryAfterSeconds;
+      }
+
+      final int status;
+      final long retryAfterSeconds;
+   }
+
+   /**
+    * Is the request body a batch of reports?
+    * @param request The request.
+    * @return Is the body a batch?
+    */
+   private static boolean isBatch(final HttpServletRequest request) {
+      return Strings.nullToEmpty(request.getHeader("Content-Type")).startsWith(BATCH_CONTENT_TYPE);
+   }
+
+   /**
+    * Wraps the request input to decompress, if required by the content encoding.
+    * <p>
+    *    Supports <code>deflate</code>, <code>gzip</code> and <code>{@value BlockCodec#CONTENT_ENCODING}</code>.
+    * </p>
+    * @param requestInput The request input.
+    * @param request The request.
+    * @param maxBytes The maximum number of (uncompressed) bytes.
+    * @return The decoded input.
+    * @throws IOException on invalid gzip header.
+    */
+   private DecodedInput decode(final BoundedInputStream requestInput,
+                               final HttpServletRequest request,
+                               final int maxBytes) throws IOException {
+      final String encoding = request.getHeader(CONTENT_ENCODING_HEADER);
+      final EncodingMetrics metrics = encoding != null ? encodingMetrics.get(encoding) : null;
+      if(metrics == null) {
+         return new DecodedInput(requestInput);
+      }
+
+      final TimedInputStream compressedInput = new TimedInputStream(requestInput);
+      final InputStream decoder;
+      if(encoding.equals(EssemReporter.DEFLATE_ENCODING)) {
+         decoder = new InflaterInputStream(compressedInput);
+      } else if(encoding.equals(EssemReporter.GZIP_ENCODING)) {
+         decoder = new GZIPInputStream(compressedInput);
+      } else {
+         decoder = new BlockCodec.BlockInputStream(compressedInput);
+      }
+      final TimedInputStream decodedInput = new TimedInputStream(decoder);
+      return new DecodedInput(new BoundedInputStream(decodedInput, maxBytes), metrics, compressedInput, decodedInput);
+   }
+
+   /**
+    * Records the size, compression ratio and decode time of a request.
+    * @param requestInput The request input.
+    * @param decodedInput The decoded input.
+    */
+   private void recordSize(final BoundedInputStream requestInput, final DecodedInput decodedInput) {
+      final BoundedInputStream reportInput = decodedInput.input;
+      if(decodedInput.metrics != null && requestInput.getCount() > 0L) {
+         double compressionRatio = (double)reportInput.getCount() / (double)requestInput.getCount() * 100.0;
+         acceptCompressionRatio.update((int)compressionRatio);
+         decodedInput.metrics.compressionRatio.update((int)compressionRatio);
+         decodedInput.metrics.decodeTime.update(decodedInput.decodeNanos(), TimeUnit.NANOSECONDS);
+      }
+      acceptSize.update(reportInput.getCount());
+   }
+
+   /**
+    * Reads a report body without blocking, then parses and enqueues the report.
+    */
+   private final class AsyncReportReader implements ReadListener, AsyncListener {
+
+      AsyncReportReader(final String index, final boolean batch, final ServletInputStream input,
+                        final AsyncContext asyncContext, final Timer.Context acceptTime) {
+         this.index = index;
+         this.batch = batch;
+         this.maxBodyBytes = batch ? maxBatchBytes : maxReportBytes;
+         this.input = input;
+         this.asyncContext = asyncContext;
+         this.acceptTime = acceptTime;
+         final long contentLength = asyncContext.getRequest().getContentLengthLong();
+         this.body = new ReportBody(contentLength > 0L ? (int)contentLength : 8192);
+      }
+
+      @Override
+      public void onDataAvailable() throws IOException {
+         if(isCompleted()) {
+            return;
+         }
+         int read;
+         while(input.isReady() && (read = input.read(buf)) != -1) {
+            body.write(buf, 0, read);
+            if(body.size() > maxBodyBytes) {
+               complete(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+               return;
+            }
+         }
+      }
+
+      @Override
+      public void onAllDataRead() throws IOException {
+         if(isCompleted()) {
+            return;
+         }
+
+         final HttpServletRequest request = (HttpServletRequest)asyncContext.getRequest();
+         final HttpServletResponse response = (HttpServletResponse)asyncContext.getResponse();
+         try {
+            if(batch) {
+               final List<ReportProtos.EssemReport> reports =
+                       parseBatch(body.newInput(), request);
+               completeBatch(acceptBatch(index, reports));
+               return;
+            }
+
+            final ReportProtos.EssemReport report =
+                    parseReport(body.newInput(), request);
+            final QueuedReport queuedReport = new QueuedReport(index, report);
+            final long retryAfterSeconds = reportQueue.admit(queuedReport);
+            if(retryAfterSeconds > 0L) {
+               response.setHeader(RETRY_AFTER_HEADER, Long.toString(retryAfterSeconds));
+               complete(SC_TOO_MANY_REQUESTS);
+            } else if(!reportQueue.offerReport(queuedReport)) {
+               rejectedQueueFull.mark();
+               complete(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } else {
+               complete(HttpServletResponse.SC_OK);
+            }
+         } catch(BoundedInputStream.LimitExceededException lee) {
+            complete(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+         } catch(DeltaReportCodec.SessionException se) {
+            deltaSessionConflicts.mark();
+            complete(HttpServletResponse.SC_CONFLICT);
+         } catch(Exception e) {
+            log("Report failed", e);
+            complete(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+         }
+      }
+
+      /**
+       * Sends an error status, if the response is not committed, and completes the request.
+       * <p>
+       *    A read failure (<code>IOException</code>) is a bad request.
+       *    Anything else is logged and is a server error.
+       * </p>
+       * @param t The error.
+       */
+      @Override
+      public synchronized void onError(final Throwable t) {
+         if(completed) {
+            return;
+         }
+         completed = true;
+         try {
+            final int status;
+            if(t instanceof IOException) {
+               status = HttpServletResponse.SC_BAD_REQUEST;
+            } else {
+               log("Report read failed", t);
+               status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            }
+            HttpServletResponse response = (HttpServletResponse)asyncContext.getResponse();
+            if(!response.isCommitted()) {
+               response.sendError(status);
+            }
+         } catch(IOException | IllegalStateException e) {
+            //Ignore - the connection has failed
+         } finally {
+            acceptTime.stop();
+            asyncContext.complete();
+         }
+      }
+
+      @Override
+      public void onTimeout(final AsyncEvent event) throws IOException {
+         complete(HttpServletResponse.SC_REQUEST_TIMEOUT);
+      }
+
+      @Override
+      public void onError(final AsyncEvent event) {
+         onError(event.getThrowable());
+      }
+
+      @Override
+      public void onComplete(final AsyncEvent event) {
+      }
+
+      @Override
+      public void onStartAsync(final AsyncEvent event) {
+      }
+
+      private synchronized boolean isCompleted() {
+         return completed;
+      }
+
+      /**
+       * Sends the response status and completes the request.
+       * @param status The status.
+       * @throws IOException on write error.
+       */
+      private synchronized void complete(final int status) throws IOException {
+         if(completed) {
+            return;
+         }
+         completed = true;
+         try {
+            HttpServletResponse response = (HttpServletResponse)asyncContext.getResponse();
+            if(status == HttpServletResponse.SC_OK) {
+               response.setStatus(status);
+            } else {
+               response.sendError(status);
+            }
+         } finally {
+            acceptTime.stop();
+            asyncContext.complete();
+         }
+      }
+
+      /**
+       * Sends the results for a batch and completes the request.
+       * @param results The results.
+       * @throws IOException on write error.
+       */
+      private synchronized void completeBatch(final List<BatchResult> results) throws IOException {
+         if(completed) {
+            return;
+         }
+         completed = true;
+         try {
+            sendBatchResponse(results, (HttpServletResponse)asyncContext.getResponse());
+         } finally {
+            acceptTime.stop();
+            asyncContext.complete();
+         }
+      }
+
+      private final String index;
+      private final boolean batch;
+      private final int maxBodyBytes;
+      private final ServletInputStream input;
+      private final AsyncContext asyncContext;
+      private final Timer.Context acceptTime;
+      private final ReportBody body;
+      private final byte[] buf = new byte[8192];
+      private boolean completed;
+   }
+
+   /**
+    * A report body that may be read without copying.
+    */
+   private static final class ReportBody extends ByteArrayOutputStream {
+
+      ReportBody(final int size) {
+         super(size);
+      }
+
+      /**
+       * Creates an input stream that reads the internal buffer, as written so far.
+       * @return The input stream.
+       */
+      ByteArrayInputStream newInput() {
+         return new ByteArrayInputStream(buf, 0, count);
+      }
+   }
+
+   /**
+    * Sends a response indicating an index quota was exceeded.
+    * @param retryAfterSeconds The number of seconds the client should wait before retry.
+    * @param response The response.
+    * @throws IOException on write error.
+    */
+   private void sendTooManyRequests(final long retryAfterSeconds,
+                                    final HttpServletResponse response) throws IOException {
+      response.setHeader(RETRY_AFTER_HEADER, Long.toString(retryAfterSeconds));
+      response.sendError(SC_TOO_MANY_REQUESTS);
+   }
+
    @Override
    public void destroy() {
       shutdown();
@@ -128,6 +748,21 @@ public class ReportServlet extends HttpServlet implements MetricSet {
       reportQueue.shutdown();
    }
 
+   /**
+    * The maximum size of a report, before and after decompression.
+    */
+   private final int maxReportBytes;
+
+   /**
+    * The maximum size of a batch of reports, before and after decompression.
+    */
+   private final int maxBatchBytes;
+
+   /**
+    * Are reports received asynchronously?
+    */
+   private final boolean asyncIngest;
+
    /**
     * The report queue.
     */
@@ -154,12 +789,40 @@ public class ReportServlet extends HttpServlet implements MetricSet {
    private final Histogram acceptCompressionRatio;
 
    /**
-    * An immutable map of all metrics.
+    * Metrics for each supported content encoding.
+    */
+   private final ImmutableMap<String, EncodingMetrics> encodingMetrics;
+
+   /**
+    * The number of reports in each batch.
+    */
+   private final Histogram batchSize;
+
+   /**
+    * Async and batched reports rejected because the queue was full.
+    */
+   private final Meter rejectedQueueFull = new Meter();
+
+   /**
+    * Decodes delta-encoded reports, retaining state for each reporter session.
+    */
+   private final DeltaReportCodec.Decoder deltaDecoder =
+           new DeltaReportCodec.Decoder(DeltaReportCodec.DEFAULT_MAX_SESSIONS, DeltaReportCodec.DEFAULT_SESSION_IDLE_HOURS);
+
+   /**
+    * Delta-encoded reports rejected because the session state was missing or out of sequence.
+    */
+   private final Meter deltaSessionConflicts = new Meter();
+
+   /**
+    * An immutable map of servlet metrics.
     */
    private final ImmutableMap<String, Metric> metrics;
 
    @Override
    public Map<String, Metric> getMetrics() {
-      return metrics;
+      return ImmutableMap.<String, Metric>builder()
+              .putAll(reportQueue.getMetrics())
+              .putAll(metrics).build();
    }
 }
\ No newline at end of file
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.attribyte.essem.ReportProtos;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only log of reports stored in memory-mapped segment files.
+ * <p>
+ *    The log holds reports spilled from the report queue when it is above its high-water mark,
+ *    and failed reports parked until retry. Records are read oldest-first. A record is
+ *    marked as consumed in place, and a segment file is deleted once all of its records
+ *    are consumed. Unconsumed records are recovered when the log is opened.
+ * </p>
+ * <p>
+ *    Each record is: length (int), consumed flag (byte), append time (long), not-before time (long),
+ *    failed count (int), index length (short), index (UTF-8) and the report (protobuf).
+ *    A record is committed when its length is written. A zero length marks the end of the segment.
+ * </p>
+ */
+public class ReportSpillLog implements MetricSet {
+
+   /**
+    * A record read from the log.
+    */
+   public static final class Record {
+
+      private Record(final Segment segment, final int position, final int length,
+                     final QueuedReport report) {
+         this.segment = segment;
+         this.position = position;
+         this.length = length;
+         this.report = report;
+      }
+
+      private final Segment segment;
+      private final int position;
+      private final int length;
+
+      /**
+       * The report.
+       */
+      public final QueuedReport report;
+   }
+
+   /**
+    * Opens a log, recovering any unconsumed records.
+    * @param dir The directory that holds the segment files. Created if it does not exist.
+    * @param segmentBytes The size of each segment file.
+    * @param maxBytes The maximum number of unconsumed bytes held by the log.
+    * @return The log.
+    * @throws IOException on open or recovery error.
+    */
+   public static ReportSpillLog open(final File dir, final int segmentBytes, final long maxBytes) throws IOException {
+      if(!dir.exists() && !dir.mkdirs()) {
+         throw new IOException("Unable to create '" + dir.getAbsolutePath() + "'");
+      }
+      ReportSpillLog log = new ReportSpillLog(dir, segmentBytes, maxBytes);
+      log.recover();
+      return log;
+   }
+
+   private ReportSpillLog(final File dir, final int segmentBytes, final long maxBytes) {
+      this.dir = dir;
+      this.segmentBytes = segmentBytes;
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * Appends a report.
+    * @param report The report.
+    * @param notBeforeMillis The earliest time the report may be read from the log.
+    * @return Was the report appended? If {@code false} the log is full, the report is too large, or a write failed.
+    */
+   public synchronized boolean append(final QueuedReport report, final long notBeforeMillis) {
+
+      final byte[] indexBytes = report.index.getBytes(Charsets.UTF_8);
+      final byte[] reportBytes = report.report.toByteArray();
+      final int length = RECORD_HEADER_SIZE + indexBytes.length + reportBytes.length;
+      final int recordSize = 4 + length;
+
+      if(closed || indexBytes.length > Short.MAX_VALUE || recordSize + 4 > segmentBytes || pendingBytes + recordSize > maxBytes) {
+         rejected.mark();
+         return false;
+      }
+
+      try {
+         Segment tail = segments.peekLast();
+         if(tail == null || tail.writePosition + recordSize + 4 > tail.capacity) {
+            Segment newTail = new Segment(nextSequence, segmentFile(nextSequence), segmentBytes);
+            newTail.buffer();
+            nextSequence++;
+            if(tail != null && tail != segments.peekFirst()) {
+               tail.release();
+            }
+            segments.addLast(newTail);
+            tail = newTail;
+         }
+
+         final ByteBuffer buf = tail.buffer();
+         final int pos = tail.writePosition;
+         buf.put(pos + 4, (byte)0);
+         buf.putLong(pos + 5, System.currentTimeMillis());
+         buf.putLong(pos + 13, notBeforeMillis);
+         buf.putInt(pos + 21, report.failedCount);
+         buf.putShort(pos + 25, (short)indexBytes.length);
+         ByteBuffer recordBuf = buf.duplicate();
+         recordBuf.position(pos + 4 + RECORD_HEADER_SIZE);
+         recordBuf.put(indexBytes);
+         recordBuf.put(reportBytes);
+         buf.putInt(pos, length); //Commit
+         tail.writePosition = pos + recordSize;
+
+         pendingBytes += recordSize;
+         pendingRecords++;
+         spilled.mark();
+         return true;
+      } catch(IOException ioe) {
+         rejected.mark();
+         return false;
+      }
+   }
+
+   /**
+    * Gets the oldest unconsumed record, if it may be read now.
+    * <p>
+    *    The record is not consumed. Records that can't be parsed are consumed and skipped.
+    * </p>
+    * @param currentTimeMillis The current time.
+    * @return The record, or {@code null} if the log is empty or the oldest record may not yet be read.
+    * @throws IOException on read error.
+    */
+   public synchronized Record next(final long currentTimeMillis) throws IOException {
+
+      while(!closed) {
+         final Segment head = segments.peekFirst();
+         if(head == null) {
+            return null;
+         }
+
+         if(head.readPosition < head.writePosition) {
+            final ByteBuffer buf = head.buffer();
+            final int pos = head.readPosition;
+            final int length = buf.getInt(pos);
+            if(buf.getLong(pos + 13) > currentTimeMillis) {
+               return null;
+            }
+
+            final int failedCount = buf.getInt(pos + 21);
+            final byte[] indexBytes = new byte[buf.getShort(pos + 25)];
+            final byte[] reportBytes = new byte[length - RECORD_HEADER_SIZE - indexBytes.length];
+            ByteBuffer recordBuf = buf.duplicate();
+            recordBuf.position(pos + 4 + RECORD_HEADER_SIZE);
+            recordBuf.get(indexBytes);
+            recordBuf.get(reportBytes);
+
+            try {
+               QueuedReport report = new QueuedReport(new String(indexBytes, Charsets.UTF_8),
+                       ReportProtos.EssemReport.parseFrom(reportBytes));
+               if(failedCount > 0) {
+                  report = new QueuedReport(report, null, failedCount);
+               }
+               return new Record(head, pos, length, report);
+            } catch(InvalidProtocolBufferException ipe) {
+               corrupt.mark();
+               consume(new Record(head, pos, length, null));
+            }
+         } else if(head != segments.peekLast()) {
+            deleteHead();
+         } else {
+            return null;
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Consumes a record previously returned by {@code next}.
+    * @param record The record.
+    */
+   public synchronized void consume(final Record record) {
+      final Segment head = segments.peekFirst();
+      if(closed || record.segment != head || record.position != head.readPosition) {
+         return;
+      }
+
+      try {
+         head.buffer().put(record.position + 4, (byte)1);
+      } catch(IOException ioe) {
+         //Record will be recovered (again) on restart.
+      }
+
+      final int recordSize = 4 + record.length;
+      head.readPosition += recordSize;
+      pendingBytes -= recordSize;
+      pendingRecords--;
+      if(record.report != null) {
+         replayed.mark();
+      }
+
+      if(head.readPosition == head.writePosition && head != segments.peekLast()) {
+         deleteHead();
+      }
+   }
+
+   /**
+    * Gets the age of the oldest unconsumed record.
+    * @return The age in milliseconds, or {@code 0} if there are no unconsumed records.
+    */
+   public synchronized long replayLagMillis() {
+      final Segment head = segments.peekFirst();
+      if(closed || head == null || pendingRecords == 0) {
+         return 0L;
+      }
+
+      try {
+         for(Segment segment : segments) {
+            if(segment.readPosition < segment.writePosition) {
+               return Math.max(0L, System.currentTimeMillis() - segment.buffer().getLong(segment.readPosition + 5));
+            }
+         }
+      } catch(IOException ioe) {
+         //Ignore
+      }
+      return 0L;
+   }
+
+   /**
+    * Gets the number of unconsumed records.
+    * @return The number of records.
+    */
+   public synchronized long size() {
+      return pendingRecords;
+   }
+
+   /**
+    * Forces all changes to storage and releases the mapped segments.
+    */
+   public synchronized void close() {
+      if(!closed) {
+         closed = true;
+         for(Segment segment : segments) {
+            segment.release();
+         }
+      }
+   }
+
+   /**
+    * Recovers segments on open.
+    * @throws IOException on read error.
+    */
+   private void recover() throws IOException {
+
+      File[] files = dir.listFiles(new FilenameFilter() {
+         @Override
+         public boolean accept(final File dir, final String name) {
+            return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+         }
+      });
+
+      if(files == null) {
+         throw new IOException("Unable to list '" + dir.getAbsolutePath() + "'");
+      }
+
+      List<Segment> recovered = Lists.newArrayListWithCapacity(files.length);
+      for(File file : files) {
+         String seq = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+         try {
+            recovered.add(new Segment(Long.parseLong(seq), file, (int)Math.min(file.length(), Integer.MAX_VALUE)));
+         } catch(NumberFormatException nfe) {
+            //Not a segment
+         }
+      }
+
+      Collections.sort(recovered, new Comparator<Segment>() {
+         @Override
+         public int compare(final Segment o1, final Segment o2) {
+            return Long.compare(o1.sequence, o2.sequence);
+         }
+      });
+
+      for(Segment segment : recovered) {
+         nextSequence = Math.max(nextSequence, segment.sequence + 1);
+         final ByteBuffer buf = segment.buffer();
+         int pos = 0;
+         boolean foundUnconsumed = false;
+         while(pos + 4 <= segment.capacity) {
+            final int length = buf.getInt(pos);
+            if(length < RECORD_HEADER_SIZE || pos + 4 + length > segment.capacity) {
+               break;
+            }
+            if(!foundUnconsumed && buf.get(pos + 4) == 0) {
+               segment.readPosition = pos;
+               foundUnconsumed = true;
+            }
+            if(foundUnconsumed) {
+               pendingBytes += 4 + length;
+               pendingRecords++;
+            }
+            pos += 4 + length;
+         }
+
+         segment.writePosition = pos;
+         if(!foundUnconsumed) {
+            segment.readPosition = pos;
+            segment.release();
+            if(!segment.file.delete()) {
+               throw new IOException("Unable to delete '" + segment.file.getAbsolutePath() + "'");
+            }
+         } else {
+            segment.release();
+            segments.addLast(segment);
+         }
+      }
+   }
+
+   /**
+    * Removes and deletes the head segment.
+    */
+   private void deleteHead() {
+      final Segment head = segments.removeFirst();
+      head.release();
+      head.file.delete();
+   }
+
+   /**
+    * Gets the file for a segment.
+    * @param sequence The segment sequence number.
+    * @return The file.
+    */
+   private File segmentFile(final long sequence) {
+      return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+   }
+
+   /**
+    * A segment file.
+    */
+   private static final class Segment {
+
+      Segment(final long sequence, final File file, final int capacity) {
+         this.sequence = sequence;
+         this.file = file;
+         this.capacity = capacity;
+      }
+
+      /**
+       * Gets the mapped buffer, mapping the file if required.
+       * @return The buffer.
+       * @throws IOException on map error.
+       */
+      MappedByteBuffer buffer() throws IOException {
+         if(buffer == null) {
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+               buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+         }
+         return buffer;
+      }
+
+      /**
+       * Forces any changes to storage and releases the mapped buffer.
+       */
+      void release() {
+         if(buffer != null) {
+            buffer.force();
+            buffer = null;
+         }
+      }
+
+      final long sequence;
+      final File file;
+      final int capacity;
+      int writePosition;
+      int readPosition;
+      private MappedByteBuffer buffer;
+   }
+
+   /**
+    * The segment file name prefix.
+    */
+   static final String SEGMENT_PREFIX = "spill-";
+
+   /**
+    * The segment file name suffix.
+    */
+   static final String SEGMENT_SUFFIX = ".seg";
+
+   /**
+    * The size of the record header that follows the length.
+    */
+   private static final int RECORD_HEADER_SIZE = 1 + 8 + 8 + 4 + 2;
+
+   private final File dir;
+   private final int segmentBytes;
+   private final long maxBytes;
+   private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+   private long nextSequence = 0L;
+   private long pendingBytes = 0L;
+   private long pendingRecords = 0L;
+   private boolean closed = false;
+
+   private final Meter spilled = new Meter();
+   private final Meter replayed = new Meter();
+   private final Meter rejected = new Meter();
+   private final Meter corrupt = new Meter();
+
+   /**
+    * An immutable map of all metrics.
+    */
+   private final ImmutableMap<String, Metric> metrics = ImmutableMap.<String, Metric>builder()
+           .put("spilled-reports", spilled)
+           .put("replayed-reports", replayed)
+           .put("rejected-reports", rejected)
+           .put("corrupt-reports", corrupt)
+           .put("spilled-bytes", new Gauge<Long>() {
+              public Long getValue() {
+                 synchronized(ReportSpillLog.this) {
+                    return pendingBytes;
+                 }
+              }
+           })
+           .put("segments", new Gauge<Integer>() {
+              public Integer getValue() {
+                 synchronized(ReportSpillLog.this) {
+                    return segments.size();
+                 }
+              }
+           })
+           .put("replay-lag-millis", new Gauge<Long>() {
+              public Long getValue() {
+                 return replayLagMillis();
+              }
+           }).build();
+
+   @Override
+   public Map<String, Metric> getMetrics() {
+      return metrics;
+   }
+}
@@ -19,7 +19,6 @@ import com.attribyte.essem.query.GraphQuery;
 import com.attribyte.essem.query.HistogramQuery;
 import com.attribyte.essem.query.NameQuery;
 import com.attribyte.essem.query.StatsQuery;
-import org.attribyte.api.http.Response;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -64,7 +63,7 @@ public interface ResponseGenerator {
     * @throws IOException on write error.
     */
    public boolean generateGraph(GraphQuery graphQuery,
-                                Response esResponse,
+                                ESResponse esResponse,
                                 EnumSet<Option> options,
                                 RateUnit rateUnit,
                                 HttpServletResponse response) throws IOException;
@@ -79,7 +78,7 @@ public interface ResponseGenerator {
     * @throws IOException on write error.
     */
    public boolean generateNames(NameQuery nameQuery,
-                                Response esResponse,
+                                ESResponse esResponse,
                                 EnumSet<Option> options,
                                 HttpServletResponse response) throws IOException;
 
@@ -93,7 +92,7 @@ public interface ResponseGenerator {
     * @throws IOException on write error.
     */
    public boolean generateStats(StatsQuery statsQuery,
-                                Response esResponse,
+                                ESResponse esResponse,
                                 EnumSet<Option> options,
                                 HttpServletResponse response) throws IOException;
 
@@ -107,7 +106,7 @@ public interface ResponseGenerator {
     * @throws IOException on write error.
     */
    public boolean generateHistogram(HistogramQuery histogramQuery,
-                                    Response esResponse,
+                                    ESResponse esResponse,
                                     EnumSet<Option> options,
                                     HttpServletResponse response) throws IOException;
 
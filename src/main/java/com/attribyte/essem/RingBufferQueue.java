@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free, multi-producer, multi-consumer queue backed by a ring buffer.
+ * <p>
+ *    Each slot has a sequence number that tells producers and consumers
+ *    whether the slot is free or holds a published element, so offer and poll
+ *    each require a single CAS on the tail or head position.
+ * </p>
+ * <p>
+ *    Waiting consumers spin, then yield, then park. Producers unpark a parked consumer
+ *    after publishing. Parking is bounded so a missed wake-up delays a consumer by at
+ *    most {@value #MAX_PARK_NANOS} nanoseconds. Producers waiting for space spin, yield, then park briefly.
+ * </p>
+ * <p>
+ *    Iterators are weakly consistent. They return the elements present when the iterator
+ *    is created, in order, skipping any consumed before they are reached. Iterators do not support removal.
+ * </p>
+ * @param <E> The element type.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+   /**
+    * Creates a queue.
+    * @param capacity The minimum capacity. Rounded up to the next power of two.
+    */
+   public RingBufferQueue(final int capacity) {
+      if(capacity < 1) {
+         throw new IllegalArgumentException("The capacity must be > 0");
+      }
+      this.capacity = capacity < 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+      this.mask = this.capacity - 1;
+      this.buffer = new AtomicReferenceArray<>(this.capacity);
+      this.sequences = new AtomicLongArray(this.capacity);
+      for(int i = 0; i < this.capacity; i++) {
+         sequences.set(i, i);
+      }
+   }
+
+   @Override
+   public boolean offer(final E e) {
+      if(e == null) {
+         throw new NullPointerException();
+      }
+
+      long pos = tail.get();
+      while(true) {
+         final int index = (int)pos & mask;
+         final long diff = sequences.get(index) - pos;
+         if(diff == 0L) {
+            if(tail.compareAndSet(pos, pos + 1)) {
+               buffer.lazySet(index, e);
+               sequences.lazySet(index, pos + 1);
+               signalConsumer();
+               return true;
+            }
+            pos = tail.get();
+         } else if(diff < 0L) {
+            return false; //Full
+         } else {
+            pos = tail.get();
+         }
+      }
+   }
+
+   @Override
+   public E poll() {
+      long pos = head.get();
+      while(true) {
+         final int index = (int)pos & mask;
+         final long diff = sequences.get(index) - (pos + 1);
+         if(diff == 0L) {
+            if(head.compareAndSet(pos, pos + 1)) {
+               final E e = buffer.get(index);
+               buffer.lazySet(index, null);
+               sequences.lazySet(index, pos + capacity);
+               return e;
+            }
+            pos = head.get();
+         } else if(diff < 0L) {
+            return null; //Empty
+         } else {
+            pos = head.get();
+         }
+      }
+   }
+
+   @Override
+   public E peek() {
+      final long pos = head.get();
+      final int index = (int)pos & mask;
+      return sequences.get(index) == pos + 1 ? buffer.get(index) : null;
+   }
+
+   @Override
+   public void put(final E e) throws InterruptedException {
+      int idleCount = 0;
+      while(!offer(e)) {
+         if(Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         idleCount = idleProducer(idleCount);
+      }
+   }
+
+   @Override
+   public boolean offer(final E e, final long timeout, final TimeUnit unit) throws InterruptedException {
+      final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+      int idleCount = 0;
+      while(!offer(e)) {
+         if(Thread.interrupted()) {
+            throw new InterruptedException();
+         } else if(System.nanoTime() - deadlineNanos >= 0L) {
+            return false;
+         }
+         idleCount = idleProducer(idleCount);
+      }
+      return true;
+   }
+
+   @Override
+   public E take() throws InterruptedException {
+      int idleCount = 0;
+      while(true) {
+         E e = poll();
+         if(e != null) {
+            return e;
+         } else if(Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         idleCount = idleConsumer(idleCount, MAX_PARK_NANOS);
+      }
+   }
+
+   @Override
+   public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+      final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+      int idleCount = 0;
+      while(true) {
+         E e = poll();
+         if(e != null) {
+            return e;
+         } else if(Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         final long remainingNanos = deadlineNanos - System.nanoTime();
+         if(remainingNanos <= 0L) {
+            return null;
+         }
+         idleCount = idleConsumer(idleCount, Math.min(remainingNanos, MAX_PARK_NANOS));
+      }
+   }
+
+   @Override
+   public int drainTo(final Collection<? super E> c) {
+      return drainTo(c, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public int drainTo(final Collection<? super E> c, final int maxElements) {
+      if(c == this) {
+         throw new IllegalArgumentException();
+      }
+      int count = 0;
+      E e;
+      while(count < maxElements && (e = poll()) != null) {
+         c.add(e);
+         count++;
+      }
+      return count;
+   }
+
+   @Override
+   public int remainingCapacity() {
+      return capacity - size();
+   }
+
+   @Override
+   public int size() {
+      while(true) {
+         final long currHead = head.get();
+         final long currTail = tail.get();
+         if(currHead == head.get()) { //Consistent snapshot
+            final long size = currTail - currHead;
+            return size < 0L ? 0 : size > capacity ? capacity : (int)size;
+         }
+      }
+   }
+
+   @Override
+   public boolean isEmpty() {
+      return peek() == null;
+   }
+
+   /**
+    * Creates an iterator over a snapshot of the elements in the queue.
+    * <p>
+    *    An element is included only if it was still in its slot after it was read, so elements
+    *    consumed (and slots reused) while the snapshot is taken are skipped.
+    * </p>
+    * @return The iterator. Removal is not supported.
+    */
+   @Override
+   public Iterator<E> iterator() {
+      final long currHead = head.get();
+      final long currTail = Math.min(tail.get(), currHead + capacity);
+      final List<E> snapshot = new ArrayList<>((int)Math.max(currTail - currHead, 0L));
+      for(long pos = currHead; pos < currTail; pos++) {
+         final int index = (int)pos & mask;
+         if(sequences.get(index) == pos + 1) {
+            final E e = buffer.get(index);
+            if(e != null && sequences.get(index) == pos + 1) {
+               snapshot.add(e);
+            }
+         }
+      }
+      return Collections.unmodifiableList(snapshot).iterator();
+   }
+
+   /**
+    * Gets the capacity of the queue.
+    * @return The capacity.
+    */
+   public int capacity() {
+      return capacity;
+   }
+
+   /**
+    * Unparks a waiting consumer, if any.
+    */
+   private void signalConsumer() {
+      if(!parkedConsumers.isEmpty()) {
+         final Thread consumer = parkedConsumers.poll();
+         if(consumer != null) {
+            LockSupport.unpark(consumer);
+         }
+      }
+   }
+
+   /**
+    * Spins, yields, then parks a consumer that found the queue empty.
+    * @param idleCount The number of times the consumer has been idle.
+    * @param maxParkNanos The maximum time to park.
+    * @return The new idle count.
+    */
+   private int idleConsumer(final int idleCount, final long maxParkNanos) {
+      if(idleCount < SPIN_TRIES) {
+         return idleCount + 1;
+      } else if(idleCount < SPIN_TRIES + YIELD_TRIES) {
+         Thread.yield();
+         return idleCount + 1;
+      } else {
+         final Thread currentThread = Thread.currentThread();
+         parkedConsumers.offer(currentThread);
+         if(isEmpty()) {
+            LockSupport.parkNanos(this, maxParkNanos);
+         }
+         parkedConsumers.remove(currentThread);
+         return idleCount;
+      }
+   }
+
+   /**
+    * Spins, yields, then parks (briefly) a producer that found the queue full.
+    * @param idleCount The number of times the producer has been idle.
+    * @return The new idle count.
+    */
+   private int idleProducer(final int idleCount) {
+      if(idleCount < SPIN_TRIES) {
+         return idleCount + 1;
+      } else if(idleCount < SPIN_TRIES + YIELD_TRIES) {
+         Thread.yield();
+         return idleCount + 1;
+      } else {
+         LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+         return idleCount;
+      }
+   }
+
+   /**
+    * The number of busy-spins before yielding.
+    */
+   private static final int SPIN_TRIES = 100;
+
+   /**
+    * The number of yields before parking.
+    */
+   private static final int YIELD_TRIES = 50;
+
+   /**
+    * The maximum time a consumer is parked before the queue is checked again.
+    */
+   static final long MAX_PARK_NANOS = 10_000_000L;
+
+   /**
+    * The time a producer is parked when waiting for space.
+    */
+   private static final long PRODUCER_PARK_NANOS = 100_000L;
+
+   /**
+    * The capacity (a power of two).
+    */
+   private final int capacity;
+
+   /**
+    * The mask applied to positions to select a slot.
+    */
+   private final int mask;
+
+   /**
+    * The slots.
+    */
+   private final AtomicReferenceArray<E> buffer;
+
+   /**
+    * The sequence for each slot.
+    * <p>
+    *    A slot at position <code>p</code> is free when its sequence is <code>p</code>,
+    *    and holds a published element when its sequence is <code>p + 1</code>.
+    * </p>
+    */
+   private final AtomicLongArray sequences;
+
+   /**
+    * The position of the next element to be consumed.
+    */
+   private final AtomicLong head = new PaddedAtomicLong();
+
+   /**
+    * The position of the next element to be produced.
+    */
+   private final AtomicLong tail = new PaddedAtomicLong();
+
+   /**
+    * Consumers parked waiting for elements.
+    */
+   private final ConcurrentLinkedQueue<Thread> parkedConsumers = new ConcurrentLinkedQueue<>();
+
+   /**
+    * Pads an atomic long to keep the head and tail on separate cache lines.
+    */
+   @SuppressWarnings("unused")
+   private static final class PaddedAtomicLong extends AtomicLong {
+      long p1, p2, p3, p4, p5, p6, p7;
+   }
+}
@@ -36,6 +36,7 @@ import org.attribyte.api.http.RequestOptions;
 import org.attribyte.api.http.Response;
 import org.attribyte.api.http.impl.jetty.JettyClient;
 import org.attribyte.util.InitUtil;
+import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
@@ -47,6 +48,7 @@ import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -264,9 +266,25 @@ public class Server {
 
          testES(esEndpoint, httpClient); //Throws exception on failure...
 
+         //Searches stream responses, so they are not limited by 'httpClient.maxResponseBytes'.
+         HttpClient searchHttpClient = new HttpClient(new SslContextFactory());
+         searchHttpClient.setFollowRedirects(false);
+         searchHttpClient.setMaxConnectionsPerDestination(Integer.parseInt(props.getProperty("searchClient.maxConnectionsPerDestination", "64")));
+         searchHttpClient.start();
+         server.addBean(searchHttpClient, true); //Managed - stopped with the server.
+         final ESSearchClient searchClient;
+         if(props.getProperty("searchClient.coalesce", "true").equalsIgnoreCase("true")) {
+            CoalescingSearchClient coalescingSearchClient = new CoalescingSearchClient(esEndpoint, searchHttpClient, timeoutSeconds);
+            internalRegistry.register("search-client", coalescingSearchClient);
+            searchClient = coalescingSearchClient;
+         } else {
+            searchClient = new ESSearchClient(esEndpoint, searchHttpClient, timeoutSeconds);
+         }
+
          File esSchemaFile = getSystemFile("esSchemaFile", props, true); //Must exist
          ByteString esSchema = ByteString.copyFrom(Files.toByteArray(esSchemaFile));
-         Reporter reporter = new ESReporter(esEndpoint, esSchema, httpClient, logger);
+         Properties reporterProps = new InitUtil("reporter.", props, false).getProperties();
+         Reporter reporter = new ESReporter(esEndpoint, esSchema, httpClient, logger, reporterProps);
          reporter.createStore(ESSEM_INDEX_NAME);
 
          File esUserSchemaFile = getSystemFile("esUserSchemaFile", props, true); //Must exist
@@ -276,7 +294,7 @@ public class Server {
          RetryStrategy retryStrategy = new RetryStrategy.ExponentialBackoff();
          retryStrategy.init(new InitUtil("retry.", props, false).getProperties());
 
-         final ReportQueue reportQueue = ReportQueue.fromProperties(reporter, retryStrategy, new InitUtil("reporter.", props, false).getProperties());
+         final ReportQueue reportQueue = ReportQueue.fromProperties(reporter, retryStrategy, reporterProps, logger);
 
          Properties authProps = new InitUtil("auth.", props, false).getProperties();
          final IndexAuthorization authorization = buildAuth(authProps, reporter);
@@ -320,20 +338,51 @@ public class Server {
             indexKeeper = null;
          }
 
-         ReportServlet reportServlet = new ReportServlet(reportQueue, reportAuthorization);
-
-         rootContext.addServlet(new ServletHolder(reportServlet), "/report/*");
+         int maxReportBytes = Integer.parseInt(props.getProperty("maxReportBytes",
+                 Integer.toString(ReportServlet.DEFAULT_MAX_REPORT_BYTES)));
+         boolean asyncReports = props.getProperty("asyncReports", "false").equalsIgnoreCase("true");
+         int maxReportBatchBytes = Integer.parseInt(props.getProperty("maxReportBatchBytes",
+                 Integer.toString(ReportServlet.DEFAULT_MAX_BATCH_BYTES)));
+         ReportServlet reportServlet = new ReportServlet(reportQueue, reportAuthorization,
+                 maxReportBytes, maxReportBatchBytes, asyncReports);
+
+         ServletHolder reportServletHolder = new ServletHolder(reportServlet);
+         reportServletHolder.setAsyncSupported(asyncReports);
+         rootContext.addServlet(reportServletHolder, "/report/*");
+
+         int maxConcurrentQueries = Integer.parseInt(props.getProperty("maxConcurrentQueries",
+                 Integer.toString(APIServlet.DEFAULT_MAX_CONCURRENT_QUERIES)));
+
+         long graphCacheMaxBytes = Long.parseLong(props.getProperty("graphCache.maxSizeMB",
+                 Long.toString(GraphCache.DEFAULT_MAX_SIZE_BYTES / 1024L / 1024L))) * 1024L * 1024L;
+         final GraphCache graphCache;
+         if(graphCacheMaxBytes > 0L) {
+            long graphCacheSettleMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty("graphCache.settleSeconds",
+                    Long.toString(TimeUnit.MILLISECONDS.toSeconds(GraphCache.DEFAULT_SETTLE_MILLIS)))));
+            long graphCacheMaxAgeMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty("graphCache.maxAgeSeconds",
+                    Long.toString(TimeUnit.MILLISECONDS.toSeconds(GraphCache.DEFAULT_MAX_AGE_MILLIS)))));
+            graphCache = new GraphCache(graphCacheMaxBytes, graphCacheSettleMillis, graphCacheMaxAgeMillis);
+            internalRegistry.register("graph-cache", graphCache);
+         } else {
+            graphCache = null;
+         }
 
-         APIServlet apiServlet = new APIServlet(esEndpoint, httpClient, requestOptions, authorization, new DefaultResponseGenerator());
-         rootContext.addServlet(new ServletHolder(apiServlet), "/api/*");
+         APIServlet apiServlet = new APIServlet(searchClient, authorization, new DefaultResponseGenerator(), maxConcurrentQueries, graphCache);
+         ServletHolder apiServletHolder = new ServletHolder(apiServlet);
+         apiServletHolder.setAsyncSupported(true);
+         rootContext.addServlet(apiServletHolder, "/api/*");
          internalRegistry.register("api", apiServlet);
 
-         APIServlet mgraphServlet = new APIServlet(esEndpoint, httpClient, requestOptions, authorization, new MGraphResponseGenerator());
-         rootContext.addServlet(new ServletHolder(mgraphServlet), "/mgraph/*");
+         APIServlet mgraphServlet = new APIServlet(searchClient, authorization, new MGraphResponseGenerator(), maxConcurrentQueries, graphCache);
+         ServletHolder mgraphServletHolder = new ServletHolder(mgraphServlet);
+         mgraphServletHolder.setAsyncSupported(true);
+         rootContext.addServlet(mgraphServletHolder, "/mgraph/*");
          internalRegistry.register("mgraph", mgraphServlet);
 
-         APIServlet passthroughServlet = new APIServlet(esEndpoint, httpClient, requestOptions, authorization, new PassthroughResponseGenerator());
-         rootContext.addServlet(new ServletHolder(passthroughServlet), "/pass/*");
+         APIServlet passthroughServlet = new APIServlet(searchClient, authorization, new PassthroughResponseGenerator(), maxConcurrentQueries, null);
+         ServletHolder passthroughServletHolder = new ServletHolder(passthroughServlet);
+         passthroughServletHolder.setAsyncSupported(true);
+         rootContext.addServlet(passthroughServletHolder, "/pass/*");
          internalRegistry.register("passthrough", passthroughServlet);
 
          if(props.getProperty("console.enabled", "false").equalsIgnoreCase("true")) {
@@ -368,7 +417,7 @@ public class Server {
             ConsoleServlet consoleServlet = new ConsoleServlet(esEndpoint, userStore, rootContext, authorization,
                     templateDirFile.getAbsolutePath(), dashboardTemplateDirFile.getAbsolutePath(),
                     assetDirFile.getAbsolutePath(), allowedAssetPaths, allowedIndexes,
-                    consoleZones, httpClient, requestOptions, logger, consoleDebugMode);
+                    consoleZones, httpClient, requestOptions, searchClient, logger, consoleDebugMode);
             rootContext.addServlet(new ServletHolder(consoleServlet), "/console/*");
             internalRegistry.register("console-application-cache", consoleServlet.applicationCache);
 
@@ -381,6 +430,7 @@ public class Server {
          //Schedule internal metrics reports...
 
          internalRegistry.register("report-servlet", reportServlet);
+         reportQueue.registerIndexMetrics(internalRegistry, "report-servlet");
          scheduler.scheduleAtFixedRate(new Runnable() {
             final EssemReporter reporter = EssemReporter.newBuilder(null, internalRegistry)
                     .forApplication("essem-server")
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking report queue with a sub-queue for each index, drained in weighted round-robin order.
+ * <p>
+ *    Each index with queued reports takes a turn. During its turn, an index
+ *    may supply up to <em>weight</em> reports before the next index is selected.
+ *    A single index can't starve others, no matter how many reports it has queued.
+ * </p>
+ * <p>
+ *    Iterators are weakly consistent. They return the reports queued when the iterator is created,
+ *    grouped by index, and do not support removal.
+ * </p>
+ */
+public class WeightedFairQueue extends AbstractQueue<QueuedReport> implements BlockingQueue<QueuedReport> {
+
+   /**
+    * Creates the queue.
+    * @param capacity The capacity across all indexes. If < 1, capacity is limited only by available memory.
+    * @param weights Returns the weight for an index.
+    */
+   public WeightedFairQueue(final int capacity, final Function<String, Integer> weights) {
+      this.capacity = capacity < 1 ? Integer.MAX_VALUE : capacity;
+      this.weights = weights;
+   }
+
+   @Override
+   public boolean offer(final QueuedReport report) {
+      if(report == null) {
+         throw new NullPointerException();
+      }
+      lock.lock();
+      try {
+         if(count == capacity) {
+            return false;
+         }
+         enqueue(report);
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public void put(final QueuedReport report) throws InterruptedException {
+      if(report == null) {
+         throw new NullPointerException();
+      }
+      lock.lockInterruptibly();
+      try {
+         while(count == capacity) {
+            notFull.await();
+         }
+         enqueue(report);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public boolean offer(final QueuedReport report, final long timeout, final TimeUnit unit) throws InterruptedException {
+      if(report == null) {
+         throw new NullPointerException();
+      }
+      long nanos = unit.toNanos(timeout);
+      lock.lockInterruptibly();
+      try {
+         while(count == capacity) {
+            if(nanos <= 0L) {
+               return false;
+            }
+            nanos = notFull.awaitNanos(nanos);
+         }
+         enqueue(report);
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public QueuedReport poll() {
+      lock.lock();
+      try {
+         return count > 0 ? dequeue() : null;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public QueuedReport take() throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+         while(count == 0) {
+            notEmpty.await();
+         }
+         return dequeue();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public QueuedReport poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+      long nanos = unit.toNanos(timeout);
+      lock.lockInterruptibly();
+      try {
+         while(count == 0) {
+            if(nanos <= 0L) {
+               return null;
+            }
+            nanos = notEmpty.awaitNanos(nanos);
+         }
+         return dequeue();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public QueuedReport peek() {
+      lock.lock();
+      try {
+         return count > 0 ? active.peekFirst().reports.peekFirst() : null;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int drainTo(final Collection<? super QueuedReport> c) {
+      return drainTo(c, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public int drainTo(final Collection<? super QueuedReport> c, final int maxElements) {
+      if(c == this) {
+         throw new IllegalArgumentException();
+      }
+      lock.lock();
+      try {
+         int drained = 0;
+         while(drained < maxElements && count > 0) {
+            c.add(dequeue());
+            drained++;
+         }
+         return drained;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int size() {
+      lock.lock();
+      try {
+         return count;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int remainingCapacity() {
+      lock.lock();
+      try {
+         return capacity - count;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Creates an iterator over a snapshot of the queued reports.
+    * @return The iterator. Removal is not supported.
+    */
+   @Override
+   public Iterator<QueuedReport> iterator() {
+      lock.lock();
+      try {
+         final List<QueuedReport> snapshot = Lists.newArrayListWithCapacity(count);
+         for(IndexQueue indexQueue : active) {
+            snapshot.addAll(indexQueue.reports);
+         }
+         return Collections.unmodifiableList(snapshot).iterator();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Adds a report to its index sub-queue. Must hold the lock.
+    * @param report The report.
+    */
+   private void enqueue(final QueuedReport report) {
+      IndexQueue indexQueue = indexQueues.get(report.index);
+      if(indexQueue == null) {
+         indexQueue = new IndexQueue();
+         indexQueues.put(report.index, indexQueue);
+      }
+      if(indexQueue.reports.isEmpty()) {
+         Integer weight = weights.apply(report.index);
+         indexQueue.turnsRemaining = weight != null && weight > 0 ? weight : 1;
+         active.addLast(indexQueue);
+      }
+      indexQueue.reports.addLast(report);
+      count++;
+      notEmpty.signal();
+   }
+
+   /**
+    * Removes the next report, selected by weighted round-robin. Must hold the lock.
+    * @return The report.
+    */
+   private QueuedReport dequeue() {
+      final IndexQueue indexQueue = active.peekFirst();
+      final QueuedReport report = indexQueue.reports.pollFirst();
+      if(indexQueue.reports.isEmpty()) {
+         active.pollFirst();
+         indexQueues.remove(report.index);
+      } else if(--indexQueue.turnsRemaining == 0) {
+         active.pollFirst();
+         Integer weight = weights.apply(report.index);
+         indexQueue.turnsRemaining = weight != null && weight > 0 ? weight : 1;
+         active.addLast(indexQueue);
+      }
+      count--;
+      notFull.signal();
+      return report;
+   }
+
+   /**
+    * Reports queued for a single index.
+    */
+   private static final class IndexQueue {
+
+      /**
+       * The queued reports.
+       */
+      final ArrayDeque<QueuedReport> reports = new ArrayDeque<>();
+
+      /**
+       * The number of reports that may be dequeued before the next index gets a turn.
+       */
+      int turnsRemaining;
+   }
+
+   /**
+    * The capacity across all indexes.
+    */
+   private final int capacity;
+
+   /**
+    * Returns the weight for an index.
+    */
+   private final Function<String, Integer> weights;
+
+   /**
+    * The sub-queue for each index with queued reports.
+    * <p>
+    *    A sub-queue is removed when it becomes empty.
+    * </p>
+    */
+   private final Map<String, IndexQueue> indexQueues = Maps.newHashMap();
+
+   /**
+    * Sub-queues with reports, in round-robin order.
+    */
+   private final ArrayDeque<IndexQueue> active = new ArrayDeque<>();
+
+   /**
+    * The total number of queued reports.
+    */
+   private int count;
+
+   /**
+    * The lock guarding all state.
+    */
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Signaled when a report is added.
+    */
+   private final Condition notEmpty = lock.newCondition();
+
+   /**
+    * Signaled when a report is removed.
+    */
+   private final Condition notFull = lock.newCondition();
+}
@@ -118,6 +118,15 @@ public class BooleanQuery extends Query {
 
    }
 
+   /**
+    * Creates a copy of this query with an added term that must match.
+    * @param query The query that must match.
+    * @return The new query.
+    */
+   public BooleanQuery withMustMatch(final Query query) {
+      return new BooleanQuery(ImmutableList.<Query>builder().addAll(mustTerms).add(query).build(), mustNotTerms, shouldTerms);
+   }
+
    boolean isEmpty() {
       return mustTerms.size() == 0 && mustNotTerms.size() == 0 && shouldTerms.size() == 0;
    }
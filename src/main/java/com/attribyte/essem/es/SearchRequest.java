@@ -308,6 +308,16 @@ public class SearchRequest extends QueryComponent {
       generator.writeEndArray();
    }
 
+   /**
+    * Creates a copy of this request with a different query.
+    * @param query The query.
+    * @return The new request.
+    */
+   public SearchRequest withQuery(final QueryComponent query) {
+      return new SearchRequest(start, limit, disablePaging, sort, timeoutSeconds, explain, sortField, isAscending, fields,
+              retrieveSource, query, aggregations);
+   }
+
    private void generateFields(final JsonGenerator generator) throws IOException {
       generator.writeArrayFieldStart("fields");
       if(fields.contains("*")) {
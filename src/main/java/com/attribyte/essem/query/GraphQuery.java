@@ -60,6 +60,7 @@ public class GraphQuery extends QueryBase {
       matchAnyOf(request, "name", Fields.NAME_FIELD, queryBuilder);
       matchAnyOf(request, "metric", Fields.TYPE_FIELD, queryBuilder);
       parseMinMax(request, queryBuilder);
+      this.filterQuery = queryBuilder.build();
 
       IntRangeQuery rangeQuery = parseRange(request, defaultRange);
       queryBuilder.mustMatch(rangeQuery);
@@ -89,6 +90,7 @@ public class GraphQuery extends QueryBase {
          this.searchRequest = null;
          this.downsampleFunction = null;
          this.downsampleInterval = null;
+         this.bucketOrder = null;
       } else if(aggregateOn.size() == 0) {
          requestBuilder.addField(Fields.NAME_FIELD);
          requestBuilder.addField(Fields.APPLICATION_FIELD);
@@ -104,6 +106,7 @@ public class GraphQuery extends QueryBase {
          this.searchRequest = requestBuilder.build();
          this.downsampleInterval = null;
          this.downsampleFunction = null;
+         this.bucketOrder = null;
          this.error = null;
       } else {
          DateHistogramAggregation.Interval aggregationInterval = parseResolution(request);
@@ -157,12 +160,14 @@ public class GraphQuery extends QueryBase {
                requestBuilder.setLimit(0);
 
                this.isAggregation = true;
+               this.bucketOrder = order;
                this.error = null;
                this.searchRequest = requestBuilder.build();
 
             } else {
                this.isAggregation = false;
                this.downsampleFunction = null;
+               this.bucketOrder = null;
                this.searchRequest = null;
                this.error = "At least one numeric field must be specified";
             }
@@ -172,11 +177,25 @@ public class GraphQuery extends QueryBase {
             this.searchRequest = null;
             this.downsampleInterval = null;
             this.downsampleFunction = null;
+            this.bucketOrder = null;
             this.isAggregation = false;
          }
       }
    }
 
+   /**
+    * Creates the search request for a different time range.
+    * @param startTimestamp The range start timestamp (inclusive).
+    * @param endTimestamp The range end timestamp (inclusive).
+    * @return The search request, or {@code null} if the query is invalid.
+    */
+   public SearchRequest searchRequest(final long startTimestamp, final long endTimestamp) {
+      if(searchRequest == null) {
+         return null;
+      }
+      return searchRequest.withQuery(filterQuery.withMustMatch(new IntRangeQuery(Fields.TIMESTAMP_FIELD, startTimestamp, endTimestamp)));
+   }
+
    /**
     * The downsample resolution parameter ('downsampleTo').
     */
@@ -258,6 +277,11 @@ public class GraphQuery extends QueryBase {
     */
    public final String downsampleFunction;
 
+   /**
+    * The order of downsampled buckets, if any.
+    */
+   public final BucketAggregation.Order bucketOrder;
+
    /**
     * The graph range.
     */
@@ -273,6 +297,11 @@ public class GraphQuery extends QueryBase {
     */
    public final boolean isAggregation;
 
+   /**
+    * The query, without the time range.
+    */
+   private final BooleanQuery filterQuery;
+
    /**
     * Parses the resolution parameter to the appropriate histogram interval.
     * @param request The request.
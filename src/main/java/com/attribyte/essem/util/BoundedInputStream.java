@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that counts the bytes read and fails if more than a maximum are read.
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+   /**
+    * Thrown when more than the maximum number of bytes are read.
+    */
+   public static class LimitExceededException extends IOException {
+
+      /**
+       * Creates the exception.
+       * @param maxBytes The maximum number of bytes.
+       */
+      public LimitExceededException(final long maxBytes) {
+         super("The input exceeds the maximum of " + maxBytes + " bytes");
+         this.maxBytes = maxBytes;
+      }
+
+      /**
+       * The maximum number of bytes.
+       */
+      public final long maxBytes;
+   }
+
+   /**
+    * Creates the stream.
+    * @param in The wrapped stream.
+    * @param maxBytes The maximum number of bytes that may be read.
+    */
+   public BoundedInputStream(final InputStream in, final long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+   }
+
+   @Override
+   public int read() throws IOException {
+      int b = in.read();
+      if(b != -1) {
+         count(1);
+      }
+      return b;
+   }
+
+   @Override
+   public int read(final byte[] b, final int off, final int len) throws IOException {
+      int read = in.read(b, off, len);
+      if(read > 0) {
+         count(read);
+      }
+      return read;
+   }
+
+   @Override
+   public long skip(final long n) throws IOException {
+      long skipped = in.skip(n);
+      count(skipped);
+      return skipped;
+   }
+
+   @Override
+   public boolean markSupported() {
+      return false;
+   }
+
+   /**
+    * Gets the number of bytes read.
+    * @return The number of bytes.
+    */
+   public long getCount() {
+      return count;
+   }
+
+   private void count(final long read) throws LimitExceededException {
+      count += read;
+      if(count > maxBytes) {
+         throw new LimitExceededException(maxBytes);
+      }
+   }
+
+   /**
+    * The maximum number of bytes.
+    */
+   private final long maxBytes;
+
+   /**
+    * The number of bytes read.
+    */
+   private long count;
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that records the time spent reading from the wrapped stream.
+ */
+public class TimedInputStream extends FilterInputStream {
+
+   /**
+    * Creates the stream.
+    * @param in The wrapped stream.
+    */
+   public TimedInputStream(final InputStream in) {
+      super(in);
+   }
+
+   @Override
+   public int read() throws IOException {
+      final long startNanos = System.nanoTime();
+      try {
+         return in.read();
+      } finally {
+         nanos += System.nanoTime() - startNanos;
+      }
+   }
+
+   @Override
+   public int read(final byte[] b, final int off, final int len) throws IOException {
+      final long startNanos = System.nanoTime();
+      try {
+         return in.read(b, off, len);
+      } finally {
+         nanos += System.nanoTime() - startNanos;
+      }
+   }
+
+   @Override
+   public long skip(final long n) throws IOException {
+      final long startNanos = System.nanoTime();
+      try {
+         return in.skip(n);
+      } finally {
+         nanos += System.nanoTime() - startNanos;
+      }
+   }
+
+   /**
+    * Gets the time spent reading.
+    * @return The time in nanoseconds.
+    */
+   public long getNanos() {
+      return nanos;
+   }
+
+   /**
+    * The time spent reading.
+    */
+   private long nanos;
+}
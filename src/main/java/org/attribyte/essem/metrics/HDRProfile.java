@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.metrics;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.AtomicHistogram;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.IntCountsHistogram;
+import org.HdrHistogram.ShortCountsHistogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selects the range, precision and memory use of the histograms held by a {@code HDRReservoir}.
+ * <p>
+ *    The default profile tracks any value and resizes histograms as required.
+ *    A bounded range records to histograms with a single counts array, and the lowest discernible value
+ *    removes buckets for values too small to matter. Smaller counts shrink the running total histogram.
+ *    Dropping the total removes it (and its copies) entirely.
+ * </p>
+ */
+public final class HDRProfile {
+
+   /**
+    * The size of the counts kept by the total histogram.
+    */
+   public enum Counts {
+
+      /**
+       * 64-bit counts.
+       */
+      LONG(Long.MAX_VALUE),
+
+      /**
+       * 32-bit counts.
+       */
+      INT(Integer.MAX_VALUE),
+
+      /**
+       * 16-bit counts. Suitable only for metrics that record few values.
+       */
+      SHORT(Short.MAX_VALUE);
+
+      Counts(final long maxCount) {
+         this.maxCount = maxCount;
+      }
+
+      /**
+       * Gets the next larger counts.
+       * @return The counts.
+       */
+      Counts wider() {
+         return this == SHORT ? INT : LONG;
+      }
+
+      /**
+       * The maximum count.
+       */
+      final long maxCount;
+   }
+
+   /**
+    * The default profile: any value, 2 significant digits, 64-bit counts and a running total.
+    */
+   public static final HDRProfile DEFAULT = new HDRProfile(1L, Long.MAX_VALUE, 2, Counts.LONG, true);
+
+   /**
+    * The default maximum duration for timer profiles ('1 hour').
+    */
+   public static final long DEFAULT_MAX_DURATION_NANOS = TimeUnit.HOURS.toNanos(1L);
+
+   /**
+    * Creates a profile for timers that report durations in a unit, with 64-bit counts and a running total.
+    * <p>
+    *    Timers record nanoseconds. The lowest discernible value is one thousandth of the duration unit,
+    *    and durations longer than the maximum are recorded as the maximum.
+    * </p>
+    * @param durationUnit The unit durations are reported in.
+    * @param maxDuration The maximum duration.
+    * @param maxDurationUnit The maximum duration unit.
+    * @return The profile.
+    */
+   public static HDRProfile timer(final TimeUnit durationUnit, final long maxDuration, final TimeUnit maxDurationUnit) {
+      final long lowestDiscernibleValue = Math.max(1L, durationUnit.toNanos(1L) / 1000L);
+      final long highestTrackableValue = Math.max(maxDurationUnit.toNanos(maxDuration), 2L * lowestDiscernibleValue);
+      return new HDRProfile(lowestDiscernibleValue, highestTrackableValue, 2, Counts.LONG, true);
+   }
+
+   /**
+    * Creates a profile for timers that report durations in a unit, up to one hour, with 64-bit counts
+    * and a running total.
+    * @param durationUnit The unit durations are reported in.
+    * @return The profile.
+    * @see #timer(TimeUnit, long, TimeUnit)
+    */
+   public static HDRProfile timer(final TimeUnit durationUnit) {
+      return timer(durationUnit, DEFAULT_MAX_DURATION_NANOS, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Creates a compact profile for timers that report durations in a unit, up to one hour,
+    * with 32-bit counts for the running total.
+    * @param durationUnit The unit durations are reported in.
+    * @return The profile.
+    */
+   public static HDRProfile compactTimer(final TimeUnit durationUnit) {
+      return timer(durationUnit).withCounts(Counts.INT);
+   }
+
+   /**
+    * Creates a profile.
+    * @param lowestDiscernibleValue The lowest value that can be distinguished from zero.
+    * @param highestTrackableValue The highest value tracked. Anything larger is set to the maximum.
+    * If {@code Long.MAX_VALUE}, histograms are resized as required and the lowest discernible value must be {@code 1}.
+    * @param numberOfSignificantValueDigits The number of significant digits in the value.
+    * @param counts The size of the counts kept by the total histogram.
+    * @param trackTotal Is the running total histogram kept?
+    * @throws IllegalArgumentException if the range or precision is invalid.
+    */
+   public HDRProfile(final long lowestDiscernibleValue, final long highestTrackableValue,
+                     final int numberOfSignificantValueDigits,
+                     final Counts counts, final boolean trackTotal) {
+      if(lowestDiscernibleValue < 1L) {
+         throw new IllegalArgumentException("The lowest discernible value must be at least 1");
+      }
+      if(highestTrackableValue < 2L * lowestDiscernibleValue) {
+         throw new IllegalArgumentException("The highest trackable value must be at least twice the lowest discernible value");
+      }
+      if(highestTrackableValue == Long.MAX_VALUE && lowestDiscernibleValue != 1L) {
+         throw new IllegalArgumentException("The lowest discernible value must be 1 when the range is not bounded");
+      }
+      if(numberOfSignificantValueDigits < 0 || numberOfSignificantValueDigits > 5) {
+         throw new IllegalArgumentException("The number of significant digits must be between 0 and 5");
+      }
+      this.lowestDiscernibleValue = lowestDiscernibleValue;
+      this.highestTrackableValue = highestTrackableValue;
+      this.numberOfSignificantValueDigits = numberOfSignificantValueDigits;
+      this.counts = counts;
+      this.trackTotal = trackTotal;
+   }
+
+   /**
+    * Creates a copy of this profile with different counts.
+    * @param counts The counts.
+    * @return The profile.
+    */
+   public HDRProfile withCounts(final Counts counts) {
+      return new HDRProfile(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits, counts, trackTotal);
+   }
+
+   /**
+    * Creates a copy of this profile that does not keep the running total histogram.
+    * @return The profile.
+    */
+   public HDRProfile withoutTotal() {
+      return new HDRProfile(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits, counts, false);
+   }
+
+   /**
+    * Are histograms resized as required?
+    * @return Is the range unbounded?
+    */
+   public boolean isAutoResize() {
+      return highestTrackableValue == Long.MAX_VALUE;
+   }
+
+   /**
+    * Creates a histogram that may be recorded to concurrently.
+    * <p>
+    *    A bounded range uses an atomic histogram, with a single counts array.
+    * </p>
+    * @return The histogram.
+    */
+   Histogram newRecordingHistogram() {
+      return isAutoResize() ? new ConcurrentHistogram(numberOfSignificantValueDigits) :
+              new AtomicHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+   }
+
+   /**
+    * Creates a histogram with 64-bit counts.
+    * @return The histogram.
+    */
+   Histogram newHistogram() {
+      return isAutoResize() ? new Histogram(numberOfSignificantValueDigits) :
+              new Histogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+   }
+
+   /**
+    * Creates a histogram with the specified counts.
+    * @param counts The counts.
+    * @return The histogram.
+    */
+   AbstractHistogram newHistogram(final Counts counts) {
+      final AbstractHistogram histogram;
+      switch(counts) {
+         case INT:
+            histogram = isAutoResize() ? new IntCountsHistogram(numberOfSignificantValueDigits) :
+                    new IntCountsHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+            break;
+         case SHORT:
+            histogram = isAutoResize() ? new ShortCountsHistogram(numberOfSignificantValueDigits) :
+                    new ShortCountsHistogram(lowestDiscernibleValue, highestTrackableValue, numberOfSignificantValueDigits);
+            break;
+         default:
+            return newHistogram();
+      }
+      if(isAutoResize()) {
+         histogram.setAutoResize(true);
+      }
+      return histogram;
+   }
+
+   @Override
+   public String toString() {
+      return (isAutoResize() ? "auto" : lowestDiscernibleValue + "-" + highestTrackableValue) +
+              "/" + numberOfSignificantValueDigits + "/" + counts.name().toLowerCase() + (trackTotal ? "/total" : "");
+   }
+
+   /**
+    * The lowest value that can be distinguished from zero.
+    */
+   public final long lowestDiscernibleValue;
+
+   /**
+    * The highest value tracked. If {@code Long.MAX_VALUE}, histograms are resized as required.
+    */
+   public final long highestTrackableValue;
+
+   /**
+    * The number of significant digits in the value.
+    */
+   public final int numberOfSignificantValueDigits;
+
+   /**
+    * The size of the counts kept by the total histogram.
+    */
+   public final Counts counts;
+
+   /**
+    * Is the running total histogram kept?
+    */
+   public final boolean trackTotal;
+}
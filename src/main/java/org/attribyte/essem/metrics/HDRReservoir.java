@@ -17,9 +17,9 @@ package org.attribyte.essem.metrics;
 import com.codahale.metrics.Reservoir;
 import com.codahale.metrics.Snapshot;
 import com.google.common.base.Charsets;
+import org.HdrHistogram.AbstractHistogram;
 import org.HdrHistogram.Histogram;
 import org.HdrHistogram.HistogramIterationValue;
-import org.HdrHistogram.Recorder;
 
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -29,6 +29,25 @@ import static java.lang.Math.toIntExact;
 
 /**
  * A High Dynamic Range (HDR) histogram implementation.
+ * <p>
+ *    Values may be recorded to several <em>stripes</em>, each with its own recorder,
+ *    so threads updating a heavily-used reservoir don't contend. Stripes are merged when a snapshot is taken.
+ * </p>
+ * <p>
+ *    By default, each snapshot holds its own copy of the interval histogram, so
+ *    snapshots are immutable and may be used by any number of reporters. The total histogram is copied
+ *    only when reported, or when a snapshot of the total is first requested.
+ * </p>
+ * <p>
+ *    A reservoir created with {@code RECYCLE_SNAPSHOTS}, or switched with {@code recycleSnapshots},
+ *    does not copy histograms.
+ *    Interval histograms are double-buffered and recycled, so a snapshot is valid only until two more snapshots are taken.
+ *    The total histogram is updated in place, and is copied (to a recycled histogram) only when a snapshot
+ *    of the total is requested. Use only when a single reporter takes snapshots.
+ * </p>
+ * <p>
+ *    The range, precision and memory use of the histograms are selected with a {@code HDRProfile}.
+ * </p>
  * @see <a href="https://github.com/HdrHistogram/HdrHistogram">HdrHistogram</a>.
  */
 public class HDRReservoir implements Reservoir {
@@ -37,26 +56,29 @@ public class HDRReservoir implements Reservoir {
    /**
     * A specialized snapshot that contains both the "total" histogram (since start),
     * and the one collected since {@code getSnapshot} was last called.
+    * <p>
+    *    The total histogram may have 32 or 16-bit counts, depending on the reservoir's profile.
+    *    Unless it is reported, it is materialized when first requested, and includes values
+    *    recorded up to the reservoir's most recent snapshot.
+    * </p>
     */
    public static final class HDRSnapshot extends Snapshot {
 
       /**
        * Creates the snapshot.
-       * @param totalHistogram The total histogram.
+       * @param histogram The histogram reported by this snapshot.
        * @param lastSnapshotHistogram The histogram since the last snapshot.
+       * @param totalHistogram The total histogram, or {@code null} if not yet materialized.
+       * @param reservoir The reservoir, or {@code null} if the total histogram is supplied.
        */
-      HDRSnapshot(final Histogram totalHistogram,
-                  final Histogram lastSnapshotHistogram) {
-         this.totalHistogram = totalHistogram;
-         this.lastSnapshotHistogram = lastSnapshotHistogram;
-         this.histogram = totalHistogram;
-      }
-
-      private HDRSnapshot(final Histogram histogram, final Histogram totalHistogram,
-                          final Histogram lastSnapshotHistogram) {
+      HDRSnapshot(final AbstractHistogram histogram,
+                  final Histogram lastSnapshotHistogram,
+                  final AbstractHistogram totalHistogram,
+                  final HDRReservoir reservoir) {
          this.histogram = histogram;
-         this.totalHistogram = totalHistogram;
          this.lastSnapshotHistogram = lastSnapshotHistogram;
+         this.totalHistogram = totalHistogram;
+         this.reservoir = reservoir;
       }
 
       /**
@@ -65,16 +87,25 @@ public class HDRReservoir implements Reservoir {
        * @return The snapshot.
        */
       public HDRSnapshot fromHistogram(final Histogram histogram) {
-         return new HDRSnapshot(histogram, histogram, histogram);
+         return new HDRSnapshot(histogram, histogram, histogram, null);
       }
 
       /**
        * Gets the snapshot of the total histogram.
+       * <p>
+       *    If the reservoir does not keep the total, the snapshot since the last is returned.
+       * </p>
        * @return The snapshot.
        */
       public HDRSnapshot totalSnapshot() {
-         return this.histogram == this.totalHistogram ? this :
-                 new HDRSnapshot(this.totalHistogram, this.lastSnapshotHistogram, this.totalHistogram);
+         if(this.histogram == this.totalHistogram) {
+            return this;
+         }
+         final AbstractHistogram totalHistogram = this.totalHistogram != null ? this.totalHistogram :
+                 reservoir != null ? reservoir.materializeTotal() : null;
+         return totalHistogram != null ?
+                 new HDRSnapshot(totalHistogram, this.lastSnapshotHistogram, totalHistogram, this.reservoir) :
+                 sinceLastSnapshot();
       }
 
       /**
@@ -83,15 +114,24 @@ public class HDRReservoir implements Reservoir {
        */
       public HDRSnapshot sinceLastSnapshot() {
          return this.histogram == this.lastSnapshotHistogram ? this :
-                 new HDRSnapshot(this.totalHistogram, this.lastSnapshotHistogram, this.lastSnapshotHistogram);
+                 new HDRSnapshot(this.lastSnapshotHistogram, this.lastSnapshotHistogram, this.totalHistogram, this.reservoir);
       }
 
       /**
        * Gets the HDR histogram.
+       * <p>
+       *    A total histogram with 32 or 16-bit counts is copied.
+       * </p>
        * @return The histogram.
        */
       public Histogram getHistogram() {
-         return histogram;
+         if(histogram instanceof Histogram) {
+            return (Histogram)histogram;
+         } else {
+            final Histogram copy = new Histogram(histogram);
+            copy.add(histogram);
+            return copy;
+         }
       }
 
       @Override
@@ -148,9 +188,18 @@ public class HDRReservoir implements Reservoir {
          }
       }
 
-      private final Histogram histogram;
-      private final Histogram totalHistogram;
+      /**
+       * Gets the reservoir that took this snapshot.
+       * @return The reservoir, or {@code null} if the snapshot was created from a histogram.
+       */
+      public HDRReservoir getReservoir() {
+         return reservoir;
+      }
+
+      private final AbstractHistogram histogram;
       private final Histogram lastSnapshotHistogram;
+      private final AbstractHistogram totalHistogram;
+      private final HDRReservoir reservoir;
    }
 
 
@@ -161,59 +210,322 @@ public class HDRReservoir implements Reservoir {
     * collected since the last snapshot was acquired will be reported.
     */
    public HDRReservoir(final int numberOfSignificantValueDigits, final boolean reportTotalHistogram) {
-      this.highestTrackableValue = Long.MAX_VALUE;
-      this.recorder = new Recorder(numberOfSignificantValueDigits);
-      this.totalHistogram = new Histogram(numberOfSignificantValueDigits);
-      this.reportTotalHistogram = reportTotalHistogram;
+      this(Long.MAX_VALUE, numberOfSignificantValueDigits, reportTotalHistogram, 1);
    }
 
    /**
     * Creates a HDR histogram.
     * @param highestTrackableValue The highest value tracked. Anything larger will be set to the maximum.
+    * If {@code Long.MAX_VALUE}, histograms are resized as required.
     * @param numberOfSignificantValueDigits The number of significant digits in the value.
     * @param reportTotalHistogram If {@code true}, the long-running histogram will be reported. Otherwise, the histogram
     * collected since the last snapshot was acquired will be reported.
     */
    public HDRReservoir(final long highestTrackableValue, final int numberOfSignificantValueDigits,
                        final boolean reportTotalHistogram) {
-      this.highestTrackableValue = highestTrackableValue;
-      this.recorder = new Recorder(highestTrackableValue, numberOfSignificantValueDigits);
-      this.totalHistogram = new Histogram(highestTrackableValue, numberOfSignificantValueDigits);
+      this(highestTrackableValue, numberOfSignificantValueDigits, reportTotalHistogram, 1);
+   }
+
+   /**
+    * Creates a striped HDR histogram.
+    * <p>
+    *    Each stripe retains its own histograms, so memory use grows with the number of stripes.
+    *    Use for reservoirs updated concurrently by many threads.
+    * </p>
+    * @param highestTrackableValue The highest value tracked. Anything larger will be set to the maximum.
+    * If {@code Long.MAX_VALUE}, histograms are resized as required.
+    * @param numberOfSignificantValueDigits The number of significant digits in the value.
+    * @param reportTotalHistogram If {@code true}, the long-running histogram will be reported. Otherwise, the histogram
+    * collected since the last snapshot was acquired will be reported.
+    * @param stripes The number of stripes, rounded up to a power of two. Use {@code defaultStripes()}
+    * for one per available processor.
+    */
+   public HDRReservoir(final long highestTrackableValue, final int numberOfSignificantValueDigits,
+                       final boolean reportTotalHistogram, final int stripes) {
+      this(new HDRProfile(1L, highestTrackableValue, numberOfSignificantValueDigits, HDRProfile.Counts.LONG, true),
+              reportTotalHistogram, stripes);
+   }
+
+   /**
+    * Creates a HDR histogram with a profile.
+    * @param profile The profile.
+    * @param reportTotalHistogram If {@code true}, the long-running histogram will be reported. Otherwise, the histogram
+    * collected since the last snapshot was acquired will be reported.
+    * @param stripes The number of stripes, rounded up to a power of two.
+    * @throws IllegalArgumentException if the total histogram is reported, but the profile does not keep it.
+    */
+   public HDRReservoir(final HDRProfile profile, final boolean reportTotalHistogram, final int stripes) {
+      this(profile, reportTotalHistogram, stripes, COPY_SNAPSHOTS);
+   }
+
+   /**
+    * Creates a HDR histogram with a profile, selecting if snapshots are recycled.
+    * @param profile The profile.
+    * @param reportTotalHistogram If {@code true}, the long-running histogram will be reported. Otherwise, the histogram
+    * collected since the last snapshot was acquired will be reported.
+    * @param stripes The number of stripes, rounded up to a power of two.
+    * @param recycleSnapshots If {@code true}, snapshots share recycled histograms, and are valid only until
+    * two more snapshots are taken. Use only when a single reporter takes snapshots.
+    * @throws IllegalArgumentException if the total histogram is reported, but the profile does not keep it.
+    */
+   public HDRReservoir(final HDRProfile profile, final boolean reportTotalHistogram, final int stripes,
+                       final boolean recycleSnapshots) {
+      if(stripes < 1 || stripes > MAX_STRIPES) {
+         throw new IllegalArgumentException("The number of stripes must be between 1 and " + MAX_STRIPES);
+      }
+      if(reportTotalHistogram && !profile.trackTotal) {
+         throw new IllegalArgumentException("The total histogram can't be reported unless the profile keeps it");
+      }
+      this.profile = profile;
+      this.highestTrackableValue = profile.highestTrackableValue;
+      this.recorders = new IntervalRecorder[stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+      for(int i = 0; i < recorders.length; i++) {
+         recorders[i] = new IntervalRecorder(profile);
+      }
+      this.stripeMask = recorders.length - 1;
+      this.recorder = recorders[0];
+      this.stripeHistograms = recorders.length > 1 ? new Histogram[recorders.length] : null;
+      this.totalCounts = profile.counts;
+      this.totalHistogram = profile.trackTotal ? profile.newHistogram(totalCounts) : null;
       this.reportTotalHistogram = reportTotalHistogram;
+      this.recycleSnapshots = recycleSnapshots;
+   }
+
+   /**
+    * Gets the default number of stripes: the number of available processors, up to {@value #MAX_STRIPES}.
+    * @return The number of stripes.
+    */
+   public static int defaultStripes() {
+      return Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
    }
 
+   /**
+    * Gets the number of values in the last snapshot, without taking a snapshot.
+    * @return The number of values.
+    */
    @Override
    public int size() {
-      return getSnapshot().size();
+      return lastSize;
    }
 
    @Override
    public void update(long value) {
+      final IntervalRecorder recorder = stripeMask == 0 ? this.recorder :
+              recorders[(int)Thread.currentThread().getId() & stripeMask]; //Consecutive thread ids use different stripes.
       recorder.recordValue(value < this.highestTrackableValue ? value : this.highestTrackableValue);
    }
 
+   /**
+    * Takes a snapshot.
+    * <p>
+    *    If snapshots are recycled, the interval histogram from the snapshot before last is reused,
+    *    and the snapshot is valid until two more snapshots are taken.
+    *    Otherwise, the snapshot holds a copy of the interval histogram, and of the total histogram, if reported.
+    * </p>
+    * @return The snapshot.
+    */
    @Override
    public synchronized Snapshot getSnapshot() {
-      lastSnapshotHistogram = recorder.getIntervalHistogram(lastSnapshotHistogram);
-      totalHistogram.add(lastSnapshotHistogram);
-      HDRSnapshot snapshot = new HDRSnapshot(totalHistogram.copy(), lastSnapshotHistogram.copy());
-      return reportTotalHistogram ? snapshot.totalSnapshot() : snapshot.sinceLastSnapshot();
+      final int next = generation & 1 ^ 1;
+      Histogram interval = intervalHistograms[next];
+      if(stripeHistograms == null) {
+         interval = recorder.getIntervalHistogram(interval);
+      } else {
+         if(interval == null) {
+            interval = profile.newHistogram();
+         } else {
+            interval.reset();
+         }
+         for(int i = 0; i < recorders.length; i++) {
+            stripeHistograms[i] = recorders[i].getIntervalHistogram(stripeHistograms[i]);
+            interval.add(stripeHistograms[i]);
+         }
+      }
+      intervalHistograms[next] = interval;
+      generation++;
+      if(totalHistogram != null) {
+         addToTotal(interval);
+      }
+
+      if(!recycleSnapshots) {
+         final Histogram intervalCopy = interval.copy();
+         if(reportTotalHistogram) {
+            final AbstractHistogram totalCopy = materializeTotal();
+            lastSize = toIntExact(totalCopy.getTotalCount());
+            return new HDRSnapshot(totalCopy, intervalCopy, totalCopy, this);
+         } else {
+            lastSize = toIntExact(intervalCopy.getTotalCount());
+            return new HDRSnapshot(intervalCopy, intervalCopy, null, this);
+         }
+      } else if(reportTotalHistogram) {
+         final AbstractHistogram total = materializeTotal();
+         lastSize = toIntExact(total.getTotalCount());
+         return new HDRSnapshot(total, interval, total, this);
+      } else {
+         lastSize = toIntExact(interval.getTotalCount());
+         return new HDRSnapshot(interval, interval, null, this);
+      }
    }
 
    /**
-    * The recorder.
+    * Copies the total histogram, as of the most recent snapshot.
+    * <p>
+    *    The copy is made at most once for each snapshot. If snapshots are recycled, the copy is
+    *    made to a recycled histogram, and is valid until two more snapshots are taken.
+    *    Otherwise, a new copy is made, and is never modified.
+    * </p>
+    * @return The total histogram, or {@code null} if the total is not kept.
     */
-   private final Recorder recorder;
+   synchronized AbstractHistogram materializeTotal() {
+      if(totalHistogram == null) {
+         return null;
+      }
+      final int current = generation & 1;
+      if(materializedGeneration != generation) {
+         final AbstractHistogram materialized = materializedTotalHistograms[current];
+         if(!recycleSnapshots || materialized == null || materialized.getClass() != totalHistogram.getClass()) {
+            materializedTotalHistograms[current] = totalHistogram.copy();
+         } else {
+            totalHistogram.copyInto(materialized);
+         }
+         materializedGeneration = generation;
+      }
+      return materializedTotalHistograms[current];
+   }
 
    /**
-    * The last reported histogram.
+    * Starts recycling snapshots, as if the reservoir was created with {@code RECYCLE_SNAPSHOTS}.
+    * <p>
+    *    Call only when a single reporter takes snapshots. Snapshots already taken are not affected.
+    * </p>
     */
-   private Histogram lastSnapshotHistogram = null;
+   public void recycleSnapshots() {
+      if(!recycleSnapshots) {
+         synchronized(this) {
+            materializedTotalHistograms[0] = null; //May be held by snapshots already taken
+            materializedTotalHistograms[1] = null;
+            recycleSnapshots = true;
+         }
+      }
+   }
 
    /**
-    * The totalHistogram.
+    * Adds an interval to the total histogram, first replacing it with one that has
+    * wider counts if any count could overflow.
+    * @param interval The interval histogram.
     */
-   private final Histogram totalHistogram;
+   private void addToTotal(final Histogram interval) {
+      final long totalCount = totalHistogram.getTotalCount() + interval.getTotalCount();
+      if(totalCount > totalCounts.maxCount) {
+         HDRProfile.Counts counts = totalCounts.wider();
+         while(totalCount > counts.maxCount) {
+            counts = counts.wider();
+         }
+         final AbstractHistogram widerHistogram = profile.newHistogram(counts);
+         widerHistogram.add(totalHistogram);
+         totalHistogram = widerHistogram;
+         totalCounts = counts;
+      }
+      totalHistogram.add(interval);
+   }
+
+   /**
+    * Gets the estimated memory footprint of the histograms held by this reservoir.
+    * @return The footprint in bytes.
+    */
+   public synchronized long getEstimatedFootprintInBytes() {
+      long footprint = 0L;
+      for(IntervalRecorder recorder : recorders) {
+         footprint += recorder.getEstimatedFootprintInBytes();
+      }
+      if(stripeHistograms != null) {
+         footprint += footprint(stripeHistograms);
+      }
+      footprint += footprint(intervalHistograms);
+      if(totalHistogram != null) {
+         footprint += totalHistogram.getEstimatedFootprintInBytes();
+      }
+      footprint += footprint(materializedTotalHistograms);
+      return footprint;
+   }
+
+   private static long footprint(final AbstractHistogram[] histograms) {
+      long footprint = 0L;
+      for(AbstractHistogram histogram : histograms) {
+         if(histogram != null) {
+            footprint += histogram.getEstimatedFootprintInBytes();
+         }
+      }
+      return footprint;
+   }
+
+   /**
+    * Gets the profile.
+    * @return The profile.
+    */
+   public HDRProfile getProfile() {
+      return profile;
+   }
+
+   /**
+    * The profile.
+    */
+   private final HDRProfile profile;
+
+   /**
+    * The recorder for the first stripe.
+    */
+   private final IntervalRecorder recorder;
+
+   /**
+    * The recorder for each stripe.
+    */
+   private final IntervalRecorder[] recorders;
+
+   /**
+    * Selects a stripe from a thread id. Zero if not striped.
+    */
+   private final int stripeMask;
+
+   /**
+    * The last interval histogram for each stripe, recycled for the next snapshot. {@code null} if not striped.
+    */
+   private final Histogram[] stripeHistograms;
+
+   /**
+    * The interval histograms, alternately recycled. The most recent is at {@code generation & 1}.
+    */
+   private final Histogram[] intervalHistograms = new Histogram[2];
+
+   /**
+    * The number of snapshots taken.
+    */
+   private int generation;
+
+   /**
+    * The total histogram, updated in place. {@code null} if the profile does not keep the total.
+    */
+   private AbstractHistogram totalHistogram;
+
+   /**
+    * The counts of the total histogram. May be wider than the profile's after an overflow.
+    */
+   private HDRProfile.Counts totalCounts;
+
+   /**
+    * Copies of the total histogram returned by snapshots, alternately recycled.
+    */
+   private final AbstractHistogram[] materializedTotalHistograms = new AbstractHistogram[2];
+
+   /**
+    * The generation of the most recently materialized total histogram.
+    */
+   private int materializedGeneration = -1;
+
+   /**
+    * The number of values in the last snapshot.
+    */
+   private volatile int lastSize;
 
    /**
     * The highest value tracked.
@@ -226,6 +538,11 @@ public class HDRReservoir implements Reservoir {
     */
    private final boolean reportTotalHistogram;
 
+   /**
+    * If {@code true}, snapshots share recycled histograms.
+    */
+   private volatile boolean recycleSnapshots;
+
    /**
     * Indicates that the total histogram should be reported.
     */
@@ -235,4 +552,19 @@ public class HDRReservoir implements Reservoir {
     * Indicates that the snapshot histogram should be reported.
     */
    public static final boolean REPORT_SNAPSHOT_HISTOGRAM = false;
+
+   /**
+    * Indicates that snapshots share recycled histograms, and are valid only until two more snapshots are taken.
+    */
+   public static final boolean RECYCLE_SNAPSHOTS = true;
+
+   /**
+    * Indicates that each snapshot holds copies of the histograms.
+    */
+   public static final boolean COPY_SNAPSHOTS = false;
+
+   /**
+    * The maximum number of stripes ('64').
+    */
+   public static final int MAX_STRIPES = 64;
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.WriterReaderPhaser;
+
+/**
+ * Records values concurrently, and swaps the active histogram for a recycled one at each interval.
+ * <p>
+ *    Works like HdrHistogram's {@code Recorder}, but records to the histogram created by a profile.
+ *    When the range is bounded, this is an atomic histogram, with half the footprint of
+ *    the resizable concurrent histogram used by {@code Recorder}.
+ * </p>
+ */
+final class IntervalRecorder {
+
+   /**
+    * Creates the recorder.
+    * @param profile The profile.
+    */
+   IntervalRecorder(final HDRProfile profile) {
+      this.profile = profile;
+      this.activeHistogram = profile.newRecordingHistogram();
+   }
+
+   /**
+    * Records a value.
+    * @param value The value.
+    */
+   void recordValue(final long value) {
+      final long criticalValue = phaser.writerCriticalSectionEnter();
+      try {
+         activeHistogram.recordValue(value);
+      } finally {
+         phaser.writerCriticalSectionExit(criticalValue);
+      }
+   }
+
+   /**
+    * Gets the histogram recorded since the last call, replacing it with a recycled histogram.
+    * @param histogramToRecycle A histogram previously returned by this recorder that is no longer used,
+    * or {@code null} to create a new one.
+    * @return The interval histogram.
+    */
+   synchronized Histogram getIntervalHistogram(final Histogram histogramToRecycle) {
+      final Histogram nextHistogram;
+      if(histogramToRecycle != null) {
+         histogramToRecycle.reset();
+         nextHistogram = histogramToRecycle;
+      } else {
+         nextHistogram = profile.newRecordingHistogram();
+      }
+
+      try {
+         phaser.readerLock();
+         final Histogram intervalHistogram = activeHistogram;
+         activeHistogram = nextHistogram;
+         phaser.flipPhase(); //Waits for writers to the interval histogram.
+         return intervalHistogram;
+      } finally {
+         phaser.readerUnlock();
+      }
+   }
+
+   /**
+    * Gets the estimated footprint of the active histogram.
+    * @return The footprint in bytes.
+    */
+   int getEstimatedFootprintInBytes() {
+      return activeHistogram.getEstimatedFootprintInBytes();
+   }
+
+   private final HDRProfile profile;
+   private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+
+   /**
+    * The histogram values are recorded to.
+    */
+   private volatile Histogram activeHistogram;
+}
@@ -16,6 +16,8 @@ package org.attribyte.essem.metrics;
 
 import com.codahale.metrics.Clock;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A timer that uses a high dynamic range histogram by default.
  * @see <a href="https://github.com/HdrHistogram/HdrHistogram">HdrHistogram</a>.
@@ -64,6 +66,92 @@ public class Timer extends com.codahale.metrics.Timer {
       super(new HDRReservoir(highestTrackableValue, numberOfSignificantValueDigits, reportTotalHistogram), clock);
    }
 
+   /**
+    * Creates a timer with highest trackable value, significant digits in the value, a clock specified,
+    * if the total histogram should be reported instead of the one collected since last snapshot,
+    * and the number of stripes values are recorded to.
+    * @param highestTrackableValue The highest value tracked. Anything larger will be set to the maximum.
+    * If {@code Long.MAX_VALUE}, histograms are resized as required.
+    * @param numberOfSignificantValueDigits The number of significant digits in the value.
+    * @param clock The clock.
+    * @param reportTotalHistogram Should the total histogram (since start) be reported by {@code getSnapshot}?
+    * @param stripes The number of stripes.
+    * @see HDRReservoir#HDRReservoir(long, int, boolean, int)
+    */
+   public Timer(final long highestTrackableValue,
+                final int numberOfSignificantValueDigits,
+                final Clock clock,
+                final boolean reportTotalHistogram,
+                final int stripes) {
+      super(new HDRReservoir(highestTrackableValue, numberOfSignificantValueDigits, reportTotalHistogram, stripes), clock);
+   }
+
+   /**
+    * Creates a timer that reports the histogram since last snapshot, with a histogram profile.
+    * @param profile The profile.
+    * @see HDRProfile#timer(TimeUnit)
+    */
+   public Timer(final HDRProfile profile) {
+      this(profile, Clock.defaultClock(), HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 1);
+   }
+
+   /**
+    * Creates a timer with a histogram profile, a clock specified,
+    * if the total histogram should be reported instead of the one collected since last snapshot,
+    * and the number of stripes values are recorded to.
+    * @param profile The profile.
+    * @param clock The clock.
+    * @param reportTotalHistogram Should the total histogram (since start) be reported by {@code getSnapshot}?
+    * @param stripes The number of stripes.
+    * @see HDRReservoir#HDRReservoir(HDRProfile, boolean, int)
+    */
+   public Timer(final HDRProfile profile,
+                final Clock clock,
+                final boolean reportTotalHistogram,
+                final int stripes) {
+      super(new HDRReservoir(profile, reportTotalHistogram, stripes), clock);
+   }
+
+   /**
+    * Creates a timer with a histogram profile, a clock specified,
+    * if the total histogram should be reported instead of the one collected since last snapshot,
+    * the number of stripes values are recorded to, and if snapshots are recycled.
+    * @param profile The profile.
+    * @param clock The clock.
+    * @param reportTotalHistogram Should the total histogram (since start) be reported by {@code getSnapshot}?
+    * @param stripes The number of stripes.
+    * @param recycleSnapshots Should snapshots share recycled histograms? Use only when a single reporter takes snapshots.
+    * @see HDRReservoir#HDRReservoir(HDRProfile, boolean, int, boolean)
+    */
+   public Timer(final HDRProfile profile,
+                final Clock clock,
+                final boolean reportTotalHistogram,
+                final int stripes,
+                final boolean recycleSnapshots) {
+      super(new HDRReservoir(profile, reportTotalHistogram, stripes, recycleSnapshots), clock);
+   }
+
+   /**
+    * Creates a timer with a compact histogram profile for durations reported in a unit,
+    * that reports the histogram since last snapshot.
+    * @param durationUnit The unit durations are reported in.
+    * @return The timer.
+    * @see HDRProfile#compactTimer(TimeUnit)
+    */
+   public static Timer compact(final TimeUnit durationUnit) {
+      return new Timer(HDRProfile.compactTimer(durationUnit));
+   }
+
+   /**
+    * Creates a timer for heavy concurrent use, with one stripe for each available processor,
+    * that reports the histogram since last snapshot, with no limit on trackable values and 2 significant value digits.
+    * @return The timer.
+    */
+   public static Timer striped() {
+      return new Timer(Long.MAX_VALUE, 2, Clock.defaultClock(), HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM,
+              HDRReservoir.defaultStripes());
+   }
+
    /**
     * Creates a timer with significant digits in the value, a clock specified
     * and if the total histogram should be reported instead of the one collected since last snapshot.
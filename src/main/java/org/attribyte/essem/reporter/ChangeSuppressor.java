@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+/**
+ * Decides if a metric is unchanged since it was last reported, and may be skipped.
+ * <p>
+ *    Counted metrics (counters, meters, histograms, timers) are unchanged if the count is equal.
+ *    Numeric gauges are unchanged if the value is within an absolute or relative epsilon
+ *    of the last <em>reported</em> value, so slow drift is eventually reported.
+ *    Every metric is reported at least once every <em>keyframe interval</em> reports, so graphs don't show gaps.
+ * </p>
+ * <p>
+ *    Last values are kept in an open-addressing table keyed by metric identity, with primitive values.
+ *    Entries for metrics not seen in the last two reports are removed when the table is resized.
+ * </p>
+ */
+public class ChangeSuppressor {
+
+   /**
+    * The default number of reports after which an unchanged metric is reported ('10').
+    */
+   public static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+   /**
+    * Creates a suppressor.
+    * @param absoluteEpsilon A gauge is unchanged if the difference from the last reported value is no more than this.
+    * @param relativeEpsilon A gauge is unchanged if the difference from the last reported value,
+    * divided by the last reported value, is no more than this.
+    * @param keyframeInterval The number of reports after which an unchanged metric is reported. If < 1, never.
+    */
+   public ChangeSuppressor(final double absoluteEpsilon, final double relativeEpsilon, final int keyframeInterval) {
+      this.absoluteEpsilon = absoluteEpsilon;
+      this.relativeEpsilon = relativeEpsilon;
+      this.keyframeInterval = keyframeInterval > 0 ? keyframeInterval : Integer.MAX_VALUE;
+   }
+
+   /**
+    * Starts a report.
+    */
+   synchronized void beginReport() {
+      report++;
+      candidates = 0;
+      suppressed = 0;
+   }
+
+   /**
+    * Ends a report, recording the suppression ratio.
+    */
+   synchronized void endReport() {
+      lastSuppressionRatio = candidates > 0 ? (double)suppressed / (double)candidates : 0.0;
+   }
+
+   /**
+    * Should a counted metric be skipped?
+    * @param metric The metric.
+    * @param count The current count.
+    * @return Should the metric be skipped?
+    */
+   synchronized boolean skipCount(final Object metric, final long count) {
+      candidates++;
+      final int slot = find(metric);
+      if(slot < 0) {
+         insert(metric, count);
+         return false;
+      }
+
+      lastSeen[slot] = report;
+      if(values[slot] == count && report - lastReported[slot] < keyframeInterval) {
+         suppressed++;
+         return true;
+      }
+
+      values[slot] = count;
+      lastReported[slot] = report;
+      return false;
+   }
+
+   /**
+    * Should a numeric gauge be skipped?
+    * @param metric The metric.
+    * @param value The current value.
+    * @return Should the metric be skipped?
+    */
+   synchronized boolean skipValue(final Object metric, final double value) {
+      candidates++;
+      final int slot = find(metric);
+      if(slot < 0) {
+         insert(metric, Double.doubleToLongBits(value));
+         return false;
+      }
+
+      lastSeen[slot] = report;
+      if(isNear(value, Double.longBitsToDouble(values[slot])) && report - lastReported[slot] < keyframeInterval) {
+         suppressed++;
+         return true;
+      }
+
+      values[slot] = Double.doubleToLongBits(value);
+      lastReported[slot] = report;
+      return false;
+   }
+
+   /**
+    * Gets the fraction of metrics skipped in the last report.
+    * @return The suppression ratio.
+    */
+   public synchronized double getSuppressionRatio() {
+      return lastSuppressionRatio;
+   }
+
+   /**
+    * Is a value within epsilon of the last reported value?
+    * @param value The value.
+    * @param last The last reported value.
+    * @return Is the value near?
+    */
+   private boolean isNear(final double value, final double last) {
+      if(Double.doubleToLongBits(value) == Double.doubleToLongBits(last)) {
+         return true;
+      }
+      final double diff = Math.abs(value - last);
+      return diff <= absoluteEpsilon || diff <= relativeEpsilon * Math.abs(last);
+   }
+
+   /**
+    * Finds the slot for a metric.
+    * @param metric The metric.
+    * @return The slot, or {@code -1} if not found.
+    */
+   private int find(final Object metric) {
+      final int mask = keys.length - 1;
+      for(int slot = hash(metric) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+         if(keys[slot] == metric) {
+            return slot;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Inserts a metric that is not in the table.
+    * @param metric The metric.
+    * @param value The value.
+    */
+   private void insert(final Object metric, final long value) {
+      if((size + 1) * 2 > keys.length) {
+         resize();
+      }
+      put(metric, value, report, report);
+   }
+
+   /**
+    * Puts a metric in the first free slot. The table must have space.
+    * @param metric The metric.
+    * @param value The value.
+    * @param lastReported The report number when last reported.
+    * @param lastSeen The report number when last seen.
+    */
+   private void put(final Object metric, final long value, final int lastReported, final int lastSeen) {
+      final int mask = keys.length - 1;
+      int slot = hash(metric) & mask;
+      while(keys[slot] != null) {
+         slot = (slot + 1) & mask;
+      }
+      keys[slot] = metric;
+      values[slot] = value;
+      this.lastReported[slot] = lastReported;
+      this.lastSeen[slot] = lastSeen;
+      size++;
+   }
+
+   /**
+    * Rebuilds the table, removing metrics not seen in the last two reports.
+    */
+   private void resize() {
+      final Object[] oldKeys = keys;
+      final long[] oldValues = values;
+      final int[] oldLastReported = lastReported;
+      final int[] oldLastSeen = lastSeen;
+
+      int live = 0;
+      for(int i = 0; i < oldKeys.length; i++) {
+         if(oldKeys[i] != null && report - oldLastSeen[i] <= 1) {
+            live++;
+         }
+      }
+
+      int capacity = INITIAL_CAPACITY;
+      while(capacity < (live + 1) * 4) {
+         capacity <<= 1;
+      }
+
+      keys = new Object[capacity];
+      values = new long[capacity];
+      lastReported = new int[capacity];
+      lastSeen = new int[capacity];
+      size = 0;
+      for(int i = 0; i < oldKeys.length; i++) {
+         if(oldKeys[i] != null && report - oldLastSeen[i] <= 1) {
+            put(oldKeys[i], oldValues[i], oldLastReported[i], oldLastSeen[i]);
+         }
+      }
+   }
+
+   /**
+    * Hashes a metric by identity.
+    * @param metric The metric.
+    * @return The hash.
+    */
+   private static int hash(final Object metric) {
+      final int h = System.identityHashCode(metric);
+      return h ^ (h >>> 16);
+   }
+
+   /**
+    * The initial table capacity.
+    */
+   private static final int INITIAL_CAPACITY = 64;
+
+   /**
+    * The absolute epsilon for gauges.
+    */
+   private final double absoluteEpsilon;
+
+   /**
+    * The relative epsilon for gauges.
+    */
+   private final double relativeEpsilon;
+
+   /**
+    * The number of reports after which an unchanged metric is reported.
+    */
+   private final int keyframeInterval;
+
+   /**
+    * The metrics.
+    */
+   private Object[] keys = new Object[INITIAL_CAPACITY];
+
+   /**
+    * The last reported count, or raw bits of the last reported gauge value.
+    */
+   private long[] values = new long[INITIAL_CAPACITY];
+
+   /**
+    * The report number when the metric was last reported.
+    */
+   private int[] lastReported = new int[INITIAL_CAPACITY];
+
+   /**
+    * The report number when the metric was last seen.
+    */
+   private int[] lastSeen = new int[INITIAL_CAPACITY];
+
+   /**
+    * The number of metrics in the table.
+    */
+   private int size;
+
+   /**
+    * The current report number.
+    */
+   private int report;
+
+   /**
+    * The number of metrics considered in the current report.
+    */
+   private int candidates;
+
+   /**
+    * The number of metrics skipped in the current report.
+    */
+   private int suppressed;
+
+   /**
+    * The fraction of metrics skipped in the last report.
+    */
+   private double lastSuppressionRatio;
+}
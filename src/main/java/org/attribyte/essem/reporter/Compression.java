@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import java.util.zip.Deflater;
+
+/**
+ * Selects how reports are compressed.
+ * <p>
+ *    <code>deflate</code> and <code>gzip</code> trade CPU time for ratio with the level.
+ *    The block codec is much faster than deflate at any level, with a lower ratio.
+ * </p>
+ */
+public final class Compression {
+
+   /**
+    * The compression codecs.
+    */
+   public enum Codec {
+
+      /**
+       * No compression.
+       */
+      NONE(null),
+
+      /**
+       * Deflate, with the zlib wrapper.
+       */
+      DEFLATE(EssemReporter.DEFLATE_ENCODING),
+
+      /**
+       * Deflate, with the gzip wrapper.
+       */
+      GZIP(EssemReporter.GZIP_ENCODING),
+
+      /**
+       * The fast block codec.
+       */
+      BLOCK(BlockCodec.CONTENT_ENCODING);
+
+      Codec(final String contentEncoding) {
+         this.contentEncoding = contentEncoding;
+      }
+
+      /**
+       * The content encoding, or {@code null} if not compressed.
+       */
+      public final String contentEncoding;
+   }
+
+   /**
+    * No compression.
+    */
+   public static final Compression NONE = new Compression(Codec.NONE, 0);
+
+   /**
+    * The fast block codec.
+    */
+   public static final Compression BLOCK = new Compression(Codec.BLOCK, 0);
+
+   /**
+    * Creates deflate compression.
+    * @param level The level, from <code>1</code> (fastest) to <code>9</code> (best compression).
+    * @return The compression.
+    */
+   public static Compression deflate(final int level) {
+      return new Compression(Codec.DEFLATE, checkLevel(level));
+   }
+
+   /**
+    * Creates gzip compression.
+    * @param level The level, from <code>1</code> (fastest) to <code>9</code> (best compression).
+    * @return The compression.
+    */
+   public static Compression gzip(final int level) {
+      return new Compression(Codec.GZIP, checkLevel(level));
+   }
+
+   private Compression(final Codec codec, final int level) {
+      this.codec = codec;
+      this.level = level;
+   }
+
+   private static int checkLevel(final int level) {
+      if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+         throw new IllegalArgumentException("The level must be between 1 and 9");
+      }
+      return level;
+   }
+
+   /**
+    * Gets the content encoding sent with compressed reports.
+    * @return The content encoding, or {@code null} if not compressed.
+    */
+   public String getContentEncoding() {
+      return codec.contentEncoding;
+   }
+
+   @Override
+   public String toString() {
+      return level > 0 ? codec.name().toLowerCase() + "-" + level : codec.name().toLowerCase();
+   }
+
+   /**
+    * The codec.
+    */
+   public final Codec codec;
+
+   /**
+    * The level for deflate and gzip.
+    */
+   public final int level;
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses reports with a reused deflater, or block encoder, and output buffer.
+ * <p>
+ *    Records the time spent compressing, and the compression ratio.
+ *    Not thread-safe.
+ * </p>
+ */
+final class Compressor {
+
+   /**
+    * Creates a compressor.
+    * @param compression The compression. Must not be {@code NONE}.
+    * @param compressTime Records the time spent compressing each report.
+    * @param compressionRatio Records the compression ratio of each report, as a percent.
+    */
+   Compressor(final Compression compression, final Timer compressTime, final Histogram compressionRatio) {
+      this.compression = compression;
+      this.compressTime = compressTime;
+      this.compressionRatio = compressionRatio;
+      switch(compression.codec) {
+         case DEFLATE:
+            this.deflater = new Deflater(compression.level, false); //nowrap = false
+            this.crc = null;
+            this.blockEncoder = null;
+            break;
+         case GZIP:
+            this.deflater = new Deflater(compression.level, true); //nowrap = true. Header and trailer are written here.
+            this.crc = new CRC32();
+            this.blockEncoder = null;
+            break;
+         case BLOCK:
+            this.deflater = null;
+            this.crc = null;
+            this.blockEncoder = new BlockCodec.Encoder();
+            break;
+         default:
+            throw new IllegalArgumentException("A codec is required");
+      }
+   }
+
+   /**
+    * Compresses bytes.
+    * @param bytes The bytes.
+    * @param length The number of bytes.
+    * @return The compressed bytes.
+    */
+   byte[] compress(final byte[] bytes, final int length) {
+      final long startNanos = System.nanoTime();
+      final byte[] compressed;
+      switch(compression.codec) {
+         case DEFLATE:
+            compressed = deflate(bytes, length, 0);
+            break;
+         case GZIP:
+            compressed = gzip(bytes, length);
+            break;
+         default:
+            compressed = blockEncoder.encode(bytes, length);
+            break;
+      }
+      compressTime.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+      if(compressed.length > 0) {
+         compressionRatio.update((int)((double)length / (double)compressed.length * 100.0));
+      }
+      return compressed;
+   }
+
+   /**
+    * Deflates bytes into the reused buffer.
+    * @param bytes The bytes.
+    * @param length The number of bytes.
+    * @param trailerSize The number of bytes to reserve after the deflated bytes.
+    * @return The deflated bytes, if there is no trailer. Otherwise, {@code null}.
+    */
+   private byte[] deflate(final byte[] bytes, final int length, final int trailerSize) {
+      deflater.reset();
+      deflater.setInput(bytes, 0, length);
+      deflater.finish();
+      bufferSize = headerSize();
+      while(!deflater.finished()) {
+         if(bufferSize == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+         }
+         bufferSize += deflater.deflate(buffer, bufferSize, buffer.length - bufferSize);
+      }
+      if(trailerSize == 0) {
+         return Arrays.copyOf(buffer, bufferSize);
+      } else {
+         if(buffer.length < bufferSize + trailerSize) {
+            buffer = Arrays.copyOf(buffer, bufferSize + trailerSize);
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Compresses bytes in the gzip format: header, raw deflated bytes, CRC32 and length trailer.
+    * @param bytes The bytes.
+    * @param length The number of bytes.
+    * @return The compressed bytes.
+    */
+   private byte[] gzip(final byte[] bytes, final int length) {
+      System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+      deflate(bytes, length, GZIP_TRAILER_SIZE);
+      crc.reset();
+      crc.update(bytes, 0, length);
+      writeIntLE((int)crc.getValue(), bufferSize);
+      writeIntLE(length, bufferSize + 4);
+      return Arrays.copyOf(buffer, bufferSize + GZIP_TRAILER_SIZE);
+   }
+
+   /**
+    * Gets the size of the header written before deflated bytes.
+    * @return The header size.
+    */
+   private int headerSize() {
+      return crc != null ? GZIP_HEADER.length : 0;
+   }
+
+   private void writeIntLE(final int value, final int off) {
+      buffer[off] = (byte)value;
+      buffer[off + 1] = (byte)(value >>> 8);
+      buffer[off + 2] = (byte)(value >>> 16);
+      buffer[off + 3] = (byte)(value >>> 24);
+   }
+
+   /**
+    * The gzip header: magic, deflate method, no flags, no time, no extra flags, unknown OS.
+    */
+   private static final byte[] GZIP_HEADER = new byte[] {
+           (byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff
+   };
+
+   /**
+    * The size of the gzip trailer (CRC32, then length).
+    */
+   private static final int GZIP_TRAILER_SIZE = 8;
+
+   private final Compression compression;
+   private final Timer compressTime;
+   private final Histogram compressionRatio;
+
+   /**
+    * The reused deflater, for deflate and gzip.
+    */
+   private final Deflater deflater;
+
+   /**
+    * The reused checksum, for gzip.
+    */
+   private final CRC32 crc;
+
+   /**
+    * The reused block encoder.
+    */
+   private final BlockCodec.Encoder blockEncoder;
+
+   /**
+    * The reused output buffer.
+    */
+   private byte[] buffer = new byte[16 * 1024];
+
+   /**
+    * The number of bytes in the output buffer.
+    */
+   private int bufferSize;
+}
@@ -0,0 +1,838 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import org.attribyte.essem.ReportProtos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A compact report encoding that sends only what changed since the previous report.
+ * <p>
+ *    The encoder and decoder keep matching state for a <em>session</em>. Metric names are
+ *    assigned numeric ids, and a name is sent only in the first report that contains it.
+ *    For each metric, only fields that changed are sent: counts as zig-zag varint differences
+ *    and doubles as the XOR with the previous value, with trailing zero bits removed.
+ * </p>
+ * <p>
+ *    A <em>keyframe</em> resets the session and depends on no previous report. Other reports
+ *    must be decoded in order. When the decoder can't apply a report, it throws
+ *    {@code SessionException}, and the encoder must send a keyframe next.
+ * </p>
+ * <p>
+ *    The number of names in a session is limited. The encoder sends a keyframe instead of
+ *    exceeding the limit, and the decoder drops a session that exceeds it.
+ * </p>
+ * <p>
+ *    Frame layout:
+ * </p>
+ * <pre>
+ * version (byte), session (fixed64), sequence (varint), flags (byte), timestamp delta (sint64),
+ * [keyframe: rate unit, duration unit (varint), application, host, instance (string)],
+ * new name count (varint), names (string)...,
+ * record count (varint), records: id (varint), kind (byte), changed fields (varint bitmask), values...
+ * </pre>
+ */
+public class DeltaReportCodec {
+
+   /**
+    * The content type for delta-encoded reports ('application/x-essem-delta').
+    */
+   public static final String CONTENT_TYPE = "application/x-essem-delta";
+
+   /**
+    * The encoding version ('1').
+    */
+   public static final int VERSION = 1;
+
+   /**
+    * The default number of reports between keyframes ('60').
+    */
+   public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+   /**
+    * The default maximum number of sessions retained by a decoder ('10000').
+    */
+   public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+   /**
+    * The default time a decoder retains an idle session ('1' hour).
+    */
+   public static final long DEFAULT_SESSION_IDLE_HOURS = 1L;
+
+   /**
+    * The default maximum number of metric names in a session ('10000').
+    */
+   public static final int DEFAULT_MAX_SESSION_NAMES = 10000;
+
+   /**
+    * Thrown when a report depends on session state the decoder doesn't have.
+    * The report must be resent in another form, and the encoder must send a keyframe.
+    */
+   public static class SessionException extends IOException {
+
+      /**
+       * Creates the exception.
+       * @param message The message.
+       */
+      public SessionException(final String message) {
+         super(message);
+      }
+   }
+
+   /**
+    * Encodes reports for a single session.
+    */
+   public static class Encoder {
+
+      /**
+       * Creates an encoder with a random session id.
+       * @param keyframeInterval The number of reports between keyframes.
+       */
+      public Encoder(final int keyframeInterval) {
+         this(keyframeInterval, DEFAULT_MAX_SESSION_NAMES);
+      }
+
+      /**
+       * Creates an encoder with a random session id.
+       * @param keyframeInterval The number of reports between keyframes.
+       * @param maxNames The maximum number of metric names sent between keyframes.
+       */
+      public Encoder(final int keyframeInterval, final int maxNames) {
+         this.keyframeInterval = keyframeInterval;
+         this.maxNames = maxNames;
+         this.session = UUID.randomUUID().getMostSignificantBits();
+      }
+
+      /**
+       * Encodes a report.
+       * @param report The report.
+       * @return The encoded report.
+       */
+      public synchronized byte[] encode(final ReportProtos.EssemReport report) {
+
+         final boolean keyframe = keyframeRequired || framesSinceKeyframe >= keyframeInterval || exceedsMaxNames(report);
+         if(keyframe) {
+            ids.clear();
+            states.clear();
+            lastTimestamp = 0L;
+            framesSinceKeyframe = 0;
+            keyframeRequired = false;
+         } else {
+            framesSinceKeyframe++;
+         }
+
+         try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            out.writeRawByte(VERSION);
+            out.writeFixed64NoTag(session);
+            out.writeRawVarint64(++sequence);
+            out.writeRawByte(keyframe ? FLAG_KEYFRAME : 0);
+            out.writeSInt64NoTag(report.getTimestamp() - lastTimestamp);
+            lastTimestamp = report.getTimestamp();
+            if(keyframe) {
+               out.writeRawVarint32(report.getRateUnit().getNumber());
+               out.writeRawVarint32(report.getDurationUnit().getNumber());
+               out.writeStringNoTag(report.getApplication());
+               out.writeStringNoTag(report.getHost());
+               out.writeStringNoTag(report.getInstance());
+            }
+
+            final List<String> newNames = Lists.newArrayList();
+            for(ReportProtos.EssemReport.Gauge gauge : report.getGaugeList()) {
+               assignId(gauge.getName(), newNames);
+            }
+            for(ReportProtos.EssemReport.Counter counter : report.getCounterList()) {
+               assignId(counter.getName(), newNames);
+            }
+            for(ReportProtos.EssemReport.Meter meter : report.getMeterList()) {
+               assignId(meter.getName(), newNames);
+            }
+            for(ReportProtos.EssemReport.Histogram histogram : report.getHistogramList()) {
+               assignId(histogram.getName(), newNames);
+            }
+            for(ReportProtos.EssemReport.Timer timer : report.getTimerList()) {
+               assignId(timer.getName(), newNames);
+            }
+
+            out.writeRawVarint32(newNames.size());
+            for(String name : newNames) {
+               out.writeStringNoTag(name);
+            }
+
+            out.writeRawVarint32(report.getGaugeCount() + report.getCounterCount() + report.getMeterCount() +
+                    report.getHistogramCount() + report.getTimerCount());
+
+            for(ReportProtos.EssemReport.Gauge gauge : report.getGaugeList()) {
+               values[0] = Double.doubleToRawLongBits(gauge.getValue());
+               writeRecord(out, ids.get(gauge.getName()), KIND_GAUGE,
+                       gauge.hasComment() ? gauge.getComment() : null, null);
+            }
+
+            for(ReportProtos.EssemReport.Counter counter : report.getCounterList()) {
+               values[0] = counter.getCount();
+               writeRecord(out, ids.get(counter.getName()), KIND_COUNTER, null, null);
+            }
+
+            for(ReportProtos.EssemReport.Meter meter : report.getMeterList()) {
+               values[0] = meter.getCount();
+               values[1] = Double.doubleToRawLongBits(meter.getOneMinuteRate());
+               values[2] = Double.doubleToRawLongBits(meter.getFiveMinuteRate());
+               values[3] = Double.doubleToRawLongBits(meter.getFifteenMinuteRate());
+               values[4] = Double.doubleToRawLongBits(meter.getMeanRate());
+               writeRecord(out, ids.get(meter.getName()), KIND_METER, null, null);
+            }
+
+            for(ReportProtos.EssemReport.Histogram histogram : report.getHistogramList()) {
+               values[0] = histogram.getCount();
+               values[1] = Double.doubleToRawLongBits(histogram.getMax());
+               values[2] = Double.doubleToRawLongBits(histogram.getMean());
+               values[3] = Double.doubleToRawLongBits(histogram.getMin());
+               values[4] = Double.doubleToRawLongBits(histogram.getStd());
+               values[5] = Double.doubleToRawLongBits(histogram.getMedian());
+               values[6] = Double.doubleToRawLongBits(histogram.getPercentile75());
+               values[7] = Double.doubleToRawLongBits(histogram.getPercentile95());
+               values[8] = Double.doubleToRawLongBits(histogram.getPercentile98());
+               values[9] = Double.doubleToRawLongBits(histogram.getPercentile99());
+               values[10] = Double.doubleToRawLongBits(histogram.getPercentile999());
+               writeRecord(out, ids.get(histogram.getName()), KIND_HISTOGRAM, null,
+                       histogram.hasHdrHistogram() ? histogram.getHdrHistogram() : null);
+            }
+
+            for(ReportProtos.EssemReport.Timer timer : report.getTimerList()) {
+               values[0] = timer.getCount();
+               values[1] = Double.doubleToRawLongBits(timer.getOneMinuteRate());
+               values[2] = Double.doubleToRawLongBits(timer.getFiveMinuteRate());
+               values[3] = Double.doubleToRawLongBits(timer.getFifteenMinuteRate());
+               values[4] = Double.doubleToRawLongBits(timer.getMeanRate());
+               values[5] = Double.doubleToRawLongBits(timer.getMax());
+               values[6] = Double.doubleToRawLongBits(timer.getMean());
+               values[7] = Double.doubleToRawLongBits(timer.getMin());
+               values[8] = Double.doubleToRawLongBits(timer.getStd());
+               values[9] = Double.doubleToRawLongBits(timer.getMedian());
+               values[10] = Double.doubleToRawLongBits(timer.getPercentile75());
+               values[11] = Double.doubleToRawLongBits(timer.getPercentile95());
+               values[12] = Double.doubleToRawLongBits(timer.getPercentile98());
+               values[13] = Double.doubleToRawLongBits(timer.getPercentile99());
+               values[14] = Double.doubleToRawLongBits(timer.getPercentile999());
+               writeRecord(out, ids.get(timer.getName()), KIND_TIMER, null,
+                       timer.hasHdrHistogram() ? timer.getHdrHistogram() : null);
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      /**
+       * Requires the next report to be a keyframe.
+       * <p>
+       *    Must be called when a report may not have been applied by the decoder.
+       * </p>
+       */
+      public synchronized void requireKeyframe() {
+         keyframeRequired = true;
+      }
+
+      /**
+       * Gets the session id.
+       * @return The session id.
+       */
+      public long getSession() {
+         return session;
+      }
+
+      /**
+       * Determines if sending a report would exceed the maximum number of names.
+       * @param report The report.
+       * @return Would the maximum be exceeded?
+       */
+      private boolean exceedsMaxNames(final ReportProtos.EssemReport report) {
+         final int metricCount = report.getGaugeCount() + report.getCounterCount() + report.getMeterCount() +
+                 report.getHistogramCount() + report.getTimerCount();
+         if(ids.size() + metricCount <= maxNames) {
+            return false;
+         }
+
+         int newNameCount = 0;
+         for(ReportProtos.EssemReport.Gauge gauge : report.getGaugeList()) {
+            if(!ids.containsKey(gauge.getName())) newNameCount++;
+         }
+         for(ReportProtos.EssemReport.Counter counter : report.getCounterList()) {
+            if(!ids.containsKey(counter.getName())) newNameCount++;
+         }
+         for(ReportProtos.EssemReport.Meter meter : report.getMeterList()) {
+            if(!ids.containsKey(meter.getName())) newNameCount++;
+         }
+         for(ReportProtos.EssemReport.Histogram histogram : report.getHistogramList()) {
+            if(!ids.containsKey(histogram.getName())) newNameCount++;
+         }
+         for(ReportProtos.EssemReport.Timer timer : report.getTimerList()) {
+            if(!ids.containsKey(timer.getName())) newNameCount++;
+         }
+         return ids.size() + newNameCount > maxNames;
+      }
+
+      /**
+       * Gets the id for a name, assigning the next id if the name is new.
+       * @param name The name.
+       * @param newNames The names assigned in this report.
+       */
+      private void assignId(final String name, final List<String> newNames) {
+         if(!ids.containsKey(name)) {
+            ids.put(name, states.size());
+            states.add(new MetricState());
+            newNames.add(name);
+         }
+      }
+
+      /**
+       * Writes the fields in {@code values} that changed since the last report.
+       * @param out The output.
+       * @param id The metric id.
+       * @param kind The metric kind.
+       * @param comment The gauge comment, if any.
+       * @param hdrHistogram The HDR histogram, if any.
+       * @throws IOException on write error.
+       */
+      private void writeRecord(final CodedOutputStream out, final int id, final int kind,
+                               final String comment, final ByteString hdrHistogram) throws IOException {
+         final MetricState state = states.get(id);
+         state.reset(kind);
+         final int fieldCount = FIELD_COUNT[kind];
+         int changed = 0;
+         for(int i = 0; i < fieldCount; i++) {
+            if(values[i] != state.values[i]) {
+               changed |= 1 << i;
+            }
+         }
+
+         if(kind == KIND_GAUGE) {
+            if(!Strings.nullToEmpty(comment).equals(Strings.nullToEmpty(state.comment))) {
+               changed |= 1 << fieldCount;
+            }
+         } else if(hdrHistogram != null) {
+            changed |= 1 << fieldCount;
+         }
+
+         out.writeRawVarint32(id);
+         out.writeRawByte(kind);
+         out.writeRawVarint32(changed);
+         for(int i = 0; i < fieldCount; i++) {
+            if((changed & (1 << i)) != 0) {
+               if(isCount(kind, i)) {
+                  out.writeSInt64NoTag(values[i] - state.values[i]);
+               } else {
+                  writeXOR(out, values[i] ^ state.values[i]);
+               }
+               state.values[i] = values[i];
+            }
+         }
+
+         if((changed & (1 << fieldCount)) != 0) {
+            if(kind == KIND_GAUGE) {
+               out.writeStringNoTag(Strings.nullToEmpty(comment));
+               state.comment = comment;
+            } else {
+               out.writeBytesNoTag(hdrHistogram);
+            }
+         }
+      }
+
+      /**
+       * The session id.
+       */
+      private final long session;
+
+      /**
+       * The number of reports between keyframes.
+       */
+      private final int keyframeInterval;
+
+      /**
+       * The maximum number of metric names sent between keyframes.
+       */
+      private final int maxNames;
+
+      /**
+       * The sequence number of the last report.
+       */
+      private long sequence;
+
+      /**
+       * The number of reports since the last keyframe.
+       */
+      private int framesSinceKeyframe;
+
+      /**
+       * Must the next report be a keyframe?
+       */
+      private boolean keyframeRequired = true;
+
+      /**
+       * The timestamp of the last report.
+       */
+      private long lastTimestamp;
+
+      /**
+       * Metric ids by name.
+       */
+      private final Map<String, Integer> ids = Maps.newHashMap();
+
+      /**
+       * The last sent state, by metric id.
+       */
+      private final List<MetricState> states = Lists.newArrayList();
+
+      /**
+       * The field values for the metric being written.
+       */
+      private final long[] values = new long[MAX_FIELD_COUNT];
+   }
+
+   /**
+    * Decodes reports, retaining state for each session.
+    */
+   public static class Decoder {
+
+      /**
+       * Creates a decoder.
+       * @param maxSessions The maximum number of sessions retained.
+       * @param sessionIdleHours The number of hours an idle session is retained.
+       */
+      public Decoder(final int maxSessions, final long sessionIdleHours) {
+         this(maxSessions, sessionIdleHours, DEFAULT_MAX_SESSION_NAMES);
+      }
+
+      /**
+       * Creates a decoder.
+       * @param maxSessions The maximum number of sessions retained.
+       * @param sessionIdleHours The number of hours an idle session is retained.
+       * @param maxSessionNames The maximum number of metric names in a session.
+       */
+      public Decoder(final int maxSessions, final long sessionIdleHours, final int maxSessionNames) {
+         this.maxSessionNames = maxSessionNames;
+         this.sessions = CacheBuilder.newBuilder()
+                 .maximumSize(maxSessions)
+                 .expireAfterAccess(sessionIdleHours, TimeUnit.HOURS)
+                 .build();
+      }
+
+      /**
+       * Decodes a report.
+       * @param in The input.
+       * @return The report.
+       * @throws SessionException if the report depends on state the decoder doesn't have.
+       * @throws IOException on read error or invalid report.
+       */
+      public ReportProtos.EssemReport decode(final CodedInputStream in) throws IOException {
+
+         final int version = in.readRawByte();
+         if(version != VERSION) {
+            throw new IOException("Unsupported delta report version, " + version);
+         }
+
+         final long sessionId = in.readFixed64();
+         final long sequence = in.readRawVarint64();
+         final boolean keyframe = (in.readRawByte() & FLAG_KEYFRAME) != 0;
+
+         if(keyframe) {
+            final Session session = new Session(maxSessionNames);
+            final ReportProtos.EssemReport report = session.decode(in, true);
+            session.sequence = sequence;
+            sessions.put(sessionId, session);
+            return report;
+         }
+
+         final Session session = sessions.getIfPresent(sessionId);
+         if(session == null) {
+            throw new SessionException("Unknown session");
+         }
+
+         synchronized(session) {
+            if(sequence != session.sequence + 1) {
+               throw new SessionException("Expected sequence " + (session.sequence + 1) + " but found " + sequence);
+            }
+            try {
+               final ReportProtos.EssemReport report = session.decode(in, false);
+               session.sequence = sequence;
+               return report;
+            } catch(IOException ioe) {
+               sessions.invalidate(sessionId); //State is partially updated
+               throw ioe;
+            }
+         }
+      }
+
+      /**
+       * Gets the number of sessions retained.
+       * @return The number of sessions.
+       */
+      public long sessionCount() {
+         return sessions.size();
+      }
+
+      /**
+       * The maximum number of metric names in a session.
+       */
+      private final int maxSessionNames;
+
+      /**
+       * Sessions by id.
+       */
+      private final Cache<Long, Session> sessions;
+   }
+
+   /**
+    * Decoder state for one session.
+    */
+   private static final class Session {
+
+      /**
+       * Creates an empty session.
+       * @param maxNames The maximum number of metric names.
+       */
+      Session(final int maxNames) {
+         this.maxNames = maxNames;
+      }
+
+      /**
+       * Decodes the remainder of a report, after the session header.
+       * @param in The input.
+       * @param keyframe Is the report a keyframe?
+       * @return The report.
+       * @throws SessionException if the report would exceed the maximum number of names for the session.
+       * @throws IOException on read error or invalid report.
+       */
+      ReportProtos.EssemReport decode(final CodedInputStream in, final boolean keyframe) throws IOException {
+         final ReportProtos.EssemReport.Builder builder = ReportProtos.EssemReport.newBuilder();
+         timestamp += in.readSInt64();
+         if(keyframe) {
+            rateUnit = ReportProtos.EssemReport.TimeUnit.valueOf(in.readRawVarint32());
+            durationUnit = ReportProtos.EssemReport.TimeUnit.valueOf(in.readRawVarint32());
+            application = in.readString();
+            host = in.readString();
+            instance = in.readString();
+         }
+
+         builder.setTimestamp(timestamp);
+         if(rateUnit != null) builder.setRateUnit(rateUnit);
+         if(durationUnit != null) builder.setDurationUnit(durationUnit);
+         if(!application.isEmpty()) builder.setApplication(application);
+         if(!host.isEmpty()) builder.setHost(host);
+         if(!instance.isEmpty()) builder.setInstance(instance);
+
+         final int newNameCount = in.readRawVarint32();
+         if(newNameCount > maxNames - names.size()) {
+            if(keyframe) {
+               throw new IOException("Too many metric names, " + newNameCount);
+            } else {
+               throw new SessionException("Session exceeds " + maxNames + " metric names");
+            }
+         }
+         for(int i = 0; i < newNameCount; i++) {
+            names.add(in.readString());
+            states.add(new MetricState());
+         }
+
+         final int recordCount = in.readRawVarint32();
+         for(int i = 0; i < recordCount; i++) {
+            final int id = in.readRawVarint32();
+            if(id < 0 || id >= names.size()) {
+               throw new IOException("Invalid metric id, " + id);
+            }
+            final int kind = in.readRawByte();
+            if(kind < KIND_GAUGE || kind > KIND_TIMER) {
+               throw new IOException("Invalid metric kind, " + kind);
+            }
+
+            final MetricState state = states.get(id);
+            state.reset(kind);
+            final int fieldCount = FIELD_COUNT[kind];
+            final int changed = in.readRawVarint32();
+            for(int field = 0; field < fieldCount; field++) {
+               if((changed & (1 << field)) != 0) {
+                  if(isCount(kind, field)) {
+                     state.values[field] += in.readSInt64();
+                  } else {
+                     state.values[field] ^= readXOR(in);
+                  }
+               }
+            }
+
+            ByteString hdrHistogram = null;
+            if((changed & (1 << fieldCount)) != 0) {
+               if(kind == KIND_GAUGE) {
+                  state.comment = Strings.emptyToNull(in.readString());
+               } else {
+                  hdrHistogram = in.readBytes();
+               }
+            }
+
+            final long[] values = state.values;
+            final String name = names.get(id);
+            switch(kind) {
+               case KIND_GAUGE:
+                  if(state.comment != null) {
+                     builder.addGaugeBuilder().setName(name).setComment(state.comment);
+                  } else {
+                     builder.addGaugeBuilder().setName(name).setValue(Double.longBitsToDouble(values[0]));
+                  }
+                  break;
+               case KIND_COUNTER:
+                  builder.addCounterBuilder().setName(name).setCount(values[0]);
+                  break;
+               case KIND_METER:
+                  builder.addMeterBuilder()
+                          .setName(name)
+                          .setCount(values[0])
+                          .setOneMinuteRate(Double.longBitsToDouble(values[1]))
+                          .setFiveMinuteRate(Double.longBitsToDouble(values[2]))
+                          .setFifteenMinuteRate(Double.longBitsToDouble(values[3]))
+                          .setMeanRate(Double.longBitsToDouble(values[4]));
+                  break;
+               case KIND_HISTOGRAM:
+                  ReportProtos.EssemReport.Histogram.Builder histogramBuilder = builder.addHistogramBuilder()
+                          .setName(name)
+                          .setCount(values[0])
+                          .setMax(Double.longBitsToDouble(values[1]))
+                          .setMean(Double.longBitsToDouble(values[2]))
+                          .setMin(Double.longBitsToDouble(values[3]))
+                          .setStd(Double.longBitsToDouble(values[4]))
+                          .setMedian(Double.longBitsToDouble(values[5]))
+                          .setPercentile75(Double.longBitsToDouble(values[6]))
+                          .setPercentile95(Double.longBitsToDouble(values[7]))
+                          .setPercentile98(Double.longBitsToDouble(values[8]))
+                          .setPercentile99(Double.longBitsToDouble(values[9]))
+                          .setPercentile999(Double.longBitsToDouble(values[10]));
+                  if(hdrHistogram != null) {
+                     histogramBuilder.setHdrHistogram(hdrHistogram);
+                  }
+                  break;
+               case KIND_TIMER:
+                  ReportProtos.EssemReport.Timer.Builder timerBuilder = builder.addTimerBuilder()
+                          .setName(name)
+                          .setOneMinuteRate(Double.longBitsToDouble(values[1]))
+                          .setFiveMinuteRate(Double.longBitsToDouble(values[2]))
+                          .setFifteenMinuteRate(Double.longBitsToDouble(values[3]))
+                          .setMeanRate(Double.longBitsToDouble(values[4]))
+                          .setCount(values[0])
+                          .setMax(Double.longBitsToDouble(values[5]))
+                          .setMean(Double.longBitsToDouble(values[6]))
+                          .setMin(Double.longBitsToDouble(values[7]))
+                          .setStd(Double.longBitsToDouble(values[8]))
+                          .setMedian(Double.longBitsToDouble(values[9]))
+                          .setPercentile75(Double.longBitsToDouble(values[10]))
+                          .setPercentile95(Double.longBitsToDouble(values[11]))
+                          .setPercentile98(Double.longBitsToDouble(values[12]))
+                          .setPercentile99(Double.longBitsToDouble(values[13]))
+                          .setPercentile999(Double.longBitsToDouble(values[14]));
+                  if(hdrHistogram != null) {
+                     timerBuilder.setHdrHistogram(hdrHistogram);
+                  }
+                  break;
+            }
+         }
+
+         return builder.build();
+      }
+
+      /**
+       * The sequence number of the last report.
+       */
+      long sequence;
+
+      /**
+       * The maximum number of metric names.
+       */
+      private final int maxNames;
+
+      /**
+       * The timestamp of the last report.
+       */
+      private long timestamp;
+
+      /**
+       * The rate unit.
+       */
+      private ReportProtos.EssemReport.TimeUnit rateUnit;
+
+      /**
+       * The duration unit.
+       */
+      private ReportProtos.EssemReport.TimeUnit durationUnit;
+
+      /**
+       * The application.
+       */
+      private String application = "";
+
+      /**
+       * The host.
+       */
+      private String host = "";
+
+      /**
+       * The instance.
+       */
+      private String instance = "";
+
+      /**
+       * Metric names, by id.
+       */
+      private final List<String> names = Lists.newArrayList();
+
+      /**
+       * The last received state, by metric id.
+       */
+      private final List<MetricState> states = Lists.newArrayList();
+   }
+
+   /**
+    * The last value of every field for one metric.
+    * Doubles are stored as their raw bits.
+    */
+   private static final class MetricState {
+
+      /**
+       * Clears the state if the metric kind changed.
+       * @param kind The metric kind.
+       */
+      void reset(final int kind) {
+         if(this.kind != kind) {
+            this.kind = kind;
+            Arrays.fill(values, 0L);
+            comment = null;
+         }
+      }
+
+      /**
+       * The metric kind.
+       */
+      int kind;
+
+      /**
+       * The field values.
+       */
+      final long[] values = new long[MAX_FIELD_COUNT];
+
+      /**
+       * The gauge comment, if any.
+       */
+      String comment;
+   }
+
+   /**
+    * Is a field a count (encoded as a difference) rather than a double (encoded as XOR)?
+    * @param kind The metric kind.
+    * @param field The field index.
+    * @return Is the field a count?
+    */
+   private static boolean isCount(final int kind, final int field) {
+      return field == 0 && kind != KIND_GAUGE;
+   }
+
+   /**
+    * Writes the XOR of a double with its previous value.
+    * <p>
+    *    The significant bits are shifted right to remove trailing zeros, and written as a varint
+    *    with the shift in the low six bits. If there are too many significant bits, the shift is written
+    *    as {@code 63} with no significant bits, followed by the full 64 bits.
+    * </p>
+    * @param out The output.
+    * @param xor The XOR of the raw bits. Must not be zero.
+    * @throws IOException on write error.
+    */
+   static void writeXOR(final CodedOutputStream out, final long xor) throws IOException {
+      final int trailingZeros = Long.numberOfTrailingZeros(xor);
+      if(Long.numberOfLeadingZeros(xor) + trailingZeros >= 6) {
+         out.writeRawVarint64(((xor >>> trailingZeros) << 6) | trailingZeros);
+      } else {
+         out.writeRawVarint64(63L);
+         out.writeRawLittleEndian64(xor);
+      }
+   }
+
+   /**
+    * Reads the XOR of a double with its previous value.
+    * @param in The input.
+    * @return The XOR of the raw bits.
+    * @throws IOException on read error.
+    */
+   static long readXOR(final CodedInputStream in) throws IOException {
+      final long encoded = in.readRawVarint64();
+      final long significant = encoded >>> 6;
+      return significant != 0L ? significant << (int)(encoded & 0x3F) : in.readRawLittleEndian64();
+   }
+
+   /**
+    * The keyframe flag.
+    */
+   private static final int FLAG_KEYFRAME = 1;
+
+   /**
+    * A gauge: value, then comment.
+    */
+   private static final int KIND_GAUGE = 1;
+
+   /**
+    * A counter: count.
+    */
+   private static final int KIND_COUNTER = 2;
+
+   /**
+    * A meter: count, one, five and fifteen minute rates, mean rate.
+    */
+   private static final int KIND_METER = 3;
+
+   /**
+    * A histogram: count, max, mean, min, std, median, percentiles (75, 95, 98, 99, 99.9), then HDR histogram.
+    */
+   private static final int KIND_HISTOGRAM = 4;
+
+   /**
+    * A timer: count, one, five and fifteen minute rates, mean rate, then the histogram fields.
+    */
+   private static final int KIND_TIMER = 5;
+
+   /**
+    * The number of fields for each kind, not including the comment or HDR histogram.
+    * The first field is the count for all kinds except gauge.
+    */
+   private static final int[] FIELD_COUNT = {0, 1, 1, 5, 11, 15};
+
+   /**
+    * The maximum number of fields for any kind.
+    */
+   private static final int MAX_FIELD_COUNT = 15;
+}
@@ -29,30 +29,35 @@ import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.BaseEncoding;
-import com.google.common.io.ByteStreams;
-import com.google.protobuf.ByteString;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.attribyte.essem.ReportProtos;
 import org.attribyte.essem.metrics.HDRReservoir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.File;
 import java.net.URI;
-import java.net.URL;
-import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /**
  * A scheduled metric reporter that reports over HTTP(s) using the "essem"
@@ -81,6 +86,22 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
       SNAPSHOT
    }
 
+   /**
+    * Selects how metrics are assigned to shards.
+    */
+   public enum ShardBy {
+
+      /**
+       * By a hash of the full name.
+       */
+      NAME,
+
+      /**
+       * By a hash of the name up to the last '.', so metrics with a common prefix are reported together.
+       */
+      PREFIX
+   }
+
    /**
     * Creates a builder.
     * @param uri The URI to report to.
@@ -206,12 +227,25 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
       }
 
       /**
-       * Configures 'deflate' of sent reports.
+       * Configures 'deflate' of sent reports, at the best compression level.
        * @param deflate Should deflate be used?
        * @return A self-reference.
        */
       public Builder withDeflate(final boolean deflate) {
-         this.deflate = deflate;
+         this.compression = deflate ? Compression.deflate(Deflater.BEST_COMPRESSION) : Compression.NONE;
+         return this;
+      }
+
+      /**
+       * Configures compression of sent reports.
+       * <p>
+       *    The server must support the content encoding. Default is no compression.
+       * </p>
+       * @param compression The compression.
+       * @return A self-reference.
+       */
+      public Builder withCompression(final Compression compression) {
+         this.compression = compression;
          return this;
       }
 
@@ -224,6 +258,33 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
          return this;
       }
 
+      /**
+       * Configures when unchanged numeric gauges are skipped, if skipping unchanged metrics.
+       * <p>
+       *    A gauge is unchanged if the difference from the last reported value is within either epsilon.
+       *    Default is '0', so only equal values are skipped.
+       * </p>
+       * @param absoluteEpsilon The maximum absolute difference.
+       * @param relativeEpsilon The maximum difference relative to the last reported value.
+       * @return A self-reference.
+       */
+      public Builder withGaugeEpsilon(final double absoluteEpsilon, final double relativeEpsilon) {
+         this.absoluteGaugeEpsilon = absoluteEpsilon;
+         this.relativeGaugeEpsilon = relativeEpsilon;
+         return this;
+      }
+
+      /**
+       * Sets the number of reports after which an unchanged metric is reported anyway.
+       * Default is {@value ChangeSuppressor#DEFAULT_KEYFRAME_INTERVAL}.
+       * @param unchangedKeyframeInterval The number of reports. If < 1, unchanged metrics are never reported.
+       * @return A self-reference.
+       */
+      public Builder withUnchangedKeyframeInterval(final int unchangedKeyframeInterval) {
+         this.unchangedKeyframeInterval = unchangedKeyframeInterval;
+         return this;
+      }
+
       /**
        * Sets the HDR histogram report mode. Default is {@code SNAPSHOT}.
        * @param hdrReport The HDR report mode.
@@ -234,16 +295,144 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
          return this;
       }
 
+      /**
+       * Sets the transport used to send reports.
+       * <p>
+       *    The default transport sends asynchronously over persistent connections,
+       *    with at most {@value HttpTransport#DEFAULT_MAX_IN_FLIGHT} reports in-flight.
+       *    The transport is shutdown when the reporter is stopped.
+       * </p>
+       * @param transport The transport.
+       * @return A self-reference.
+       */
+      public Builder withTransport(final Transport transport) {
+         this.transport = transport;
+         return this;
+      }
+
+      /**
+       * Configures recycling of HDR timer and histogram snapshots.
+       * <p>
+       *    Each snapshot resets the interval histogram, so the reporter is expected to be the only one
+       *    that takes snapshots. When enabled (the default), reservoirs are switched to recycle snapshots
+       *    instead of copying histograms. Disable if other reporters take snapshots of the same metrics.
+       * </p>
+       * @param recycleSnapshots Should snapshots be recycled?
+       * @return A self-reference.
+       * @see HDRReservoir#recycleSnapshots()
+       */
+      public Builder withSnapshotRecycling(final boolean recycleSnapshots) {
+         this.recycleSnapshots = recycleSnapshots;
+         return this;
+      }
+
+      /**
+       * Configures delta encoding of sent reports.
+       * <p>
+       *    After the first report, only metric ids and changed values are sent.
+       *    The server must support {@value DeltaReportCodec#CONTENT_TYPE}.
+       *    Reports that fail are buffered for replay in the standard format.
+       * </p>
+       * @param deltaEncoding Should delta encoding be used?
+       * @return A self-reference.
+       */
+      public Builder withDeltaEncoding(final boolean deltaEncoding) {
+         this.deltaEncoding = deltaEncoding;
+         return this;
+      }
+
+      /**
+       * Splits the registry into shards, built in parallel and sent as separate reports with the same timestamp.
+       * <p>
+       *    Shards are built on a pool with at most one thread per available processor.
+       *    The default transport allows at least one report in-flight for each shard.
+       *    With delta encoding, each shard has its own delta session.
+       * </p>
+       * @param shardCount The number of shards. If < 2, the registry is reported as one report.
+       * @param shardBy Selects how metrics are assigned to shards.
+       * @return A self-reference.
+       */
+      public Builder withShards(final int shardCount, final ShardBy shardBy) {
+         this.shardCount = shardCount;
+         this.shardBy = shardBy;
+         return this;
+      }
+
+      /**
+       * Sets the maximum size of a report, before compression.
+       * <p>
+       *    Larger reports (or shards) are split, between metrics, into several reports with the same timestamp.
+       *    A single metric larger than the maximum is sent in a report by itself.
+       *    Parts are sent in sequence, with at most one part for each shard in-flight.
+       *    Delta-encoded reports are not split.
+       * </p>
+       * @param maxReportBytes The maximum size. If < 1, reports are not split.
+       * @return A self-reference.
+       */
+      public Builder withMaxReportBytes(final int maxReportBytes) {
+         this.maxReportBytes = maxReportBytes;
+         return this;
+      }
+
+      /**
+       * Configures the buffer for reports that could not be sent.
+       * <p>
+       *    Buffered reports are replayed, oldest first, when the server recovers.
+       *    Default is {@value #DEFAULT_MAX_BUFFERED_REPORTS} reports, {@value #DEFAULT_MAX_BUFFERED_BYTES} bytes.
+       * </p>
+       * @param maxReports The maximum number of reports held in memory. If < 1, reports are not buffered.
+       * @param maxBytes The maximum number of bytes held in memory.
+       * @return A self-reference.
+       */
+      public Builder withReportBuffer(final int maxReports, final long maxBytes) {
+         this.maxBufferedReports = maxReports;
+         this.maxBufferedBytes = maxBytes;
+         return this;
+      }
+
+      /**
+       * Configures a directory for buffered reports that don't fit in memory.
+       * <p>
+       *    Reports left in the directory by a previous reporter are replayed.
+       * </p>
+       * @param directory The directory.
+       * @param maxBytes The maximum number of bytes held in the directory.
+       * @return A self-reference.
+       */
+      public Builder withReportBufferOverflow(final File directory, final long maxBytes) {
+         this.bufferOverflowDirectory = directory;
+         this.maxBufferOverflowBytes = maxBytes;
+         return this;
+      }
+
       /**
        * Builds an immutable reporter instance.
        * @return The immutable reporter.
        */
       public EssemReporter build() {
-         return new EssemReporter(uri, authValue, deflate,
+         final int shards = Math.max(shardCount, 1);
+         return new EssemReporter(uri, authValue, compression,
                  registry, clock, application, host, instance, filter, rateUnit, durationUnit,
-                 skipUnchangedMetrics, hdrReport);
+                 skipUnchangedMetrics ?
+                         new ChangeSuppressor(absoluteGaugeEpsilon, relativeGaugeEpsilon, unchangedKeyframeInterval) : null,
+                 hdrReport, transport != null ? transport :
+                         new HttpTransport(Math.max(HttpTransport.DEFAULT_MAX_IN_FLIGHT, shards),
+                                 HttpTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS, HttpTransport.DEFAULT_READ_TIMEOUT_MILLIS),
+                 maxBufferedReports > 0 ?
+                         new ReportBuffer(maxBufferedReports, maxBufferedBytes, bufferOverflowDirectory, maxBufferOverflowBytes) : null,
+                 deltaEncoding, shards, shardBy, maxReportBytes, recycleSnapshots);
       }
 
+      /**
+       * The default maximum number of buffered reports held in memory ('60').
+       */
+      public static final int DEFAULT_MAX_BUFFERED_REPORTS = 60;
+
+      /**
+       * The default maximum number of buffered bytes held in memory ('8388608').
+       */
+      public static final long DEFAULT_MAX_BUFFERED_BYTES = 8L * 1024L * 1024L;
+
 
       private final URI uri;
       private final MetricRegistry registry;
@@ -253,12 +442,25 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
       private String application;
       private String host;
       private String instance;
-      private boolean deflate;
+      private Compression compression = Compression.NONE;
       private TimeUnit rateUnit = TimeUnit.SECONDS;
       private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
       private boolean skipUnchangedMetrics = false;
       private MetricFilter filter;
       private HdrReport hdrReport = HdrReport.SNAPSHOT;
+      private boolean recycleSnapshots = true;
+      private Transport transport;
+      private int maxBufferedReports = DEFAULT_MAX_BUFFERED_REPORTS;
+      private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+      private File bufferOverflowDirectory;
+      private long maxBufferOverflowBytes;
+      private boolean deltaEncoding;
+      private double absoluteGaugeEpsilon;
+      private double relativeGaugeEpsilon;
+      private int unchangedKeyframeInterval = ChangeSuppressor.DEFAULT_KEYFRAME_INTERVAL;
+      private int shardCount = 1;
+      private ShardBy shardBy = ShardBy.NAME;
+      private int maxReportBytes;
    }
 
    protected EssemReporter(final URI uri,
@@ -274,18 +476,115 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
                            final TimeUnit durationUnit,
                            final boolean skipUnchangedMetrics,
                            final HdrReport hdrReport) {
+      this(uri, authValue, deflate ? Compression.deflate(Deflater.BEST_COMPRESSION) : Compression.NONE,
+              registry, clock, application, host, instance, filter, rateUnit, durationUnit,
+              skipUnchangedMetrics ? new ChangeSuppressor(0.0, 0.0, ChangeSuppressor.DEFAULT_KEYFRAME_INTERVAL) : null,
+              hdrReport, new HttpTransport(),
+              new ReportBuffer(Builder.DEFAULT_MAX_BUFFERED_REPORTS, Builder.DEFAULT_MAX_BUFFERED_BYTES, null, 0L),
+              false, 1, ShardBy.NAME, 0, false);
+   }
+
+   protected EssemReporter(final URI uri,
+                           final String authValue,
+                           final Compression compression,
+                           final MetricRegistry registry,
+                           final Clock clock,
+                           final String application,
+                           final String host,
+                           final String instance,
+                           final MetricFilter filter,
+                           final TimeUnit rateUnit,
+                           final TimeUnit durationUnit,
+                           final ChangeSuppressor changeSuppressor,
+                           final HdrReport hdrReport,
+                           final Transport transport,
+                           final ReportBuffer buffer,
+                           final boolean deltaEncoding,
+                           final int shardCount,
+                           final ShardBy shardBy,
+                           final int maxReportBytes,
+                           final boolean recycleSnapshots) {
       super(registry, "essem-reporter", filter, rateUnit, durationUnit);
+      this.recycleSnapshots = recycleSnapshots;
       this.uri = uri;
       this.authValue = authValue;
-      this.deflate = deflate;
+      this.compression = compression;
+      this.shardBy = shardBy;
+      this.writers = new ReportWriter[shardCount];
+      this.deltaEncoders = deltaEncoding ? new DeltaReportCodec.Encoder[shardCount] : null;
+      for(int shard = 0; shard < shardCount; shard++) {
+         writers[shard] = new ReportWriter(compression.codec != Compression.Codec.NONE ?
+                 new Compressor(compression, compressTime, compressionRatio) : null, maxReportBytes);
+         if(deltaEncoders != null) {
+            deltaEncoders[shard] = new DeltaReportCodec.Encoder(DeltaReportCodec.DEFAULT_KEYFRAME_INTERVAL);
+         }
+      }
+      this.shardService = shardCount > 1 ?
+              Executors.newFixedThreadPool(Math.min(shardCount, Runtime.getRuntime().availableProcessors()),
+                      new ThreadFactoryBuilder().setNameFormat("essem-reporter-shard-%d").setDaemon(true).build()) : null;
       this.clock = clock;
       this.application = application;
       this.host = host;
       this.instance = instance;
       this.rateUnit = rateUnit;
       this.durationUnit = durationUnit;
-      this.lastReportedCount = skipUnchangedMetrics ? Maps.<String, Long>newConcurrentMap() : null;
+      this.changeSuppressor = changeSuppressor;
       this.hdrReport = hdrReport;
+      this.transport = transport;
+      this.buffer = buffer;
+      ImmutableMap.Builder<String, Metric> metrics = ImmutableMap.builder();
+      metrics.put("reports", sendTimer);
+      metrics.put("failed-reports", sendErrors);
+      metrics.put("report-size-bytes", reportSize);
+      metrics.put("skipped-unchanged", skippedUnchanged);
+      metrics.put("report-count", new Gauge<Integer>() {
+         public Integer getValue() {
+            return lastMetricCount.get();
+         }
+      });
+      metrics.put("report-parts", new Gauge<Integer>() {
+         public Integer getValue() {
+            return lastReportParts.get();
+         }
+      });
+      if(changeSuppressor != null) {
+         metrics.put("suppression-ratio", new Gauge<Double>() {
+            public Double getValue() {
+               return changeSuppressor.getSuppressionRatio();
+            }
+         });
+      }
+      if(compression.codec != Compression.Codec.NONE) {
+         metrics.put("compress-time", compressTime);
+         metrics.put("compression-ratio-percent", compressionRatio);
+      }
+      if(buffer != null) {
+         metrics.putAll(buffer.getMetrics());
+      }
+      this.metrics = metrics.build();
+      this.headers = buildHeaders(PROTOBUF_CONTENT_TYPE, authValue, compression.getContentEncoding());
+      this.deltaHeaders = buildHeaders(DeltaReportCodec.CONTENT_TYPE, authValue, compression.getContentEncoding());
+   }
+
+   /**
+    * Builds the headers sent with every report.
+    * @param contentType The content type.
+    * @param authValue The authorization header value, if any.
+    * @param contentEncoding The content encoding, or {@code null} if reports are not compressed.
+    * @return The headers.
+    */
+   private static ImmutableMap<String, String> buildHeaders(final String contentType,
+                                                            final String authValue,
+                                                            final String contentEncoding) {
+      ImmutableMap.Builder<String, String> headers = ImmutableMap.builder();
+      headers.put(CONTENT_TYPE_HEADER, contentType);
+      if(!Strings.isNullOrEmpty(authValue)) {
+         headers.put(AUTHORIZATION_HEADER, authValue);
+      }
+      if(contentEncoding != null) {
+         headers.put(CONTENT_ENCODING_HEADER, contentEncoding);
+      }
+      return headers.build();
    }
 
    /**
@@ -321,147 +620,408 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
                                                 SortedMap<String, Histogram> histograms,
                                                 SortedMap<String, Meter> meters,
                                                 SortedMap<String, Timer> timers) {
+      beginReport(gauges, counters, histograms, meters, timers);
+      try {
+         return buildReport(gauges, counters, histograms, meters, timers, clock.getTime(), ALL_SHARDS);
+      } finally {
+         endReport();
+      }
+   }
+
+   /**
+    * Builds a report message for a shard.
+    * <p>
+    *    The metrics must be only those in the shard.
+    * </p>
+    * @param timestamp The report timestamp.
+    * @param shard The shard, or {@code ALL_SHARDS}.
+    * @return The report.
+    */
+   private ReportProtos.EssemReport buildReport(SortedMap<String, Gauge> gauges,
+                                                SortedMap<String, Counter> counters,
+                                                SortedMap<String, Histogram> histograms,
+                                                SortedMap<String, Meter> meters,
+                                                SortedMap<String, Timer> timers,
+                                                final long timestamp,
+                                                final int shard) {
 
       ReportProtos.EssemReport.Builder builder = ReportProtos.EssemReport.newBuilder();
-      builder.setTimestamp(clock.getTime());
+      builder.setTimestamp(timestamp);
       builder.setDurationUnit(toProto(durationUnit));
       builder.setRateUnit(toProto(rateUnit));
       if(application != null) builder.setApplication(application);
       if(host != null) builder.setHost(host);
       if(instance != null) builder.setInstance(instance);
 
-      lastMetricCount.set(gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size());
+      final ReportWriter writer = writer(shard);
+      synchronized(writer) {
+         addMetrics(gauges, counters, histograms, meters, timers, writer.values(), writer.protoSink(builder));
+      }
+      return builder.build();
+   }
 
-      for(Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
-         Object val = gauge.getValue().getValue();
-         ReportProtos.EssemReport.Gauge.Builder gaugeBuilder = builder.addGaugeBuilder();
-         gaugeBuilder.setName(gauge.getKey());
-         if(val instanceof Number) {
-            gaugeBuilder.setValue(((Number)val).doubleValue());
+   /**
+    * Writes reports directly in the protobuf format, without building messages.
+    * @param registry The registry.
+    * @return The serialized reports for all shards, compressed if configured.
+    */
+   List<byte[]> writeReports(final MetricRegistry registry) {
+      final SortedMap<String, Gauge> gauges = registry.getGauges();
+      final SortedMap<String, Counter> counters = registry.getCounters();
+      final SortedMap<String, Histogram> histograms = registry.getHistograms();
+      final SortedMap<String, Meter> meters = registry.getMeters();
+      final SortedMap<String, Timer> timers = registry.getTimers();
+      beginReport(gauges, counters, histograms, meters, timers);
+      try {
+         return writeReports(gauges, counters, histograms, meters, timers, clock.getTime());
+      } finally {
+         endReport();
+      }
+   }
+
+   /**
+    * Writes reports for all shards, in parallel if sharded.
+    * <p>
+    *    Shards with no metrics to report are skipped.
+    * </p>
+    * @param timestamp The report timestamp.
+    * @return The serialized reports, in shard order.
+    */
+   private List<byte[]> writeReports(final SortedMap<String, Gauge> gauges,
+                                     final SortedMap<String, Counter> counters,
+                                     final SortedMap<String, Histogram> histograms,
+                                     final SortedMap<String, Meter> meters,
+                                     final SortedMap<String, Timer> timers,
+                                     final long timestamp) {
+      if(shardService == null) {
+         return writeReport(gauges, counters, histograms, meters, timers, timestamp, ALL_SHARDS);
+      }
+
+      final ShardMetrics[] shards = partition(gauges, counters, histograms, meters, timers);
+      final List<Callable<List<byte[]>>> tasks = Lists.newArrayListWithCapacity(writers.length);
+      for(int shard = 0; shard < writers.length; shard++) {
+         final int currShard = shard;
+         final ShardMetrics metrics = shards[shard];
+         tasks.add(new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() {
+               return writeReport(metrics.gauges, metrics.counters, metrics.histograms, metrics.meters, metrics.timers,
+                       timestamp, currShard);
+            }
+         });
+      }
+
+      final List<byte[]> reports = Lists.newArrayListWithCapacity(writers.length);
+      for(List<byte[]> shardReports : invokeShards(tasks)) {
+         reports.addAll(shardReports);
+      }
+      return reports;
+   }
+
+   /**
+    * Writes the reports for a shard.
+    * <p>
+    *    The metrics must be only those in the shard.
+    * </p>
+    * @param timestamp The report timestamp.
+    * @param shard The shard, or {@code ALL_SHARDS}.
+    * @return The serialized reports. Empty for a shard with no metrics to report.
+    */
+   private List<byte[]> writeReport(SortedMap<String, Gauge> gauges,
+                                    SortedMap<String, Counter> counters,
+                                    SortedMap<String, Histogram> histograms,
+                                    SortedMap<String, Meter> meters,
+                                    SortedMap<String, Timer> timers,
+                                    final long timestamp,
+                                    final int shard) {
+      final ReportWriter writer = writer(shard);
+      synchronized(writer) {
+         final ReportWriter.Sink sink = writer.begin(timestamp, toProto(rateUnit), toProto(durationUnit), application, host, instance);
+         addMetrics(gauges, counters, histograms, meters, timers, writer.values(), sink);
+         return writer.finish(shard != ALL_SHARDS);
+      }
+   }
+
+   /**
+    * Builds report messages for all shards, in parallel if sharded.
+    * @param timestamp The report timestamp.
+    * @return The reports, in shard order.
+    */
+   private List<ReportProtos.EssemReport> buildReports(final SortedMap<String, Gauge> gauges,
+                                                       final SortedMap<String, Counter> counters,
+                                                       final SortedMap<String, Histogram> histograms,
+                                                       final SortedMap<String, Meter> meters,
+                                                       final SortedMap<String, Timer> timers,
+                                                       final long timestamp) {
+      if(shardService == null) {
+         return ImmutableList.of(buildReport(gauges, counters, histograms, meters, timers, timestamp, ALL_SHARDS));
+      }
+
+      final ShardMetrics[] shards = partition(gauges, counters, histograms, meters, timers);
+      final List<Callable<ReportProtos.EssemReport>> tasks = Lists.newArrayListWithCapacity(writers.length);
+      for(int shard = 0; shard < writers.length; shard++) {
+         final int currShard = shard;
+         final ShardMetrics metrics = shards[shard];
+         tasks.add(new Callable<ReportProtos.EssemReport>() {
+            @Override
+            public ReportProtos.EssemReport call() {
+               return buildReport(metrics.gauges, metrics.counters, metrics.histograms, metrics.meters, metrics.timers,
+                       timestamp, currShard);
+            }
+         });
+      }
+      return invokeShards(tasks);
+   }
+
+   /**
+    * Runs a task for each shard on the shard pool, waiting for all to complete.
+    * @param tasks The tasks.
+    * @return The results, in task order.
+    */
+   private <T> List<T> invokeShards(final List<Callable<T>> tasks) {
+      try {
+         final List<T> results = Lists.newArrayListWithCapacity(tasks.size());
+         for(Future<T> future : shardService.invokeAll(tasks)) {
+            results.add(future.get());
+         }
+         return results;
+      } catch(InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while building reports", ie);
+      } catch(ExecutionException ee) {
+         throw Throwables.propagate(ee.getCause());
+      }
+   }
+
+   /**
+    * Gets the writer for a shard.
+    * @param shard The shard, or {@code ALL_SHARDS}.
+    * @return The writer.
+    */
+   private ReportWriter writer(final int shard) {
+      return shard == ALL_SHARDS ? writers[0] : writers[shard];
+   }
+
+   /**
+    * Gets the shard for a metric name.
+    * @param name The name.
+    * @return The shard.
+    */
+   private int shardOf(final String name) {
+      int h;
+      if(shardBy == ShardBy.PREFIX) {
+         final int end = name.lastIndexOf('.');
+         if(end < 0) {
+            h = name.hashCode();
          } else {
-            gaugeBuilder.setComment(val.toString());
+            h = 0;
+            for(int i = 0; i < end; i++) {
+               h = 31 * h + name.charAt(i);
+            }
          }
+      } else {
+         h = name.hashCode();
       }
+      h ^= (h >>> 16);
+      return (h & Integer.MAX_VALUE) % writers.length;
+   }
 
-      for(Map.Entry<String, Counter> counter : counters.entrySet()) {
-         String name = counter.getKey();
-         long value = counter.getValue().getCount();
-         if(!skipCountedReport(name, value)) {
-            builder.addCounterBuilder()
-                    .setName(name)
-                    .setCount(value);
+   /**
+    * Splits metrics into shards, computing the shard for each name once.
+    * @return The metrics for each shard.
+    */
+   private ShardMetrics[] partition(SortedMap<String, Gauge> gauges,
+                                    SortedMap<String, Counter> counters,
+                                    SortedMap<String, Histogram> histograms,
+                                    SortedMap<String, Meter> meters,
+                                    SortedMap<String, Timer> timers) {
+      final ShardMetrics[] shards = new ShardMetrics[writers.length];
+      for(int shard = 0; shard < shards.length; shard++) {
+         shards[shard] = new ShardMetrics();
+      }
+      for(Map.Entry<String, Gauge> nv : gauges.entrySet()) {
+         shards[shardOf(nv.getKey())].gauges.put(nv.getKey(), nv.getValue());
+      }
+      for(Map.Entry<String, Counter> nv : counters.entrySet()) {
+         shards[shardOf(nv.getKey())].counters.put(nv.getKey(), nv.getValue());
+      }
+      for(Map.Entry<String, Histogram> nv : histograms.entrySet()) {
+         shards[shardOf(nv.getKey())].histograms.put(nv.getKey(), nv.getValue());
+      }
+      for(Map.Entry<String, Meter> nv : meters.entrySet()) {
+         shards[shardOf(nv.getKey())].meters.put(nv.getKey(), nv.getValue());
+      }
+      for(Map.Entry<String, Timer> nv : timers.entrySet()) {
+         shards[shardOf(nv.getKey())].timers.put(nv.getKey(), nv.getValue());
+      }
+      return shards;
+   }
+
+   /**
+    * The metrics assigned to one shard.
+    */
+   private static final class ShardMetrics {
+      final SortedMap<String, Gauge> gauges = Maps.newTreeMap();
+      final SortedMap<String, Counter> counters = Maps.newTreeMap();
+      final SortedMap<String, Histogram> histograms = Maps.newTreeMap();
+      final SortedMap<String, Meter> meters = Maps.newTreeMap();
+      final SortedMap<String, Timer> timers = Maps.newTreeMap();
+   }
+
+   /**
+    * Switches the reservoir that took a HDR snapshot to recycle later snapshots.
+    * @param snapshot The snapshot.
+    */
+   private static void recycleSnapshots(final Snapshot snapshot) {
+      if(snapshot instanceof HDRReservoir.HDRSnapshot) {
+         final HDRReservoir reservoir = ((HDRReservoir.HDRSnapshot)snapshot).getReservoir();
+         if(reservoir != null) {
+            reservoir.recycleSnapshots();
          }
       }
+   }
+
+   /**
+    * Does a report contain any metrics?
+    * @param report The report.
+    * @return Are there metrics?
+    */
+   private static boolean hasMetrics(final ReportProtos.EssemReport report) {
+      return report.getGaugeCount() > 0 || report.getCounterCount() > 0 || report.getMeterCount() > 0 ||
+              report.getHistogramCount() > 0 || report.getTimerCount() > 0;
+   }
+
+   /**
+    * Starts a report, recording the metric count.
+    */
+   private void beginReport(SortedMap<String, Gauge> gauges,
+                            SortedMap<String, Counter> counters,
+                            SortedMap<String, Histogram> histograms,
+                            SortedMap<String, Meter> meters,
+                            SortedMap<String, Timer> timers) {
+      lastMetricCount.set(gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size());
+      if(changeSuppressor != null) {
+         changeSuppressor.beginReport();
+      }
+   }
+
+   /**
+    * Ends a report, after all shards are complete.
+    */
+   private void endReport() {
+      if(changeSuppressor != null) {
+         changeSuppressor.endReport();
+      }
+   }
+
+   /**
+    * Adds metrics to a report, skipping those unchanged, if configured.
+    * <p>
+    *    Metrics are added in field number order, so a directly written report has
+    *    the same serialization as a built message. Must hold the lock for the shard's writer.
+    * </p>
+    * @param values The writer's reused value array.
+    * @param sink The sink.
+    */
+   private void addMetrics(SortedMap<String, Gauge> gauges,
+                           SortedMap<String, Counter> counters,
+                           SortedMap<String, Histogram> histograms,
+                           SortedMap<String, Meter> meters,
+                           SortedMap<String, Timer> timers,
+                           final double[] values,
+                           final ReportWriter.Sink sink) {
 
       for(Map.Entry<String, Meter> nv : meters.entrySet()) {
-         String name = nv.getKey();
          Meter meter = nv.getValue();
-         if(!skipCountedReport(name, meter.getCount())) {
-            builder.addMeterBuilder()
-                    .setName(name)
-                    .setCount(meter.getCount())
-                    .setOneMinuteRate(convertRate(meter.getOneMinuteRate()))
-                    .setFiveMinuteRate(convertRate(meter.getFiveMinuteRate()))
-                    .setFifteenMinuteRate(convertRate(meter.getFifteenMinuteRate()))
-                    .setMeanRate(convertRate(meter.getMeanRate()));
+         if(!skipCountedReport(meter, meter.getCount())) {
+            values[0] = convertRate(meter.getOneMinuteRate());
+            values[1] = convertRate(meter.getFiveMinuteRate());
+            values[2] = convertRate(meter.getFifteenMinuteRate());
+            values[3] = convertRate(meter.getMeanRate());
+            sink.meter(nv.getKey(), meter.getCount(), values);
          }
       }
 
-      for(Map.Entry<String, Histogram> nv : histograms.entrySet()) {
-         String name = nv.getKey();
-         Histogram histogram = nv.getValue();
-         if(!skipCountedReport(name, histogram.getCount())) {
-            Snapshot snapshot = histogram.getSnapshot();
-            final HDRReservoir.HDRSnapshot hdrSnapshot;
+      for(Map.Entry<String, Timer> nv : timers.entrySet()) {
+         Timer timer = nv.getValue();
+         if(!skipCountedReport(timer, timer.getCount())) {
+            Snapshot snapshot = timer.getSnapshot();
+            if(recycleSnapshots) recycleSnapshots(snapshot);
+            final org.HdrHistogram.Histogram hdrHistogram;
             if(snapshot instanceof HDRReservoir.HDRSnapshot && hdrReport != HdrReport.NONE) {
-               hdrSnapshot = (HDRReservoir.HDRSnapshot)snapshot;
-               switch(hdrReport) {
-                  case TOTAL:
-                     snapshot = hdrSnapshot.totalSnapshot();
-                     break;
-                  case SNAPSHOT:
-                     snapshot = hdrSnapshot.sinceLastSnapshot();
-                     break;
-               }
+               final HDRReservoir.HDRSnapshot hdrSnapshot = (HDRReservoir.HDRSnapshot)snapshot;
+               final HDRReservoir.HDRSnapshot sinceLastSnapshot = hdrSnapshot.sinceLastSnapshot();
+               snapshot = hdrReport == HdrReport.TOTAL ? hdrSnapshot.totalSnapshot() : sinceLastSnapshot;
+               hdrHistogram = sinceLastSnapshot.getHistogram();
             } else {
-               hdrSnapshot = null;
+               hdrHistogram = null;
             }
 
-            ReportProtos.EssemReport.Histogram.Builder histogramBuilder = builder.addHistogramBuilder();
-            histogramBuilder
-                    .setName(name)
-                    .setCount(histogram.getCount())
-                    .setMax(snapshot.getMax())
-                    .setMin(snapshot.getMin())
-                    .setMedian(snapshot.getMedian())
-                    .setMean(snapshot.getMean())
-                    .setStd(snapshot.getStdDev())
-                    .setPercentile75(snapshot.get75thPercentile())
-                    .setPercentile95(snapshot.get95thPercentile())
-                    .setPercentile98(snapshot.get98thPercentile())
-                    .setPercentile99(snapshot.get99thPercentile())
-                    .setPercentile999(snapshot.get999thPercentile());
-
-            if(hdrSnapshot != null) {
-               org.HdrHistogram.Histogram storedHistogram = hdrSnapshot.sinceLastSnapshot().getHistogram();
-               ByteBuffer buf = ByteBuffer.allocate(storedHistogram.getNeededByteBufferCapacity());
-               int compressedSize = storedHistogram.encodeIntoCompressedByteBuffer(buf);
-               buf.rewind();
-               histogramBuilder.setHdrHistogram(ByteString.copyFrom(buf, compressedSize));
-            }
+            values[0] = convertRate(timer.getOneMinuteRate());
+            values[1] = convertRate(timer.getFiveMinuteRate());
+            values[2] = convertRate(timer.getFifteenMinuteRate());
+            values[3] = convertRate(timer.getMeanRate());
+            values[4] = convertDuration(snapshot.getMax());
+            values[5] = convertDuration(snapshot.getMean());
+            values[6] = convertDuration(snapshot.getMin());
+            values[7] = convertDuration(snapshot.getStdDev());
+            values[8] = convertDuration(snapshot.getMedian());
+            values[9] = convertDuration(snapshot.get75thPercentile());
+            values[10] = convertDuration(snapshot.get95thPercentile());
+            values[11] = convertDuration(snapshot.get98thPercentile());
+            values[12] = convertDuration(snapshot.get99thPercentile());
+            values[13] = convertDuration(snapshot.get999thPercentile());
+            sink.timer(nv.getKey(), timer.getCount(), values, hdrHistogram);
          }
       }
 
-      for(Map.Entry<String, Timer> nv : timers.entrySet()) {
-         final String name = nv.getKey();
-         Timer timer = nv.getValue();
-         if(!skipCountedReport(name, timer.getCount())) {
-            Snapshot snapshot = timer.getSnapshot();
-            final HDRReservoir.HDRSnapshot hdrSnapshot;
+      for(Map.Entry<String, Counter> counter : counters.entrySet()) {
+         long value = counter.getValue().getCount();
+         if(!skipCountedReport(counter.getValue(), value)) {
+            sink.counter(counter.getKey(), value);
+         }
+      }
+
+      for(Map.Entry<String, Histogram> nv : histograms.entrySet()) {
+         Histogram histogram = nv.getValue();
+         if(!skipCountedReport(histogram, histogram.getCount())) {
+            Snapshot snapshot = histogram.getSnapshot();
+            if(recycleSnapshots) recycleSnapshots(snapshot);
+            final org.HdrHistogram.Histogram hdrHistogram;
             if(snapshot instanceof HDRReservoir.HDRSnapshot && hdrReport != HdrReport.NONE) {
-               hdrSnapshot = (HDRReservoir.HDRSnapshot)snapshot;
-               switch(hdrReport) {
-                  case TOTAL:
-                     snapshot = hdrSnapshot.totalSnapshot();
-                     break;
-                  case SNAPSHOT:
-                     snapshot = hdrSnapshot.sinceLastSnapshot();
-                     break;
-               }
+               final HDRReservoir.HDRSnapshot hdrSnapshot = (HDRReservoir.HDRSnapshot)snapshot;
+               final HDRReservoir.HDRSnapshot sinceLastSnapshot = hdrSnapshot.sinceLastSnapshot();
+               snapshot = hdrReport == HdrReport.TOTAL ? hdrSnapshot.totalSnapshot() : sinceLastSnapshot;
+               hdrHistogram = sinceLastSnapshot.getHistogram();
             } else {
-               hdrSnapshot = null;
+               hdrHistogram = null;
             }
 
-            ReportProtos.EssemReport.Timer.Builder timerBuilder = builder.addTimerBuilder();
-            timerBuilder
-                    .setName(nv.getKey())
-                    .setOneMinuteRate(convertRate(timer.getOneMinuteRate()))
-                    .setFiveMinuteRate(convertRate(timer.getFiveMinuteRate()))
-                    .setFifteenMinuteRate(convertRate(timer.getFifteenMinuteRate()))
-                    .setMeanRate(convertRate(timer.getMeanRate()))
-                    .setCount(timer.getCount())
-                    .setMax(convertDuration(snapshot.getMax()))
-                    .setMin(convertDuration(snapshot.getMin()))
-                    .setMedian(convertDuration(snapshot.getMedian()))
-                    .setMean(convertDuration(snapshot.getMean()))
-                    .setStd(convertDuration(snapshot.getStdDev()))
-                    .setPercentile75(convertDuration(snapshot.get75thPercentile()))
-                    .setPercentile95(convertDuration(snapshot.get95thPercentile()))
-                    .setPercentile98(convertDuration(snapshot.get98thPercentile()))
-                    .setPercentile99(convertDuration(snapshot.get99thPercentile()))
-                    .setPercentile999(convertDuration(snapshot.get999thPercentile()));
-
-            if(hdrSnapshot != null) {
-               org.HdrHistogram.Histogram storedHistogram = hdrSnapshot.sinceLastSnapshot().getHistogram();
-               ByteBuffer buf = ByteBuffer.allocate(storedHistogram.getNeededByteBufferCapacity());
-               int compressedSize = storedHistogram.encodeIntoCompressedByteBuffer(buf);
-               buf.rewind();
-               timerBuilder.setHdrHistogram(ByteString.copyFrom(buf, compressedSize));
-            }
+            values[0] = snapshot.getMax();
+            values[1] = snapshot.getMean();
+            values[2] = snapshot.getMin();
+            values[3] = snapshot.getStdDev();
+            values[4] = snapshot.getMedian();
+            values[5] = snapshot.get75thPercentile();
+            values[6] = snapshot.get95thPercentile();
+            values[7] = snapshot.get98thPercentile();
+            values[8] = snapshot.get99thPercentile();
+            values[9] = snapshot.get999thPercentile();
+            sink.histogram(nv.getKey(), histogram.getCount(), values, hdrHistogram);
          }
       }
 
-      return builder.build();
+      for(Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+         Object val = gauge.getValue().getValue();
+         if(val instanceof Number) {
+            double value = ((Number)val).doubleValue();
+            if(!skipGaugeReport(gauge.getValue(), value)) {
+               sink.gauge(gauge.getKey(), value);
+            }
+         } else {
+            sink.gauge(gauge.getKey(), val.toString());
+         }
+      }
    }
 
    @Override
@@ -471,68 +1031,274 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
                       SortedMap<String, Meter> meters,
                       SortedMap<String, Timer> timers) {
 
-      Timer.Context ctx = sendTimer.time();
+      final boolean backlog = buffer != null && !buffer.isEmpty();
+      final long timestamp = clock.getTime();
+      beginReport(gauges, counters, histograms, meters, timers);
       try {
-         int responseCode = send(uri, buildReport(gauges, counters, histograms, meters, timers));
-         if(responseCode / 100 != 2) {
-            LOGGER.warn("EssemReporter: Unable to report (" + responseCode + ")");
+         if(deltaEncoders != null && !backlog) {
+            final List<ReportProtos.EssemReport> reports = buildReports(gauges, counters, histograms, meters, timers, timestamp);
+            int parts = 0;
+            for(int shard = 0; shard < reports.size(); shard++) {
+               final ReportProtos.EssemReport report = reports.get(shard);
+               if(shardService == null || hasMetrics(report)) { //Skip empty shards
+                  sendDelta(report, writers[shard], deltaEncoders[shard]);
+                  parts++;
+               }
+            }
+            lastReportParts.set(parts);
+            return;
+         }
+
+         final List<byte[]> reports = writeReports(gauges, counters, histograms, meters, timers, timestamp);
+         lastReportParts.set(reports.size());
+         for(byte[] reportBytes : reports) {
+            reportSize.update(reportBytes.length);
+            if(backlog) {
+               buffer.add(reportBytes); //Keep reports in order behind those waiting for replay.
+            }
+         }
+         if(backlog) {
+            replay();
          } else {
-            LOGGER.debug("EssemReporter: Reported (" + responseCode + ")");
+            sendParts(reports);
          }
-      } catch(IOException ioe) {
-         ioe.printStackTrace();
-         LOGGER.warn("Unable to report to Essem", ioe);
-         sendErrors.mark();
       } finally {
-         ctx.stop();
+         endReport();
       }
    }
 
-   private int send(final URI uri, final ReportProtos.EssemReport report) throws IOException {
-      HttpURLConnection conn = null;
-      InputStream is = null;
-      try {
-         URL url = uri.toURL();
-         conn = (HttpURLConnection)url.openConnection();
-         if(conn != null) {
-            conn.setRequestMethod("PUT");
-            conn.setRequestProperty(CONTENT_TYPE_HEADER, PROTOBUF_CONTENT_TYPE);
-            if(!Strings.isNullOrEmpty(authValue)) {
-               conn.setRequestProperty(AUTHORIZATION_HEADER, authValue);
+   /**
+    * Serializes a report in the standard format, compressing if configured.
+    * @param report The report.
+    * @param writer The writer for the report's shard.
+    * @return The serialized report.
+    */
+   private byte[] serialize(final ReportProtos.EssemReport report, final ReportWriter writer) {
+      final byte[] reportBytes;
+      synchronized(writer) {
+         reportBytes = writer.compress(report.toByteArray());
+      }
+      reportSize.update(reportBytes.length);
+      return reportBytes;
+   }
+
+   /**
+    * Sends a delta-encoded report.
+    * <p>
+    *    If the send fails, or the server rejects the report, the next report is a keyframe.
+    *    If the report may be retried, it is buffered in the standard format, so replay
+    *    does not depend on the server's delta state.
+    * </p>
+    * @param report The report.
+    * @param writer The writer for the report's shard.
+    * @param deltaEncoder The delta encoder for the report's shard.
+    */
+   private void sendDelta(final ReportProtos.EssemReport report,
+                          final ReportWriter writer,
+                          final DeltaReportCodec.Encoder deltaEncoder) {
+      final byte[] reportBytes;
+      synchronized(writer) {
+         reportBytes = writer.compress(deltaEncoder.encode(report));
+      }
+      reportSize.update(reportBytes.length);
+
+      final Timer.Context ctx = sendTimer.time();
+      Futures.addCallback(transport.send(uri, deltaHeaders, reportBytes), new FutureCallback<Integer>() {
+         @Override
+         public void onSuccess(final Integer responseCode) {
+            ctx.stop();
+            if(responseCode / 100 == 2) {
+               LOGGER.debug("EssemReporter: Reported (" + responseCode + ")");
+               if(buffer != null && !buffer.isEmpty()) {
+                  replay();
+               }
+            } else {
+               deltaEncoder.requireKeyframe();
+               if(responseCode != SC_CONFLICT) {
+                  LOGGER.warn("EssemReporter: Unable to report (" + responseCode + ")");
+               }
+               if(buffer != null && (responseCode == SC_CONFLICT || isRetryable(responseCode))) {
+                  buffer.add(serialize(report, writer));
+               }
             }
-            conn.setDoOutput(true);
-            conn.setInstanceFollowRedirects(false);
+         }
 
-            byte[] reportBytes = report.toByteArray();
-            if(deflate) {
-               conn.setRequestProperty(CONTENT_ENCODING_HEADER, DEFLATE_ENCODING);
-               reportBytes = deflate(reportBytes);
+         @Override
+         public void onFailure(final Throwable t) {
+            ctx.stop();
+            deltaEncoder.requireKeyframe();
+            logFailure(t);
+            if(buffer != null) {
+               buffer.add(serialize(report, writer));
             }
-            conn.setFixedLengthStreamingMode(reportBytes.length);
-            reportSize.update(reportBytes.length);
-            conn.connect();
-            OutputStream os = conn.getOutputStream();
-            os.write(reportBytes);
-            os.flush();
-            os.close();
-            int code = conn.getResponseCode();
-            is = code / 100 == 2 ? conn.getInputStream() : conn.getErrorStream();
-            discardInputAndClose(is);
-            is = null;
-            return code;
-         } else {
-            throw new IOException("Unable to 'PUT' to " + uri.toString());
          }
-      } catch(IOException ioe) {
-         if(conn != null && is == null) discardInputAndClose(conn.getErrorStream());
-         throw ioe;
-      } finally {
-         if(conn != null) {
-            conn.disconnect();
+      });
+   }
+
+   /**
+    * Sends the parts of a report, with at most one part for each shard in-flight.
+    * <p>
+    *    The next part is sent when the previous completes, so a report split into more parts than
+    *    the transport's in-flight window is not rejected.
+    * </p>
+    * @param reports The serialized reports.
+    */
+   private void sendParts(final List<byte[]> reports) {
+      final int chains = Math.min(writers.length, reports.size());
+      for(int chain = 0; chain < chains; chain++) {
+         sendPart(reports, chain, chains);
+      }
+   }
+
+   /**
+    * Sends a part of a report, then the next part in the same chain.
+    * @param reports The serialized reports.
+    * @param index The index of the part to send.
+    * @param stride The number of parts between parts in the same chain.
+    */
+   private void sendPart(final List<byte[]> reports, final int index, final int stride) {
+      final int nextIndex = index + stride;
+      send(reports.get(index), nextIndex < reports.size() ? new Runnable() {
+         @Override
+         public void run() {
+            sendPart(reports, nextIndex, stride);
          }
+      } : null);
+   }
+
+   /**
+    * Logs a failed send. A send rejected because the transport's in-flight window
+    * is full is not counted as an error.
+    * @param t The failure.
+    */
+   private void logFailure(final Throwable t) {
+      if(t instanceof RejectedExecutionException) {
+         LOGGER.debug("EssemReporter: Report rejected (" + t.getMessage() + ")");
+      } else {
+         LOGGER.warn("Unable to report to Essem", t);
+         sendErrors.mark();
       }
    }
 
+   /**
+    * Sends a report, buffering it if the send fails and may be retried.
+    * @param reportBytes The serialized report.
+    * @param next Run when the send completes. May be {@code null}.
+    */
+   private void send(final byte[] reportBytes, final Runnable next) {
+      final Timer.Context ctx = sendTimer.time();
+      Futures.addCallback(transport.send(uri, headers, reportBytes), new FutureCallback<Integer>() {
+         @Override
+         public void onSuccess(final Integer responseCode) {
+            ctx.stop();
+            if(responseCode / 100 == 2) {
+               LOGGER.debug("EssemReporter: Reported (" + responseCode + ")");
+               if(buffer != null && !buffer.isEmpty()) {
+                  replay();
+               }
+            } else {
+               LOGGER.warn("EssemReporter: Unable to report (" + responseCode + ")");
+               if(buffer != null && isRetryable(responseCode)) {
+                  buffer.add(reportBytes);
+               }
+            }
+            if(next != null) {
+               next.run();
+            }
+         }
+
+         @Override
+         public void onFailure(final Throwable t) {
+            ctx.stop();
+            logFailure(t);
+            if(buffer != null) {
+               buffer.add(reportBytes);
+            }
+            if(next != null) {
+               next.run();
+            }
+         }
+      });
+   }
+
+   /**
+    * Starts replay of buffered reports, if not already replaying.
+    */
+   private void replay() {
+      if(replaying.compareAndSet(false, true)) {
+         replayNext();
+      }
+   }
+
+   /**
+    * Sends the oldest buffered report, continuing with the next when the send succeeds.
+    * <p>
+    *    Reports are sent one at a time so they arrive in order. Replay stops
+    *    at the first failure and resumes after the next successful send.
+    * </p>
+    */
+   private void replayNext() {
+      final ReportBuffer.Entry entry = buffer.peek();
+      if(entry == null) {
+         replaying.set(false);
+         if(!buffer.isEmpty()) { //Added after the peek
+            replay();
+         }
+         return;
+      }
+
+      final Timer.Context ctx = sendTimer.time();
+      Futures.addCallback(transport.send(uri, headers, entry.body), new FutureCallback<Integer>() {
+         @Override
+         public void onSuccess(final Integer responseCode) {
+            ctx.stop();
+            if(responseCode / 100 == 2 || !isRetryable(responseCode)) {
+               if(responseCode / 100 != 2) {
+                  LOGGER.warn("EssemReporter: Unable to replay report (" + responseCode + ")");
+               }
+               buffer.remove(entry);
+               replayNext();
+            } else {
+               LOGGER.warn("EssemReporter: Unable to replay report (" + responseCode + ")");
+               replaying.set(false);
+            }
+         }
+
+         @Override
+         public void onFailure(final Throwable t) {
+            ctx.stop();
+            if(t instanceof RejectedExecutionException) {
+               LOGGER.debug("EssemReporter: Replay rejected (" + t.getMessage() + ")");
+            } else {
+               LOGGER.warn("Unable to replay report to Essem", t);
+               sendErrors.mark();
+            }
+            replaying.set(false);
+         }
+      });
+   }
+
+   /**
+    * Should a report rejected with a response code be retried?
+    * @param responseCode The HTTP response code.
+    * @return Should the report be retried?
+    */
+   private static boolean isRetryable(final int responseCode) {
+      return responseCode / 100 == 5 || responseCode == 408 || responseCode == 429;
+   }
+
+   /**
+    * Stops the reporter and shuts down the shard pool and transport.
+    */
+   @Override
+   public void stop() {
+      super.stop();
+      if(shardService != null) {
+         shardService.shutdown();
+      }
+      transport.shutdown();
+   }
+
    /**
     * Converts time units to the proto enum.
     * @param timeUnit The time unit.
@@ -551,40 +1317,6 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
       }
    }
 
-   /**
-    * Reads and discards all input from a stream.
-    * @param is The input stream.
-    * @throws IOException on read error.
-    */
-   private void discardInputAndClose(final InputStream is) throws IOException {
-      if(is != null) {
-         ByteStreams.toByteArray(is);
-         try {
-            is.close();
-         } catch(IOException ioe) {
-            //Ignore
-         }
-      }
-   }
-
-   /**
-    * Deflates bytes.
-    * @param b The bytes to deflate.
-    * @return The deflated bytes.
-    */
-   private static byte[] deflate(final byte[] b) {
-      try {
-         Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, false); //nowrap = false
-         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-         DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater);
-         dos.write(b);
-         dos.close();
-         return baos.toByteArray();
-      } catch(IOException ioe) {
-         throw new AssertionError("I/O exception on in-memory stream");
-      }
-   }
-
    /**
     * The authorization header.
     */
@@ -610,6 +1342,16 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
     */
    public static final String DEFLATE_ENCODING = "deflate";
 
+   /**
+    * The 'gzip' content type.
+    */
+   public static final String GZIP_ENCODING = "gzip";
+
+   /**
+    * The status sent by the server when a delta-encoded report can't be applied (409).
+    */
+   private static final int SC_CONFLICT = 409;
+
    /**
     * The default logger.
     */
@@ -623,45 +1365,92 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
    private final TimeUnit rateUnit;
    private final TimeUnit durationUnit;
    private final String authValue;
-   private final boolean deflate;
+   private final Compression compression;
+
+   /**
+    * The reusable encoding context for each shard.
+    */
+   private final ReportWriter[] writers;
+
+   /**
+    * Selects how metrics are assigned to shards.
+    */
+   private final ShardBy shardBy;
+
+   /**
+    * Builds shards in parallel. May be {@code null} if not sharded.
+    */
+   private final ExecutorService shardService;
+
+   /**
+    * The shard used to add all metrics to a report.
+    */
+   private static final int ALL_SHARDS = -1;
+   private final Transport transport;
+
+   /**
+    * The headers sent with every report.
+    */
+   private final ImmutableMap<String, String> headers;
+
+   /**
+    * The headers sent with delta-encoded reports.
+    */
+   private final ImmutableMap<String, String> deltaHeaders;
+
+   /**
+    * The delta encoder for each shard. May be {@code null}.
+    */
+   private final DeltaReportCodec.Encoder[] deltaEncoders;
 
    private final Timer sendTimer = new org.attribyte.essem.metrics.Timer();
    private final Meter sendErrors = new Meter();
    private final Histogram reportSize = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
    private final Counter skippedUnchanged = new Counter();
 
-   private final ImmutableMap<String, Metric> metrics =
-           ImmutableMap.of(
-                   "reports", sendTimer,
-                   "failed-reports", sendErrors,
-                   "report-size-bytes", reportSize,
-                   "skipped-unchanged", skippedUnchanged,
-                   "report-count", new Gauge<Integer>() {
-                      public Integer getValue() {
-                         return lastMetricCount.get();
-                      }
-                   }
-           );
+   /**
+    * The time spent compressing each report.
+    */
+   private final Timer compressTime = new org.attribyte.essem.metrics.Timer();
+
+   /**
+    * The compression ratio of each report, as a percent.
+    */
+   private final Histogram compressionRatio = new Histogram(new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM));
+
+   /**
+    * Reports that could not be sent, waiting for replay. May be {@code null}.
+    */
+   private final ReportBuffer buffer;
+
+   /**
+    * Is buffered report replay in progress?
+    */
+   private final AtomicBoolean replaying = new AtomicBoolean();
+
+   private final ImmutableMap<String, Metric> metrics;
+
    @Override
    public Map<String, Metric> getMetrics() {
       return metrics;
    }
 
    /**
-    * A map that contains the last reported value for counters, meters, histograms and timers.
-    * <p>
-    *    If configured, and the previously reported value is unchanged, the metric
-    *    will not be reported.
-    * </p>
+    * Decides if metrics are unchanged since they were last reported.
+    * If {@code null}, all metrics are reported.
     */
-   private final Map<String, Long> lastReportedCount;
-
+   private final ChangeSuppressor changeSuppressor;
 
    /**
     * The number of metrics last reported.
     */
    private final AtomicInteger lastMetricCount = new AtomicInteger();
 
+   /**
+    * The number of reports sent for the last report period.
+    */
+   private final AtomicInteger lastReportParts = new AtomicInteger();
+
    /**
     * Should reporting be skipped for this counted metric?
     *
@@ -669,18 +1458,30 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
     *    If the count is zero, no values have ever been added to the metric.
     *    If the count is unchanged, no measurements have been recorded since the last report.
     * </p>
-    * @param name The metric name.
+    * @param metric The metric.
     * @param currentValue The current value.
     * @return Should reporting be skipped?
     */
-   private boolean skipCountedReport(final String name, final long currentValue) {
-      if(lastReportedCount == null) {
+   private boolean skipCountedReport(final Metric metric, final long currentValue) {
+      if(changeSuppressor != null && changeSuppressor.skipCount(metric, currentValue)) {
+         skippedUnchanged.inc();
+         return true;
+      } else {
          return false;
-      } else if(lastReportedCount.getOrDefault(name, Long.MIN_VALUE) == currentValue) {
+      }
+   }
+
+   /**
+    * Should reporting be skipped for this numeric gauge?
+    * @param gauge The gauge.
+    * @param currentValue The current value.
+    * @return Should reporting be skipped?
+    */
+   private boolean skipGaugeReport(final Gauge gauge, final double currentValue) {
+      if(changeSuppressor != null && changeSuppressor.skipValue(gauge, currentValue)) {
          skippedUnchanged.inc();
          return true;
       } else {
-         lastReportedCount.put(name, currentValue);
          return false;
       }
    }
@@ -689,4 +1490,9 @@ public class EssemReporter extends ScheduledReporter implements MetricSet {
     * The HDR histogram report mode.
     */
    private final HdrReport hdrReport;
+
+   /**
+    * Are HDR reservoirs switched to recycle snapshots?
+    */
+   private final boolean recycleSnapshots;
 }
\ No newline at end of file
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The default transport: sends reports on background threads over persistent (keep-alive) connections.
+ * <p>
+ *    Connections are never explicitly disconnected, and every response is fully read, so
+ *    the JVM's HTTP keep-alive cache reuses connections (and TLS sessions) across reports.
+ *    At most <code>maxInFlight</code> reports may be in-flight. When the window is full,
+ *    sends fail immediately instead of waiting.
+ * </p>
+ */
+public class HttpTransport implements Transport {
+
+   /**
+    * The default maximum number of reports in-flight ('2').
+    */
+   public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+   /**
+    * The default connect timeout in milliseconds ('5000').
+    */
+   public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+   /**
+    * The default read timeout in milliseconds ('30000').
+    */
+   public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+   /**
+    * Creates a transport with default in-flight window and timeouts.
+    */
+   public HttpTransport() {
+      this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+   }
+
+   /**
+    * Creates a transport.
+    * @param maxInFlight The maximum number of reports in-flight. One sending thread is created for each.
+    * @param connectTimeoutMillis The connect timeout.
+    * @param readTimeoutMillis The read timeout.
+    */
+   public HttpTransport(final int maxInFlight, final int connectTimeoutMillis, final int readTimeoutMillis) {
+      this.inFlight = new Semaphore(maxInFlight);
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.readTimeoutMillis = readTimeoutMillis;
+      this.sendService = MoreExecutors.listeningDecorator(
+              Executors.newFixedThreadPool(maxInFlight,
+                      new ThreadFactoryBuilder().setNameFormat("essem-reporter-send-%d").setDaemon(true).build())
+      );
+   }
+
+   @Override
+   public ListenableFuture<Integer> send(final URI uri, final Map<String, String> headers, final byte[] body) {
+
+      if(!inFlight.tryAcquire()) {
+         return Futures.immediateFailedFuture(new RejectedExecutionException("Too many reports in-flight"));
+      }
+
+      try {
+         return sendService.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+               try {
+                  return put(uri, headers, body);
+               } finally {
+                  inFlight.release();
+               }
+            }
+         });
+      } catch(RejectedExecutionException re) {
+         inFlight.release();
+         return Futures.immediateFailedFuture(re);
+      }
+   }
+
+   @Override
+   public void shutdown() {
+      sendService.shutdownNow();
+   }
+
+   /**
+    * Sends a report with HTTP PUT.
+    * @return The response code.
+    * @throws IOException on send error.
+    */
+   private int put(final URI uri, final Map<String, String> headers, final byte[] body) throws IOException {
+      HttpURLConnection conn = (HttpURLConnection)uri.toURL().openConnection();
+      if(conn == null) {
+         throw new IOException("Unable to 'PUT' to " + uri.toString());
+      }
+
+      conn.setRequestMethod("PUT");
+      conn.setConnectTimeout(connectTimeoutMillis);
+      conn.setReadTimeout(readTimeoutMillis);
+      for(Map.Entry<String, String> header : headers.entrySet()) {
+         conn.setRequestProperty(header.getKey(), header.getValue());
+      }
+      conn.setDoOutput(true);
+      conn.setInstanceFollowRedirects(false);
+      conn.setFixedLengthStreamingMode(body.length);
+
+      try {
+         try(OutputStream os = conn.getOutputStream()) {
+            os.write(body);
+         }
+         int code = conn.getResponseCode();
+         discardInputAndClose(code / 100 == 2 ? conn.getInputStream() : conn.getErrorStream());
+         return code;
+      } catch(IOException ioe) {
+         //Reading the error stream allows the connection to be reused.
+         try {
+            discardInputAndClose(conn.getErrorStream());
+         } catch(IOException ignore) {
+            //Ignore
+         }
+         throw ioe;
+      }
+   }
+
+   /**
+    * Reads and discards all input from a stream so the connection may be reused.
+    * @param is The input stream.
+    * @throws IOException on read error.
+    */
+   private void discardInputAndClose(final InputStream is) throws IOException {
+      if(is != null) {
+         try {
+            while(is.read(discardBuffer.get()) != -1) {
+               //Discard
+            }
+         } finally {
+            is.close();
+         }
+      }
+   }
+
+   /**
+    * A buffer, for each sending thread, used to discard response bodies.
+    */
+   private final ThreadLocal<byte[]> discardBuffer = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+         return new byte[1024];
+      }
+   };
+
+   /**
+    * Limits the number of reports in-flight.
+    */
+   private final Semaphore inFlight;
+
+   /**
+    * The connect timeout.
+    */
+   private final int connectTimeoutMillis;
+
+   /**
+    * The read timeout.
+    */
+   private final int readTimeoutMillis;
+
+   /**
+    * Sends reports.
+    */
+   private final ListeningExecutorService sendService;
+}
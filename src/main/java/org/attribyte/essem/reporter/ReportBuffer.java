@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A bounded buffer of serialized reports that could not be sent.
+ * <p>
+ *    Reports are held in memory, oldest first. When the memory limits are reached,
+ *    the oldest report moves to the (optional) overflow directory, or is dropped.
+ *    Reports are replayed oldest-first: overflow files, then memory.
+ *    Reports found in the overflow directory when the buffer is created are replayed first.
+ * </p>
+ * <p>
+ *    A report may be sent more than once if it overflows to disk while it is being replayed.
+ * </p>
+ */
+public class ReportBuffer implements MetricSet {
+
+   /**
+    * A buffered report.
+    */
+   static final class Entry {
+
+      Entry(final byte[] body, final File file) {
+         this.body = body;
+         this.file = file;
+      }
+
+      /**
+       * The serialized report.
+       */
+      final byte[] body;
+
+      /**
+       * The overflow file, or {@code null} if the report is in memory.
+       */
+      final File file;
+   }
+
+   /**
+    * Creates a buffer.
+    * @param maxReports The maximum number of reports held in memory.
+    * @param maxBytes The maximum number of bytes held in memory.
+    * @param overflowDirectory The overflow directory. If {@code null}, reports are never written to disk.
+    * @param maxOverflowBytes The maximum number of bytes held in the overflow directory.
+    */
+   public ReportBuffer(final int maxReports, final long maxBytes,
+                       final File overflowDirectory, final long maxOverflowBytes) {
+      this.maxReports = maxReports;
+      this.maxBytes = maxBytes;
+      this.overflowDirectory = overflowDirectory;
+      this.maxOverflowBytes = maxOverflowBytes;
+      if(overflowDirectory != null) {
+         if(!overflowDirectory.exists() && !overflowDirectory.mkdirs()) {
+            LOGGER.warn("Unable to create the report overflow directory, '" + overflowDirectory.getAbsolutePath() + "'");
+         }
+         for(File file : overflowFiles()) {
+            overflowBytes += file.length();
+            overflowCount++;
+            long sequence = sequence(file);
+            if(sequence >= nextSequence) {
+               nextSequence = sequence + 1;
+            }
+         }
+      }
+   }
+
+   /**
+    * Adds a report, as the newest.
+    * @param body The serialized report.
+    */
+   public synchronized void add(final byte[] body) {
+      if(body.length > maxBytes) {
+         overflow(body);
+         return;
+      }
+
+      memory.addLast(body);
+      memoryBytes += body.length;
+      while(memory.size() > maxReports || memoryBytes > maxBytes) {
+         byte[] oldest = memory.pollFirst();
+         memoryBytes -= oldest.length;
+         overflow(oldest);
+      }
+   }
+
+   /**
+    * Gets the oldest report without removing it.
+    * @return The oldest report, or {@code null} if the buffer is empty.
+    */
+   synchronized Entry peek() {
+      if(overflowCount > 0) {
+         for(File file : overflowFiles()) {
+            try {
+               return new Entry(Files.toByteArray(file), file);
+            } catch(IOException ioe) {
+               LOGGER.warn("Unable to read buffered report, '" + file.getAbsolutePath() + "'", ioe);
+               removeOverflow(file);
+               dropped.inc();
+            }
+         }
+      }
+      byte[] body = memory.peekFirst();
+      return body != null ? new Entry(body, null) : null;
+   }
+
+   /**
+    * Removes a report, after it has been sent.
+    * @param entry The entry returned by {@code peek}.
+    */
+   synchronized void remove(final Entry entry) {
+      if(entry.file != null) {
+         if(entry.file.exists()) {
+            removeOverflow(entry.file);
+         }
+      } else if(memory.removeFirstOccurrence(entry.body)) {
+         memoryBytes -= entry.body.length;
+      }
+   }
+
+   /**
+    * Is the buffer empty?
+    * @return Is the buffer empty?
+    */
+   public synchronized boolean isEmpty() {
+      return memory.isEmpty() && overflowCount == 0;
+   }
+
+   /**
+    * Gets the number of buffered reports.
+    * @return The number of reports.
+    */
+   public synchronized int size() {
+      return memory.size() + overflowCount;
+   }
+
+   /**
+    * Gets the number of buffered bytes.
+    * @return The number of bytes.
+    */
+   public synchronized long bytes() {
+      return memoryBytes + overflowBytes;
+   }
+
+   /**
+    * Writes a report to the overflow directory, or drops it.
+    * @param body The report.
+    */
+   private void overflow(final byte[] body) {
+      if(overflowDirectory == null || overflowBytes + body.length > maxOverflowBytes) {
+         dropped.inc();
+         return;
+      }
+
+      File file = new File(overflowDirectory, String.format(FILE_FORMAT, nextSequence++));
+      try {
+         Files.write(body, file);
+         overflowBytes += body.length;
+         overflowCount++;
+      } catch(IOException ioe) {
+         LOGGER.warn("Unable to write buffered report, '" + file.getAbsolutePath() + "'", ioe);
+         file.delete();
+         dropped.inc();
+      }
+   }
+
+   /**
+    * Deletes an overflow file.
+    * @param file The file.
+    */
+   private void removeOverflow(final File file) {
+      long length = file.length();
+      if(file.delete()) {
+         overflowBytes -= length;
+         overflowCount--;
+      }
+   }
+
+   /**
+    * Lists overflow files, oldest first.
+    * @return The files.
+    */
+   private File[] overflowFiles() {
+      File[] files = overflowDirectory.listFiles(new FilenameFilter() {
+         @Override
+         public boolean accept(final File dir, final String name) {
+            return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+         }
+      });
+      if(files == null) {
+         return new File[0];
+      }
+      Arrays.sort(files); //Names have fixed-width sequence numbers
+      return files;
+   }
+
+   /**
+    * Gets the sequence number from an overflow file name.
+    * @param file The file.
+    * @return The sequence number.
+    */
+   private static long sequence(final File file) {
+      String name = file.getName();
+      try {
+         return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+      } catch(NumberFormatException nfe) {
+         return 0L;
+      }
+   }
+
+   @Override
+   public Map<String, Metric> getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * The overflow file name prefix ('report-').
+    */
+   private static final String FILE_PREFIX = "report-";
+
+   /**
+    * The overflow file name suffix ('.bin').
+    */
+   private static final String FILE_SUFFIX = ".bin";
+
+   /**
+    * The overflow file name format.
+    */
+   private static final String FILE_FORMAT = FILE_PREFIX + "%020d" + FILE_SUFFIX;
+
+   private static final Logger LOGGER = LoggerFactory.getLogger(ReportBuffer.class);
+
+   /**
+    * The maximum number of reports held in memory.
+    */
+   private final int maxReports;
+
+   /**
+    * The maximum number of bytes held in memory.
+    */
+   private final long maxBytes;
+
+   /**
+    * The overflow directory. May be {@code null}.
+    */
+   private final File overflowDirectory;
+
+   /**
+    * The maximum number of bytes held in the overflow directory.
+    */
+   private final long maxOverflowBytes;
+
+   /**
+    * Reports held in memory, oldest first.
+    */
+   private final ArrayDeque<byte[]> memory = new ArrayDeque<>();
+
+   /**
+    * The number of bytes held in memory.
+    */
+   private long memoryBytes;
+
+   /**
+    * The number of overflow files.
+    */
+   private int overflowCount;
+
+   /**
+    * The number of bytes held in overflow files.
+    */
+   private long overflowBytes;
+
+   /**
+    * The sequence number for the next overflow file.
+    */
+   private long nextSequence;
+
+   /**
+    * Reports dropped because the buffer was full.
+    */
+   private final Counter dropped = new Counter();
+
+   /**
+    * The metrics.
+    */
+   private final ImmutableMap<String, Metric> metrics = ImmutableMap.<String, Metric>of(
+           "buffered-reports", new Gauge<Integer>() {
+              public Integer getValue() {
+                 return size();
+              }
+           },
+           "buffered-bytes", new Gauge<Long>() {
+              public Long getValue() {
+                 return bytes();
+              }
+           },
+           "dropped-reports", dropped
+   );
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import org.HdrHistogram.Histogram;
+import org.attribyte.essem.ReportProtos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reusable context for encoding reports.
+ * <p>
+ *    Reports may be built as protobuf messages, or written directly to a reused buffer
+ *    without creating a message for each metric. Buffers for HDR histograms, the
+ *    serialized report and compression are retained between reports, as are the UTF-8 bytes of metric names.
+ * </p>
+ * <p>
+ *    A directly written report may be split into several reports, at metric boundaries,
+ *    so no report is larger than a maximum size. Each report has the same header.
+ * </p>
+ * <p>
+ *    Not thread-safe. Callers must synchronize on the writer.
+ * </p>
+ */
+final class ReportWriter {
+
+   /**
+    * Receives metric values as a report is built.
+    * <p>
+    *    Value arrays are reused and are valid only during the call.
+    * </p>
+    */
+   interface Sink {
+
+      /**
+       * Adds a meter.
+       * @param name The name.
+       * @param count The count.
+       * @param values One, five and fifteen minute rates, mean rate.
+       */
+      void meter(String name, long count, double[] values);
+
+      /**
+       * Adds a timer.
+       * @param name The name.
+       * @param count The count.
+       * @param values One, five and fifteen minute rates, mean rate,
+       * max, mean, min, std, median, 75th, 95th, 98th, 99th and 99.9th percentiles.
+       * @param hdrHistogram The HDR histogram, or {@code null}.
+       */
+      void timer(String name, long count, double[] values, Histogram hdrHistogram);
+
+      /**
+       * Adds a counter.
+       * @param name The name.
+       * @param count The count.
+       */
+      void counter(String name, long count);
+
+      /**
+       * Adds a histogram.
+       * @param name The name.
+       * @param count The count.
+       * @param values Max, mean, min, std, median, 75th, 95th, 98th, 99th and 99.9th percentiles.
+       * @param hdrHistogram The HDR histogram, or {@code null}.
+       */
+      void histogram(String name, long count, double[] values, Histogram hdrHistogram);
+
+      /**
+       * Adds a numeric gauge.
+       * @param name The name.
+       * @param value The value.
+       */
+      void gauge(String name, double value);
+
+      /**
+       * Adds a gauge with a non-numeric value.
+       * @param name The name.
+       * @param comment The value.
+       */
+      void gauge(String name, String comment);
+   }
+
+   /**
+    * The number of values for a meter.
+    */
+   static final int METER_VALUES = 4;
+
+   /**
+    * The number of values for a histogram.
+    */
+   static final int HISTOGRAM_VALUES = 10;
+
+   /**
+    * The number of values for a timer.
+    */
+   static final int TIMER_VALUES = 14;
+
+   /**
+    * Creates a writer that does not split reports.
+    * @param compressor The compressor, or {@code null} if reports are not compressed.
+    */
+   ReportWriter(final Compressor compressor) {
+      this(compressor, 0);
+   }
+
+   /**
+    * Creates a writer.
+    * @param compressor The compressor, or {@code null} if reports are not compressed.
+    * @param maxReportBytes The maximum size of a directly written report, before compression.
+    * If < 1, reports are not split.
+    */
+   ReportWriter(final Compressor compressor, final int maxReportBytes) {
+      this.compressor = compressor;
+      this.maxReportBytes = maxReportBytes > 0 ? maxReportBytes : Integer.MAX_VALUE;
+   }
+
+   /**
+    * Gets a reused array for metric values.
+    * @return The array.
+    */
+   double[] values() {
+      return values;
+   }
+
+   /**
+    * Creates a sink that adds metrics to a message builder.
+    * @param builder The builder.
+    * @return The sink.
+    */
+   Sink protoSink(final ReportProtos.EssemReport.Builder builder) {
+      return new ProtoSink(builder);
+   }
+
+   /**
+    * Starts writing reports directly to the reused buffer.
+    * <p>
+    *    Anything left by a report that was never finished (e.g. a metric threw while reporting) is discarded.
+    * </p>
+    * @param timestamp The timestamp.
+    * @param rateUnit The rate unit.
+    * @param durationUnit The duration unit.
+    * @param application The application, or {@code null}.
+    * @param host The host, or {@code null}.
+    * @param instance The instance, or {@code null}.
+    * @return The sink for metrics.
+    */
+   Sink begin(final long timestamp,
+              final ReportProtos.EssemReport.TimeUnit rateUnit,
+              final ReportProtos.EssemReport.TimeUnit durationUnit,
+              final String application, final String host, final String instance) {
+      final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(64);
+      try {
+         CodedOutputStream headerOut = CodedOutputStream.newInstance(headerBytes);
+         headerOut.writeUInt64(6, timestamp);
+         headerOut.writeEnum(7, rateUnit.getNumber());
+         headerOut.writeEnum(8, durationUnit.getNumber());
+         if(application != null) headerOut.writeRawBytes(utf8Field(9, application));
+         if(host != null) headerOut.writeRawBytes(utf8Field(10, host));
+         if(instance != null) headerOut.writeRawBytes(utf8Field(11, instance));
+         headerOut.flush();
+      } catch(IOException ioe) {
+         throw new AssertionError("I/O exception on in-memory stream");
+      }
+      header = headerBytes.toByteArray();
+      try {
+         out.flush(); //Moves any bytes pending from an unfinished report to the output, so they're discarded.
+      } catch(IOException ioe) {
+         throw new AssertionError("I/O exception on in-memory stream");
+      }
+      output.reset();
+      reportBytes = 0;
+      namesWritten = 0;
+      reports.clear();
+      return codedSink;
+   }
+
+   /**
+    * Finishes reports started with {@code begin}.
+    * @param skipEmpty If no metrics were written, return no reports instead of a report with only the header.
+    * @return The serialized reports, compressed if configured. Contains at least one report unless skipped.
+    */
+   List<byte[]> finish(final boolean skipEmpty) {
+      if(namesWritten > 0 || !skipEmpty) {
+         completeReport();
+      }
+
+      if(namesWritten * 2 < nameBytes.size()) {
+         nameBytes.clear(); //Many metrics were removed.
+      }
+      namesWritten = 0;
+
+      final List<byte[]> finished = ImmutableList.copyOf(reports);
+      reports.clear();
+      return finished;
+   }
+
+   /**
+    * Writes the header to the current report, then adds it to the completed reports and starts another.
+    */
+   private void completeReport() {
+      try {
+         out.writeRawBytes(header);
+         out.flush();
+      } catch(IOException ioe) {
+         throw new AssertionError("I/O exception on in-memory stream");
+      }
+      reports.add(compressor != null ? compressor.compress(output.buffer(), output.size()) : Arrays.copyOf(output.buffer(), output.size()));
+      output.reset();
+      reportBytes = 0;
+   }
+
+   /**
+    * Writes the tag and size of a metric, first completing the current report
+    * if the metric would make it too large. A metric is never split, so a report with one metric may be larger than the maximum.
+    * @param fieldNumber The field number.
+    * @param size The size of the metric.
+    * @throws IOException on write error.
+    */
+   private void writeMetricStart(final int fieldNumber, final int size) throws IOException {
+      final int fieldSize = CodedOutputStream.computeTagSize(fieldNumber) + CodedOutputStream.computeRawVarint32Size(size) + size;
+      if(reportBytes > 0 && (long)reportBytes + fieldSize + header.length > maxReportBytes) {
+         completeReport();
+      }
+      out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeRawVarint32(size);
+      reportBytes += fieldSize;
+   }
+
+   /**
+    * Compresses a report, if configured.
+    * @param report The serialized report.
+    * @return The report, compressed if configured.
+    */
+   byte[] compress(final byte[] report) {
+      return compressor != null ? compressor.compress(report, report.length) : report;
+   }
+
+   /**
+    * Encodes a HDR histogram into the reused buffer.
+    * @param histogram The histogram.
+    * @return The compressed size.
+    */
+   private int encode(final Histogram histogram) {
+      final int capacity = histogram.getNeededByteBufferCapacity();
+      if(hdrBuffer.capacity() < capacity) {
+         hdrBuffer = ByteBuffer.allocate(Math.max(capacity, hdrBuffer.capacity() * 2));
+      }
+      hdrBuffer.clear();
+      return histogram.encodeIntoCompressedByteBuffer(hdrBuffer);
+   }
+
+   /**
+    * Gets the encoded name field (tag, length and UTF-8 bytes), caching the result.
+    * @param name The name.
+    * @return The encoded field.
+    */
+   private byte[] nameField(final String name) {
+      namesWritten++;
+      byte[] field = nameBytes.get(name);
+      if(field == null) {
+         field = utf8Field(1, name);
+         nameBytes.put(name, field);
+      }
+      return field;
+   }
+
+   /**
+    * Encodes a string field (tag, length and UTF-8 bytes).
+    * @param fieldNumber The field number.
+    * @param value The value.
+    * @return The encoded field.
+    */
+   private static byte[] utf8Field(final int fieldNumber, final String value) {
+      final ByteString utf8 = ByteString.copyFromUtf8(value);
+      final byte[] field = new byte[CodedOutputStream.computeBytesSize(fieldNumber, utf8)];
+      try {
+         CodedOutputStream fieldOut = CodedOutputStream.newInstance(field);
+         fieldOut.writeBytes(fieldNumber, utf8);
+         fieldOut.checkNoSpaceLeft();
+      } catch(IOException ioe) {
+         throw new AssertionError("I/O exception on in-memory buffer");
+      }
+      return field;
+   }
+
+   /**
+    * Adds metrics to a message builder.
+    */
+   private final class ProtoSink implements Sink {
+
+      ProtoSink(final ReportProtos.EssemReport.Builder builder) {
+         this.builder = builder;
+      }
+
+      @Override
+      public void meter(final String name, final long count, final double[] values) {
+         builder.addMeterBuilder()
+                 .setName(name)
+                 .setCount(count)
+                 .setOneMinuteRate(values[0])
+                 .setFiveMinuteRate(values[1])
+                 .setFifteenMinuteRate(values[2])
+                 .setMeanRate(values[3]);
+      }
+
+      @Override
+      public void timer(final String name, final long count, final double[] values, final Histogram hdrHistogram) {
+         ReportProtos.EssemReport.Timer.Builder timerBuilder = builder.addTimerBuilder()
+                 .setName(name)
+                 .setOneMinuteRate(values[0])
+                 .setFiveMinuteRate(values[1])
+                 .setFifteenMinuteRate(values[2])
+                 .setMeanRate(values[3])
+                 .setCount(count)
+                 .setMax(values[4])
+                 .setMean(values[5])
+                 .setMin(values[6])
+                 .setStd(values[7])
+                 .setMedian(values[8])
+                 .setPercentile75(values[9])
+                 .setPercentile95(values[10])
+                 .setPercentile98(values[11])
+                 .setPercentile99(values[12])
+                 .setPercentile999(values[13]);
+         if(hdrHistogram != null) {
+            timerBuilder.setHdrHistogram(ByteString.copyFrom(hdrBuffer.array(), 0, encode(hdrHistogram)));
+         }
+      }
+
+      @Override
+      public void counter(final String name, final long count) {
+         builder.addCounterBuilder()
+                 .setName(name)
+                 .setCount(count);
+      }
+
+      @Override
+      public void histogram(final String name, final long count, final double[] values, final Histogram hdrHistogram) {
+         ReportProtos.EssemReport.Histogram.Builder histogramBuilder = builder.addHistogramBuilder()
+                 .setName(name)
+                 .setCount(count)
+                 .setMax(values[0])
+                 .setMean(values[1])
+                 .setMin(values[2])
+                 .setStd(values[3])
+                 .setMedian(values[4])
+                 .setPercentile75(values[5])
+                 .setPercentile95(values[6])
+                 .setPercentile98(values[7])
+                 .setPercentile99(values[8])
+                 .setPercentile999(values[9]);
+         if(hdrHistogram != null) {
+            histogramBuilder.setHdrHistogram(ByteString.copyFrom(hdrBuffer.array(), 0, encode(hdrHistogram)));
+         }
+      }
+
+      @Override
+      public void gauge(final String name, final double value) {
+         builder.addGaugeBuilder().setName(name).setValue(value);
+      }
+
+      @Override
+      public void gauge(final String name, final String comment) {
+         builder.addGaugeBuilder().setName(name).setComment(comment);
+      }
+
+      private final ReportProtos.EssemReport.Builder builder;
+   }
+
+   /**
+    * Writes metrics directly, in the protobuf wire format of {@code EssemReport}.
+    * <p>
+    *    Each metric is written as a length-delimited field: tag, size, then fields in field number order.
+    *    Doubles are fixed-size, so only the name, count and HDR histogram vary in size.
+    * </p>
+    */
+   private final class CodedSink implements Sink {
+
+      @Override
+      public void meter(final String name, final long count, final double[] values) {
+         try {
+            final byte[] nameField = nameField(name);
+            final int size = nameField.length + METER_VALUES * DOUBLE_FIELD_SIZE + CodedOutputStream.computeUInt64Size(6, count);
+            writeMetricStart(1, size);
+            out.writeRawBytes(nameField);
+            for(int i = 0; i < METER_VALUES; i++) {
+               out.writeDouble(i + 2, values[i]);
+            }
+            out.writeUInt64(6, count);
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      @Override
+      public void timer(final String name, final long count, final double[] values, final Histogram hdrHistogram) {
+         try {
+            final byte[] nameField = nameField(name);
+            final int hdrSize = hdrHistogram != null ? encode(hdrHistogram) : -1;
+            int size = nameField.length + CodedOutputStream.computeUInt64Size(6, count);
+            for(int i = 0; i < TIMER_VALUES; i++) {
+               size += CodedOutputStream.computeTagSize(i < 4 ? i + 2 : i + 3) + 8;
+            }
+            if(hdrSize >= 0) {
+               size += CodedOutputStream.computeTagSize(17) + CodedOutputStream.computeRawVarint32Size(hdrSize) + hdrSize;
+            }
+
+            writeMetricStart(2, size);
+            out.writeRawBytes(nameField);
+            for(int i = 0; i < 4; i++) {
+               out.writeDouble(i + 2, values[i]);
+            }
+            out.writeUInt64(6, count);
+            for(int i = 4; i < TIMER_VALUES; i++) {
+               out.writeDouble(i + 3, values[i]);
+            }
+            if(hdrSize >= 0) {
+               writeHdrField(17, hdrSize);
+            }
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      @Override
+      public void counter(final String name, final long count) {
+         try {
+            final byte[] nameField = nameField(name);
+            writeMetricStart(3, nameField.length + CodedOutputStream.computeUInt64Size(2, count));
+            out.writeRawBytes(nameField);
+            out.writeUInt64(2, count);
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      @Override
+      public void histogram(final String name, final long count, final double[] values, final Histogram hdrHistogram) {
+         try {
+            final byte[] nameField = nameField(name);
+            final int hdrSize = hdrHistogram != null ? encode(hdrHistogram) : -1;
+            int size = nameField.length + CodedOutputStream.computeUInt64Size(2, count) + HISTOGRAM_VALUES * DOUBLE_FIELD_SIZE;
+            if(hdrSize >= 0) {
+               size += CodedOutputStream.computeTagSize(13) + CodedOutputStream.computeRawVarint32Size(hdrSize) + hdrSize;
+            }
+
+            writeMetricStart(4, size);
+            out.writeRawBytes(nameField);
+            out.writeUInt64(2, count);
+            for(int i = 0; i < HISTOGRAM_VALUES; i++) {
+               out.writeDouble(i + 3, values[i]);
+            }
+            if(hdrSize >= 0) {
+               writeHdrField(13, hdrSize);
+            }
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      @Override
+      public void gauge(final String name, final double value) {
+         try {
+            final byte[] nameField = nameField(name);
+            writeMetricStart(5, nameField.length + DOUBLE_FIELD_SIZE);
+            out.writeRawBytes(nameField);
+            out.writeDouble(2, value);
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      @Override
+      public void gauge(final String name, final String comment) {
+         try {
+            final byte[] nameField = nameField(name);
+            final byte[] commentField = utf8Field(3, comment);
+            writeMetricStart(5, nameField.length + commentField.length);
+            out.writeRawBytes(nameField);
+            out.writeRawBytes(commentField);
+         } catch(IOException ioe) {
+            throw new AssertionError("I/O exception on in-memory stream");
+         }
+      }
+
+      /**
+       * Writes the HDR histogram, already encoded into the reused buffer.
+       * @param fieldNumber The field number.
+       * @param size The encoded size.
+       * @throws IOException on write error.
+       */
+      private void writeHdrField(final int fieldNumber, final int size) throws IOException {
+         out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+         out.writeRawVarint32(size);
+         out.writeRawBytes(hdrBuffer.array(), 0, size);
+      }
+   }
+
+   /**
+    * A byte array output stream that exposes its buffer.
+    */
+   private static final class Output extends ByteArrayOutputStream {
+
+      Output(final int size) {
+         super(size);
+      }
+
+      /**
+       * Gets the internal buffer. Valid up to {@code size()}.
+       * @return The buffer.
+       */
+      byte[] buffer() {
+         return buf;
+      }
+   }
+
+   /**
+    * The size of a double field with a single-byte tag.
+    */
+   private static final int DOUBLE_FIELD_SIZE = 9;
+
+   /**
+    * The reused output for directly written reports.
+    */
+   private final Output output = new Output(64 * 1024);
+
+   /**
+    * Writes to the reused output. Flushed at the end of each report.
+    */
+   private final CodedOutputStream out = CodedOutputStream.newInstance(output, 8192);
+
+   /**
+    * The sink for directly written reports.
+    */
+   private final CodedSink codedSink = new CodedSink();
+
+   /**
+    * The maximum size of a directly written report, before compression.
+    */
+   private final int maxReportBytes;
+
+   /**
+    * The header fields of the reports being written.
+    */
+   private byte[] header;
+
+   /**
+    * The number of metric bytes in the current report.
+    */
+   private int reportBytes;
+
+   /**
+    * Completed reports, waiting for {@code finish}.
+    */
+   private final List<byte[]> reports = Lists.newArrayListWithCapacity(4);
+
+   /**
+    * The compressor, or {@code null} if reports are not compressed.
+    */
+   private final Compressor compressor;
+
+   /**
+    * The reused buffer for encoded HDR histograms.
+    */
+   private ByteBuffer hdrBuffer = ByteBuffer.allocate(4096);
+
+   /**
+    * The reused array for metric values.
+    */
+   private final double[] values = new double[TIMER_VALUES];
+
+   /**
+    * Encoded name fields, by name.
+    */
+   private final Map<String, byte[]> nameBytes = Maps.newHashMap();
+
+   /**
+    * The number of names written in the current report.
+    */
+   private int namesWritten;
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Sends reports to an essem server.
+ */
+public interface Transport {
+
+   /**
+    * Sends a report without waiting for the response.
+    * <p>
+    *    Implementations must not block the caller waiting for the server. If the report
+    *    can't be sent now (for example, too many sends are in-flight) the returned future fails immediately.
+    * </p>
+    * @param uri The URI.
+    * @param headers The request headers.
+    * @param body The request body.
+    * @return A future that completes with the HTTP response code, or fails on I/O error.
+    */
+   public ListenableFuture<Integer> send(URI uri, Map<String, String> headers, byte[] body);
+
+   /**
+    * Releases any resources held by the transport. Reports in-flight may be abandoned.
+    */
+   public void shutdown();
+}
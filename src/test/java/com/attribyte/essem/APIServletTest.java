@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class APIServletTest {
+
+   private static final String ES_RESPONSE = "{\"hits\":{\"total\":0,\"hits\":[]}}";
+
+   private Server esServer;
+   private Server apiServer;
+   private HttpClient httpClient;
+   private APIServlet apiServlet;
+   private String apiURL;
+
+   /**
+    * Blocks ES responses until released.
+    */
+   private volatile CountDownLatch esRelease = new CountDownLatch(0);
+
+   /**
+    * Counts ES requests received.
+    */
+   private volatile CountDownLatch esReceived = new CountDownLatch(0);
+
+   @Before
+   public void start() throws Exception {
+      esServer = new Server(0);
+      esServer.setHandler(new AbstractHandler() {
+         @Override
+         public void handle(final String target, final Request baseRequest,
+                            final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            ByteStreams.toByteArray(request.getInputStream());
+            esReceived.countDown();
+            try {
+               esRelease.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException ie) {
+               Thread.currentThread().interrupt();
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            response.getOutputStream().write(ES_RESPONSE.getBytes(Charsets.UTF_8));
+         }
+      });
+      esServer.start();
+
+      httpClient = new HttpClient();
+      httpClient.start();
+
+      ESEndpoint endpoint = new ESEndpoint("http://localhost:" + port(esServer), null);
+      apiServlet = new APIServlet(new ESSearchClient(endpoint, httpClient, 10), null, new PassthroughResponseGenerator(), 1, null);
+      apiServer = new Server(0);
+      ServletContextHandler context = new ServletContextHandler();
+      ServletHolder holder = new ServletHolder(apiServlet);
+      holder.setAsyncSupported(true);
+      context.addServlet(holder, "/api/*");
+      apiServer.setHandler(context);
+      apiServer.start();
+      apiURL = "http://localhost:" + port(apiServer) + "/api/test/graph?name=requests&field=count&range=hour";
+   }
+
+   @After
+   public void stop() throws Exception {
+      esRelease.countDown();
+      httpClient.stop();
+      apiServer.stop();
+      esServer.stop();
+   }
+
+   @Test
+   public void testQuery() throws Exception {
+      ContentResponse response = httpClient.GET(apiURL);
+      assertEquals(200, response.getStatus());
+      assertEquals(ES_RESPONSE, response.getContentAsString());
+      assertEquals(0, awaitInFlight());
+   }
+
+   @Test
+   public void testRejectOverLimit() throws Exception {
+      esRelease = new CountDownLatch(1);
+      esReceived = new CountDownLatch(1);
+
+      FutureResponseListener first = new FutureResponseListener(httpClient.newRequest(apiURL));
+      httpClient.newRequest(apiURL).send(first);
+      assertTrue(esReceived.await(10, TimeUnit.SECONDS));
+      assertEquals(1, inFlight());
+
+      ContentResponse rejected = httpClient.GET(apiURL);
+      assertEquals(503, rejected.getStatus());
+      assertEquals(1L, ((Meter)apiServlet.getMetrics().get("rejected-queries")).getCount());
+
+      esRelease.countDown();
+      assertEquals(200, first.get(10, TimeUnit.SECONDS).getStatus());
+      assertEquals(0, awaitInFlight());
+      assertEquals(200, httpClient.GET(apiURL).getStatus());
+   }
+
+   private int inFlight() {
+      return (Integer)((Gauge)apiServlet.getMetrics().get("queries-in-flight")).getValue();
+   }
+
+   private int awaitInFlight() throws InterruptedException {
+      for(int i = 0; i < 100 && inFlight() > 0; i++) {
+         Thread.sleep(10L); //The slot is released after the response completes.
+      }
+      return inFlight();
+   }
+
+   private static int port(final Server server) {
+      return ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+   }
+}
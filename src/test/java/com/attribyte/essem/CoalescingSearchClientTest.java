@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CoalescingSearchClientTest {
+
+   private static final int PADDING_LINES = 100000;
+
+   private static Server server;
+   private static HttpClient httpClient;
+   private static ESEndpoint endpoint;
+   private static final AtomicInteger searchCount = new AtomicInteger();
+   private static volatile CountDownLatch releaseLatch;
+
+   @BeforeClass
+   public static void start() throws Exception {
+      server = new Server(0);
+      server.setHandler(new AbstractHandler() {
+         @Override
+         public void handle(final String target, final Request baseRequest,
+                            final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            searchCount.incrementAndGet();
+            String query = new String(ByteStreams.toByteArray(request.getInputStream()), Charsets.UTF_8);
+            try {
+               releaseLatch.await(10L, TimeUnit.SECONDS);
+            } catch(InterruptedException ie) {
+               Thread.currentThread().interrupt();
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            ServletOutputStream out = response.getOutputStream();
+            out.write(("{\"query\":" + query + ",\"padding\":[").getBytes(Charsets.UTF_8));
+            if(query.contains("padded")) {
+               for(int i = 0; i < PADDING_LINES; i++) {
+                  out.write(((i > 0 ? "," : "") + "\"padding-" + i + "\"").getBytes(Charsets.UTF_8));
+               }
+            }
+            out.write("]}".getBytes(Charsets.UTF_8));
+         }
+      });
+      server.start();
+
+      httpClient = new HttpClient();
+      httpClient.start();
+      endpoint = new ESEndpoint("http://localhost:" + ((ServerConnector)server.getConnectors()[0]).getLocalPort(), null);
+   }
+
+   @AfterClass
+   public static void stop() throws Exception {
+      httpClient.stop();
+      server.stop();
+   }
+
+   @Before
+   public void reset() {
+      searchCount.set(0);
+      releaseLatch = new CountDownLatch(1);
+   }
+
+   @Test
+   public void testCoalesced() throws Exception {
+      CoalescingSearchClient searchClient = new CoalescingSearchClient(endpoint, httpClient, 10);
+      Callback callback = new Callback(6, false);
+      for(int i = 0; i < 5; i++) {
+         searchClient.search("test", "{\"size\":1}", callback);
+      }
+      searchClient.search("test", "{\"size\":2}", callback);
+      releaseLatch.countDown();
+      assertTrue(callback.await());
+      assertEquals(2, searchCount.get());
+      assertEquals(4L, ((Meter)searchClient.getMetrics().get("coalesced-searches")).getCount());
+      int sizeOneCount = 0;
+      for(String body : callback.bodies) {
+         if(body.equals("{\"query\":{\"size\":1},\"padding\":[]}")) {
+            sizeOneCount++;
+         } else {
+            assertEquals("{\"query\":{\"size\":2},\"padding\":[]}", body);
+         }
+      }
+      assertEquals(5, sizeOneCount);
+
+      Callback nextCallback = new Callback(1, false);
+      searchClient.search("test", "{\"size\":1}", nextCallback); //Complete - not joined
+      assertTrue(nextCallback.await());
+      assertEquals(3, searchCount.get());
+      assertEquals(0, ((Integer)((Gauge)searchClient.getMetrics().get("flights")).getValue()).intValue());
+   }
+
+   @Test
+   public void testStreamedToEachReader() throws Exception {
+      CoalescingSearchClient searchClient = new CoalescingSearchClient(endpoint, httpClient, 10);
+      Callback callback = new Callback(3, false);
+      Callback closingCallback = new Callback(1, true);
+      searchClient.search("test", "{\"padded\":true}", callback);
+      searchClient.search("test", "{\"padded\":true}", closingCallback); //Closes without reading
+      searchClient.search("test", "{\"padded\":true}", callback);
+      searchClient.search("test", "{\"padded\":true}", callback);
+      releaseLatch.countDown();
+      assertTrue(callback.await());
+      assertTrue(closingCallback.await());
+      assertEquals(1, searchCount.get());
+      assertEquals(3, callback.bodies.size());
+      for(String body : callback.bodies) {
+         assertTrue(body.endsWith("\"padding-" + (PADDING_LINES - 1) + "\"]}"));
+      }
+   }
+
+   /**
+    * Reads each response body on a separate thread, as the callback must not block the HTTP client.
+    */
+   private static class Callback implements ESSearchClient.ResponseCallback {
+
+      Callback(final int count, final boolean closeWithoutReading) {
+         this.latch = new CountDownLatch(count);
+         this.closeWithoutReading = closeWithoutReading;
+      }
+
+      @Override
+      public void completed(final ESResponse response) {
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try(ESResponse esResponse = response) {
+                  if(!closeWithoutReading) {
+                     bodies.add(esResponse.bodyAsString());
+                  }
+               } catch(IOException ioe) {
+                  ioe.printStackTrace();
+               } finally {
+                  latch.countDown();
+               }
+            }
+         }).start();
+      }
+
+      @Override
+      public void failed(final Throwable failure) {
+         failure.printStackTrace();
+      }
+
+      boolean await() throws InterruptedException {
+         return latch.await(10L, TimeUnit.SECONDS);
+      }
+
+      final CountDownLatch latch;
+      final boolean closeWithoutReading;
+      final Queue<String> bodies = new ConcurrentLinkedQueue<>();
+   }
+}
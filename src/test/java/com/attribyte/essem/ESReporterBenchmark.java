@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import org.attribyte.essem.ReportProtos;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the time and heap allocation per metric required to generate bulk requests.
+ * <p>
+ *    Compares a new buffer for every request (the previous behavior) with
+ *    the reused, per-thread buffer.
+ * </p>
+ * <p>
+ *    Usage: <code>ESReporterBenchmark [metrics per report] [reports per request] [iterations]</code>
+ * </p>
+ */
+public class ESReporterBenchmark {
+
+   public static void main(String[] args) throws Exception {
+
+      final int metricsPerReport = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+      final int reportsPerRequest = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+      final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+      final ESReporter reporter = ESReporterTest.testReporter();
+      final QueuedReport report = new QueuedReport("test", buildReport(metricsPerReport));
+      final long metricsPerRequest = (long)metricsPerReport * reportsPerRequest;
+
+      for(int pass = 0; pass < 2; pass++) { //First pass is warm-up
+         long[] unpooled = run(reporter, report, reportsPerRequest, iterations, false);
+         long[] pooled = run(reporter, report, reportsPerRequest, iterations, true);
+         if(pass > 0) {
+            System.out.println("metrics/request: " + metricsPerRequest + ", iterations: " + iterations);
+            print("unpooled", unpooled, metricsPerRequest * iterations);
+            print("pooled", pooled, metricsPerRequest * iterations);
+         }
+      }
+   }
+
+   /**
+    * Generates and copies requests.
+    * @return The elapsed nanos and allocated bytes.
+    */
+   private static long[] run(final ESReporter reporter, final QueuedReport report,
+                             final int reportsPerRequest, final int iterations,
+                             final boolean pooled) throws Exception {
+      final com.sun.management.ThreadMXBean threadBean =
+              (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      final long threadId = Thread.currentThread().getId();
+      final long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+      final long startNanos = System.nanoTime();
+      long totalBytes = 0L;
+      for(int i = 0; i < iterations; i++) {
+         ESReporter.BulkRequest request = pooled ? reporter.new BulkRequest("test") :
+                 reporter.new BulkRequest("test", new ESReporter.BulkBuffer(16384));
+         for(int j = 0; j < reportsPerRequest; j++) {
+            request.add(report);
+         }
+         totalBytes += request.body.toByteArray().length;
+      }
+      final long elapsedNanos = System.nanoTime() - startNanos;
+      final long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+      if(totalBytes == 0L) throw new AssertionError();
+      return new long[] {elapsedNanos, allocatedBytes};
+   }
+
+   private static void print(final String label, final long[] result, final long totalMetrics) {
+      System.out.println(String.format("%-10s %8.1f ns/metric %8.1f bytes/metric", label,
+              (double)result[0] / totalMetrics, (double)result[1] / totalMetrics));
+   }
+
+   /**
+    * Builds a report with (mostly) timers.
+    * @param numMetrics The number of metrics.
+    * @return The report.
+    */
+   static ReportProtos.EssemReport buildReport(final int numMetrics) {
+      ReportProtos.EssemReport.Builder builder = ReportProtos.EssemReport.newBuilder();
+      builder.setTimestamp(System.currentTimeMillis());
+      builder.setApplication("benchmark-app");
+      builder.setHost("benchmark-host.example.com");
+      builder.setInstance("benchmark-instance-0");
+      for(int i = 0; i < numMetrics; i++) {
+         switch(i % 5) {
+            case 0:
+               builder.addGaugeBuilder().setName("com.example.gauge." + i).setValue(i * 1.5);
+               break;
+            case 1:
+               builder.addCounterBuilder().setName("com.example.counter." + i).setCount(i);
+               break;
+            default:
+               builder.addTimerBuilder().setName("com.example.timer." + i)
+                       .setCount(i).setOneMinuteRate(1.1).setFiveMinuteRate(2.2).setFifteenMinuteRate(3.3)
+                       .setMeanRate(4.4).setMax(100.5).setMin(0.5).setMean(50.25).setStd(10.125)
+                       .setMedian(49.0).setPercentile75(75.0).setPercentile95(95.0).setPercentile98(98.0)
+                       .setPercentile99(99.0).setPercentile999(99.9);
+               break;
+         }
+      }
+      return builder.build();
+   }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.attribyte.essem.util.Util;
+import com.codahale.metrics.Counter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import org.attribyte.api.Logger;
+import org.attribyte.essem.ReportProtos;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bulk request generation and response handling tests.
+ */
+public class ESReporterTest {
+
+   @Test
+   public void testSelectDocuments() throws Exception {
+      ReportProtos.EssemReport report = testReport();
+      BitSet docs = new BitSet();
+      docs.set(1);
+      docs.set(3);
+      ReportProtos.EssemReport selected = ESReporter.selectDocuments(report, docs);
+      assertEquals(1, selected.getGaugeCount());
+      assertEquals("gauge-1", selected.getGauge(0).getName());
+      assertEquals(1, selected.getCounterCount());
+      assertEquals("counter-1", selected.getCounter(0).getName());
+      assertEquals(report.getTimestamp(), selected.getTimestamp());
+      assertEquals(report.getApplication(), selected.getApplication());
+   }
+
+   @Test
+   public void testBulkFormat() throws Exception {
+      ESReporter reporter = testReporter();
+      ESReporter.BulkRequest bulkRequest = reporter.new BulkRequest("test");
+      bulkRequest.add(new QueuedReport("test", testReport()));
+      bulkRequest.add(new QueuedReport("test", testReport()));
+      assertEquals(8, bulkRequest.docReports.size());
+      assertEquals(2, bulkRequest.reports().size());
+
+      String body = new String(bulkRequest.body.toByteArray(), Charsets.UTF_8);
+      assertTrue(body.endsWith("\n"));
+      List<String> lines = Splitter.on('\n').omitEmptyStrings().splitToList(body);
+      assertEquals(16, lines.size());
+      assertEquals("{\"index\":{\"_type\":\"gauge\"}}", lines.get(0));
+      JsonNode doc = Util.mapper.readTree(lines.get(1));
+      assertEquals("gauge-0", doc.get("name").asText());
+      assertEquals("test-app", doc.get("application").asText());
+      assertEquals(1000L, doc.get("ts").asLong());
+
+      ESReporter.BulkRequest nextRequest = reporter.new BulkRequest("test");
+      assertSame(bulkRequest.body, nextRequest.body);
+      assertEquals(0, nextRequest.body.size());
+   }
+
+   @Test
+   public void testFailedWrite() throws Exception {
+      ESReporter reporter = testReporter();
+      ESReporter.BulkRequest bulkRequest = reporter.new BulkRequest("test", new ESReporter.BulkBuffer(1024));
+      bulkRequest.add(new QueuedReport("test", testReport()));
+      final int size = bulkRequest.body.size();
+      bulkRequest.body.generator.close(); //Writes fail
+      try {
+         bulkRequest.add(new QueuedReport("test", testReport()));
+         fail("Expecting the write to fail");
+      } catch(Exception e) {
+         //Expected
+      }
+      assertEquals(size, bulkRequest.body.size());
+      assertEquals(4, bulkRequest.docReports.size());
+
+      bulkRequest.add(new QueuedReport("test", testReport()));
+      assertEquals(8, bulkRequest.docReports.size());
+      assertEquals(16, Splitter.on('\n').omitEmptyStrings().splitToList(new String(bulkRequest.body.toByteArray(), Charsets.UTF_8)).size());
+   }
+
+   @Test
+   public void testNoErrors() throws Exception {
+      ESReporter reporter = testReporter();
+      ESReporter.BulkRequest bulkRequest = reporter.new BulkRequest("test");
+      bulkRequest.add(new QueuedReport("test", testReport()));
+      assertEquals(4, bulkRequest.docReports.size());
+
+      final List<QueuedReport> failed = Lists.newArrayList();
+      bulkRequest.handleResponse(response("{\"took\":3,\"errors\":false,\"items\":[]}"), collect(failed));
+      assertEquals(0, failed.size());
+      assertEquals(4L, ((Counter)reporter.getMetrics().get("documents-accepted")).getCount());
+   }
+
+   @Test
+   public void testItemErrors() throws Exception {
+      ESReporter reporter = testReporter();
+      ESReporter.BulkRequest bulkRequest = reporter.new BulkRequest("test");
+      bulkRequest.add(new QueuedReport("test", testReport()));
+
+      final List<QueuedReport> failed = Lists.newArrayList();
+      bulkRequest.handleResponse(response("{\"took\":3,\"errors\":true,\"items\":[" +
+              "{\"index\":{\"_index\":\"test\",\"status\":201}}," +
+              "{\"index\":{\"_index\":\"test\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}}}," +
+              "{\"index\":{\"_index\":\"test\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"bad\"}}}," +
+              "{\"index\":{\"_index\":\"test\",\"status\":201}}]}"), collect(failed));
+
+      assertEquals(1, failed.size());
+      assertEquals(1, failed.get(0).failedCount);
+      assertEquals(1, failed.get(0).report.getGaugeCount());
+      assertEquals("gauge-1", failed.get(0).report.getGauge(0).getName());
+      assertEquals(0, failed.get(0).report.getCounterCount());
+      assertEquals(2L, ((Counter)reporter.getMetrics().get("documents-accepted")).getCount());
+      assertEquals(1L, ((Counter)reporter.getMetrics().get("documents-rejected-retryable")).getCount());
+      assertEquals(1L, ((Counter)reporter.getMetrics().get("documents-rejected-permanent")).getCount());
+   }
+
+   @Test
+   public void testMissingItems() throws Exception {
+      ESReporter reporter = testReporter();
+      ESReporter.BulkRequest bulkRequest = reporter.new BulkRequest("test");
+      bulkRequest.add(new QueuedReport("test", testReport()));
+
+      final List<QueuedReport> failed = Lists.newArrayList();
+      bulkRequest.handleResponse(response("{\"errors\":true,\"items\":[{\"index\":{\"status\":201}}]}"), collect(failed));
+      assertEquals(1, failed.size());
+      assertEquals(3, failed.get(0).report.getGaugeCount() + failed.get(0).report.getCounterCount());
+   }
+
+   @Test
+   public void testTruncatedResponse() throws Exception {
+      ESReporter reporter = testReporter();
+      ESReporter.BulkRequest bulkRequest = reporter.new BulkRequest("test");
+      bulkRequest.add(new QueuedReport("test", testReport()));
+
+      final List<QueuedReport> failed = Lists.newArrayList();
+      bulkRequest.handleResponse(response("{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"sta"), collect(failed));
+      assertEquals(1, failed.size());
+      assertEquals(1, failed.get(0).failedCount);
+      assertEquals(3, failed.get(0).report.getGaugeCount() + failed.get(0).report.getCounterCount());
+      assertEquals("gauge-1", failed.get(0).report.getGauge(0).getName());
+      assertEquals(1L, ((Counter)reporter.getMetrics().get("documents-accepted")).getCount());
+      assertEquals(3L, ((Counter)reporter.getMetrics().get("documents-rejected-retryable")).getCount());
+   }
+
+   private static ReportProtos.EssemReport testReport() {
+      ReportProtos.EssemReport.Builder builder = ReportProtos.EssemReport.newBuilder();
+      builder.setTimestamp(1000L);
+      builder.setApplication("test-app");
+      builder.addGaugeBuilder().setName("gauge-0").setValue(1.0);
+      builder.addGaugeBuilder().setName("gauge-1").setValue(2.0);
+      builder.addGaugeBuilder().setName(" "); //Invalid - skipped
+      builder.addCounterBuilder().setName("counter-0").setCount(1L);
+      builder.addCounterBuilder().setName("counter-1").setCount(2L);
+      return builder.build();
+   }
+
+   private static ByteArrayInputStream response(final String json) {
+      return new ByteArrayInputStream(json.getBytes(Charsets.UTF_8));
+   }
+
+   private static Function<QueuedReport, Boolean> collect(final List<QueuedReport> failed) {
+      return new Function<QueuedReport, Boolean>() {
+         public Boolean apply(final QueuedReport report) {
+            return failed.add(report);
+         }
+      };
+   }
+
+   static ESReporter testReporter() throws Exception {
+      return new ESReporter(new ESEndpoint("http://127.0.0.1:9200/", null), ByteString.EMPTY, null, testLogger);
+   }
+
+   static final Logger testLogger = new Logger() {
+      public void debug(String msg) {}
+      public void info(String msg) {}
+      public void warn(String msg) {}
+      public void warn(String msg, Throwable t) {}
+      public void error(String msg) {}
+      public void error(String msg, Throwable t) {}
+   };
+}
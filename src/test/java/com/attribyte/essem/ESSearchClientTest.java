@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ESSearchClientTest {
+
+   private static final int HIT_COUNT = 200000;
+
+   private static final String AUTH = BasicAuth.basicAuthValue("test", "test");
+
+   private static Server server;
+   private static HttpClient httpClient;
+   private static ESSearchClient searchClient;
+
+   @BeforeClass
+   public static void start() throws Exception {
+      server = new Server(0);
+      server.setHandler(new AbstractHandler() {
+         @Override
+         public void handle(final String target, final Request baseRequest,
+                            final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            String query = new String(ByteStreams.toByteArray(request.getInputStream()), Charsets.UTF_8);
+            if(!target.equals("/test/_search") || !AUTH.equals(request.getHeader(BasicAuth.AUTHORIZATION_HEADER))) {
+               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+               response.getOutputStream().write("{\"error\":\"bad request\"}".getBytes(Charsets.UTF_8));
+               return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            ServletOutputStream out = response.getOutputStream();
+            out.write(("{\"query\":" + query + ",\"hits\":{\"hits\":[").getBytes(Charsets.UTF_8));
+            for(int i = 0; i < HIT_COUNT; i++) {
+               out.write(((i > 0 ? "," : "") + "{\"_id\":\"" + i + "\",\"fields\":{\"count\":[" + i + "]}}").getBytes(Charsets.UTF_8));
+            }
+            out.write("]}}".getBytes(Charsets.UTF_8));
+         }
+      });
+      server.start();
+
+      httpClient = new HttpClient();
+      httpClient.start();
+      int port = ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+      ESEndpoint endpoint = new ESEndpoint("http://localhost:" + port, AUTH);
+      searchClient = new ESSearchClient(endpoint, httpClient, 30);
+   }
+
+   @AfterClass
+   public static void stop() throws Exception {
+      httpClient.stop();
+      server.stop();
+   }
+
+   @Test
+   public void testStreamedSearch() throws Exception {
+      try(ESResponse response = searchClient.search("test", "{\"size\":10}")) {
+         assertEquals(200, response.statusCode);
+         int hitCount = 0;
+         long countSum = 0L;
+         JsonParser parser = response.parser();
+         JsonToken token;
+         while((token = parser.nextToken()) != null) {
+            if(token == JsonToken.FIELD_NAME) {
+               switch(parser.getCurrentName()) {
+                  case "size":
+                     assertEquals(JsonToken.VALUE_NUMBER_INT, parser.nextToken());
+                     assertEquals(10, parser.getIntValue());
+                     break;
+                  case "_id":
+                     hitCount++;
+                     break;
+                  case "count":
+                     parser.nextToken();
+                     parser.nextToken();
+                     countSum += parser.getLongValue();
+                     break;
+               }
+            }
+         }
+         assertEquals(HIT_COUNT, hitCount);
+         assertEquals((long)HIT_COUNT * (HIT_COUNT - 1) / 2, countSum);
+      }
+   }
+
+   @Test
+   public void testErrorResponse() throws Exception {
+      try(ESResponse response = searchClient.search("other", "{}")) {
+         assertEquals(400, response.statusCode);
+         assertEquals("{\"error\":\"bad request\"}", response.bodyAsString());
+      }
+   }
+
+   @Test
+   public void testUnreadResponseIsClosed() throws Exception {
+      for(int i = 0; i < 5; i++) {
+         try(ESResponse response = searchClient.search("test", "{}")) {
+            assertEquals(200, response.statusCode);
+            assertTrue(response.body.read() >= 0);
+         }
+      }
+   }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.attribyte.essem.query.GraphQuery;
+import com.attribyte.essem.util.Util;
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GraphCacheTest {
+
+   private static final long START_MILLIS = 1451606400000L;
+
+   private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1L);
+
+   @Test
+   public void partialHit() throws Exception {
+
+      final TestClock clock = new TestClock(START_MILLIS + 10L * MINUTE_MILLIS);
+      final GraphCache cache = new GraphCache(1024L * 1024L, 0L, 30L * MINUTE_MILLIS, clock);
+
+      GraphCache.Lookup lookup = cache.lookup("test", query(START_MILLIS + 30000L, START_MILLIS + 10L * MINUTE_MILLIS - 1L));
+      assertNotNull(lookup);
+      assertNotNull(lookup.searchRequest);
+      assertTrue(lookup.explain().startsWith("miss"));
+      byte[] merged = merge(lookup, esResponse(0, 10, "host-0", "host-1"));
+      assertEquals(10, bucketCount(merged, "host-0"));
+      assertEquals(10, bucketCount(merged, "host-1"));
+
+      lookup = cache.lookup("test", query(START_MILLIS + 30000L, START_MILLIS + 10L * MINUTE_MILLIS - 1L));
+      assertNull(lookup.searchRequest);
+      assertArrayEquals(merged, lookup.merge(null));
+      assertEquals(1L, ((Meter)cache.getMetrics().get("hits")).getCount());
+
+      clock.time = START_MILLIS + 12L * MINUTE_MILLIS;
+      lookup = cache.lookup("test", query(START_MILLIS + 30000L, START_MILLIS + 12L * MINUTE_MILLIS - 1L));
+      assertNotNull(lookup.searchRequest);
+      assertTrue(lookup.explain().startsWith("partial"));
+      assertTrue(lookup.explain().endsWith("fetchStart=" + (START_MILLIS + 10L * MINUTE_MILLIS)));
+      merged = merge(lookup, esResponse(10, 12, "host-0", "host-2"));
+      assertEquals(12, bucketCount(merged, "host-0"));
+      assertEquals(10, bucketCount(merged, "host-1"));
+      assertEquals(2, bucketCount(merged, "host-2"));
+
+      clock.time = START_MILLIS + 41L * MINUTE_MILLIS; //Buckets fetched at 10 minutes are too old
+      lookup = cache.lookup("test", query(START_MILLIS + 30000L, START_MILLIS + 12L * MINUTE_MILLIS - 1L));
+      assertNotNull(lookup.searchRequest);
+      assertTrue(lookup.explain().startsWith("miss"));
+      assertEquals(1L, ((Meter)cache.getMetrics().get("expired")).getCount());
+   }
+
+   @Test
+   public void endBeforeCoverage() throws Exception {
+      final TestClock clock = new TestClock(START_MILLIS + 20L * MINUTE_MILLIS);
+      final GraphCache cache = new GraphCache(1024L * 1024L, 0L, 30L * MINUTE_MILLIS, clock);
+
+      GraphCache.Lookup lookup = cache.lookup("test", query(START_MILLIS, START_MILLIS + 20L * MINUTE_MILLIS - 1L));
+      byte[] merged = merge(lookup, esResponse(0, 20, "host-0"));
+      assertEquals(20, bucketCount(merged, "host-0"));
+
+      lookup = cache.lookup("test", query(START_MILLIS + 2L * MINUTE_MILLIS, START_MILLIS + 5L * MINUTE_MILLIS - 1L));
+      assertNull(lookup.searchRequest);
+      assertTrue(lookup.explain().startsWith("hit"));
+      assertEquals(3, bucketCount(lookup.merge(null), "host-0"));
+   }
+
+   @Test
+   public void notCacheable() throws Exception {
+      final GraphCache cache = new GraphCache(1024L * 1024L, 0L, 30L * MINUTE_MILLIS, new TestClock(START_MILLIS));
+      assertNull(cache.lookup("test", new GraphQuery(request(ImmutableMap.of(
+              "rangeStart", new String[]{Long.toString(START_MILLIS)},
+              "field", new String[]{"count"},
+              "aggregateOn", new String[]{"host"},
+              GraphQuery.RESOLUTION_PARAMETER, new String[]{"month"})), "day")));
+      assertNull(cache.lookup("test", new GraphQuery(request(ImmutableMap.of(
+              "rangeStart", new String[]{Long.toString(START_MILLIS)},
+              "field", new String[]{"count"},
+              "sort", new String[]{"desc"},
+              GraphQuery.RESOLUTION_PARAMETER, new String[]{"minute"})), "day")));
+   }
+
+   private static byte[] merge(final GraphCache.Lookup lookup, final String esResponse) throws Exception {
+      try(JsonParser parser = Util.parserFactory.createParser(esResponse)) {
+         return lookup.merge(parser);
+      }
+   }
+
+   private static int bucketCount(final byte[] merged, final String host) throws Exception {
+      for(JsonNode hostBucket : Util.mapper.readTree(merged).path("aggregations").path("host").path("buckets")) {
+         if(hostBucket.path("key").asText().equals(host)) {
+            return hostBucket.path("avg").path("buckets").size();
+         }
+      }
+      return 0;
+   }
+
+   private static GraphQuery query(final long startTimestamp, final long endTimestamp) {
+      return new GraphQuery(request(ImmutableMap.of(
+              "rangeStart", new String[]{Long.toString(startTimestamp)},
+              "rangeEnd", new String[]{Long.toString(endTimestamp)},
+              "field", new String[]{"count"},
+              "aggregateOn", new String[]{"host"},
+              GraphQuery.RESOLUTION_PARAMETER, new String[]{"minute"})), "day");
+   }
+
+   /**
+    * Creates a response for a date histogram, grouped by host, with a bucket for each minute.
+    */
+   private static String esResponse(final int startMinute, final int endMinute, final String... hosts) {
+      StringBuilder buf = new StringBuilder("{\"took\":1,\"aggregations\":{\"host\":{\"buckets\":[");
+      for(int host = 0; host < hosts.length; host++) {
+         if(host > 0) buf.append(',');
+         buf.append("{\"key\":\"").append(hosts[host]).append("\",\"doc_count\":1,\"avg\":{\"buckets\":[");
+         for(int i = startMinute; i < endMinute; i++) {
+            if(i > startMinute) buf.append(',');
+            buf.append("{\"key_as_string\":\"x\",\"key\":").append(START_MILLIS + i * MINUTE_MILLIS);
+            buf.append(",\"doc_count\":1,\"count\":{\"value\":").append(i).append("}}");
+         }
+         buf.append("]}}");
+      }
+      buf.append("]}}}");
+      return buf.toString();
+   }
+
+   private static HttpServletRequest request(final Map<String, String[]> parameters) {
+      return (HttpServletRequest)Proxy.newProxyInstance(GraphCacheTest.class.getClassLoader(),
+              new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                 @Override
+                 public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    switch(method.getName()) {
+                       case "getParameter":
+                          String[] values = parameters.get(args[0]);
+                          return values != null ? values[0] : null;
+                       case "getParameterValues":
+                          return parameters.get(args[0]);
+                       case "getParameterMap":
+                          return parameters;
+                       default:
+                          return null;
+                    }
+                 }
+              });
+   }
+
+   private static class TestClock extends Clock {
+
+      TestClock(final long time) {
+         this.time = time;
+      }
+
+      @Override
+      public long getTick() {
+         return TimeUnit.MILLISECONDS.toNanos(time);
+      }
+
+      @Override
+      public long getTime() {
+         return time;
+      }
+
+      volatile long time;
+   }
+}
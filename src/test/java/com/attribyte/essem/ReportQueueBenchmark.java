@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures report queue throughput with contending producers.
+ * <p>
+ *    Producers <code>put</code> elements; consumers <code>take</code>, then <code>drainTo</code>,
+ *    as the report queue threads do.
+ * </p>
+ * <p>
+ *    Usage: <code>ReportQueueBenchmark [capacity] [consumers] [elements per producer]</code>
+ * </p>
+ */
+public class ReportQueueBenchmark {
+
+   private static final int[] PRODUCERS = {1, 8, 32};
+
+   public static void main(String[] args) throws Exception {
+
+      final int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+      final int numConsumers = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+      final int perProducer = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+      System.out.println("capacity: " + capacity + ", consumers: " + numConsumers);
+      for(int pass = 0; pass < 2; pass++) { //First pass is warm-up
+         for(int numProducers : PRODUCERS) {
+            final int elements = Math.max(perProducer / numProducers, 1000);
+            long array = run(new ArrayBlockingQueue<>(capacity), numProducers, numConsumers, elements);
+            long linked = run(new LinkedBlockingDeque<>(capacity), numProducers, numConsumers, elements);
+            long ring = run(new RingBufferQueue<>(capacity), numProducers, numConsumers, elements);
+            if(pass > 0) {
+               final long total = (long)elements * numProducers;
+               System.out.println(String.format("producers: %2d  array %6.1f ns/op  linked %6.1f ns/op  ring %6.1f ns/op",
+                       numProducers, (double)array / total, (double)linked / total, (double)ring / total));
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs producers and consumers until all elements are consumed.
+    * @return The elapsed nanos.
+    */
+   private static long run(final BlockingQueue<Integer> queue,
+                           final int numProducers, final int numConsumers,
+                           final int perProducer) throws Exception {
+
+      final long total = (long)numProducers * perProducer;
+      final AtomicLong consumed = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(1);
+      final Integer element = 1;
+
+      List<Thread> consumers = Lists.newArrayList();
+      for(int i = 0; i < numConsumers; i++) {
+         Thread consumer = new Thread(() -> {
+            List<Integer> processingList = Lists.newArrayListWithCapacity(65);
+            try {
+               while(true) {
+                  processingList.clear();
+                  processingList.add(queue.take());
+                  queue.drainTo(processingList, 64);
+                  if(consumed.addAndGet(processingList.size()) == total) {
+                     done.countDown();
+                  }
+               }
+            } catch(InterruptedException ie) {
+               //Done
+            }
+         });
+         consumer.setDaemon(true);
+         consumers.add(consumer);
+         consumer.start();
+      }
+
+      List<Thread> producers = Lists.newArrayList();
+      for(int i = 0; i < numProducers; i++) {
+         Thread producer = new Thread(() -> {
+            try {
+               start.await();
+               for(int j = 0; j < perProducer; j++) {
+                  queue.put(element);
+               }
+            } catch(InterruptedException ie) {
+               //Done
+            }
+         });
+         producers.add(producer);
+         producer.start();
+      }
+
+      final long startNanos = System.nanoTime();
+      start.countDown();
+      done.await();
+      final long elapsedNanos = System.nanoTime() - startNanos;
+
+      for(Thread producer : producers) {
+         producer.join();
+      }
+      for(Thread consumer : consumers) {
+         consumer.interrupt();
+         consumer.join();
+      }
+      return elapsedNanos;
+   }
+}
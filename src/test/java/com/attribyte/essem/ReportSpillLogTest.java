@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.google.common.io.Files;
+import org.attribyte.essem.ReportProtos;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ReportSpillLogTest {
+
+   @Test
+   public void testAppendConsume() throws Exception {
+      File dir = Files.createTempDir();
+      ReportSpillLog log = ReportSpillLog.open(dir, 4096, 1024 * 1024);
+      for(int i = 0; i < 20; i++) { //Rolls segments
+         assertTrue(log.append(new QueuedReport("index" + i, buildReport(i)), 0L));
+      }
+      assertEquals(20, log.size());
+
+      for(int i = 0; i < 20; i++) {
+         ReportSpillLog.Record record = log.next(System.currentTimeMillis());
+         assertNotNull(record);
+         assertEquals("index" + i, record.report.index);
+         assertEquals(i, record.report.report.getGauge(0).getValue(), 0.0);
+         log.consume(record);
+      }
+      assertNull(log.next(System.currentTimeMillis()));
+      assertEquals(0, log.size());
+      log.close();
+   }
+
+   @Test
+   public void testNotBefore() throws Exception {
+      File dir = Files.createTempDir();
+      ReportSpillLog log = ReportSpillLog.open(dir, 4096, 1024 * 1024);
+      long now = System.currentTimeMillis();
+      assertTrue(log.append(new QueuedReport(new QueuedReport("test", buildReport(1)), null, 3), now + 1000L));
+      assertNull(log.next(now));
+      ReportSpillLog.Record record = log.next(now + 1000L);
+      assertNotNull(record);
+      assertEquals(3, record.report.failedCount);
+      log.close();
+   }
+
+   @Test
+   public void testRecover() throws Exception {
+      File dir = Files.createTempDir();
+      ReportSpillLog log = ReportSpillLog.open(dir, 4096, 1024 * 1024);
+      for(int i = 0; i < 10; i++) {
+         assertTrue(log.append(new QueuedReport("index" + i, buildReport(i)), 0L));
+      }
+      for(int i = 0; i < 4; i++) {
+         log.consume(log.next(System.currentTimeMillis()));
+      }
+      log.close();
+
+      log = ReportSpillLog.open(dir, 4096, 1024 * 1024);
+      assertEquals(6, log.size());
+      ReportSpillLog.Record record = log.next(System.currentTimeMillis());
+      assertNotNull(record);
+      assertEquals("index4", record.report.index);
+      log.close();
+   }
+
+   @Test
+   public void testMaxBytes() throws Exception {
+      File dir = Files.createTempDir();
+      ReportSpillLog log = ReportSpillLog.open(dir, 4096, 512);
+      int appended = 0;
+      while(log.append(new QueuedReport("test", buildReport(appended)), 0L)) {
+         appended++;
+      }
+      assertTrue(appended > 0);
+      assertEquals(appended, log.size());
+      log.close();
+   }
+
+   private static ReportProtos.EssemReport buildReport(final int value) {
+      ReportProtos.EssemReport.Builder builder = ReportProtos.EssemReport.newBuilder();
+      builder.setTimestamp(System.currentTimeMillis());
+      builder.setApplication("test-app");
+      builder.setHost("test-host");
+      builder.addGaugeBuilder().setName("gauge").setValue(value);
+      for(int i = 0; i < 10; i++) {
+         builder.addCounterBuilder().setName("counter." + i).setCount(i);
+      }
+      return builder.build();
+   }
+}
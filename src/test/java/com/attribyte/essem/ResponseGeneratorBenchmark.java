@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.attribyte.essem.query.GraphQuery;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.ISODateTimeFormat;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * Measures the latency and heap allocation to generate graph responses from a synthetic
+ * ES response with 10k buckets (aggregation) or 10k hits, for each response generator.
+ * <p>
+ *    Usage: <code>ResponseGeneratorBenchmark [iterations] [output directory]</code>.
+ *    If an output directory is specified, the generated responses are written to it.
+ * </p>
+ */
+public class ResponseGeneratorBenchmark {
+
+   private static final int BUCKET_COUNT = 10000;
+
+   private static final String[] FIELDS = {"count", "median", "p99", "m1Rate"};
+
+   public static void main(String[] args) throws Exception {
+      final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+      final File outputDir = args.length > 1 ? new File(args[1]) : null;
+
+      final byte[] aggregationResponse = aggregationResponse(BUCKET_COUNT).getBytes(Charsets.UTF_8);
+      final byte[] hitsResponse = hitsResponse(BUCKET_COUNT).getBytes(Charsets.UTF_8);
+      final GraphQuery aggregationQuery = new GraphQuery(request(ImmutableMap.of(
+              "range", new String[]{"week"},
+              "field", FIELDS,
+              "aggregateOn", new String[]{"host"},
+              GraphQuery.RESOLUTION_PARAMETER, new String[]{"minute"})), "day");
+      final GraphQuery hitsQuery = new GraphQuery(request(ImmutableMap.of(
+              "range", new String[]{"week"},
+              "field", FIELDS)), "day");
+
+      final ResponseGenerator[] generators = {new DefaultResponseGenerator(), new MGraphResponseGenerator()};
+      System.out.println(String.format("ES response: aggregation %.2f MB, hits %.2f MB",
+              aggregationResponse.length / 1e6, hitsResponse.length / 1e6));
+      for(int pass = 0; pass < 2; pass++) { //First pass is warm-up
+         for(ResponseGenerator generator : generators) {
+            for(boolean isAggregation : new boolean[]{true, false}) {
+               final GraphQuery query = isAggregation ? aggregationQuery : hitsQuery;
+               final byte[] esResponse = isAggregation ? aggregationResponse : hitsResponse;
+               long nanos = 0L;
+               long bytes = 0L;
+               ByteArrayOutputStream output = null;
+               for(int i = 0; i < iterations; i++) {
+                  output = new ByteArrayOutputStream(1024 * 1024);
+                  HttpServletResponse response = response(output);
+                  final long startBytes = allocatedBytes();
+                  final long startNanos = System.nanoTime();
+                  generate((ESResponseGenerator)generator, query, esResponse, response);
+                  nanos += System.nanoTime() - startNanos;
+                  bytes += allocatedBytes() - startBytes;
+               }
+
+               final String name = generator.getClass().getSimpleName() + (isAggregation ? " aggregation" : " hits");
+               if(pass > 0) {
+                  System.out.println(String.format("%-45s %8.2f ms %8.2f MB allocated %8.2f MB output", name,
+                          nanos / 1e6 / iterations, bytes / 1e6 / iterations, output.size() / 1e6));
+                  if(outputDir != null) {
+                     Files.write(output.toByteArray(), new File(outputDir, name.replace(' ', '-') + ".json"));
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   private static void generate(final ESResponseGenerator generator, final GraphQuery query,
+                                final byte[] esResponse, final HttpServletResponse response) throws Exception {
+      try(JsonParser parser = ESResponseGenerator.parserFactory.createParser(esResponse)) {
+         if(!generator.generateGraph(query, parser, EnumSet.noneOf(ResponseGenerator.Option.class),
+                 RateUnit.PER_MINUTE, response)) {
+            throw new AssertionError("Response not generated");
+         }
+      }
+   }
+
+   /**
+    * Creates a response for a date histogram, grouped by host, with 4 hosts.
+    */
+   static String aggregationResponse(final int bucketCount) {
+      StringBuilder buf = new StringBuilder(bucketCount * 200);
+      buf.append("{\"took\":12,\"timed_out\":false,\"_shards\":{\"total\":5,\"successful\":5,\"failed\":0},");
+      buf.append("\"hits\":{\"total\":").append(bucketCount * 4).append(",\"max_score\":0.0,\"hits\":[]},");
+      buf.append("\"aggregations\":{\"host\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,\"buckets\":[");
+      final int hostCount = 4;
+      final long startMillis = 1451606400000L;
+      for(int host = 0; host < hostCount; host++) {
+         if(host > 0) buf.append(',');
+         buf.append("{\"key\":\"host-").append(host).append("\",\"doc_count\":").append(bucketCount / hostCount * 4);
+         buf.append(",\"avg\":{\"buckets\":[");
+         for(int i = 0; i < bucketCount / hostCount; i++) {
+            if(i > 0) buf.append(',');
+            long key = startMillis + i * 60000L;
+            buf.append("{\"key_as_string\":\"").append(ISODateTimeFormat.dateTime().withZoneUTC().print(key)).append("\",");
+            buf.append("\"key\":").append(key).append(",\"doc_count\":").append(i % 5);
+            buf.append(",\"count\":{\"value\":").append(1000 + i).append('}');
+            buf.append(",\"median\":{\"value\":").append(i % 5 == 0 ? "null" : Double.toString(i * 1.25)).append('}');
+            buf.append(",\"p99\":{\"value\":").append(i * 3.5).append('}');
+            buf.append(",\"m1Rate\":{\"value\":").append(i * 0.01).append('}');
+            buf.append('}');
+         }
+         buf.append("]}}");
+      }
+      buf.append("]}}}");
+      return buf.toString();
+   }
+
+   /**
+    * Creates a response with raw hits for 2 hosts.
+    */
+   static String hitsResponse(final int hitCount) {
+      StringBuilder buf = new StringBuilder(hitCount * 300);
+      buf.append("{\"took\":12,\"timed_out\":false,\"_shards\":{\"total\":5,\"successful\":5,\"failed\":0},");
+      buf.append("\"hits\":{\"total\":").append(hitCount).append(",\"max_score\":null,\"hits\":[");
+      final long startMillis = 1451606400000L;
+      for(int i = 0; i < hitCount; i++) {
+         if(i > 0) buf.append(',');
+         String ts = ISODateTimeFormat.basicDateTime().print(new DateTime(startMillis + i * 1000L, DateTimeZone.UTC));
+         buf.append("{\"_index\":\"metrics\",\"_type\":\"timer\",\"_id\":\"").append(i).append("\",\"_score\":null,");
+         buf.append("\"fields\":{\"name\":[\"requests\"],\"application\":[\"web\"],\"host\":[\"host-").append(i % 2).append("\"],");
+         buf.append("\"instance\":[\"main\"],\"ts\":[\"").append(ts).append("\"],");
+         buf.append("\"count\":[").append(i).append("],\"median\":[").append(i * 1.25).append("],");
+         buf.append("\"p99\":[").append(i * 3.5).append("],\"m1Rate\":[").append(i * 0.01).append("]},");
+         buf.append("\"sort\":[").append(startMillis + i * 1000L).append("]}");
+      }
+      buf.append("]}}");
+      return buf.toString();
+   }
+
+   private static HttpServletRequest request(final Map<String, String[]> parameters) {
+      return (HttpServletRequest)Proxy.newProxyInstance(ResponseGeneratorBenchmark.class.getClassLoader(),
+              new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                 @Override
+                 public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    switch(method.getName()) {
+                       case "getParameter":
+                          String[] values = parameters.get(args[0]);
+                          return values != null ? values[0] : null;
+                       case "getParameterValues":
+                          return parameters.get(args[0]);
+                       case "getParameterMap":
+                          return parameters;
+                       default:
+                          return defaultValue(method);
+                    }
+                 }
+              });
+   }
+
+   private static HttpServletResponse response(final ByteArrayOutputStream output) {
+      final ServletOutputStream outputStream = new ServletOutputStream() {
+         @Override
+         public boolean isReady() {
+            return true;
+         }
+
+         @Override
+         public void setWriteListener(final WriteListener writeListener) {
+         }
+
+         @Override
+         public void write(final int b) {
+            output.write(b);
+         }
+
+         @Override
+         public void write(final byte[] b, final int off, final int len) {
+            output.write(b, off, len);
+         }
+      };
+
+      return (HttpServletResponse)Proxy.newProxyInstance(ResponseGeneratorBenchmark.class.getClassLoader(),
+              new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+                 @Override
+                 public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    switch(method.getName()) {
+                       case "getOutputStream":
+                          return outputStream;
+                       case "sendError":
+                          throw new AssertionError("Error: " + (args.length > 1 ? args[1] : args[0]));
+                       default:
+                          return defaultValue(method);
+                    }
+                 }
+              });
+   }
+
+   private static Object defaultValue(final Method method) {
+      final Class<?> returnType = method.getReturnType();
+      if(returnType == boolean.class) {
+         return false;
+      } else if(returnType == int.class) {
+         return 0;
+      } else if(returnType == long.class) {
+         return 0L;
+      } else {
+         return null;
+      }
+   }
+
+   private static long allocatedBytes() {
+      return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+              .getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+}
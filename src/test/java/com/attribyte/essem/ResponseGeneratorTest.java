@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.attribyte.essem.query.GraphQuery;
+import com.attribyte.essem.util.Util;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.SimpleDateFormat;
+import java.util.EnumSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs fixed ES responses through the response generators and compares
+ * the result with the expected (golden) response.
+ */
+public class ResponseGeneratorTest {
+
+   private static final long START_MILLIS = 1451606400000L;
+
+   private static final long MINUTE_MILLIS = 60000L;
+
+   private static final long RANGE_END_MILLIS = START_MILLIS + 60L * MINUTE_MILLIS;
+
+   /**
+    * Graphs by host, then name, with buckets that have int, float, null, big integer, missing and duplicate values.
+    */
+   private static final String AGGREGATION_RESPONSE =
+           "{\"took\":3,\"timed_out\":false,\"hits\":{\"total\":7,\"max_score\":0.0,\"hits\":[]}," +
+           "\"aggregations\":{\"host\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,\"buckets\":[" +
+           "{\"key\":\"host-0\",\"doc_count\":6,\"name\":{\"buckets\":[" +
+           "{\"key\":\"requests\",\"doc_count\":6,\"avg\":{\"buckets\":[" +
+           "{\"key_as_string\":\"a\",\"key\":" + START_MILLIS + ",\"doc_count\":2,\"count\":{\"value\":10},\"m1Rate\":{\"value\":0.5}}," +
+           "{\"key_as_string\":\"b\",\"key\":" + (START_MILLIS + MINUTE_MILLIS) + ",\"doc_count\":1,\"count\":{\"value\":null},\"m1Rate\":{\"value\":null}}," +
+           "{\"key_as_string\":\"c\",\"key\":" + (START_MILLIS + 2L * MINUTE_MILLIS) + ",\"doc_count\":3,\"count\":{\"value\":123456789012345678901234567890}}," +
+           "{\"key_as_string\":\"d\",\"key\":" + (START_MILLIS + 3L * MINUTE_MILLIS) + ",\"doc_count\":0,\"count\":{\"value\":null},\"m1Rate\":{\"value\":null}}" +
+           "]}}]}}," +
+           "{\"key\":\"host-1\",\"doc_count\":1,\"name\":{\"buckets\":[" +
+           "{\"key\":\"requests\",\"doc_count\":1,\"avg\":{\"buckets\":[" +
+           "{\"key_as_string\":\"a\",\"key\":" + START_MILLIS + ",\"doc_count\":1,\"count\":{\"value\":1},\"count\":{\"value\":2},\"m1Rate\":{\"value\":1.00000000000000000001}}" +
+           "]}}]}}" +
+           "]}}}";
+
+   /**
+    * Raw hits for two hosts.
+    */
+   private static final String HITS_RESPONSE =
+           "{\"took\":3,\"timed_out\":false,\"hits\":{\"total\":3,\"max_score\":null,\"hits\":[" +
+           hit("host-0", "20160101T000000.000Z", "\"count\":[10],\"m1Rate\":[0.5]") + "," +
+           hit("host-1", "20160101T000100.000Z", "\"count\":[20]") + "," +
+           hit("host-0", "20160101T000200.000Z", "\"count\":[30],\"m1Rate\":[1.5]") +
+           "]}}";
+
+   @Test
+   public void defaultAggregation() throws Exception {
+      TestResponse response = generate(new DefaultResponseGenerator(), aggregationQuery(), AGGREGATION_RESPONSE, RateUnit.PER_MINUTE);
+      assertEquals(HttpServletResponse.SC_OK, response.status);
+      String meta = "\"range\":\"day\",\"rangeStartTimestamp\":" + START_MILLIS + ",\"rangeEndTimestamp\":" + RANGE_END_MILLIS +
+              ",\"fields\":[\"timestamp\",\"samples\",\"count\",\"m1Rate\"],\"downsampledTo\":\"minute\",\"downsampledWith\":\"avg\"";
+      assertGolden("{\"graphs\":[" +
+              "{\"meta\":{" + meta + ",\"host\":\"host-0\",\"name\":\"requests\",\"key\":\"host-0.requests\"},\"samples\":[" +
+              "[" + START_MILLIS + ",2,10,30.0]," +
+              "[" + (START_MILLIS + MINUTE_MILLIS) + ",1,null,0.0]," +
+              "[" + (START_MILLIS + 2L * MINUTE_MILLIS) + ",3,123456789012345678901234567890,0]," +
+              "[" + (START_MILLIS + 3L * MINUTE_MILLIS) + ",0,null,0.0]]}," +
+              "{\"meta\":{" + meta + ",\"host\":\"host-1\",\"name\":\"requests\",\"key\":\"host-1.requests\"},\"samples\":[" +
+              "[" + START_MILLIS + ",1,2,60.0]]}" +
+              "]}", response);
+   }
+
+   @Test
+   public void defaultAggregationRawRate() throws Exception {
+      TestResponse response = generate(new DefaultResponseGenerator(), aggregationQuery(), AGGREGATION_RESPONSE, RateUnit.PER_SECOND);
+      assertEquals(Util.mapper.readTree("[" + START_MILLIS + ",2,10,0.5]"),
+              Util.mapper.readTree(response.body()).path("graphs").path(0).path("samples").path(0));
+   }
+
+   @Test
+   public void defaultHits() throws Exception {
+      TestResponse response = generate(new DefaultResponseGenerator(), hitsQuery(), HITS_RESPONSE, RateUnit.PER_MINUTE);
+      assertEquals(HttpServletResponse.SC_OK, response.status);
+      String meta = "\"range\":\"day\",\"rangeStartTimestamp\":" + START_MILLIS + ",\"rangeEndTimestamp\":" + RANGE_END_MILLIS +
+              ",\"fields\":[\"timestamp\",\"samples\",\"count\",\"m1Rate\"]";
+      assertGolden("{\"graphs\":[" +
+              "{\"meta\":{" + meta + ",\"application\":\"web\",\"host\":\"host-0\",\"instance\":\"main\",\"name\":\"requests\"," +
+              "\"key\":\"web.host-0.main.requests\"},\"samples\":[" +
+              "[" + START_MILLIS + ",1,10,30.0]," +
+              "[" + (START_MILLIS + 2L * MINUTE_MILLIS) + ",1,30,90.0]]}," +
+              "{\"meta\":{" + meta + ",\"application\":\"web\",\"host\":\"host-1\",\"instance\":\"main\",\"name\":\"requests\"," +
+              "\"key\":\"web.host-1.main.requests\"},\"samples\":[" +
+              "[" + (START_MILLIS + MINUTE_MILLIS) + ",1,20,null]]}" +
+              "]}", response);
+   }
+
+   @Test
+   public void mgraphAggregation() throws Exception {
+      TestResponse response = generate(new MGraphResponseGenerator(), aggregationQuery(), AGGREGATION_RESPONSE, RateUnit.PER_MINUTE);
+      assertEquals(HttpServletResponse.SC_OK, response.status);
+      assertGolden("[" +
+              "{\"timestamp\":" + START_MILLIS + ",\"date\":\"" + date(START_MILLIS) + "\",\"samples\":2,\"m1Rate\":30.0,\"count\":10}," +
+              "{\"timestamp\":" + (START_MILLIS + MINUTE_MILLIS) + ",\"date\":\"" + date(START_MILLIS + MINUTE_MILLIS) + "\",\"samples\":1}," +
+              "{\"timestamp\":" + (START_MILLIS + 2L * MINUTE_MILLIS) + ",\"date\":\"" + date(START_MILLIS + 2L * MINUTE_MILLIS) +
+              "\",\"samples\":3,\"count\":123456789012345678901234567890}," +
+              "{\"timestamp\":" + START_MILLIS + ",\"date\":\"" + date(START_MILLIS) + "\",\"samples\":1,\"m1Rate\":60.0,\"count\":2}" +
+              "]", response);
+   }
+
+   @Test
+   public void mgraphAggregationEmptyBins() throws Exception {
+      TestResponse response = new TestResponse();
+      try(JsonParser parser = Util.parserFactory.createParser(AGGREGATION_RESPONSE)) {
+         assertTrue(new MGraphResponseGenerator().generateGraph(aggregationQuery(), parser,
+                 EnumSet.of(ResponseGenerator.Option.EMPTY_BINS), RateUnit.PER_MINUTE, response.proxy()));
+      }
+      assertEquals(5, Util.mapper.readTree(response.body()).size());
+   }
+
+   /**
+    * Graphs are in the order their key is first seen. (The tree-based generator used hash order.)
+    */
+   @Test
+   public void mgraphHits() throws Exception {
+      TestResponse response = generate(new MGraphResponseGenerator(), hitsQuery(), HITS_RESPONSE, RateUnit.PER_MINUTE);
+      assertEquals(HttpServletResponse.SC_OK, response.status);
+      assertGolden("[" +
+              "{\"name\":\"requests\",\"application\":\"web\",\"host\":\"host-0\",\"instance\":\"main\",\"graph\":[" +
+              "{\"timestamp\":" + START_MILLIS + ",\"date\":\"" + date(START_MILLIS) + "\",\"count\":10,\"m1Rate\":30.0}," +
+              "{\"timestamp\":" + (START_MILLIS + 2L * MINUTE_MILLIS) + ",\"date\":\"" + date(START_MILLIS + 2L * MINUTE_MILLIS) +
+              "\",\"count\":30,\"m1Rate\":90.0}]}," +
+              "{\"name\":\"requests\",\"application\":\"web\",\"host\":\"host-1\",\"instance\":\"main\",\"graph\":[" +
+              "{\"timestamp\":" + (START_MILLIS + MINUTE_MILLIS) + ",\"date\":\"" + date(START_MILLIS + MINUTE_MILLIS) + "\",\"count\":20}]}" +
+              "]", response);
+   }
+
+   @Test
+   public void invalidAggregation() throws Exception {
+      final String invalidResponse = "{\"took\":3,\"aggregations\":{\"host\":{\"buckets\":[" +
+              "{\"doc_count\":1,\"name\":{\"buckets\":[]}}]}}}"; //No key
+      for(ESResponseGenerator generator : ImmutableList.of(new DefaultResponseGenerator(), new MGraphResponseGenerator())) {
+         TestResponse response = generate(generator, aggregationQuery(), invalidResponse, RateUnit.PER_MINUTE);
+         assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.status);
+         assertEquals("Aggregation is invalid", response.error);
+         assertEquals(0, response.body().length);
+      }
+   }
+
+   @Test
+   public void duplicateFields() throws Exception {
+      final ESResponseGenerator.Bucket bucket = new ESResponseGenerator.Bucket(ImmutableList.of("count", "m1Rate", "count"));
+      try(JsonParser parser = Util.parserFactory.createParser(
+              "{\"key\":1000,\"doc_count\":2,\"count\":{\"value\":7},\"m1Rate\":{\"value\":0.25}}")) {
+         assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+         assertTrue(bucket.read(parser));
+      }
+      assertEquals(1000L, bucket.key);
+      assertEquals(2L, bucket.samples);
+      assertEquals(7.0, bucket.doubleValue(0), 0.0);
+      assertEquals(0.25, bucket.doubleValue(1), 0.0);
+      assertEquals(7.0, bucket.doubleValue(2), 0.0);
+   }
+
+   private static void assertGolden(final String expected, final TestResponse response) throws Exception {
+      assertEquals(Util.mapper.readTree(expected), Util.mapper.readTree(response.body()));
+   }
+
+   private static TestResponse generate(final ESResponseGenerator generator, final GraphQuery query,
+                                        final String esResponse, final RateUnit rateUnit) throws Exception {
+      TestResponse response = new TestResponse();
+      try(JsonParser parser = Util.parserFactory.createParser(esResponse)) {
+         generator.generateGraph(query, parser, EnumSet.noneOf(ResponseGenerator.Option.class), rateUnit, response.proxy());
+      }
+      return response;
+   }
+
+   private static GraphQuery aggregationQuery() {
+      return new GraphQuery(request(ImmutableMap.<String, String[]>builder()
+              .put("rangeStart", new String[]{Long.toString(START_MILLIS)})
+              .put("rangeEnd", new String[]{Long.toString(RANGE_END_MILLIS)})
+              .put("field", new String[]{"count", "m1Rate"})
+              .put("aggregateOn", new String[]{"host,name"})
+              .put(GraphQuery.RESOLUTION_PARAMETER, new String[]{"minute"})
+              .put(GraphQuery.DOWNSAMPLE_FN_PARAMETER, new String[]{"avg"}).build()), "day");
+   }
+
+   private static GraphQuery hitsQuery() {
+      return new GraphQuery(request(ImmutableMap.of(
+              "rangeStart", new String[]{Long.toString(START_MILLIS)},
+              "rangeEnd", new String[]{Long.toString(RANGE_END_MILLIS)},
+              "field", new String[]{"count", "m1Rate"})), "day");
+   }
+
+   private static String hit(final String host, final String ts, final String values) {
+      return "{\"_index\":\"metrics\",\"_type\":\"meter\",\"_score\":null,\"fields\":{\"name\":[\"requests\"]," +
+              "\"application\":[\"web\"],\"host\":[\"" + host + "\"],\"instance\":[\"main\"],\"ts\":[\"" + ts + "\"]," +
+              values + "}}";
+   }
+
+   private static String date(final long timestamp) {
+      return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(timestamp);
+   }
+
+   private static HttpServletRequest request(final Map<String, String[]> parameters) {
+      return (HttpServletRequest)Proxy.newProxyInstance(ResponseGeneratorTest.class.getClassLoader(),
+              new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                 @Override
+                 public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    switch(method.getName()) {
+                       case "getParameter":
+                          String[] values = parameters.get(args[0]);
+                          return values != null ? values[0] : null;
+                       case "getParameterValues":
+                          return parameters.get(args[0]);
+                       case "getParameterMap":
+                          return parameters;
+                       default:
+                          return null;
+                    }
+                 }
+              });
+   }
+
+   /**
+    * Records the status, error and body written to a response.
+    */
+   private static class TestResponse {
+
+      HttpServletResponse proxy() {
+         final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+               return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(final int b) {
+               output.write(b);
+            }
+         };
+
+         return (HttpServletResponse)Proxy.newProxyInstance(ResponseGeneratorTest.class.getClassLoader(),
+                 new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                       switch(method.getName()) {
+                          case "getOutputStream":
+                             return outputStream;
+                          case "setStatus":
+                             status = (Integer)args[0];
+                             return null;
+                          case "sendError":
+                             status = (Integer)args[0];
+                             error = args.length > 1 ? (String)args[1] : null;
+                             return null;
+                          case "resetBuffer":
+                             output.reset();
+                             return null;
+                          case "isCommitted":
+                             return false;
+                          default:
+                             return null;
+                       }
+                    }
+                 });
+      }
+
+      byte[] body() {
+         return output.toByteArray();
+      }
+
+      int status;
+      String error;
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+   }
+}
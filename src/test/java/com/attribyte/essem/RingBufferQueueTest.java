@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferQueueTest {
+
+   @Test
+   public void testCapacity() throws Exception {
+      RingBufferQueue<Integer> queue = new RingBufferQueue<>(5);
+      assertEquals(8, queue.capacity());
+      for(int i = 0; i < 8; i++) {
+         assertTrue(queue.offer(i));
+      }
+      assertFalse(queue.offer(8));
+      assertFalse(queue.offer(8, 1, TimeUnit.MILLISECONDS));
+      assertEquals(8, queue.size());
+      assertEquals(0, queue.remainingCapacity());
+   }
+
+   @Test
+   public void testOrderAndDrain() throws Exception {
+      RingBufferQueue<Integer> queue = new RingBufferQueue<>(16);
+      for(int round = 0; round < 4; round++) { //Wraps
+         for(int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+         }
+         assertEquals(0, queue.take().intValue());
+         List<Integer> drained = Lists.newArrayList();
+         assertEquals(5, queue.drainTo(drained, 5));
+         assertEquals(Lists.newArrayList(1, 2, 3, 4, 5), drained);
+         drained.clear();
+         assertEquals(4, queue.drainTo(drained));
+         assertEquals(Lists.newArrayList(6, 7, 8, 9), drained);
+         assertTrue(queue.isEmpty());
+         assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+      }
+   }
+
+   @Test
+   public void testIterator() throws Exception {
+      RingBufferQueue<Integer> queue = new RingBufferQueue<>(8);
+      for(int i = 0; i < 6; i++) {
+         assertTrue(queue.offer(i));
+      }
+      assertEquals(0, queue.poll().intValue());
+      assertEquals(1, queue.poll().intValue());
+      for(int i = 6; i < 10; i++) { //Wraps
+         assertTrue(queue.offer(i));
+      }
+      Iterator<Integer> iter = queue.iterator();
+      assertEquals(2, queue.poll().intValue()); //Consumed after the snapshot
+      assertEquals(Lists.newArrayList(2, 3, 4, 5, 6, 7, 8, 9), Lists.newArrayList(iter));
+      assertEquals(Lists.newArrayList(3, 4, 5, 6, 7, 8, 9), Lists.newArrayList(queue));
+      assertTrue(queue.contains(9));
+      assertFalse(queue.contains(2));
+   }
+
+   @Test
+   public void testConcurrent() throws Exception {
+      final RingBufferQueue<Integer> queue = new RingBufferQueue<>(64);
+      final int numProducers = 4;
+      final int perProducer = 25000;
+      final BitSet received = new BitSet(numProducers * perProducer);
+
+      List<Thread> threads = Lists.newArrayList();
+      for(int p = 0; p < numProducers; p++) {
+         final int base = p * perProducer;
+         threads.add(new Thread(() -> {
+            try {
+               for(int i = 0; i < perProducer; i++) {
+                  queue.put(base + i);
+               }
+            } catch(InterruptedException ie) {
+               Thread.currentThread().interrupt();
+            }
+         }));
+      }
+
+      for(int c = 0; c < 2; c++) {
+         threads.add(new Thread(() -> {
+            List<Integer> batch = Lists.newArrayList();
+            try {
+               while(true) {
+                  Integer first = queue.poll(500, TimeUnit.MILLISECONDS);
+                  if(first == null) {
+                     return;
+                  }
+                  batch.clear();
+                  batch.add(first);
+                  queue.drainTo(batch, 16);
+                  synchronized(received) {
+                     for(Integer i : batch) {
+                        assertFalse(received.get(i));
+                        received.set(i);
+                     }
+                  }
+               }
+            } catch(InterruptedException ie) {
+               Thread.currentThread().interrupt();
+            }
+         }));
+      }
+
+      for(Thread thread : threads) {
+         thread.start();
+      }
+      for(Thread thread : threads) {
+         thread.join();
+      }
+
+      assertEquals(numProducers * perProducer, received.cardinality());
+      assertEquals(0, queue.size());
+   }
+}
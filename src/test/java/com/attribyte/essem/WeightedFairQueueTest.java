@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.attribyte.essem;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import org.attribyte.essem.ReportProtos;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WeightedFairQueueTest {
+
+   @Test
+   public void testWeightedRoundRobin() throws Exception {
+      WeightedFairQueue queue = new WeightedFairQueue(0, index -> index.equals("b") ? 2 : 1);
+      for(int i = 0; i < 6; i++) {
+         queue.offer(report("a"));
+      }
+      for(int i = 0; i < 4; i++) {
+         queue.offer(report("b"));
+      }
+      queue.offer(report("c"));
+
+      List<QueuedReport> drained = Lists.newArrayList();
+      assertEquals(11, queue.drainTo(drained));
+      List<String> order = Lists.newArrayList();
+      for(QueuedReport report : drained) {
+         order.add(report.index);
+      }
+      assertEquals("a,b,b,c,a,b,b,a,a,a,a", Joiner.on(',').join(order));
+      assertNull(queue.poll());
+   }
+
+   @Test
+   public void testCapacity() throws Exception {
+      WeightedFairQueue queue = new WeightedFairQueue(2, index -> 1);
+      assertTrue(queue.offer(report("a")));
+      assertTrue(queue.offer(report("b")));
+      assertFalse(queue.offer(report("c")));
+      assertFalse(queue.offer(report("c"), 1, TimeUnit.MILLISECONDS));
+      assertEquals("a", queue.take().index);
+      assertTrue(queue.offer(report("c")));
+      assertEquals(2, queue.size());
+   }
+
+   @Test
+   public void testIterator() throws Exception {
+      WeightedFairQueue queue = new WeightedFairQueue(0, index -> 1);
+      QueuedReport a = report("a");
+      QueuedReport b = report("b");
+      queue.offer(a);
+      queue.offer(b);
+      queue.offer(report("a"));
+      assertEquals(3, Lists.newArrayList(queue).size());
+      assertTrue(queue.contains(b));
+      queue.poll();
+      assertFalse(queue.contains(a));
+      assertEquals(2, Lists.newArrayList(queue.iterator()).size());
+   }
+
+   @Test
+   public void testQuotas() throws Exception {
+      Properties props = new Properties();
+      props.setProperty("indexMaxQueueSize", "2");
+      props.setProperty("index.noisy.maxMetricsPerSecond", "10");
+      props.setProperty("index.noisy.weight", "3");
+      IndexQuotas quotas = IndexQuotas.fromProperties(props);
+
+      IndexQuotas.Quota noisy = quotas.get("noisy");
+      assertEquals(3, noisy.weight);
+      assertEquals(2, noisy.maxQueueSize);
+      assertTrue(quotas.getMetrics().containsKey("index-noisy-rejected"));
+
+      assertEquals(0L, noisy.admit(10));
+      assertEquals(3L, noisy.admit(25)); //Over the rate
+
+      IndexQuotas.Quota quiet = quotas.get("quiet");
+      assertEquals(1, quiet.weight);
+      assertEquals(0L, quiet.admit(1000));
+      quiet.queueSize.inc(2);
+      assertEquals(IndexQuotas.QUEUE_FULL_RETRY_AFTER_SECONDS, quiet.checkQueueSize());
+
+      MetricRegistry registry = new MetricRegistry();
+      quotas.registerMetrics(registry, "reports");
+      assertTrue(registry.getMetrics().containsKey("reports.index-quiet-rejected"));
+      quotas.get("new");
+      assertTrue(registry.getMetrics().containsKey("reports.index-new-queue-size")); //Registered when first seen
+   }
+
+   @Test
+   public void testMaxQuotas() throws Exception {
+      Properties props = new Properties();
+      props.setProperty("indexMaxQuotas", "2");
+      props.setProperty("index.noisy.weight", "3");
+      IndexQuotas quotas = IndexQuotas.fromProperties(props);
+
+      IndexQuotas.Quota a = quotas.get("a");
+      IndexQuotas.Quota b = quotas.get("b");
+      assertNotSame(a, b);
+      assertSame(a, quotas.get("a"));
+      assertEquals(3, quotas.get("noisy").weight); //Configured quotas aren't limited
+      IndexQuotas.Quota c = quotas.get("c");
+      assertEquals(IndexQuotas.OTHER_INDEX, c.index);
+      assertSame(c, quotas.get("d"));
+      assertSame(b, quotas.get("b"));
+      assertFalse(quotas.getMetrics().containsKey("index-c-queue-size"));
+      assertTrue(quotas.getMetrics().containsKey("index-_other-queue-size"));
+   }
+
+   private static QueuedReport report(final String index) {
+      return new QueuedReport(index, ReportProtos.EssemReport.newBuilder().build());
+   }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures the time and allocation to snapshot 10k reservoirs, once per report cycle, as a reporter would.
+ * <p>
+ *    Each cycle records values to every reservoir, then takes a snapshot of each and reads
+ *    the interval statistics and histogram. With <code>total</code>, the total histogram is read too.
+ *    With <code>recycle</code>, snapshots share recycled histograms rather than copies.
+ * </p>
+ * <p>
+ *    Usage: <code>HDRReservoirBenchmark [cycles] [total] [recycle]</code>.
+ * </p>
+ */
+public class HDRReservoirBenchmark {
+
+   private static final int RESERVOIR_COUNT = 10000;
+
+   private static final int UPDATES_PER_CYCLE = 20;
+
+   public static void main(String[] args) throws Exception {
+      final int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+      final boolean total = args.length > 1 && Boolean.parseBoolean(args[1]);
+      final boolean recycle = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+      final HDRReservoir[] reservoirs = new HDRReservoir[RESERVOIR_COUNT];
+      for(int i = 0; i < reservoirs.length; i++) {
+         reservoirs[i] = new HDRReservoir(HDRProfile.DEFAULT, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 1, recycle);
+      }
+
+      final Random rnd = new Random(1L);
+      double check = 0.0;
+      for(int pass = 0; pass < 2; pass++) { //First pass is warm-up
+         long nanos = 0L;
+         long bytes = 0L;
+         for(int cycle = 0; cycle < cycles; cycle++) {
+            for(HDRReservoir reservoir : reservoirs) {
+               for(int i = 0; i < UPDATES_PER_CYCLE; i++) {
+                  reservoir.update(1000L + rnd.nextInt(100000000));
+               }
+            }
+
+            final long startBytes = allocatedBytes();
+            final long startNanos = System.nanoTime();
+            for(HDRReservoir reservoir : reservoirs) {
+               HDRReservoir.HDRSnapshot snapshot = ((HDRReservoir.HDRSnapshot)reservoir.getSnapshot()).sinceLastSnapshot();
+               check += snapshot.getMax() + snapshot.get99thPercentile() + snapshot.getHistogram().getTotalCount();
+               if(total) {
+                  check += snapshot.totalSnapshot().get99thPercentile();
+               }
+            }
+            nanos += System.nanoTime() - startNanos;
+            bytes += allocatedBytes() - startBytes;
+         }
+
+         if(pass > 0) {
+            System.out.println(String.format("reservoirs: %d  total: %5s  recycle: %5s  %7.1f ms %8.2f MB (per cycle)",
+                    RESERVOIR_COUNT, total, recycle, nanos / 1e6 / cycles, bytes / 1e6 / cycles));
+         }
+      }
+      System.out.println("(" + check + ")");
+   }
+
+   private static long allocatedBytes() {
+      return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+              .getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.metrics;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the memory footprint of timer reservoirs for each histogram profile.
+ * <p>
+ *    Each reservoir records durations from 50 microseconds to 10 seconds, and is snapshot twice,
+ *    reading the total each time, as a reporter would. The footprint is reported as estimated by the histograms,
+ *    and as measured on the heap, per reservoir and for 20k timers.
+ *    The 99th percentile (in milliseconds) shows the precision retained.
+ * </p>
+ * <p>
+ *    Usage: <code>HDRReservoirFootprint [reservoirs]</code>.
+ * </p>
+ */
+public class HDRReservoirFootprint {
+
+   private static final int TIMER_COUNT = 20000;
+
+   public static void main(String[] args) throws Exception {
+      final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      final HDRProfile[] profiles = {
+              HDRProfile.DEFAULT,
+              HDRProfile.DEFAULT.withoutTotal(),
+              HDRProfile.timer(TimeUnit.MILLISECONDS),
+              HDRProfile.compactTimer(TimeUnit.MILLISECONDS),
+              HDRProfile.compactTimer(TimeUnit.MILLISECONDS).withCounts(HDRProfile.Counts.SHORT),
+              HDRProfile.compactTimer(TimeUnit.MILLISECONDS).withoutTotal()
+      };
+
+      System.out.println(String.format("%-40s %12s %12s %12s %10s", "profile", "estimated", "heap", "heap (20k)", "p99 (ms)"));
+      for(HDRProfile profile : profiles) {
+         final Random rnd = new Random(1L);
+         final long startBytes = usedBytes();
+         final HDRReservoir[] reservoirs = new HDRReservoir[count];
+         long estimatedBytes = 0L;
+         double p99 = 0.0;
+         for(int i = 0; i < reservoirs.length; i++) {
+            reservoirs[i] = new HDRReservoir(profile, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 1);
+            for(int cycle = 0; cycle < 2; cycle++) {
+               for(int j = 0; j < 500; j++) {
+                  reservoirs[i].update((long)(50000.0 * Math.pow(10.0, rnd.nextDouble() * 5.3)));
+               }
+               HDRReservoir.HDRSnapshot snapshot = (HDRReservoir.HDRSnapshot)reservoirs[i].getSnapshot();
+               p99 += snapshot.totalSnapshot().get99thPercentile();
+            }
+            estimatedBytes += reservoirs[i].getEstimatedFootprintInBytes();
+         }
+         final long heapBytes = usedBytes() - startBytes;
+         System.out.println(String.format("%-40s %10.1fKB %10.1fKB %10.1fMB %10.1f", profile,
+                 estimatedBytes / 1024.0 / count, heapBytes / 1024.0 / count,
+                 heapBytes / 1e6 / count * TIMER_COUNT, p99 / 2.0 / count / 1e6));
+         if(reservoirs[0].size() < 0) { //Keeps reservoirs reachable until measured.
+            System.out.println();
+         }
+      }
+   }
+
+   private static long usedBytes() throws InterruptedException {
+      for(int i = 0; i < 3; i++) {
+         System.gc();
+         Thread.sleep(100L);
+      }
+      final Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.metrics;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the HDR reservoir.
+ */
+public class HDRReservoirTest {
+
+   @Test
+   public void testStripedSnapshot() throws Exception {
+      final HDRReservoir striped = new HDRReservoir(Long.MAX_VALUE, 2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 8);
+      final HDRReservoir reservoir = new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM);
+      final int threadCount = 8;
+      final int updates = 10000;
+      final CountDownLatch complete = new CountDownLatch(threadCount);
+      for(int t = 0; t < threadCount; t++) {
+         final int base = t;
+         new Thread(new Runnable() {
+            public void run() {
+               for(int i = 0; i < updates; i++) {
+                  striped.update(base * updates + i);
+               }
+               complete.countDown();
+            }
+         }).start();
+      }
+      for(int i = 0; i < threadCount * updates; i++) {
+         reservoir.update(i);
+      }
+      complete.await();
+
+      Snapshot stripedSnapshot = striped.getSnapshot();
+      Snapshot snapshot = reservoir.getSnapshot();
+      assertEquals(threadCount * updates, stripedSnapshot.size());
+      assertEquals(snapshot.getMax(), stripedSnapshot.getMax());
+      assertEquals(snapshot.getMin(), stripedSnapshot.getMin());
+      assertEquals(snapshot.getMedian(), stripedSnapshot.getMedian(), 0.0);
+      assertEquals(snapshot.get999thPercentile(), stripedSnapshot.get999thPercentile(), 0.0);
+   }
+
+   @Test
+   public void testSinceLastAndTotal() throws Exception {
+      final HDRReservoir reservoir = new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM);
+      for(int i = 1; i <= 100; i++) {
+         reservoir.update(i);
+      }
+      HDRReservoir.HDRSnapshot first = (HDRReservoir.HDRSnapshot)reservoir.getSnapshot();
+      assertEquals(100, first.size());
+      assertEquals(100, reservoir.size());
+      assertEquals(100, reservoir.size()); //No side-effects
+
+      reservoir.update(200);
+      HDRReservoir.HDRSnapshot next = (HDRReservoir.HDRSnapshot)reservoir.getSnapshot();
+      assertEquals(1, next.size());
+      assertEquals(200, next.getMax());
+      assertEquals(101, next.totalSnapshot().size());
+      assertEquals(200, next.totalSnapshot().getMax());
+      assertEquals(1, next.totalSnapshot().sinceLastSnapshot().size());
+      assertEquals(100, first.size()); //Still valid
+
+      final HDRReservoir totalReservoir = new HDRReservoir(2, HDRReservoir.REPORT_TOTAL_HISTOGRAM);
+      totalReservoir.update(1);
+      totalReservoir.getSnapshot();
+      totalReservoir.update(2);
+      HDRReservoir.HDRSnapshot total = (HDRReservoir.HDRSnapshot)totalReservoir.getSnapshot();
+      assertEquals(2, total.size());
+      assertEquals(1, total.sinceLastSnapshot().size());
+      assertEquals(2, totalReservoir.size());
+   }
+
+   @Test
+   public void testImmutableSnapshots() throws Exception {
+      final HDRReservoir reservoir = new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM);
+      for(int i = 1; i <= 100; i++) {
+         reservoir.update(i);
+      }
+      HDRReservoir.HDRSnapshot first = (HDRReservoir.HDRSnapshot)reservoir.getSnapshot();
+      HDRReservoir.HDRSnapshot firstTotal = first.totalSnapshot(); //Materialized on request
+      for(int cycle = 0; cycle < 3; cycle++) { //Another reporter
+         reservoir.update(1000L);
+         reservoir.getSnapshot();
+      }
+      assertEquals(100, first.size());
+      assertEquals(100, first.getMax());
+      assertEquals(100, firstTotal.size());
+      assertEquals(100, firstTotal.getMax());
+
+      final HDRReservoir recycled = new HDRReservoir(HDRProfile.DEFAULT, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 1,
+              HDRReservoir.RECYCLE_SNAPSHOTS);
+      recycled.update(1L);
+      HDRReservoir.HDRSnapshot recycledFirst = (HDRReservoir.HDRSnapshot)recycled.getSnapshot();
+      recycled.update(2L);
+      recycled.update(3L);
+      recycled.getSnapshot();
+      assertEquals(1, recycledFirst.size()); //Valid until two more snapshots are taken
+      recycled.getSnapshot();
+      assertEquals(0, recycledFirst.size()); //Recycled
+
+      reservoir.recycleSnapshots();
+      reservoir.update(1L);
+      HDRReservoir.HDRSnapshot switchedFirst = (HDRReservoir.HDRSnapshot)reservoir.getSnapshot();
+      reservoir.getSnapshot();
+      reservoir.getSnapshot();
+      assertEquals(0, switchedFirst.size()); //Recycled
+      assertEquals(100, firstTotal.size()); //Taken before the switch
+   }
+
+   @Test
+   public void testCompactProfile() throws Exception {
+      final HDRProfile profile = HDRProfile.compactTimer(TimeUnit.MILLISECONDS).withCounts(HDRProfile.Counts.SHORT);
+      final HDRReservoir reservoir = new HDRReservoir(profile, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 1);
+      final HDRReservoir defaultReservoir = new HDRReservoir(2, HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM);
+      for(int cycle = 0; cycle < 3; cycle++) {
+         for(int i = 0; i < 20000; i++) { //Overflows short counts in the total.
+            reservoir.update(TimeUnit.MILLISECONDS.toNanos(5));
+            defaultReservoir.update(TimeUnit.MILLISECONDS.toNanos(5));
+         }
+         reservoir.update(TimeUnit.HOURS.toNanos(2)); //Recorded as the maximum.
+         reservoir.getSnapshot();
+         defaultReservoir.getSnapshot();
+      }
+      HDRReservoir.HDRSnapshot total = ((HDRReservoir.HDRSnapshot)reservoir.getSnapshot()).totalSnapshot();
+      HDRReservoir.HDRSnapshot defaultTotal = ((HDRReservoir.HDRSnapshot)defaultReservoir.getSnapshot()).totalSnapshot();
+      assertEquals(60003, total.size());
+      assertEquals(60003, total.getHistogram().getTotalCount());
+      assertEquals(defaultTotal.getMedian(), total.getMedian(), defaultTotal.getMedian() * 0.01);
+      assertEquals(TimeUnit.HOURS.toNanos(1), total.getMax(), TimeUnit.HOURS.toNanos(1) * 0.01);
+
+      final HDRReservoir noTotal = new HDRReservoir(profile.withoutTotal(), HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, 1);
+      noTotal.update(1000L);
+      HDRReservoir.HDRSnapshot snapshot = (HDRReservoir.HDRSnapshot)noTotal.getSnapshot();
+      assertSame(snapshot, snapshot.totalSnapshot());
+      assertTrue(noTotal.getEstimatedFootprintInBytes() < reservoir.getEstimatedFootprintInBytes());
+
+      try {
+         new HDRReservoir(profile.withoutTotal(), HDRReservoir.REPORT_TOTAL_HISTOGRAM, 1);
+         fail("Expected IllegalArgumentException");
+      } catch(IllegalArgumentException iae) {
+         //Expected
+      }
+   }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.metrics;
+
+import com.codahale.metrics.Clock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@code Timer.update} for a single, shared timer as the number of threads increases.
+ * <p>
+ *    Compares the default timer with a striped timer (one stripe per available processor).
+ *    A snapshot is taken every second, as a reporter would.
+ * </p>
+ * <p>
+ *    Usage: <code>TimerBenchmark [seconds]</code>.
+ * </p>
+ */
+public class TimerBenchmark {
+
+   private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+   public static void main(String[] args) throws Exception {
+      final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+      System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+      for(int threads : THREAD_COUNTS) {
+         run(threads, seconds, false); //Warm-up
+         final double defaultOps = run(threads, seconds, false);
+         final double stripedOps = run(threads, seconds, true);
+         System.out.println(String.format("threads: %2d  default %8.2f M updates/s  striped %8.2f M updates/s",
+                 threads, defaultOps / 1e6, stripedOps / 1e6));
+      }
+   }
+
+   /**
+    * Updates a shared timer from several threads.
+    * @return The number of updates per second.
+    */
+   private static double run(final int threadCount, final int seconds, final boolean striped) throws Exception {
+      final Timer timer = striped ?
+              new Timer(Long.MAX_VALUE, 2, Clock.defaultClock(), HDRReservoir.REPORT_SNAPSHOT_HISTOGRAM, HDRReservoir.defaultStripes()) :
+              new Timer();
+      final AtomicBoolean stop = new AtomicBoolean();
+      final AtomicLong updates = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch complete = new CountDownLatch(threadCount);
+      for(int t = 0; t < threadCount; t++) {
+         final Thread thread = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  start.await();
+               } catch(InterruptedException ie) {
+                  return;
+               }
+               long count = 0L;
+               long value = 1000L;
+               while(!stop.get()) {
+                  timer.update(value, TimeUnit.NANOSECONDS);
+                  value = value < 100000000L ? value + 997L : 1000L;
+                  count++;
+               }
+               updates.addAndGet(count);
+               complete.countDown();
+            }
+         });
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      final long startNanos = System.nanoTime();
+      start.countDown();
+      for(int i = 0; i < seconds; i++) {
+         Thread.sleep(1000L);
+         timer.getSnapshot();
+      }
+      stop.set(true);
+      final long elapsedNanos = System.nanoTime() - startNanos;
+      complete.await();
+      return updates.get() / (elapsedNanos / 1e9);
+   }
+}
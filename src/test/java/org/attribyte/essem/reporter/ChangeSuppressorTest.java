@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for change suppression.
+ */
+public class ChangeSuppressorTest {
+
+   @Test
+   public void testKeyframe() {
+      ChangeSuppressor suppressor = new ChangeSuppressor(0.0, 0.0, 3);
+      Object metric = new Object();
+      int reported = 0;
+      for(int i = 0; i < 9; i++) {
+         suppressor.beginReport();
+         if(!suppressor.skipCount(metric, 10L)) {
+            reported++;
+         }
+         suppressor.endReport();
+      }
+      assertEquals(3, reported);
+      assertEquals(1.0, suppressor.getSuppressionRatio(), 0.0);
+   }
+
+   @Test
+   public void testEpsilon() {
+      ChangeSuppressor suppressor = new ChangeSuppressor(0.5, 0.01, 0);
+      Object gauge = new Object();
+      suppressor.beginReport();
+      assertFalse(suppressor.skipValue(gauge, 100.0));
+      suppressor.beginReport();
+      assertTrue(suppressor.skipValue(gauge, 100.9)); //Relative
+      suppressor.beginReport();
+      assertFalse(suppressor.skipValue(gauge, 101.5)); //Drift from the last reported value
+      suppressor.beginReport();
+      assertTrue(suppressor.skipValue(gauge, 101.0)); //Absolute
+      suppressor.beginReport();
+      assertFalse(suppressor.skipValue(gauge, Double.NaN));
+   }
+
+   @Test
+   public void testManyMetrics() {
+      ChangeSuppressor suppressor = new ChangeSuppressor(0.0, 0.0, 0);
+      Object[] metrics = new Object[1000];
+      for(int i = 0; i < metrics.length; i++) {
+         metrics[i] = new Object();
+      }
+      for(int report = 0; report < 2; report++) {
+         suppressor.beginReport();
+         for(int i = 0; i < metrics.length; i++) {
+            assertEquals(report > 0, suppressor.skipCount(metrics[i], i));
+         }
+         suppressor.endReport();
+      }
+   }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for report compression.
+ */
+public class CompressionTest {
+
+   @Test
+   public void testBlockRoundTrip() throws Exception {
+      Random rnd = new Random(1L);
+      BlockCodec.Encoder encoder = new BlockCodec.Encoder();
+      for(byte[] input : inputs(rnd)) {
+         byte[] encoded = encoder.encode(input, input.length);
+         byte[] decoded = ByteStreams.toByteArray(new BlockCodec.BlockInputStream(new ByteArrayInputStream(encoded)));
+         assertArrayEquals(input, decoded);
+      }
+   }
+
+   @Test
+   public void testDeflateAndGzip() throws Exception {
+      Random rnd = new Random(2L);
+      Compressor deflate = compressor(Compression.deflate(6));
+      Compressor gzip = compressor(Compression.gzip(1));
+      for(byte[] input : inputs(rnd)) {
+         byte[] deflated = deflate.compress(input, input.length);
+         assertArrayEquals(input, ByteStreams.toByteArray(new InflaterInputStream(new ByteArrayInputStream(deflated))));
+         byte[] gzipped = gzip.compress(input, input.length);
+         assertArrayEquals(input, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+      }
+   }
+
+   @Test
+   public void testCorruptBlock() throws Exception {
+      Random rnd = new Random(3L);
+      byte[] input = repetitive(rnd, 20000);
+      byte[] encoded = new BlockCodec.Encoder().encode(input, input.length);
+      for(int i = 0; i < 2000; i++) {
+         byte[] corrupt = Arrays.copyOf(encoded, rnd.nextBoolean() ? encoded.length : rnd.nextInt(encoded.length));
+         corrupt[rnd.nextInt(corrupt.length)] = (byte)rnd.nextInt();
+         InputStream in = new BlockCodec.BlockInputStream(new ByteArrayInputStream(corrupt));
+         try {
+            ByteStreams.toByteArray(in);
+         } catch(IOException ioe) {
+            //Expected. Anything else fails.
+         }
+      }
+   }
+
+   private static Compressor compressor(final Compression compression) {
+      return new Compressor(compression, new Timer(), new Histogram(new UniformReservoir()));
+   }
+
+   private static byte[][] inputs(final Random rnd) {
+      byte[] random = new byte[10000];
+      rnd.nextBytes(random);
+      byte[] run = new byte[5000];
+      Arrays.fill(run, (byte)7);
+      return new byte[][] {
+              new byte[0],
+              new byte[] {1, 2, 3},
+              run,
+              random,
+              repetitive(rnd, 100000),
+              repetitive(rnd, BlockCodec.MAX_BLOCK_SIZE + 100000)
+      };
+   }
+
+   /**
+    * Creates input that looks like a report: repeated names, with varying values.
+    */
+   private static byte[] repetitive(final Random rnd, final int size) {
+      byte[] bytes = new byte[size];
+      byte[] name = "app.service.component.metric-".getBytes();
+      int pos = 0;
+      while(pos < size) {
+         int len = Math.min(name.length, size - pos);
+         System.arraycopy(name, 0, bytes, pos, len);
+         pos += len;
+         for(int i = 0; i < 8 && pos < size; i++) {
+            bytes[pos++] = (byte)rnd.nextInt(16);
+         }
+      }
+      return bytes;
+   }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.CodedInputStream;
+import org.attribyte.essem.ReportProtos;
+import org.attribyte.essem.metrics.Timer;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the delta report encoding.
+ */
+public class DeltaReportCodecTest {
+
+   @Test
+   public void testRoundTrip() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .forApplication("test-app")
+              .forHost("test-host")
+              .build();
+
+      final String[] comment = new String[] {"ok"};
+      registry.register("comment-gauge", new Gauge<String>() {
+         public String getValue() {
+            return comment[0];
+         }
+      });
+
+      Random rnd = new Random(1L);
+      DeltaReportCodec.Encoder encoder = new DeltaReportCodec.Encoder(4);
+      DeltaReportCodec.Decoder decoder = new DeltaReportCodec.Decoder(10, 1L);
+      for(int i = 0; i < 10; i++) {
+         registry.counter("counter-" + (i % 3)).inc(rnd.nextInt(3));
+         registry.meter("meter").mark(rnd.nextInt(100));
+         registry.histogram("histogram").update(rnd.nextInt(1000));
+         registry.register("timer-" + i, new Timer());
+         registry.timer("timer-0").update(rnd.nextInt(1000), TimeUnit.MILLISECONDS);
+         comment[0] = i % 2 == 0 ? "ok" : "not-ok";
+
+         ReportProtos.EssemReport report = reporter.buildReport(registry);
+         ReportProtos.EssemReport decoded = decoder.decode(CodedInputStream.newInstance(encoder.encode(report)));
+         assertEquals(report, decoded);
+      }
+   }
+
+   @Test
+   public void testMaxNames() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry).build();
+      DeltaReportCodec.Encoder encoder = new DeltaReportCodec.Encoder(DeltaReportCodec.DEFAULT_KEYFRAME_INTERVAL, 4);
+      DeltaReportCodec.Decoder decoder = new DeltaReportCodec.Decoder(10, 1L, 4);
+      for(int i = 0; i < 8; i++) {
+         registry.remove("counter-" + (i - 4));
+         registry.counter("counter-" + i).inc(); //A new name in every report forces a keyframe after the first four
+         ReportProtos.EssemReport report = reporter.buildReport(registry);
+         assertEquals(report, decoder.decode(CodedInputStream.newInstance(encoder.encode(report))));
+      }
+
+      DeltaReportCodec.Encoder unlimitedEncoder = new DeltaReportCodec.Encoder(DeltaReportCodec.DEFAULT_KEYFRAME_INTERVAL);
+      decoder.decode(CodedInputStream.newInstance(unlimitedEncoder.encode(reporter.buildReport(registry))));
+      assertEquals(2L, decoder.sessionCount());
+      registry.counter("counter-8").inc();
+      try {
+         decoder.decode(CodedInputStream.newInstance(unlimitedEncoder.encode(reporter.buildReport(registry))));
+         fail("Expecting a session exception");
+      } catch(DeltaReportCodec.SessionException se) {
+         assertEquals(1L, decoder.sessionCount()); //Dropped
+      }
+   }
+
+   @Test(expected = DeltaReportCodec.SessionException.class)
+   public void testOutOfSequence() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      registry.counter("counter").inc();
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry).build();
+      DeltaReportCodec.Encoder encoder = new DeltaReportCodec.Encoder(DeltaReportCodec.DEFAULT_KEYFRAME_INTERVAL);
+      DeltaReportCodec.Decoder decoder = new DeltaReportCodec.Decoder(10, 1L);
+      decoder.decode(CodedInputStream.newInstance(encoder.encode(reporter.buildReport(registry))));
+      encoder.encode(reporter.buildReport(registry)); //Lost
+      decoder.decode(CodedInputStream.newInstance(encoder.encode(reporter.buildReport(registry))));
+   }
+}
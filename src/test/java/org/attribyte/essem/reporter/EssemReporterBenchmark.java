@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.UniformReservoir;
+import org.attribyte.essem.metrics.Timer;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and allocation to build and serialize a report for a large registry.
+ * <p>
+ *    Compares building a message, then serializing it, with writing the report directly.
+ *    The registry is 40% counters, 20% meters, 20% timers, 10% histograms and 10% gauges.
+ *    A tenth of the metrics are updated between reports. Timers use HDR histograms unless <code>hdr</code> is false.
+ * </p>
+ * <p>
+ *    Usage: <code>EssemReporterBenchmark [reports] [none|deflate|gzip|block] [hdr]</code>. Use <code>-Xmx2g</code>.
+ * </p>
+ */
+public class EssemReporterBenchmark {
+
+   private static final int[] METRIC_COUNTS = {10000, 50000};
+
+   public static void main(String[] args) throws Exception {
+
+      final int reports = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+      final Compression compression = args.length > 1 ? compression(args[1]) : Compression.NONE;
+      final boolean hdr = args.length < 3 || Boolean.parseBoolean(args[2]);
+
+      for(int metricCount : METRIC_COUNTS) {
+         final MetricRegistry registry = new MetricRegistry();
+         final EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+                 .withCompression(compression)
+                 .build();
+         final Random rnd = new Random(metricCount);
+         final ReportWriter compressor = new ReportWriter(compression != Compression.NONE ?
+                 new Compressor(compression, new Timer(), new Histogram(new UniformReservoir())) : null);
+         populate(registry, metricCount, hdr);
+
+         for(int pass = 0; pass < 2; pass++) { //First pass is warm-up
+            long buildNanos = 0L, buildBytes = 0L, writeNanos = 0L, writeBytes = 0L;
+            for(int i = 0; i < reports; i++) {
+               update(registry, metricCount, rnd);
+               long startBytes = allocatedBytes();
+               long start = System.nanoTime();
+               byte[] report = reporter.buildReport(registry).toByteArray();
+               report = compressor.compress(report);
+               buildNanos += System.nanoTime() - start;
+               buildBytes += allocatedBytes() - startBytes;
+
+               update(registry, metricCount, rnd);
+               startBytes = allocatedBytes();
+               start = System.nanoTime();
+               reporter.writeReports(registry);
+               writeNanos += System.nanoTime() - start;
+               writeBytes += allocatedBytes() - startBytes;
+            }
+
+            if(pass > 0) {
+               System.out.println(String.format("metrics: %6d  build+serialize %7.1f ms %8.1f MB  write %7.1f ms %8.1f MB (per report)",
+                       metricCount,
+                       buildNanos / 1e6 / reports, buildBytes / 1e6 / reports,
+                       writeNanos / 1e6 / reports, writeBytes / 1e6 / reports));
+            }
+         }
+      }
+   }
+
+   static Compression compression(final String name) {
+      switch(name) {
+         case "deflate": return Compression.deflate(9);
+         case "gzip": return Compression.gzip(9);
+         case "block": return Compression.BLOCK;
+         default: return Compression.NONE;
+      }
+   }
+
+   private static void populate(final MetricRegistry registry, final int metricCount, final boolean hdr) {
+      for(int i = 0; i < metricCount; i++) {
+         final String name = "app.service.component-" + (i / 100) + ".metric-" + i;
+         switch(i % 10) {
+            case 0: case 1: case 2: case 3:
+               registry.counter(name);
+               break;
+            case 4: case 5:
+               registry.meter(name);
+               break;
+            case 6: case 7:
+               if(hdr) {
+                  registry.register(name, new Timer());
+               } else {
+                  registry.timer(name);
+               }
+               break;
+            case 8:
+               registry.histogram(name);
+               break;
+            default:
+               final int value = i;
+               registry.register(name, new Gauge<Integer>() {
+                  public Integer getValue() {
+                     return value;
+                  }
+               });
+         }
+      }
+   }
+
+   private static void update(final MetricRegistry registry, final int metricCount, final Random rnd) {
+      for(int i = 0; i < metricCount / 10; i++) {
+         final int index = rnd.nextInt(metricCount);
+         final String name = "app.service.component-" + (index / 100) + ".metric-" + index;
+         switch(index % 10) {
+            case 0: case 1: case 2: case 3:
+               registry.counter(name).inc();
+               break;
+            case 4: case 5:
+               registry.meter(name).mark();
+               break;
+            case 6: case 7:
+               registry.timer(name).update(rnd.nextInt(500), TimeUnit.MILLISECONDS);
+               break;
+            case 8:
+               registry.histogram(name).update(rnd.nextInt(1000));
+               break;
+         }
+      }
+   }
+
+   private static long allocatedBytes() {
+      return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+              .getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+}
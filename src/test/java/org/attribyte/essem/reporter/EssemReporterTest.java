@@ -14,12 +14,18 @@
  */
 
 package org.attribyte.essem.reporter;
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.attribyte.essem.ReportProtos;
 import org.junit.Test;
 import org.junit.After;
@@ -33,7 +39,11 @@ import org.junit.runners.JUnit4;
 import static org.junit.Assert.*;
 
 import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Very basic reporter tests.
@@ -149,4 +159,160 @@ public class EssemReporterTest {
       assertEquals(500, (int)report.getHistogram(0).getPercentile99());
       assertEquals(500, (int)report.getHistogram(0).getPercentile999());
    }
+
+   @Test
+   public void testWriteReport() throws Exception {
+      final Clock clock = new Clock() {
+         @Override
+         public long getTick() {
+            return 1000000000L;
+         }
+
+         @Override
+         public long getTime() {
+            return 1000L;
+         }
+      };
+
+      MetricRegistry registry = new MetricRegistry();
+      registry.counter("test-counter-0").inc(314);
+      registry.register("test-meter-0", new Meter(clock)).mark(27);
+      registry.register("test-timer-0", new Timer(new ExponentiallyDecayingReservoir(), clock)).update(5, TimeUnit.SECONDS);
+      registry.histogram("test-histo-0").update(500);
+      registry.register("test-gauge-0", new Gauge<Integer>() {
+         public Integer getValue() {
+            return 314;
+         }
+      });
+      registry.register("test-gauge-1", new Gauge<String>() {
+         public String getValue() {
+            return "ok";
+         }
+      });
+
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .withClock(clock)
+              .forApplication("test-app")
+              .forHost("test-host")
+              .build();
+      List<byte[]> reports = reporter.writeReports(registry);
+      assertEquals(1, reports.size());
+      assertArrayEquals(reporter.buildReport(registry).toByteArray(), reports.get(0));
+   }
+
+   @Test
+   public void testReportAfterFailure() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      registry.counter("test-counter-0").inc(314);
+      final AtomicBoolean failGauge = new AtomicBoolean(true);
+      registry.register("test-gauge-0", new Gauge<Integer>() {
+         public Integer getValue() {
+            if(failGauge.get()) {
+               throw new IllegalStateException("Gauge failed");
+            }
+            return 27;
+         }
+      });
+
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .forApplication("test-app")
+              .build();
+      try {
+         reporter.writeReports(registry);
+         fail("Expected gauge failure");
+      } catch(IllegalStateException ise) {
+         //Expected - the counter was written before the gauge failed.
+      }
+
+      failGauge.set(false);
+      List<byte[]> reports = reporter.writeReports(registry);
+      assertEquals(1, reports.size());
+      ReportProtos.EssemReport report = ReportProtos.EssemReport.parseFrom(reports.get(0));
+      assertEquals("test-app", report.getApplication());
+      assertEquals(1, report.getCounterCount());
+      assertEquals(314L, report.getCounter(0).getCount());
+      assertEquals(1, report.getGaugeCount());
+      assertEquals(27.0, report.getGauge(0).getValue(), 0.0);
+   }
+
+   @Test
+   public void testShardedReports() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      for(int i = 0; i < 200; i++) {
+         registry.counter("test.group-" + (i % 10) + ".counter-" + i).inc(i);
+      }
+
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .forApplication("test-app")
+              .withShards(4, EssemReporter.ShardBy.PREFIX)
+              .withMaxReportBytes(512)
+              .build();
+
+      List<byte[]> reports = reporter.writeReports(registry);
+      assertTrue(reports.size() > 4);
+      Set<String> names = Sets.newHashSet();
+      Set<Long> timestamps = Sets.newHashSet();
+      for(byte[] reportBytes : reports) {
+         assertTrue(reportBytes.length <= 512);
+         ReportProtos.EssemReport report = ReportProtos.EssemReport.parseFrom(reportBytes);
+         assertEquals("test-app", report.getApplication());
+         timestamps.add(report.getTimestamp());
+         for(ReportProtos.EssemReport.Counter counter : report.getCounterList()) {
+            assertTrue(names.add(counter.getName()));
+         }
+      }
+      assertEquals(200, names.size());
+      assertEquals(1, timestamps.size());
+      reporter.stop();
+   }
+
+   @Test
+   public void testPartsSentInSequence() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      for(int i = 0; i < 200; i++) {
+         registry.counter("test.counter-" + i).inc(i);
+      }
+
+      final List<SettableFuture<Integer>> sent = Lists.newArrayList();
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .withShards(2, EssemReporter.ShardBy.NAME)
+              .withMaxReportBytes(512)
+              .withTransport(new Transport() {
+                 @Override
+                 public synchronized ListenableFuture<Integer> send(final URI uri, final Map<String, String> headers, final byte[] body) {
+                    SettableFuture<Integer> future = SettableFuture.create();
+                    sent.add(future);
+                    return future;
+                 }
+
+                 @Override
+                 public void shutdown() {
+                 }
+              })
+              .build();
+
+      final int parts = reporter.writeReports(registry).size();
+      assertTrue(parts > 2);
+      reporter.report();
+      assertEquals(2, sent.size()); //One for each shard
+      for(int i = 0; i < sent.size(); i++) {
+         sent.get(i).set(200);
+      }
+      assertEquals(parts, sent.size());
+      assertEquals(0L, ((Meter)reporter.getMetrics().get("failed-reports")).getCount());
+      reporter.stop();
+   }
+
+   @Test
+   public void testEmptyShardsSkipped() throws Exception {
+      MetricRegistry registry = new MetricRegistry();
+      registry.counter("test.counter").inc();
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .withShards(8, EssemReporter.ShardBy.NAME)
+              .build();
+      List<byte[]> reports = reporter.writeReports(registry);
+      assertEquals(1, reports.size());
+      assertEquals("test.counter", ReportProtos.EssemReport.parseFrom(reports.get(0)).getCounter(0).getName());
+      reporter.stop();
+   }
 }
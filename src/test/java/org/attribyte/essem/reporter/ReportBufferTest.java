@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Attribyte, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.attribyte.essem.reporter;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.attribyte.essem.ReportProtos;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for buffering and replay of reports that could not be sent.
+ */
+public class ReportBufferTest {
+
+   @Test
+   public void testOverflowOrder() throws Exception {
+      File dir = Files.createTempDir();
+      ReportBuffer buffer = new ReportBuffer(2, 1024L, dir, 1024L);
+      for(int i = 0; i < 5; i++) {
+         buffer.add(new byte[] {(byte)i});
+      }
+      assertEquals(5, buffer.size());
+      assertEquals(3, dir.listFiles().length);
+
+      for(int i = 0; i < 5; i++) {
+         ReportBuffer.Entry entry = buffer.peek();
+         assertNotNull(entry);
+         assertEquals(i, entry.body[0]);
+         buffer.remove(entry);
+      }
+      assertTrue(buffer.isEmpty());
+      assertEquals(0L, buffer.bytes());
+      assertEquals(0, dir.listFiles().length);
+   }
+
+   @Test
+   public void testDrop() throws Exception {
+      ReportBuffer buffer = new ReportBuffer(2, 1024L, null, 0L);
+      for(int i = 0; i < 5; i++) {
+         buffer.add(new byte[] {(byte)i});
+      }
+      assertEquals(2, buffer.size());
+      assertEquals(3L, ((Counter)buffer.getMetrics().get("dropped-reports")).getCount());
+      assertEquals(3, buffer.peek().body[0]);
+   }
+
+   @Test
+   public void testReplay() throws Exception {
+      final List<Long> received = Lists.newArrayList();
+      final boolean[] available = new boolean[1];
+      Transport transport = new Transport() {
+         @Override
+         public ListenableFuture<Integer> send(final URI uri, final Map<String, String> headers, final byte[] body) {
+            if(!available[0]) {
+               return Futures.immediateFailedFuture(new IOException("Unavailable"));
+            }
+            try {
+               received.add(ReportProtos.EssemReport.parseFrom(body).getTimestamp());
+               return Futures.immediateFuture(200);
+            } catch(IOException ioe) {
+               return Futures.immediateFailedFuture(ioe);
+            }
+         }
+
+         @Override
+         public void shutdown() {
+         }
+      };
+
+      MetricRegistry registry = new MetricRegistry();
+      final long[] time = new long[1];
+      EssemReporter reporter = EssemReporter.newBuilder(new URI("http://127.0.0.1"), registry)
+              .withClock(new com.codahale.metrics.Clock() {
+                 @Override
+                 public long getTick() {
+                    return time[0];
+                 }
+
+                 @Override
+                 public long getTime() {
+                    return time[0];
+                 }
+              })
+              .withTransport(transport)
+              .build();
+
+      for(time[0] = 1L; time[0] <= 3L; time[0]++) {
+         reporter.report();
+      }
+      assertTrue(received.isEmpty());
+
+      available[0] = true;
+      reporter.report();
+      assertEquals(Lists.newArrayList(1L, 2L, 3L, 4L), received);
+      reporter.stop();
+   }
+}